@@ -0,0 +1,519 @@
+import java.util.Arrays;
+
+/**
+ * A time stepped step that keeps fast particles from passing through each other and the walls. A step covers a time
+ * step of simulated time, which can be longer than the one unit the other steps always cover, and is split into as
+ * many substeps as it takes for all but the fastest particles to move no more than SAFE_FRACTION of the smallest radius
+ * in each, up to MAX_SUBSTEPS. The substeps are chosen from the SPEED_PERCENTILE of the speeds, read off a histogram
+ * of SPEED_BINS bins, so a few outliers don't split the step for everyone. Every substep works like the sequential
+ * step: particles are moved, bounced off of the walls, binned into the sorted grid and the ones that overlap are fixed.
+ *
+ * The few particles that would still move further than that in a substep are swept instead of moved. A swept
+ * particle finds the first time in the substep its sphere touches a wall or another particle, both moving in straight
+ * lines, moves to that point, bounces or has the collision fixed, and goes on with the rest of the substep, up to
+ * MAX_SWEPT_HITS times. The particles it is swept against haven't moved yet in the substep, so after a hit they are
+ * taken from where they will be at that point of the substep. Two swept particles aren't swept against each other, if
+ * they meet the overlap check at the end of the substep fixes them like any other pair.
+ *
+ * The speeds given to the gas observables are the ones at the end of the step, and the wall impulse is handed over with
+ * the time step it was collected over. When more than SWEPT_WARNING of the particle moves of a step had to be swept,
+ * usually because the substeps are capped, a warning is printed once, the time step is too long for the gas.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class AdaptiveStep {
+
+	public static final double SAFE_FRACTION = .5;
+	public static final int MAX_SUBSTEPS = 256;
+	public static final int MAX_SWEPT_HITS = 4;
+	public static final double SPEED_PERCENTILE = .99;
+	public static final int SPEED_BINS = 256;
+	public static final double SWEPT_WARNING = .05;
+	public static final double[] VERIFY_TIME_STEPS = {.5, 4};
+	public static final double VERIFY_TOLERANCE = .05;
+	private static final double WALL_TOLERANCE = 1e-9;
+	private static boolean verified;
+
+	private ParticleStore store;
+	private SpatialGrid grid;
+	private double boxSize;
+	private double maxRadius;
+	private boolean[] moved;
+	private int[] speedBins;
+	private StepKernels.PairCount pairs;
+	private int wallHits;
+	private double wallImpulse;
+	private int lastSubsteps;
+	private long substeps;
+	private long sweptMoves;
+	private long sweptHits;
+	private long particleSubsteps;
+	private double lastSweptFraction;
+	private boolean warned;
+
+	/**
+	 * Constructor for the adaptive step. The first adaptive step created checks itself with verify if
+	 * fluid.adaptive.verify is set.
+	 */
+	public AdaptiveStep()
+	{
+		moved = new boolean[0];
+		speedBins = new int[SPEED_BINS];
+		pairs = new StepKernels.PairCount();
+		if(Boolean.getBoolean("fluid.adaptive.verify"))
+			verifyOnce();
+	}
+
+	/**
+	 * Checks that the gas pressure measured with the adaptive step matches the fixed step. The same gas is run with the
+	 * fixed step and with the adaptive step at each of VERIFY_TIME_STEPS, and the pressure over the ideal gas pressure
+	 * of each adaptive run has to be within VERIFY_TOLERANCE of the fixed step's.
+	 *
+	 * @param count - the number of particles.
+	 * @param seed - the seed to place the particles with.
+	 * @throws IllegalStateException - if a pressure is off.
+	 */
+	public static void verify(int count, long seed)
+	{
+		double expected = pressureRatio(count, seed, 0);
+		for(double timeStep : VERIFY_TIME_STEPS)
+		{
+			double ratio = pressureRatio(count, seed, timeStep);
+			if(Math.abs(ratio - expected) > VERIFY_TOLERANCE*expected)
+				throw new IllegalStateException("Adaptive pressure at time step " + timeStep + " is " + ratio
+						+ " of the ideal gas, the fixed step gives " + expected);
+		}
+	}
+
+	/**
+	 * Runs verify the first time it is called.
+	 */
+	private static synchronized void verifyOnce()
+	{
+		if(verified)
+			return;
+		verified = true;
+		verify(1000, 1);
+	}
+
+	/**
+	 * Runs a gas long enough to fill the observables window twice over and measures its pressure.
+	 *
+	 * @param count - the number of particles.
+	 * @param seed - the seed to place the particles with.
+	 * @param timeStep - the time step of the adaptive step, zero for the fixed step.
+	 * @return double - the pressure over the ideal gas pressure.
+	 */
+	private static double pressureRatio(int count, long seed, double timeStep)
+	{
+		SimulationEngine engine = new SimulationEngine(Math.cbrt(count/100.0));
+		engine.setSeed(seed);
+		engine.addAir(count, .015);
+		if(timeStep > 0)
+		{
+			engine.setAdaptive(true);
+			engine.setTimeStep(timeStep);
+		}
+		int window = (int)Math.ceil(GasObservables.DEFAULT_WINDOW/Math.min(1, timeStep > 0 ? timeStep : 1));
+		engine.getObservables().setWindow(window);
+		engine.run(window);
+		engine.setObserving(true);
+		engine.run(window);
+		GasObservables gas = engine.getObservables();
+		return gas.getPressure()/gas.getIdealPressure();
+	}
+
+	/**
+	 * Runs one step over every particle in the store and adds the time of each phase and the counts of the step to the
+	 * metrics. Sweeping counts as collision check and moving as integrate, with the wall checks of the particles that
+	 * are only moved counting as wall check.
+	 *
+	 * @param particleStore - the particles to step.
+	 * @param spatialGrid - the grid to bin the particles with.
+	 * @param box - the side length of the box.
+	 * @param timeStep - the simulated time the step covers.
+	 * @param metrics - the metrics of the step.
+	 * @param sample - the sample to add the speeds and wall impulse of the step to, or null.
+	 */
+	public void step(ParticleStore particleStore, SpatialGrid spatialGrid, double box, double timeStep,
+			SimulationMetrics metrics, GasSample sample)
+	{
+		store = particleStore;
+		grid = spatialGrid;
+		boxSize = box;
+		int count = store.size();
+		if(moved.length < count)
+			moved = new boolean[Math.max(count, moved.length*2)];
+		double[] radius = store.getRadius();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double minRadius = Double.MAX_VALUE, maxSpeedSquared = 0;
+		maxRadius = 0;
+		for(int i = 0; i < count; i++)
+		{
+			minRadius = Math.min(minRadius, radius[i]);
+			maxRadius = Math.max(maxRadius, radius[i]);
+			maxSpeedSquared = Math.max(maxSpeedSquared, vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i]);
+		}
+		double safe = SAFE_FRACTION*minRadius;
+		int steps = 1;
+		if(count > 0 && safe > 0)
+			steps = (int)Math.max(1, Math.min(MAX_SUBSTEPS, Math.ceil(timeStep*percentileSpeed(maxSpeedSquared)/safe)));
+		double dt = timeStep/steps;
+		lastSubsteps = steps;
+		substeps += steps;
+		particleSubsteps += (long)steps*count;
+		long sweptBefore = sweptMoves;
+
+		pairs.reset();
+		wallHits = 0;
+		wallImpulse = 0;
+		long swept = 0, integrate = 0, walls = 0, check = 0, fix = 0;
+		for(int s = 0; s < steps; s++)
+		{
+			long start = System.nanoTime();
+			Arrays.fill(moved, 0, count, false);
+			grid.rebuild(store, count, maxRadius*2 + safe*2);
+			boolean found = true;
+			while(found)
+			{
+				found = false;
+				for(int i = 0; i < count; i++)
+				{
+					if(!moved[i] && (vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i])*dt*dt > safe*safe)
+					{
+						sweep(i, dt, safe);
+						moved[i] = true;
+						found = true;
+						sweptMoves++;
+					}
+				}
+			}
+			long sweptEnd = System.nanoTime();
+			for(int i = 0; i < count; i++)
+			{
+				if(!moved[i])
+					move(i, dt);
+			}
+			long movedEnd = System.nanoTime();
+			for(int i = 0; i < count; i++)
+			{
+				if(!moved[i])
+					reflect(i, dt);
+			}
+			long reflected = System.nanoTime();
+			grid.rebuild(store);
+			long fixNanos = 0;
+			for(int i = 0; i < count; i++)
+			{
+				int other = grid.findIntersecting(store, i, pairs);
+				if(other != -1)
+				{
+					long fixStart = System.nanoTime();
+					store.collisionFix(i, other);
+					fixNanos += System.nanoTime() - fixStart;
+				}
+			}
+			long checked = System.nanoTime();
+			swept += sweptEnd - start;
+			integrate += movedEnd - sweptEnd;
+			walls += reflected - movedEnd;
+			check += checked - reflected - fixNanos;
+			fix += fixNanos;
+		}
+		lastSweptFraction = count > 0 ? (double)(sweptMoves - sweptBefore)/((long)steps*count) : 0;
+		if(lastSweptFraction > SWEPT_WARNING && !warned)
+		{
+			warned = true;
+			System.err.printf("The adaptive step swept %.0f%% of the particle moves in %d substeps, the time step %.3g is too"
+					+ " long for the gas%n", lastSweptFraction*100, steps, timeStep);
+		}
+
+		if(sample != null)
+		{
+			int[] histogram = sample.getHistogram();
+			double scale = sample.getBinScale();
+			double sum = 0;
+			for(int i = 0; i < count; i++)
+			{
+				double speedSquared = vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i];
+				sum += speedSquared;
+				int bin = (int)(Math.sqrt(speedSquared)*scale);
+				if(bin < GasSample.BINS)
+					histogram[bin]++;
+			}
+			sample.addSpeeds(sum, count);
+			sample.addImpulse(wallImpulse);
+			sample.setTime(timeStep);
+		}
+		metrics.addPhase(SimulationMetrics.INTEGRATE, integrate);
+		metrics.addPhase(SimulationMetrics.WALL_CHECK, walls);
+		metrics.addPhase(SimulationMetrics.COLLISION_CHECK, swept + check);
+		metrics.addPhase(SimulationMetrics.COLLISION_FIX, fix);
+		metrics.addPairs(pairs.getTested(), pairs.getIntersecting());
+		metrics.addWallHits(wallHits);
+	}
+
+	/**
+	 * Accessor method for the number of substeps the last step was split into.
+	 *
+	 * @return int - the substeps of the last step.
+	 */
+	public int getLastSubsteps()
+	{
+		return lastSubsteps;
+	}
+
+	/**
+	 * Accessor method for the number of substeps run since the step was created.
+	 *
+	 * @return long - the substeps run.
+	 */
+	public long getSubsteps()
+	{
+		return substeps;
+	}
+
+	/**
+	 * Accessor method for the number of times a particle was swept instead of moved.
+	 *
+	 * @return long - the swept moves.
+	 */
+	public long getSweptMoves()
+	{
+		return sweptMoves;
+	}
+
+	/**
+	 * Accessor method for the fraction of the particle moves that were swept since the step was created.
+	 *
+	 * @return double - the swept moves over the particles moved in every substep.
+	 */
+	public double getSweptFraction()
+	{
+		return particleSubsteps > 0 ? (double)sweptMoves/particleSubsteps : 0;
+	}
+
+	/**
+	 * Accessor method for the fraction of the particle moves of the last step that were swept.
+	 *
+	 * @return double - the swept moves of the last step over its particles times its substeps.
+	 */
+	public double getLastSweptFraction()
+	{
+		return lastSweptFraction;
+	}
+
+	/**
+	 * Accessor method for the number of walls and particles swept particles hit.
+	 *
+	 * @return long - the hits found by sweeping.
+	 */
+	public long getSweptHits()
+	{
+		return sweptHits;
+	}
+
+	/**
+	 * Works out the speed SPEED_PERCENTILE of the particles are at or below, rounded up to the top of its histogram
+	 * bin.
+	 *
+	 * @param maxSpeedSquared - the squared speed of the fastest particle.
+	 * @return double - the percentile speed.
+	 */
+	private double percentileSpeed(double maxSpeedSquared)
+	{
+		int count = store.size();
+		double maxSpeed = Math.sqrt(maxSpeedSquared);
+		if(maxSpeed == 0)
+			return 0;
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		Arrays.fill(speedBins, 0);
+		double scale = SPEED_BINS/maxSpeed;
+		for(int i = 0; i < count; i++)
+		{
+			int bin = (int)(Math.sqrt(vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i])*scale);
+			speedBins[Math.min(bin, SPEED_BINS - 1)]++;
+		}
+		long needed = (long)Math.ceil(count*SPEED_PERCENTILE), seen = 0;
+		for(int bin = 0; bin < SPEED_BINS; bin++)
+		{
+			seen += speedBins[bin];
+			if(seen >= needed)
+				return (bin + 1)/scale;
+		}
+		return maxSpeed;
+	}
+
+	/**
+	 * Moves a particle by its velocity over the given time.
+	 *
+	 * @param i - the index of the particle.
+	 * @param dt - the time to move for.
+	 */
+	private void move(int i, double dt)
+	{
+		store.setPosition(i, store.getX()[i] + store.getVX()[i]*dt, store.getY()[i] + store.getVY()[i]*dt,
+				store.getZ()[i] + store.getVZ()[i]*dt);
+	}
+
+	/**
+	 * Bounces a moved particle off of every wall it touches the same way ParticleStore.checkBoxIntersection does, the
+	 * move is undone and the velocity is reflected.
+	 *
+	 * @param i - the index of the particle.
+	 * @param dt - the time the particle was moved for.
+	 */
+	private void reflect(int i, double dt)
+	{
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double half = boxSize/2, r = store.getRadius()[i];
+		boolean hitX = Math.abs(x[i])+r >= half;
+		boolean hitY = Math.abs(y[i])+r >= half;
+		boolean hitZ = Math.abs(z[i])+r >= half;
+		if(!(hitX || hitY || hitZ))
+			return;
+		store.setPosition(i, x[i] - vx[i]*dt, y[i] - vy[i]*dt, z[i] - vz[i]*dt);
+		store.setVelocity(i, hitX ? -vx[i] : vx[i], hitY ? -vy[i] : vy[i], hitZ ? -vz[i] : vz[i]);
+		wallHits++;
+		wallImpulse += (hitX ? Math.abs(vx[i])*2 : 0) + (hitY ? Math.abs(vy[i])*2 : 0) + (hitZ ? Math.abs(vz[i])*2 : 0);
+	}
+
+	/**
+	 * Moves a fast particle through the substep, stopping at every wall and particle its sphere touches on the way.
+	 *
+	 * @param i - the index of the particle.
+	 * @param dt - the time of the substep.
+	 * @param safe - the furthest a particle that isn't swept moves in a substep.
+	 */
+	private void sweep(int i, double dt, double safe)
+	{
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double r = store.getRadius()[i];
+		double remaining = dt;
+		int last = -1;
+		for(int hit = 0; hit <= MAX_SWEPT_HITS && remaining > 0; hit++)
+		{
+			double elapsed = dt - remaining;
+			double tWall = wallTime(x[i], vx[i], r);
+			tWall = Math.min(tWall, wallTime(y[i], vy[i], r));
+			tWall = Math.min(tWall, wallTime(z[i], vz[i], r));
+
+			double tHit = Math.min(remaining, tWall);
+			int other = -1;
+			double reach = r + maxRadius + safe;
+			int fromX = grid.getCellCoordinate(Math.min(x[i], x[i] + vx[i]*remaining) - reach);
+			int toX = grid.getCellCoordinate(Math.max(x[i], x[i] + vx[i]*remaining) + reach);
+			int fromY = grid.getCellCoordinate(Math.min(y[i], y[i] + vy[i]*remaining) - reach);
+			int toY = grid.getCellCoordinate(Math.max(y[i], y[i] + vy[i]*remaining) + reach);
+			int fromZ = grid.getCellCoordinate(Math.min(z[i], z[i] + vz[i]*remaining) - reach);
+			int toZ = grid.getCellCoordinate(Math.max(z[i], z[i] + vz[i]*remaining) + reach);
+			int tested = 0;
+			for(int cx = fromX; cx <= toX; cx++)
+			{
+				for(int cy = fromY; cy <= toY; cy++)
+				{
+					for(int cz = fromZ; cz <= toZ; cz++)
+					{
+						for(int j = grid.getFirstInCell(cx, cy, cz); j != -1; j = grid.getNextInCell(j))
+						{
+							if(j == i || j == last || moved[j])
+								continue;
+							tested++;
+							double t = contactTime(x[i] - (x[j] + vx[j]*elapsed), y[i] - (y[j] + vy[j]*elapsed),
+									z[i] - (z[j] + vz[j]*elapsed), vx[i] - vx[j], vy[i] - vy[j], vz[i] - vz[j],
+									r + store.getRadius()[j]);
+							if(t < tHit)
+							{
+								tHit = t;
+								other = j;
+							}
+						}
+					}
+				}
+			}
+			pairs.add(tested, other == -1 ? 0 : 1);
+
+			store.setPosition(i, x[i] + vx[i]*tHit, y[i] + vy[i]*tHit, z[i] + vz[i]*tHit);
+			remaining -= tHit;
+			if(other != -1)
+			{
+				store.collisionFix(i, other);
+				last = other;
+				sweptHits++;
+			}
+			else if(tWall <= tHit)
+			{
+				bounce(i, r);
+				last = -1;
+				sweptHits++;
+			}
+		}
+	}
+
+	/**
+	 * Reflects the velocity of a swept particle off of every wall it is touching.
+	 *
+	 * @param i - the index of the particle.
+	 * @param r - the radius of the particle.
+	 */
+	private void bounce(int i, double r)
+	{
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double half = boxSize/2;
+		boolean hitX = Math.abs(x[i])+r >= half - WALL_TOLERANCE && x[i]*vx[i] > 0;
+		boolean hitY = Math.abs(y[i])+r >= half - WALL_TOLERANCE && y[i]*vy[i] > 0;
+		boolean hitZ = Math.abs(z[i])+r >= half - WALL_TOLERANCE && z[i]*vz[i] > 0;
+		wallHits++;
+		wallImpulse += (hitX ? Math.abs(vx[i])*2 : 0) + (hitY ? Math.abs(vy[i])*2 : 0) + (hitZ ? Math.abs(vz[i])*2 : 0);
+		store.setVelocity(i, hitX ? -vx[i] : vx[i], hitY ? -vy[i] : vy[i], hitZ ? -vz[i] : vz[i]);
+	}
+
+	/**
+	 * Works out when a sphere moving along one axis touches the wall it is moving toward.
+	 *
+	 * @param position - the position of the center along the axis.
+	 * @param velocity - the velocity along the axis.
+	 * @param r - the radius of the sphere.
+	 * @return double - the time until it touches, zero if it already does, infinite if it is standing still.
+	 */
+	private double wallTime(double position, double velocity, double r)
+	{
+		if(velocity == 0)
+			return Double.POSITIVE_INFINITY;
+		double limit = boxSize/2 - r;
+		double t = ((velocity > 0 ? limit : -limit) - position)/velocity;
+		return Math.max(0, t);
+	}
+
+	/**
+	 * Works out when two spheres moving in straight lines first touch, from where one is and how it moves relative to
+	 * the other.
+	 *
+	 * @param dx - the x offset from the other sphere.
+	 * @param dy - the y offset from the other sphere.
+	 * @param dz - the z offset from the other sphere.
+	 * @param wx - the x velocity relative to the other sphere.
+	 * @param wy - the y velocity relative to the other sphere.
+	 * @param wz - the z velocity relative to the other sphere.
+	 * @param reach - the sum of the radii.
+	 * @return double - the time until they touch, infinite if they already overlap, are moving apart or miss.
+	 */
+	private static double contactTime(double dx, double dy, double dz, double wx, double wy, double wz, double reach)
+	{
+		double b = dx*wx + dy*wy + dz*wz;
+		double c = dx*dx + dy*dy + dz*dz - reach*reach;
+		if(b >= 0 || c < 0)
+			return Double.POSITIVE_INFINITY;
+		double a = wx*wx + wy*wy + wz*wz;
+		double discriminant = b*b - a*c;
+		if(discriminant < 0)
+			return Double.POSITIVE_INFINITY;
+		return c/(-b + Math.sqrt(discriminant));
+	}
+
+}
@@ -0,0 +1,190 @@
+import java.awt.Color;
+import java.util.ArrayList;
+
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+/**
+ * Draws every particle of a species as one point in a single shared PointArray instead of building a Sphere and a
+ * TransformGroup per particle. The coordinates are held by reference in one float array per species, so a frame is one
+ * bulk geometry update per species instead of a setTransform call per particle, and the scene graph only has one
+ * Shape3D per species no matter how many particles there are.
+ *
+ * The points are antialiased so they draw as round dots, sized from the species radius and the number of pixels one
+ * unit of the box covers on screen.
+ *
+ * @author Ben Johnson
+ * @version 6-16-2017
+ *
+ */
+public class BatchedRenderer {
+
+	private BranchGroup root;
+	private ArrayList<SpeciesBatch> batches;
+	private int[] counts;
+
+	/**
+	 * Constructor for the batched renderer. Creates the empty branch group the species batches are added to.
+	 */
+	public BatchedRenderer()
+	{
+		root = new BranchGroup();
+		root.setCapability(BranchGroup.ALLOW_DETACH);
+		root.setCapability(Group.ALLOW_CHILDREN_EXTEND);
+		batches = new ArrayList<SpeciesBatch>();
+		counts = new int[0];
+	}
+
+	/**
+	 * Draws a snapshot. Creates batches for new species, grows the coordinate arrays that are too small and then
+	 * pushes one geometry update per species.
+	 *
+	 * @param snapshot - the particle state to draw.
+	 * @param pixelsPerUnit - how many pixels one unit of the box covers on screen.
+	 */
+	public void update(SimulationSnapshot snapshot, double pixelsPerUnit)
+	{
+		int speciesCount = snapshot.getSpeciesCount();
+		while(batches.size() < speciesCount)
+		{
+			int species = batches.size();
+			SpeciesBatch batch = new SpeciesBatch(snapshot.getSpeciesColor(species), snapshot.getSpeciesRadius(species));
+			batches.add(batch);
+			root.addChild(batch.group);
+		}
+		if(counts.length < speciesCount)
+			counts = new int[speciesCount];
+		for(int i = 0; i < speciesCount; i++)
+		{
+			counts[i] = 0;
+		}
+		int[] species = snapshot.getSpecies();
+		for(int i = 0; i < snapshot.getCount(); i++)
+		{
+			counts[species[i]]++;
+		}
+
+		for(int i = 0; i < batches.size(); i++)
+		{
+			SpeciesBatch batch = batches.get(i);
+			batch.draw(snapshot, i < speciesCount ? counts[i] : 0, pixelsPerUnit);
+		}
+	}
+
+	/**
+	 * Accessor method for the branch group holding every species batch.
+	 *
+	 * @return BranchGroup - the node tree to be linked with the universe.
+	 */
+	public BranchGroup getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * The shared geometry and appearance of one species.
+	 */
+	private class SpeciesBatch implements GeometryUpdater
+	{
+		private BranchGroup group;
+		private Shape3D shape;
+		private PointArray points;
+		private PointAttributes pointAttributes;
+		private float[] coordinates;
+		private double radius;
+		private float pointSize;
+		private int species;
+		private int count;
+		private SimulationSnapshot snapshot;
+
+		/**
+		 * Creates the shape, appearance and an initial point array for a species.
+		 *
+		 * @param rgb - the packed RGB color of the species.
+		 * @param speciesRadius - the radius of the species' particles.
+		 */
+		private SpeciesBatch(int rgb, double speciesRadius)
+		{
+			species = batches.size();
+			radius = speciesRadius;
+			pointAttributes = new PointAttributes(1, true);
+			pointAttributes.setCapability(PointAttributes.ALLOW_SIZE_WRITE);
+			Appearance appearance = new Appearance();
+			appearance.setPointAttributes(pointAttributes);
+			appearance.setColoringAttributes(new ColoringAttributes(new Color3f(new Color(rgb)),
+					ColoringAttributes.SHADE_FLAT));
+
+			shape = new Shape3D();
+			shape.setCapability(Shape3D.ALLOW_GEOMETRY_WRITE);
+			shape.setAppearance(appearance);
+			allocate(64);
+
+			group = new BranchGroup();
+			group.addChild(shape);
+		}
+
+		/**
+		 * Replaces the point array with one that can hold the given number of points.
+		 *
+		 * @param capacity - the number of points.
+		 */
+		private void allocate(int capacity)
+		{
+			coordinates = new float[capacity*3];
+			points = new PointArray(capacity, GeometryArray.COORDINATES | GeometryArray.BY_REFERENCE);
+			points.setCapability(GeometryArray.ALLOW_REF_DATA_WRITE);
+			points.setCapability(GeometryArray.ALLOW_COUNT_WRITE);
+			points.setCoordRefFloat(coordinates);
+			points.setValidVertexCount(0);
+			shape.setGeometry(points);
+		}
+
+		/**
+		 * Pushes the positions of this species from a snapshot in one geometry update.
+		 *
+		 * @param current - the snapshot to draw.
+		 * @param speciesCount - the number of particles of this species in the snapshot.
+		 * @param pixelsPerUnit - how many pixels one unit of the box covers on screen.
+		 */
+		private void draw(SimulationSnapshot current, int speciesCount, double pixelsPerUnit)
+		{
+			if(speciesCount*3 > coordinates.length)
+				allocate(Math.max(speciesCount, coordinates.length/3*2));
+			float size = (float)Math.max(1, radius*2*pixelsPerUnit);
+			if(size != pointSize)
+			{
+				pointSize = size;
+				pointAttributes.setPointSize(size);
+			}
+			snapshot = current;
+			count = speciesCount;
+			points.updateData(this);
+			snapshot = null;
+		}
+
+		/**
+		 * Copies the positions of this species into the coordinate array. Called by Java3D while it is safe to change
+		 * the by-reference data.
+		 *
+		 * @param geometry - the point array being updated.
+		 */
+		@Override
+		public void updateData(Geometry geometry)
+		{
+			double[] x = snapshot.getX(), y = snapshot.getY(), z = snapshot.getZ();
+			int[] particleSpecies = snapshot.getSpecies();
+			int total = snapshot.getCount();
+			int j = 0;
+			for(int i = 0; i < total && j < count*3; i++)
+			{
+				if(particleSpecies[i] != species)
+					continue;
+				coordinates[j++] = (float)x[i];
+				coordinates[j++] = (float)y[i];
+				coordinates[j++] = (float)z[i];
+			}
+			points.setValidVertexCount(count);
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves and restores the whole state of a simulation in a compact binary file. The particle arrays are copied straight
+ * between the store and memory mapped regions of the file, so states with millions of particles save and load about as
+ * fast as the disk can go.
+ *
+ * The file is little endian and laid out as:
+ * header - int magic ("FSIM"), int version, double box size, long step, int particle count, int species count.
+ * species table - for each species an int packed RGB color and a double radius.
+ * particle columns - count doubles each of x, y, z, vx, vy, vz and radius, then count ints of species index.
+ * Each column starts on an 8 byte boundary.
+ *
+ * @author Ben Johnson
+ * @version 6-21-2017
+ *
+ */
+public class Checkpoint {
+
+	public static final int MAGIC = 0x4653494D;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 32;
+	private static final int SPECIES_BYTES = 12;
+	private static final long MAX_MAP_BYTES = 1L << 30;
+
+	/**
+	 * Writes a snapshot to a checkpoint file, replacing the file if it exists.
+	 *
+	 * @param snapshot - the state to save.
+	 * @param path - the file to write.
+	 * @throws IOException - if the file can't be written.
+	 */
+	public static void write(SimulationSnapshot snapshot, Path path) throws IOException
+	{
+		int count = snapshot.getCount();
+		int speciesCount = snapshot.getSpeciesCount();
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer header = ByteBuffer.allocate((int)columnsStart(speciesCount)).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putDouble(snapshot.getBoxSize());
+			header.putLong(snapshot.getStep());
+			header.putInt(count);
+			header.putInt(speciesCount);
+			for(int i = 0; i < speciesCount; i++)
+			{
+				header.putInt(snapshot.getSpeciesColor(i));
+				header.putDouble(snapshot.getSpeciesRadius(i));
+			}
+			header.clear();
+			channel.write(header, 0);
+
+			long position = columnsStart(speciesCount);
+			double[][] columns = {snapshot.getX(), snapshot.getY(), snapshot.getZ(), snapshot.getVX(), snapshot.getVY(),
+					snapshot.getVZ(), snapshot.getRadius()};
+			for(double[] column : columns)
+			{
+				writeDoubles(channel, position, column, count);
+				position += (long)count*8;
+			}
+			writeInts(channel, position, snapshot.getSpecies(), count);
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint file into an engine, replacing every particle in it and setting its box size and step counter.
+	 * The species in the file are registered with the engine's store, so species indices that are already in use keep
+	 * their meaning. The whole file is read and checked into a scratch store first, so a corrupt file leaves the engine
+	 * as it was.
+	 *
+	 * @param path - the file to read.
+	 * @param engine - the engine to restore into.
+	 * @throws IOException - if the file can't be read or isn't a checkpoint of a known version.
+	 */
+	public static void read(Path path, SimulationEngine engine) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, header, 0);
+			header.flip();
+			if(header.getInt() != MAGIC)
+				throw new IOException(path + " is not a simulation checkpoint");
+			int version = header.getInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported checkpoint version " + version);
+			double boxSize = header.getDouble();
+			long step = header.getLong();
+			int count = header.getInt();
+			int speciesCount = header.getInt();
+			if(count < 0 || speciesCount < 0 || (long)speciesCount*SPECIES_BYTES > channel.size())
+				throw new IOException(path + " has a corrupt header");
+			long expected = columnsStart(speciesCount) + (long)count*(7*8 + 4);
+			if(channel.size() < expected)
+				throw new IOException(path + " is truncated, expected " + expected + " bytes");
+
+			if(!(boxSize > 0) || Double.isInfinite(boxSize) || step < 0)
+				throw new IOException(path + " has a corrupt header");
+
+			ByteBuffer table = ByteBuffer.allocate(speciesCount*SPECIES_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, table, HEADER_BYTES);
+			table.flip();
+			int[] speciesColor = new int[speciesCount];
+			double[] speciesRadius = new double[speciesCount];
+			for(int i = 0; i < speciesCount; i++)
+			{
+				speciesColor[i] = table.getInt();
+				speciesRadius[i] = table.getDouble();
+				if(!(speciesRadius[i] > 0) || Double.isInfinite(speciesRadius[i]))
+					throw new IOException(path + " has a species with a bad radius");
+			}
+
+			ParticleStore scratch = new ParticleStore();
+			scratch.setSize(count);
+			long position = columnsStart(speciesCount);
+			double[][] columns = {scratch.getX(), scratch.getY(), scratch.getZ(), scratch.getVX(), scratch.getVY(),
+					scratch.getVZ(), scratch.getRadius()};
+			for(double[] column : columns)
+			{
+				readDoubles(channel, position, column, count);
+				position += (long)count*8;
+			}
+			int[] species = scratch.getSpecies();
+			readInts(channel, position, species, count);
+			for(int i = 0; i < count; i++)
+			{
+				if(species[i] < 0 || species[i] >= speciesCount)
+					throw new IOException(path + " has a particle with an unknown species");
+			}
+
+			ParticleStore store = engine.getStore();
+			int[] speciesMap = new int[speciesCount];
+			for(int i = 0; i < speciesCount; i++)
+			{
+				speciesMap[i] = store.speciesFor(speciesColor[i], speciesRadius[i]);
+			}
+			engine.setBoxSize(boxSize);
+			engine.setStepCount(step);
+			store.setSize(count);
+			double[][] targets = {store.getX(), store.getY(), store.getZ(), store.getVX(), store.getVY(), store.getVZ(),
+					store.getRadius()};
+			for(int c = 0; c < columns.length; c++)
+			{
+				System.arraycopy(columns[c], 0, targets[c], 0, count);
+			}
+			int[] storeSpecies = store.getSpecies();
+			for(int i = 0; i < count; i++)
+			{
+				storeSpecies[i] = speciesMap[species[i]];
+				store.setAcceleration(i, 0, 0, 0);
+			}
+		}
+	}
+
+	/**
+	 * Works out where the particle columns start, after the header and species table, rounded up to 8 bytes.
+	 *
+	 * @param speciesCount - the number of species.
+	 * @return long - the byte offset of the first column.
+	 */
+	private static long columnsStart(int speciesCount)
+	{
+		long end = HEADER_BYTES + (long)speciesCount*SPECIES_BYTES;
+		return (end + 7) & ~7L;
+	}
+
+	/**
+	 * Copies a double array into the file through mapped regions of at most MAX_MAP_BYTES.
+	 *
+	 * @param channel - the file.
+	 * @param position - the byte offset to write at.
+	 * @param values - the values to write.
+	 * @param count - the number of values to write.
+	 * @throws IOException - if the file can't be mapped.
+	 */
+	private static void writeDoubles(FileChannel channel, long position, double[] values, int count) throws IOException
+	{
+		int perMap = (int)(MAX_MAP_BYTES/8);
+		for(int start = 0; start < count; start += perMap)
+		{
+			int length = Math.min(perMap, count - start);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, position + (long)start*8, (long)length*8);
+			map.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(values, start, length);
+		}
+	}
+
+	/**
+	 * Copies an int array into the file through mapped regions of at most MAX_MAP_BYTES.
+	 *
+	 * @param channel - the file.
+	 * @param position - the byte offset to write at.
+	 * @param values - the values to write.
+	 * @param count - the number of values to write.
+	 * @throws IOException - if the file can't be mapped.
+	 */
+	private static void writeInts(FileChannel channel, long position, int[] values, int count) throws IOException
+	{
+		int perMap = (int)(MAX_MAP_BYTES/4);
+		for(int start = 0; start < count; start += perMap)
+		{
+			int length = Math.min(perMap, count - start);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, position + (long)start*4, (long)length*4);
+			map.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(values, start, length);
+		}
+	}
+
+	/**
+	 * Copies doubles from the file into an array through mapped regions of at most MAX_MAP_BYTES.
+	 *
+	 * @param channel - the file.
+	 * @param position - the byte offset to read from.
+	 * @param values - the array to fill.
+	 * @param count - the number of values to read.
+	 * @throws IOException - if the file can't be mapped.
+	 */
+	private static void readDoubles(FileChannel channel, long position, double[] values, int count) throws IOException
+	{
+		int perMap = (int)(MAX_MAP_BYTES/8);
+		for(int start = 0; start < count; start += perMap)
+		{
+			int length = Math.min(perMap, count - start);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position + (long)start*8, (long)length*8);
+			map.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values, start, length);
+		}
+	}
+
+	/**
+	 * Copies ints from the file into an array through mapped regions of at most MAX_MAP_BYTES.
+	 *
+	 * @param channel - the file.
+	 * @param position - the byte offset to read from.
+	 * @param values - the array to fill.
+	 * @param count - the number of values to read.
+	 * @throws IOException - if the file can't be mapped.
+	 */
+	private static void readInts(FileChannel channel, long position, int[] values, int count) throws IOException
+	{
+		int perMap = (int)(MAX_MAP_BYTES/4);
+		for(int start = 0; start < count; start += perMap)
+		{
+			int length = Math.min(perMap, count - start);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position + (long)start*4, (long)length*4);
+			map.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, start, length);
+		}
+	}
+
+	/**
+	 * Reads from the file until the buffer is full.
+	 *
+	 * @param channel - the file.
+	 * @param buffer - the buffer to fill.
+	 * @param position - the byte offset to read from.
+	 * @throws IOException - if the file ends before the buffer is full.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, position + buffer.position());
+			if(read < 0)
+				throw new IOException("Unexpected end of checkpoint file");
+		}
+	}
+
+}
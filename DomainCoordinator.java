@@ -0,0 +1,323 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the step of a simulation on several DomainWorker processes. The box is split along the x axis into one slab of
+ * equal width per worker, each worker gets the particles in its slab and from then on the workers step their slabs and
+ * trade particles with each other, the coordinator only tells them when to step and collects the particles back when
+ * the state is needed, for rendering or at the end of a run. Collecting the particles takes a full copy of the state
+ * over the network, so the engine only does it when something is listening to the steps.
+ *
+ * The results are exactly the same as the ParallelStep on a store in id order. The workers can run on other machines,
+ * or launchLocal starts them as processes on this one connected over loopback.
+ *
+ * @author Ben Johnson
+ * @version 6-28-2017
+ *
+ */
+public class DomainCoordinator {
+
+	private List<InetSocketAddress> addresses;
+	private List<Process> processes;
+	private Socket[] sockets;
+	private DataInputStream[] in;
+	private DataOutputStream[] out;
+	private long[] results;
+	private int particleCount;
+	private int[] ids;
+
+	/**
+	 * Constructor for the domain coordinator. Nothing is connected until start is called.
+	 *
+	 * @param workers - the addresses the workers are listening on, in order along the x axis.
+	 */
+	public DomainCoordinator(List<InetSocketAddress> workers)
+	{
+		addresses = new ArrayList<InetSocketAddress>(workers);
+		processes = new ArrayList<Process>();
+		results = new long[DomainWorker.STEP_RESULTS];
+		ids = new int[0];
+	}
+
+	/**
+	 * Starts worker processes on this machine with the same Java and class path as this one and makes a coordinator
+	 * for them. The processes are stopped by shutdown.
+	 *
+	 * @param workers - the number of workers to start.
+	 * @return DomainCoordinator - the coordinator of the new workers.
+	 * @throws IOException - if a worker can't be started.
+	 */
+	public static DomainCoordinator launchLocal(int workers) throws IOException
+	{
+		List<InetSocketAddress> started = new ArrayList<InetSocketAddress>();
+		List<Process> launched = new ArrayList<Process>();
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		try
+		{
+			for(int i = 0; i < workers; i++)
+			{
+				ProcessBuilder builder = new ProcessBuilder(java, "-Dfluid.kernels=" + StepKernels.get().getName(),
+						"-cp", System.getProperty("java.class.path"), "DomainWorker", "-port", "0");
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				Process process = builder.start();
+				launched.add(process);
+				String line = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+				if(line == null)
+					throw new IOException("Worker " + i + " stopped before it was listening");
+				int port = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+				started.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			}
+		}
+		catch(IOException e)
+		{
+			for(Process process : launched)
+			{
+				process.destroy();
+			}
+			throw e;
+		}
+		DomainCoordinator coordinator = new DomainCoordinator(started);
+		coordinator.processes = launched;
+		return coordinator;
+	}
+
+	/**
+	 * Parses a comma separated list of host:port addresses.
+	 *
+	 * @param list - the addresses.
+	 * @return List<InetSocketAddress> - the parsed addresses.
+	 */
+	public static List<InetSocketAddress> parseAddresses(String list)
+	{
+		List<InetSocketAddress> parsed = new ArrayList<InetSocketAddress>();
+		for(String address : list.split(","))
+		{
+			int colon = address.lastIndexOf(':');
+			if(colon == -1)
+				throw new IllegalArgumentException("Expected host:port but got " + address);
+			parsed.add(new InetSocketAddress(address.substring(0, colon).trim(),
+					Integer.parseInt(address.substring(colon + 1).trim())));
+		}
+		return parsed;
+	}
+
+	/**
+	 * Connects to the workers and hands each one the particles in its slab. The slabs have to be wide enough that a
+	 * particle can't cross one in a step, at least twice the largest particle diameter plus the fastest speed.
+	 *
+	 * @param store - the particles to split between the workers.
+	 * @param boxSize - the side length of the box.
+	 * @throws IOException - if a worker can't be reached.
+	 */
+	public void start(ParticleStore store, double boxSize) throws IOException
+	{
+		int workers = addresses.size();
+		int count = store.size();
+		double[] x = store.getX(), radius = store.getRadius();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double maxRadius = 0, maxSpeedSquared = 0;
+		for(int i = 0; i < count; i++)
+		{
+			maxRadius = Math.max(maxRadius, radius[i]);
+			maxSpeedSquared = Math.max(maxSpeedSquared, vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i]);
+		}
+		double halo = maxRadius*4;
+		double minWidth = halo + Math.sqrt(maxSpeedSquared);
+		if(workers > 1 && boxSize/workers < minWidth)
+			throw new IllegalArgumentException(String.format("A box of size %.3f is too small for %d workers, every "
+					+ "slab has to be at least %.3f wide", boxSize, workers, minWidth));
+
+		double[] bounds = new double[workers + 1];
+		for(int i = 0; i <= workers; i++)
+		{
+			bounds[i] = i == 0 ? -Double.MAX_VALUE : i == workers ? Double.MAX_VALUE : i*boxSize/workers - boxSize/2;
+		}
+
+		sockets = new Socket[workers];
+		in = new DataInputStream[workers];
+		out = new DataOutputStream[workers];
+		for(int i = 0; i < workers; i++)
+		{
+			sockets[i] = new Socket(addresses.get(i).getAddress(), addresses.get(i).getPort());
+			sockets[i].setTcpNoDelay(true);
+			in[i] = new DataInputStream(new BufferedInputStream(sockets[i].getInputStream(), DomainWorker.BUFFER_BYTES));
+			out[i] = new DataOutputStream(new BufferedOutputStream(sockets[i].getOutputStream(),
+					DomainWorker.BUFFER_BYTES));
+			out[i].writeInt(DomainWorker.COORDINATOR);
+		}
+
+		ParticleStore byId = new ParticleStore();
+		byId.setSize(count);
+		for(int id = 0; id < count; id++)
+		{
+			int index = store.indexOf(id);
+			byId.getX()[id] = x[index];
+			byId.getY()[id] = store.getY()[index];
+			byId.getZ()[id] = store.getZ()[index];
+			byId.getVX()[id] = vx[index];
+			byId.getVY()[id] = vy[index];
+			byId.getVZ()[id] = vz[index];
+			byId.getRadius()[id] = radius[index];
+			byId.getSpecies()[id] = store.getSpecies()[index];
+		}
+		for(int i = 0; i < workers; i++)
+		{
+			out[i].writeInt(i);
+			out[i].writeDouble(boxSize);
+			out[i].writeDouble(bounds[i]);
+			out[i].writeDouble(bounds[i+1]);
+			out[i].writeDouble(halo);
+			out[i].writeUTF(i + 1 < workers ? addresses.get(i+1).getHostString() : "");
+			out[i].writeInt(i + 1 < workers ? addresses.get(i+1).getPort() : 0);
+			DomainWorker.writeParticles(out[i], byId, byId.getIds(), count, bounds[i], bounds[i+1]);
+			out[i].flush();
+		}
+		for(int i = 0; i < workers; i++)
+		{
+			if(in[i].readInt() != DomainWorker.READY)
+				throw new IOException("Worker " + i + " did not get ready");
+		}
+		particleCount = count;
+	}
+
+	/**
+	 * Runs one step on every worker and adds the counts of the step to the metrics. The time of each phase is the
+	 * longest any worker took, and the time spent trading particles counts as collision check.
+	 *
+	 * @param metrics - the metrics of the step.
+	 * @throws IOException - if a worker fails.
+	 */
+	public void step(SimulationMetrics metrics) throws IOException
+	{
+		for(int i = 0; i < out.length; i++)
+		{
+			out[i].writeInt(DomainWorker.STEP);
+			out[i].flush();
+		}
+		long wallHits = 0, tested = 0, intersecting = 0;
+		long integrate = 0, wallCheck = 0, collisionCheck = 0, collisionFix = 0;
+		for(int i = 0; i < in.length; i++)
+		{
+			for(int j = 0; j < results.length; j++)
+			{
+				results[j] = in[i].readLong();
+			}
+			wallHits += results[0];
+			tested += results[1];
+			intersecting += results[2];
+			integrate = Math.max(integrate, results[3]);
+			wallCheck = Math.max(wallCheck, results[4]);
+			collisionCheck = Math.max(collisionCheck, results[5]);
+			collisionFix = Math.max(collisionFix, results[6]);
+		}
+		metrics.addWallHits(wallHits);
+		metrics.addPairs(tested, intersecting);
+		metrics.addPhase(SimulationMetrics.INTEGRATE, integrate);
+		metrics.addPhase(SimulationMetrics.WALL_CHECK, wallCheck);
+		metrics.addPhase(SimulationMetrics.COLLISION_CHECK, collisionCheck);
+		metrics.addPhase(SimulationMetrics.COLLISION_FIX, collisionFix);
+	}
+
+	/**
+	 * Collects the positions and velocities of every particle from the workers into the store they were started from.
+	 *
+	 * @param store - the store to update, with the same particles as when the workers were started.
+	 * @throws IOException - if a worker fails or the workers don't have every particle.
+	 */
+	public void gather(ParticleStore store) throws IOException
+	{
+		for(int i = 0; i < out.length; i++)
+		{
+			out[i].writeInt(DomainWorker.GATHER);
+			out[i].flush();
+		}
+		ParticleStore received = new ParticleStore();
+		int total = 0;
+		for(int i = 0; i < in.length; i++)
+		{
+			ids = DomainWorker.readParticles(in[i], received, ids);
+			double[] x = received.getX(), y = received.getY(), z = received.getZ();
+			double[] vx = received.getVX(), vy = received.getVY(), vz = received.getVZ();
+			for(int j = 0; j < received.size(); j++)
+			{
+				int index = store.indexOf(ids[j]);
+				store.setPosition(index, x[j], y[j], z[j]);
+				store.setVelocity(index, vx[j], vy[j], vz[j]);
+			}
+			total += received.size();
+		}
+		if(total != particleCount)
+			throw new IOException("The workers hold " + total + " particles but " + particleCount + " were handed out");
+	}
+
+	/**
+	 * Tells the workers to stop and closes the connections. Worker processes started by launchLocal are waited for,
+	 * or stopped if they were never connected to.
+	 *
+	 * @throws IOException - if a worker can't be told to stop.
+	 */
+	public void shutdown() throws IOException
+	{
+		boolean[] told = new boolean[addresses.size()];
+		try
+		{
+			for(int i = 0; sockets != null && i < sockets.length; i++)
+			{
+				if(sockets[i] == null)
+					continue;
+				try
+				{
+					out[i].writeInt(DomainWorker.SHUTDOWN);
+					out[i].flush();
+					told[i] = true;
+				}
+				finally
+				{
+					sockets[i].close();
+				}
+			}
+		}
+		finally
+		{
+			sockets = null;
+			for(int i = 0; i < processes.size(); i++)
+			{
+				Process process = processes.get(i);
+				if(!told[i])
+					process.destroy();
+				try
+				{
+					process.waitFor();
+				}
+				catch(InterruptedException e)
+				{
+					process.destroy();
+					Thread.currentThread().interrupt();
+				}
+			}
+			processes.clear();
+		}
+	}
+
+	/**
+	 * Accessor method for the number of workers.
+	 *
+	 * @return int - the number of workers.
+	 */
+	public int getWorkers()
+	{
+		return addresses.size();
+	}
+
+}
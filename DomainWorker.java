@@ -0,0 +1,529 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One process of a distributed simulation. The DomainCoordinator splits the box along the x axis into slabs and each
+ * worker owns the particles whose centers are in its slab. Every step a worker moves its own particles and bounces
+ * them off the walls, then sends every particle within the halo width of a slab border to the worker on the other side
+ * of it, and receives the same from its neighbors. The particles it receives that are now in its slab become its own,
+ * the rest are ghosts that are only there to be collided with.
+ *
+ * The halo is twice the largest particle diameter wide. That is wide enough for the worker to find the closest
+ * intersecting particle not only of its own particles but also of every ghost close enough to touch one of them, so the
+ * collisions are fixed with the same rule as the ParallelStep: a pair is only fixed when both particles pick each
+ * other. The particles of a worker are kept in id order and ties are broken by the lower index, so every pick is the
+ * same one the ParallelStep makes on a store in id order and the results match it exactly.
+ *
+ * A particle can only move into the next slab over in one step, so slabs must be at least the halo width plus the
+ * fastest speed wide. The coordinator checks that before it starts, and since collisions never make a particle faster
+ * than the fastest particle it stays true.
+ *
+ * Workers are started on their own, one per process, and wait for a coordinator to connect:
+ * java DomainWorker -port 7100
+ * With -port 0 a free port is picked. Either way the port is printed on the first line of output.
+ *
+ * The protocol is big endian. Every connection starts with an int saying who is connecting, COORDINATOR or NEIGHBOR.
+ * A particle is sent as an int id, an int species, then doubles of the radius, x, y, z, vx, vy and vz, and a list of
+ * particles as an int count followed by the particles.
+ * setup (coordinator to worker) - int rank, double box size, double slab start, double slab end, double halo width,
+ * the right neighbor's host as UTF and int port (an empty host for the last worker), then the list of particles in the
+ * slab in id order. The worker answers with an int READY once it is connected to its neighbors.
+ * commands (coordinator to worker) - an int STEP, GATHER or SHUTDOWN. A step is answered with STEP_RESULTS longs, the
+ * wall hits, pairs tested and pairs intersecting of the step, then the nanoseconds it spent integrating, reflecting,
+ * exchanging and checking collisions, and fixing them. GATHER is answered with the list of the worker's own particles.
+ * exchange (worker to worker) - a list of particles every step.
+ *
+ * @author Ben Johnson
+ * @version 6-28-2017
+ *
+ */
+public class DomainWorker {
+
+	public static final int COORDINATOR = 1, NEIGHBOR = 2;
+	public static final int READY = 1;
+	public static final int STEP = 1, GATHER = 2, SHUTDOWN = 3;
+	public static final int STEP_RESULTS = 7;
+	public static final int BUFFER_BYTES = 1 << 16;
+
+	private int rank;
+	private double boxSize;
+	private double slabStart, slabEnd;
+	private double halo;
+	private ParticleStore store;
+	private int[] ids;
+	private ParticleStore local;
+	private int[] localIds;
+	private boolean[] owned;
+	private int[] partner;
+	private double[] newVX, newVY, newVZ;
+	private SpatialGrid grid;
+	private StepKernels kernels;
+	private StepKernels.PairCount pairs;
+	private DataInputStream in;
+	private DataOutputStream out;
+	private Neighbor left, right;
+	private ExecutorService senders;
+
+	/**
+	 * Constructor for the domain worker.
+	 */
+	public DomainWorker()
+	{
+		store = new ParticleStore();
+		local = new ParticleStore();
+		ids = localIds = partner = new int[0];
+		owned = new boolean[0];
+		newVX = newVY = newVZ = new double[0];
+		kernels = StepKernels.get();
+		pairs = new StepKernels.PairCount();
+	}
+
+	/**
+	 * Waits for a coordinator on the server socket, takes its setup and runs its commands until it shuts the worker
+	 * down.
+	 *
+	 * @param server - the socket the coordinator and the left neighbor connect to.
+	 * @throws IOException - if a connection fails or something unexpected is received.
+	 */
+	public void serve(ServerSocket server) throws IOException
+	{
+		Socket coordinator = accept(server, COORDINATOR);
+		in = new DataInputStream(new BufferedInputStream(coordinator.getInputStream(), BUFFER_BYTES));
+		out = new DataOutputStream(new BufferedOutputStream(coordinator.getOutputStream(), BUFFER_BYTES));
+		try
+		{
+			setup(server);
+			while(true)
+			{
+				int command = in.readInt();
+				if(command == STEP)
+					step();
+				else if(command == GATHER)
+					writeParticles(out, store, ids, store.size(), -Double.MAX_VALUE, Double.MAX_VALUE);
+				else if(command == SHUTDOWN)
+					return;
+				else
+					throw new IOException("Unknown command " + command);
+				out.flush();
+			}
+		}
+		finally
+		{
+			if(senders != null)
+				senders.shutdown();
+			if(left != null)
+				left.socket.close();
+			if(right != null)
+				right.socket.close();
+			coordinator.close();
+		}
+	}
+
+	/**
+	 * Reads the setup from the coordinator and connects to the neighbors, the right one by connecting to it and the
+	 * left one by waiting for it to connect.
+	 *
+	 * @param server - the socket the left neighbor connects to.
+	 * @throws IOException - if a connection fails.
+	 */
+	private void setup(ServerSocket server) throws IOException
+	{
+		rank = in.readInt();
+		boxSize = in.readDouble();
+		slabStart = in.readDouble();
+		slabEnd = in.readDouble();
+		halo = in.readDouble();
+		String rightHost = in.readUTF();
+		int rightPort = in.readInt();
+		ids = readParticles(in, store, ids);
+		grid = new SpatialGrid(boxSize);
+
+		if(!rightHost.isEmpty())
+		{
+			Socket socket = new Socket(rightHost, rightPort);
+			right = new Neighbor(socket);
+			right.out.writeInt(NEIGHBOR);
+			right.out.flush();
+		}
+		if(rank > 0)
+			left = new Neighbor(accept(server, NEIGHBOR));
+		senders = Executors.newFixedThreadPool(2);
+		out.writeInt(READY);
+		out.flush();
+	}
+
+	/**
+	 * Runs one step over the worker's slab and sends the results of the step to the coordinator.
+	 *
+	 * @throws IOException - if the exchange with a neighbor fails.
+	 */
+	private void step() throws IOException
+	{
+		int count = store.size();
+		long start = System.nanoTime();
+		kernels.integrate(store, 0, count);
+		long integrated = System.nanoTime();
+		int wallHits = kernels.reflectWalls(store, boxSize, 0, count);
+		long reflected = System.nanoTime();
+
+		Future<Void> sentLeft = left == null ? null : left.send(store, ids, -Double.MAX_VALUE, slabStart + halo);
+		Future<Void> sentRight = right == null ? null : right.send(store, ids, slabEnd - halo, Double.MAX_VALUE);
+		if(left != null)
+			left.receive();
+		if(right != null)
+			right.receive();
+		waitFor(sentLeft);
+		waitFor(sentRight);
+		merge();
+
+		int localCount = local.size();
+		double covered = Math.min(slabEnd + halo, boxSize/2) - Math.max(slabStart - halo, -boxSize/2);
+		grid.setCellBudget((int)Math.min(Integer.MAX_VALUE, localCount*boxSize/covered));
+		grid.rebuild(local);
+		pairs.reset();
+		for(int i = 0; i < localCount; i++)
+		{
+			partner[i] = grid.findNearestIntersecting(local, i, owned[i] ? pairs : null);
+		}
+		long checked = System.nanoTime();
+		resolve();
+		long fixed = System.nanoTime();
+
+		out.writeLong(wallHits);
+		out.writeLong(pairs.getTested());
+		out.writeLong(pairs.getIntersecting());
+		out.writeLong(integrated - start);
+		out.writeLong(reflected - integrated);
+		out.writeLong(checked - reflected);
+		out.writeLong(fixed - checked);
+	}
+
+	/**
+	 * Builds the local store of the step, in id order, from the worker's own particles that are still in its slab or
+	 * halo and the particles received from the neighbors.
+	 *
+	 * @throws IOException - if a neighbor sent a particle that moved past this slab.
+	 */
+	private void merge() throws IOException
+	{
+		local.clear();
+		double[] x = store.getX();
+		int count = store.size();
+		int leftCount = left == null ? 0 : left.received.size();
+		int rightCount = right == null ? 0 : right.received.size();
+		ensureLocal(count + leftCount + rightCount);
+		int mine = 0, fromLeft = 0, fromRight = 0;
+		while(true)
+		{
+			while(mine < count && (x[mine] < slabStart - halo || x[mine] >= slabEnd + halo))
+			{
+				mine++;
+			}
+			int mineId = mine < count ? ids[mine] : Integer.MAX_VALUE;
+			int leftId = fromLeft < leftCount ? left.receivedIds[fromLeft] : Integer.MAX_VALUE;
+			int rightId = fromRight < rightCount ? right.receivedIds[fromRight] : Integer.MAX_VALUE;
+			if(mine == count && fromLeft == leftCount && fromRight == rightCount)
+				return;
+			if(mineId < leftId && mineId < rightId)
+				append(store, mine++, mineId);
+			else if(leftId < rightId)
+				append(left.received, fromLeft++, leftId);
+			else
+				append(right.received, fromRight++, rightId);
+		}
+	}
+
+	/**
+	 * Copies a particle to the end of the local store and marks whether it is the worker's own.
+	 *
+	 * @param from - the store holding the particle.
+	 * @param i - the index of the particle in that store.
+	 * @param id - the particle's id.
+	 * @throws IOException - if the particle is past the slab and its halo.
+	 */
+	private void append(ParticleStore from, int i, int id) throws IOException
+	{
+		double px = from.getX()[i];
+		if(px < slabStart - halo || px >= slabEnd + halo)
+			throw new IOException("Particle " + id + " moved more than a slab in one step");
+		int index = local.add(from.getRadius()[i], from.getSpecies()[i]);
+		local.setPosition(index, px, from.getY()[i], from.getZ()[i]);
+		local.setVelocity(index, from.getVX()[i], from.getVY()[i], from.getVZ()[i]);
+		localIds[index] = id;
+		owned[index] = px >= slabStart && px < slabEnd;
+	}
+
+	/**
+	 * Works out the new velocities of the worker's own particles the same way as the ParallelStep and keeps only them,
+	 * dropping the ghosts.
+	 */
+	private void resolve()
+	{
+		double[] vx = local.getVX(), vy = local.getVY(), vz = local.getVZ();
+		int localCount = local.size();
+		for(int i = 0; i < localCount; i++)
+		{
+			int j = partner[i];
+			if(owned[i] && j != -1 && partner[j] == i)
+			{
+				double myLength = Math.sqrt(vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i]);
+				double otherLength = Math.sqrt(vx[j]*vx[j] + vy[j]*vy[j] + vz[j]*vz[j]);
+				double scale = (myLength+otherLength)/2/otherLength;
+				newVX[i] = vx[j]*scale;
+				newVY[i] = vy[j]*scale;
+				newVZ[i] = vz[j]*scale;
+			}
+			else
+			{
+				newVX[i] = vx[i];
+				newVY[i] = vy[i];
+				newVZ[i] = vz[i];
+			}
+		}
+
+		store.clear();
+		if(ids.length < localCount)
+			ids = Arrays.copyOf(ids, Math.max(localCount, ids.length*2));
+		double[] x = local.getX(), y = local.getY(), z = local.getZ();
+		for(int i = 0; i < localCount; i++)
+		{
+			if(!owned[i])
+				continue;
+			int index = store.add(local.getRadius()[i], local.getSpecies()[i]);
+			store.setPosition(index, x[i], y[i], z[i]);
+			store.setVelocity(index, newVX[i], newVY[i], newVZ[i]);
+			ids[index] = localIds[i];
+		}
+	}
+
+	/**
+	 * Makes sure the arrays kept per local particle can hold the given number of particles.
+	 *
+	 * @param count - the number of particles.
+	 */
+	private void ensureLocal(int count)
+	{
+		if(localIds.length < count)
+		{
+			int capacity = Math.max(count, localIds.length*2);
+			localIds = new int[capacity];
+			owned = new boolean[capacity];
+			partner = new int[capacity];
+			newVX = new double[capacity];
+			newVY = new double[capacity];
+			newVZ = new double[capacity];
+		}
+	}
+
+	/**
+	 * Waits for a send to a neighbor to finish.
+	 *
+	 * @param sent - the send, or null if there is no neighbor on that side.
+	 * @throws IOException - if the send failed.
+	 */
+	private static void waitFor(Future<Void> sent) throws IOException
+	{
+		if(sent == null)
+			return;
+		try
+		{
+			sent.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending to a neighbor", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IOException("Sending to a neighbor failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for a connection and checks who is connecting.
+	 *
+	 * @param server - the socket to accept on.
+	 * @param expected - COORDINATOR or NEIGHBOR.
+	 * @return Socket - the connection.
+	 * @throws IOException - if the connection fails or is from the wrong side.
+	 */
+	private static Socket accept(ServerSocket server, int expected) throws IOException
+	{
+		Socket socket = server.accept();
+		socket.setTcpNoDelay(true);
+		int kind = new DataInputStream(socket.getInputStream()).readInt();
+		if(kind != expected)
+		{
+			socket.close();
+			throw new IOException("Expected connection type " + expected + " but got " + kind);
+		}
+		return socket;
+	}
+
+	/**
+	 * Writes the particles of a store whose x position is in a range as a list.
+	 *
+	 * @param out - the stream to write to.
+	 * @param store - the particles.
+	 * @param ids - the id of each particle in the store.
+	 * @param count - the number of particles in the store to look at.
+	 * @param from - the lowest x position sent.
+	 * @param to - the x position past the highest one sent.
+	 * @throws IOException - if the stream fails.
+	 */
+	public static void writeParticles(DataOutputStream out, ParticleStore store, int[] ids, int count, double from,
+			double to) throws IOException
+	{
+		double[] x = store.getX();
+		int sent = 0;
+		for(int i = 0; i < count; i++)
+		{
+			if(x[i] >= from && x[i] < to)
+				sent++;
+		}
+		out.writeInt(sent);
+		double[] y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double[] radius = store.getRadius();
+		int[] species = store.getSpecies();
+		for(int i = 0; i < count; i++)
+		{
+			if(x[i] < from || x[i] >= to)
+				continue;
+			out.writeInt(ids[i]);
+			out.writeInt(species[i]);
+			out.writeDouble(radius[i]);
+			out.writeDouble(x[i]);
+			out.writeDouble(y[i]);
+			out.writeDouble(z[i]);
+			out.writeDouble(vx[i]);
+			out.writeDouble(vy[i]);
+			out.writeDouble(vz[i]);
+		}
+	}
+
+	/**
+	 * Reads a list of particles into an emptied store.
+	 *
+	 * @param in - the stream to read from.
+	 * @param store - the store to fill.
+	 * @param ids - the array to put the ids in, replaced if it is too small.
+	 * @return int[] - the array holding the ids.
+	 * @throws IOException - if the stream fails.
+	 */
+	public static int[] readParticles(DataInputStream in, ParticleStore store, int[] ids) throws IOException
+	{
+		int count = in.readInt();
+		store.clear();
+		store.ensureCapacity(count);
+		if(ids.length < count)
+			ids = new int[Math.max(count, ids.length*2)];
+		for(int i = 0; i < count; i++)
+		{
+			ids[i] = in.readInt();
+			int species = in.readInt();
+			int index = store.add(in.readDouble(), species);
+			store.setPosition(index, in.readDouble(), in.readDouble(), in.readDouble());
+			store.setVelocity(index, in.readDouble(), in.readDouble(), in.readDouble());
+		}
+		return ids;
+	}
+
+	/**
+	 * Starts a worker and serves one coordinator. The only option is -port (default 0, any free port).
+	 *
+	 * @param args - the command line options.
+	 * @throws IOException - if the worker can't listen or its coordinator's connection fails.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int port = 0;
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			if(args[i].equals("-port"))
+				port = Integer.parseInt(args[i+1]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		try(ServerSocket server = new ServerSocket(port))
+		{
+			System.out.println("DomainWorker listening on port " + server.getLocalPort());
+			System.out.flush();
+			new DomainWorker().serve(server);
+		}
+	}
+
+	/**
+	 * The connection to the worker on one side, with the particles received from it in the last exchange.
+	 */
+	private class Neighbor
+	{
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+		private ParticleStore received;
+		private int[] receivedIds;
+
+		/**
+		 * Constructor for the neighbor.
+		 *
+		 * @param socket - the connection to the neighbor.
+		 * @throws IOException - if the streams can't be opened.
+		 */
+		private Neighbor(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+			received = new ParticleStore();
+			receivedIds = new int[0];
+		}
+
+		/**
+		 * Sends the particles in an x range to the neighbor on a sender thread, so both sides can send at once without
+		 * waiting for each other to read.
+		 *
+		 * @param from - the particles to send from.
+		 * @param fromIds - the ids of the particles.
+		 * @param start - the lowest x position sent.
+		 * @param end - the x position past the highest one sent.
+		 * @return Future<Void> - finishes when the particles are sent.
+		 */
+		private Future<Void> send(final ParticleStore from, final int[] fromIds, final double start, final double end)
+		{
+			final int count = from.size();
+			return senders.submit(new Callable<Void>() {
+				public Void call() throws IOException
+				{
+					writeParticles(out, from, fromIds, count, start, end);
+					out.flush();
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * Reads the particles the neighbor sent this step.
+		 *
+		 * @throws IOException - if the connection fails.
+		 */
+		private void receive() throws IOException
+		{
+			receivedIds = readParticles(in, received, receivedIds);
+		}
+	}
+
+}
@@ -0,0 +1,661 @@
+import java.util.Arrays;
+
+/**
+ * An event driven alternative to the time stepped collision check. Instead of moving every particle and then looking
+ * for overlaps, the exact times particles will hit each other and the walls are worked out ahead of time and kept in a
+ * priority queue, and the simulation jumps straight from one collision to the next. Particles can't pass through each
+ * other no matter how fast they move, and a dilute gas like the default air mix only does work when something actually
+ * collides.
+ *
+ * Particles move in straight lines between events and collide as equal mass hard spheres, exchanging the part of their
+ * velocities along the line between their centers. Walls reflect the velocity component that points into them.
+ *
+ * Collisions are only predicted between particles in neighboring cells of a grid whose cells are at least one particle
+ * diameter wide, and a particle leaving its cell is an event of its own that predicts collisions with the particles in
+ * its new neighborhood. Events are never removed from the queue when they become wrong. Each particle has a collision
+ * counter, every event remembers the counters it was predicted with and is skipped when it comes off the queue if
+ * either counter has changed since.
+ *
+ * Each particle keeps the time its position was last brought up to date, the positions in the store are only
+ * current for every particle at the end of a step.
+ *
+ * @author Ben Johnson
+ * @version 6-26-2017
+ *
+ */
+public class EventDrivenStep {
+
+	private static final int WALL = -1;
+	private static final int CELL = -2;
+	private static final int INITIAL_EVENTS = 1024;
+	private static final double WALL_TOLERANCE = 1e-9;
+
+	private ParticleStore store;
+	private double boxSize;
+	private int count;
+	private double time;
+	private boolean ready;
+
+	private double[] updated;
+	private int[] collisions;
+	private int[] cellOf;
+	private int[] next;
+	private int[] previous;
+	private int[] cellHead;
+	private int cellsPerSide;
+	private double cellSize;
+
+	private int events;
+	private double[] eventTime;
+	private int[] eventA;
+	private int[] eventB;
+	private int[] eventStampA;
+	private int[] eventStampB;
+
+	private long processed;
+	private long particleCollisions;
+	private long wallCollisions;
+	private long pairsTested;
+	private double wallImpulse;
+
+	/**
+	 * Constructor for the event driven step.
+	 */
+	public EventDrivenStep()
+	{
+		updated = new double[0];
+		collisions = new int[0];
+		cellOf = new int[0];
+		next = new int[0];
+		previous = new int[0];
+		cellHead = new int[0];
+		eventTime = new double[INITIAL_EVENTS];
+		eventA = new int[INITIAL_EVENTS];
+		eventB = new int[INITIAL_EVENTS];
+		eventStampA = new int[INITIAL_EVENTS];
+		eventStampB = new int[INITIAL_EVENTS];
+	}
+
+	/**
+	 * Throws away every predicted event, so the next step predicts them again from the store. Has to be called when
+	 * the particles are changed outside of the step.
+	 */
+	public void reset()
+	{
+		ready = false;
+	}
+
+	/**
+	 * Advances the simulation by one unit of time, the distance a particle moves in one step being its velocity. Every
+	 * collision before the end of the step is processed in order and then every particle is moved to the end of the
+	 * step.
+	 *
+	 * @param particles - the particles.
+	 * @param box - the side length of the box.
+	 */
+	public void step(ParticleStore particles, double box)
+	{
+		step(particles, box, null);
+	}
+
+	/**
+	 * Advances the simulation by one unit of time and adds the speeds at the end of the step and the wall impulse of the
+	 * step to a gas sample. The speeds are added while the particles are moved to the end of the step.
+	 *
+	 * @param particles - the particles.
+	 * @param box - the side length of the box.
+	 * @param sample - the sample to add to, or null.
+	 */
+	public void step(ParticleStore particles, double box, GasSample sample)
+	{
+		wallImpulse = 0;
+		if(!ready || particles != store || box != boxSize || particles.size() != count)
+			initialize(particles, box);
+		double end = time + 1;
+		while(events > 0 && eventTime[0] <= end)
+		{
+			double t = eventTime[0];
+			int a = eventA[0], b = eventB[0];
+			int stampA = eventStampA[0], stampB = eventStampB[0];
+			removeFirst();
+			if(collisions[a] != stampA || (b >= 0 && collisions[b] != stampB))
+				continue;
+			time = t;
+			if(b >= 0)
+			{
+				collideParticles(a, b);
+				particleCollisions++;
+			}
+			else if(b == WALL)
+			{
+				collideWall(a);
+				wallCollisions++;
+			}
+			else
+				changeCell(a);
+			processed++;
+		}
+		time = end;
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		if(sample == null)
+		{
+			for(int i = 0; i < count; i++)
+			{
+				double dt = time - updated[i];
+				x[i] += vx[i]*dt;
+				y[i] += vy[i]*dt;
+				z[i] += vz[i]*dt;
+				updated[i] = time;
+			}
+		}
+		else
+		{
+			int[] histogram = sample.getHistogram();
+			double scale = sample.getBinScale();
+			double sum = 0;
+			for(int i = 0; i < count; i++)
+			{
+				double dt = time - updated[i];
+				x[i] += vx[i]*dt;
+				y[i] += vy[i]*dt;
+				z[i] += vz[i]*dt;
+				updated[i] = time;
+				double speedSquared = vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i];
+				sum += speedSquared;
+				int bin = (int)(Math.sqrt(speedSquared)*scale);
+				if(bin < GasSample.BINS)
+					histogram[bin]++;
+			}
+			sample.addSpeeds(sum, count);
+			sample.addImpulse(wallImpulse);
+		}
+		if(events > count*16 + INITIAL_EVENTS)
+			predictAll();
+	}
+
+	/**
+	 * Accessor method for the number of collisions and cell changes processed so far.
+	 *
+	 * @return long - the number of valid events processed.
+	 */
+	public long getEventsProcessed()
+	{
+		return processed;
+	}
+
+	/**
+	 * Accessor method for the number of collisions between two particles processed so far.
+	 *
+	 * @return long - the number of particle collisions.
+	 */
+	public long getParticleCollisions()
+	{
+		return particleCollisions;
+	}
+
+	/**
+	 * Accessor method for the number of wall collisions processed so far.
+	 *
+	 * @return long - the number of wall collisions.
+	 */
+	public long getWallCollisions()
+	{
+		return wallCollisions;
+	}
+
+	/**
+	 * Accessor method for the number of pairs of approaching particles a collision time was worked out for so far.
+	 *
+	 * @return long - the number of pairs tested.
+	 */
+	public long getPairsTested()
+	{
+		return pairsTested;
+	}
+
+	/**
+	 * Accessor method for the number of events waiting in the queue, including ones that are no longer valid.
+	 *
+	 * @return int - the size of the queue.
+	 */
+	public int getQueuedEvents()
+	{
+		return events;
+	}
+
+	/**
+	 * Builds the cell grid for the particles and predicts every event from scratch.
+	 *
+	 * @param particles - the particles.
+	 * @param box - the side length of the box.
+	 */
+	private void initialize(ParticleStore particles, double box)
+	{
+		store = particles;
+		boxSize = box;
+		count = particles.size();
+		time = 0;
+		if(updated.length < count)
+		{
+			updated = new double[count];
+			collisions = new int[count];
+			cellOf = new int[count];
+			next = new int[count];
+			previous = new int[count];
+		}
+		double maxRadius = 0;
+		double[] radius = store.getRadius();
+		for(int i = 0; i < count; i++)
+		{
+			maxRadius = Math.max(maxRadius, radius[i]);
+			updated[i] = 0;
+		}
+		int maxCells = (int)Math.cbrt(Math.max(1, count)*2.0) + 1;
+		cellsPerSide = maxRadius > 0 ? (int)Math.max(1, Math.min(maxCells, Math.floor(box/(maxRadius*2)))) : 1;
+		cellSize = box/cellsPerSide;
+		int cells = cellsPerSide*cellsPerSide*cellsPerSide;
+		if(cellHead.length < cells)
+			cellHead = new int[cells];
+		predictAll();
+		ready = true;
+	}
+
+	/**
+	 * Clears the queue, puts every particle back into the cell it is in and predicts every event again.
+	 */
+	private void predictAll()
+	{
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		Arrays.fill(cellHead, 0, cellsPerSide*cellsPerSide*cellsPerSide, -1);
+		for(int i = 0; i < count; i++)
+		{
+			double dt = time - updated[i];
+			x[i] += vx[i]*dt;
+			y[i] += vy[i]*dt;
+			z[i] += vz[i]*dt;
+			updated[i] = time;
+			collisions[i] = 0;
+			link(i, cellIndex(cellCoordinate(x[i]), cellCoordinate(y[i]), cellCoordinate(z[i])));
+		}
+		events = 0;
+		for(int i = 0; i < count; i++)
+		{
+			predictWall(i);
+			predictCellChange(i);
+			predictParticles(i, true);
+		}
+	}
+
+	/**
+	 * Exchanges the velocity components along the line between the centers of two touching particles and predicts
+	 * their next events.
+	 *
+	 * @param a - the first particle.
+	 * @param b - the second particle.
+	 */
+	private void collideParticles(int a, int b)
+	{
+		advance(a);
+		advance(b);
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double dx = x[b] - x[a], dy = y[b] - y[a], dz = z[b] - z[a];
+		double distanceSquared = dx*dx + dy*dy + dz*dz;
+		if(distanceSquared > 0)
+		{
+			double impulse = ((vx[b] - vx[a])*dx + (vy[b] - vy[a])*dy + (vz[b] - vz[a])*dz)/distanceSquared;
+			vx[a] += impulse*dx;
+			vy[a] += impulse*dy;
+			vz[a] += impulse*dz;
+			vx[b] -= impulse*dx;
+			vy[b] -= impulse*dy;
+			vz[b] -= impulse*dz;
+		}
+		collisions[a]++;
+		collisions[b]++;
+		predict(a);
+		predict(b);
+	}
+
+	/**
+	 * Reflects the velocity of a particle off of the wall it reached, and any other wall it reaches at the same time,
+	 * and predicts its next events.
+	 *
+	 * @param i - the particle.
+	 */
+	private void collideWall(int i)
+	{
+		advance(i);
+		double limit = boxSize/2 - store.getRadius()[i];
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double tx = wallTime(store.getX()[i], vx[i], limit);
+		double ty = wallTime(store.getY()[i], vy[i], limit);
+		double tz = wallTime(store.getZ()[i], vz[i], limit);
+		double first = Math.min(tx, Math.min(ty, tz)) + WALL_TOLERANCE;
+		if(tx <= first)
+		{
+			wallImpulse += 2*Math.abs(vx[i]);
+			vx[i] = -vx[i];
+		}
+		if(ty <= first)
+		{
+			wallImpulse += 2*Math.abs(vy[i]);
+			vy[i] = -vy[i];
+		}
+		if(tz <= first)
+		{
+			wallImpulse += 2*Math.abs(vz[i]);
+			vz[i] = -vz[i];
+		}
+		collisions[i]++;
+		predict(i);
+	}
+
+	/**
+	 * Moves a particle into the cell it is entering and predicts collisions with its new neighbors. Its path doesn't
+	 * change, so the events already predicted for it stay valid.
+	 *
+	 * @param i - the particle.
+	 */
+	private void changeCell(int i)
+	{
+		advance(i);
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		int cell = cellOf[i];
+		int cz = cell % cellsPerSide, cy = cell/cellsPerSide % cellsPerSide, cx = cell/cellsPerSide/cellsPerSide;
+		double exitX = exitTime(x[i], vx[i], cx), exitY = exitTime(y[i], vy[i], cy), exitZ = exitTime(z[i], vz[i], cz);
+		if(exitX <= exitY && exitX <= exitZ)
+			cx += vx[i] > 0 ? 1 : -1;
+		else if(exitY <= exitZ)
+			cy += vy[i] > 0 ? 1 : -1;
+		else
+			cz += vz[i] > 0 ? 1 : -1;
+		if(cx < 0 || cy < 0 || cz < 0 || cx >= cellsPerSide || cy >= cellsPerSide || cz >= cellsPerSide)
+			return;
+		unlink(i);
+		link(i, cellIndex(cx, cy, cz));
+		predictCellChange(i);
+		predictParticles(i, false);
+	}
+
+	/**
+	 * Predicts every event of a particle whose path just changed.
+	 *
+	 * @param i - the particle.
+	 */
+	private void predict(int i)
+	{
+		predictWall(i);
+		predictCellChange(i);
+		predictParticles(i, false);
+	}
+
+	/**
+	 * Predicts when a particle will next touch a wall.
+	 *
+	 * @param i - the particle.
+	 */
+	private void predictWall(int i)
+	{
+		double limit = boxSize/2 - store.getRadius()[i];
+		double t = Math.min(wallTime(store.getX()[i], store.getVX()[i], limit),
+				Math.min(wallTime(store.getY()[i], store.getVY()[i], limit), wallTime(store.getZ()[i], store.getVZ()[i], limit)));
+		if(t < Double.POSITIVE_INFINITY)
+			schedule(time + t, i, WALL);
+	}
+
+	/**
+	 * Predicts when a particle will next leave its cell.
+	 *
+	 * @param i - the particle.
+	 */
+	private void predictCellChange(int i)
+	{
+		int cell = cellOf[i];
+		int cz = cell % cellsPerSide, cy = cell/cellsPerSide % cellsPerSide, cx = cell/cellsPerSide/cellsPerSide;
+		double t = Math.min(exitTime(store.getX()[i], store.getVX()[i], cx),
+				Math.min(exitTime(store.getY()[i], store.getVY()[i], cy), exitTime(store.getZ()[i], store.getVZ()[i], cz)));
+		if(t < Double.POSITIVE_INFINITY)
+			schedule(time + t, i, CELL);
+	}
+
+	/**
+	 * Predicts when a particle will hit each particle in its own and the neighboring cells.
+	 *
+	 * @param i - the particle.
+	 * @param higherOnly - only predict with particles of a higher index, used when every particle is predicted so each
+	 * pair is only queued once.
+	 */
+	private void predictParticles(int i, boolean higherOnly)
+	{
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		double[] radius = store.getRadius();
+		int cell = cellOf[i];
+		int cz = cell % cellsPerSide, cy = cell/cellsPerSide % cellsPerSide, cx = cell/cellsPerSide/cellsPerSide;
+		for(int gx = Math.max(0, cx-1); gx <= Math.min(cellsPerSide-1, cx+1); gx++)
+		{
+			for(int gy = Math.max(0, cy-1); gy <= Math.min(cellsPerSide-1, cy+1); gy++)
+			{
+				for(int gz = Math.max(0, cz-1); gz <= Math.min(cellsPerSide-1, cz+1); gz++)
+				{
+					for(int j = cellHead[cellIndex(gx, gy, gz)]; j != -1; j = next[j])
+					{
+						if(j == i || (higherOnly && j < i))
+							continue;
+						double lag = time - updated[j];
+						double dx = x[j] + vx[j]*lag - x[i], dy = y[j] + vy[j]*lag - y[i], dz = z[j] + vz[j]*lag - z[i];
+						double dvx = vx[j] - vx[i], dvy = vy[j] - vy[i], dvz = vz[j] - vz[i];
+						double approach = dx*dvx + dy*dvy + dz*dvz;
+						if(approach >= 0)
+							continue;
+						pairsTested++;
+						double speedSquared = dvx*dvx + dvy*dvy + dvz*dvz;
+						double reach = radius[i] + radius[j];
+						double gap = dx*dx + dy*dy + dz*dz - reach*reach;
+						double t;
+						if(gap <= 0)
+						{
+							t = 0;
+						}
+						else
+						{
+							double discriminant = approach*approach - speedSquared*gap;
+							if(discriminant < 0)
+								continue;
+							t = gap/(-approach + Math.sqrt(discriminant));
+						}
+						schedule(time + t, i, j);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Works out how long until a particle moving along one axis touches a wall.
+	 *
+	 * @param position - the position along the axis.
+	 * @param velocity - the velocity along the axis.
+	 * @param limit - the farthest the center can get from the middle of the box.
+	 * @return double - the time until the wall, infinity if the particle isn't moving along the axis.
+	 */
+	private static double wallTime(double position, double velocity, double limit)
+	{
+		if(velocity > 0)
+			return Math.max(0, (limit - position)/velocity);
+		if(velocity < 0)
+			return Math.max(0, (-limit - position)/velocity);
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Works out how long until a particle moving along one axis leaves its cell.
+	 *
+	 * @param position - the position along the axis.
+	 * @param velocity - the velocity along the axis.
+	 * @param cell - the cell coordinate along the axis.
+	 * @return double - the time until the cell boundary, infinity if there is no cell on that side.
+	 */
+	private double exitTime(double position, double velocity, int cell)
+	{
+		double low = cell*cellSize - boxSize/2;
+		if(velocity > 0 && cell < cellsPerSide-1)
+			return Math.max(0, (low + cellSize - position)/velocity);
+		if(velocity < 0 && cell > 0)
+			return Math.max(0, (low - position)/velocity);
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Moves a particle along its path to the current time.
+	 *
+	 * @param i - the particle.
+	 */
+	private void advance(int i)
+	{
+		double dt = time - updated[i];
+		if(dt == 0)
+			return;
+		store.getX()[i] += store.getVX()[i]*dt;
+		store.getY()[i] += store.getVY()[i]*dt;
+		store.getZ()[i] += store.getVZ()[i]*dt;
+		updated[i] = time;
+	}
+
+	/**
+	 * Adds an event to the queue.
+	 *
+	 * @param t - the time of the event.
+	 * @param a - the particle.
+	 * @param b - the other particle, WALL or CELL.
+	 */
+	private void schedule(double t, int a, int b)
+	{
+		if(events == eventTime.length)
+		{
+			int capacity = events*2;
+			eventTime = Arrays.copyOf(eventTime, capacity);
+			eventA = Arrays.copyOf(eventA, capacity);
+			eventB = Arrays.copyOf(eventB, capacity);
+			eventStampA = Arrays.copyOf(eventStampA, capacity);
+			eventStampB = Arrays.copyOf(eventStampB, capacity);
+		}
+		int stampA = collisions[a];
+		int stampB = b >= 0 ? collisions[b] : 0;
+		int slot = events++;
+		while(slot > 0)
+		{
+			int parent = (slot-1)/2;
+			if(eventTime[parent] <= t)
+				break;
+			move(parent, slot);
+			slot = parent;
+		}
+		eventTime[slot] = t;
+		eventA[slot] = a;
+		eventB[slot] = b;
+		eventStampA[slot] = stampA;
+		eventStampB[slot] = stampB;
+	}
+
+	/**
+	 * Removes the earliest event from the queue.
+	 */
+	private void removeFirst()
+	{
+		int last = --events;
+		if(last == 0)
+			return;
+		double t = eventTime[last];
+		int slot = 0;
+		while(true)
+		{
+			int child = slot*2 + 1;
+			if(child >= last)
+				break;
+			if(child + 1 < last && eventTime[child+1] < eventTime[child])
+				child++;
+			if(t <= eventTime[child])
+				break;
+			move(child, slot);
+			slot = child;
+		}
+		move(last, slot);
+	}
+
+	/**
+	 * Copies an event from one slot of the queue to another.
+	 *
+	 * @param from - the slot to copy.
+	 * @param to - the slot to overwrite.
+	 */
+	private void move(int from, int to)
+	{
+		eventTime[to] = eventTime[from];
+		eventA[to] = eventA[from];
+		eventB[to] = eventB[from];
+		eventStampA[to] = eventStampA[from];
+		eventStampB[to] = eventStampB[from];
+	}
+
+	/**
+	 * Adds a particle to the front of a cell's list.
+	 *
+	 * @param i - the particle.
+	 * @param cell - the cell index.
+	 */
+	private void link(int i, int cell)
+	{
+		cellOf[i] = cell;
+		previous[i] = -1;
+		next[i] = cellHead[cell];
+		if(next[i] != -1)
+			previous[next[i]] = i;
+		cellHead[cell] = i;
+	}
+
+	/**
+	 * Takes a particle out of its cell's list.
+	 *
+	 * @param i - the particle.
+	 */
+	private void unlink(int i)
+	{
+		if(previous[i] != -1)
+			next[previous[i]] = next[i];
+		else
+			cellHead[cellOf[i]] = next[i];
+		if(next[i] != -1)
+			previous[next[i]] = previous[i];
+	}
+
+	/**
+	 * Turns cell coordinates into a cell index.
+	 *
+	 * @param cx - the x cell coordinate.
+	 * @param cy - the y cell coordinate.
+	 * @param cz - the z cell coordinate.
+	 * @return int - the cell index.
+	 */
+	private int cellIndex(int cx, int cy, int cz)
+	{
+		return (cx*cellsPerSide + cy)*cellsPerSide + cz;
+	}
+
+	/**
+	 * Finds the cell coordinate of a position along one axis, clamped to the box.
+	 *
+	 * @param position - the position along the axis.
+	 * @return int - the cell coordinate.
+	 */
+	private int cellCoordinate(double position)
+	{
+		int cell = (int)Math.floor((position + boxSize/2)/cellSize);
+		return Math.max(0, Math.min(cellsPerSide-1, cell));
+	}
+
+}
@@ -0,0 +1,248 @@
+/**
+ * The pressure, temperature and speed distribution of the gas, averaged over a sliding window of the last steps. The
+ * step hands over one GasSample per step and the window keeps the sample of each of the last steps in ring buffers
+ * with running sums, so nothing is allocated and nothing is added up again when a step comes in.
+ *
+ * Every particle has a mass of one and the Boltzmann constant is one, so:
+ * temperature - the mean kinetic energy per particle times two thirds, the mean squared speed over three.
+ * pressure - the wall impulse over the area of the six walls and the simulated time the steps covered.
+ * ideal pressure - what an ideal gas with the same particle count, volume and temperature would push with, N*T/V.
+ * The speed histogram is measured in units of the root mean square speed so it can be compared straight to the
+ * Maxwell-Boltzmann distribution.
+ *
+ * The physics thread calls begin and end, the accessors can be called from any thread.
+ *
+ * @author Ben Johnson
+ * @version 6-26-2017
+ *
+ */
+public class GasObservables {
+
+	public static final int DEFAULT_WINDOW = 200;
+
+	private GasSample sample;
+	private double rmsSpeed;
+
+	private int window;
+	private int position;
+	private int filled;
+	private double[] speedSquared;
+	private double[] impulse;
+	private int[] count;
+	private double[] wallAreaTime;
+	private double[] volume;
+	private int[] histogram;
+	private boolean[] histogramValid;
+
+	private double speedSquaredSum;
+	private double impulseSum;
+	private long countSum;
+	private double wallAreaTimeSum;
+	private double volumeSum;
+	private long[] histogramSum;
+	private int histogramSteps;
+
+	/**
+	 * Constructor for the gas observables.
+	 *
+	 * @param window - the number of steps averaged over.
+	 */
+	public GasObservables(int window)
+	{
+		sample = new GasSample();
+		histogramSum = new long[GasSample.BINS];
+		setWindow(window);
+	}
+
+	/**
+	 * Empties the sample the step adds to, with its speed bins sized from the step before.
+	 *
+	 * @return GasSample - the sample for this step.
+	 */
+	public GasSample begin()
+	{
+		sample.reset(rmsSpeed);
+		return sample;
+	}
+
+	/**
+	 * Moves the window on by one step, dropping the oldest step once the window is full.
+	 *
+	 * @param step - the sample the step filled.
+	 * @param boxSize - the side length of the box during the step.
+	 */
+	public synchronized void end(GasSample step, double boxSize)
+	{
+		if(filled == window)
+		{
+			speedSquaredSum -= speedSquared[position];
+			impulseSum -= impulse[position];
+			countSum -= count[position];
+			wallAreaTimeSum -= wallAreaTime[position];
+			volumeSum -= volume[position];
+			if(histogramValid[position])
+			{
+				for(int i = 0; i < GasSample.BINS; i++)
+				{
+					histogramSum[i] -= histogram[position*GasSample.BINS + i];
+				}
+				histogramSteps--;
+			}
+		}
+		else
+		{
+			filled++;
+		}
+
+		speedSquared[position] = step.getSpeedSquared();
+		impulse[position] = step.getImpulse();
+		count[position] = step.getCount();
+		wallAreaTime[position] = 6*boxSize*boxSize*step.getTime();
+		volume[position] = boxSize*boxSize*boxSize;
+		histogramValid[position] = step.getBinScale() > 0;
+		speedSquaredSum += speedSquared[position];
+		impulseSum += impulse[position];
+		countSum += count[position];
+		wallAreaTimeSum += wallAreaTime[position];
+		volumeSum += volume[position];
+		if(histogramValid[position])
+		{
+			int[] stepHistogram = step.getHistogram();
+			for(int i = 0; i < GasSample.BINS; i++)
+			{
+				histogram[position*GasSample.BINS + i] = stepHistogram[i];
+				histogramSum[i] += stepHistogram[i];
+			}
+			histogramSteps++;
+		}
+		position = (position + 1) % window;
+		rmsSpeed = step.getCount() > 0 ? Math.sqrt(step.getSpeedSquared()/step.getCount()) : 0;
+	}
+
+	/**
+	 * Empties the window, for when the particles are replaced.
+	 */
+	public synchronized void clear()
+	{
+		setWindow(window);
+	}
+
+	/**
+	 * Sets the number of steps averaged over and empties the window.
+	 *
+	 * @param steps - the window length in steps.
+	 */
+	public synchronized void setWindow(int steps)
+	{
+		window = Math.max(1, steps);
+		speedSquared = new double[window];
+		impulse = new double[window];
+		count = new int[window];
+		wallAreaTime = new double[window];
+		volume = new double[window];
+		histogram = new int[window*GasSample.BINS];
+		histogramValid = new boolean[window];
+		position = filled = histogramSteps = 0;
+		speedSquaredSum = impulseSum = wallAreaTimeSum = volumeSum = 0;
+		countSum = 0;
+		for(int i = 0; i < GasSample.BINS; i++)
+		{
+			histogramSum[i] = 0;
+		}
+		rmsSpeed = 0;
+	}
+
+	/**
+	 * Accessor method for the window length.
+	 *
+	 * @return int - the number of steps averaged over.
+	 */
+	public synchronized int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Accessor method for the number of steps in the window so far.
+	 *
+	 * @return int - the steps averaged over, less than the window length until enough steps have run.
+	 */
+	public synchronized int getSteps()
+	{
+		return filled;
+	}
+
+	/**
+	 * Accessor method for the temperature.
+	 *
+	 * @return double - the mean squared speed over three, zero if there are no particles.
+	 */
+	public synchronized double getTemperature()
+	{
+		return countSum > 0 ? speedSquaredSum/countSum/3 : 0;
+	}
+
+	/**
+	 * Accessor method for the pressure on the walls.
+	 *
+	 * @return double - the wall impulse per unit of time per unit of wall area.
+	 */
+	public synchronized double getPressure()
+	{
+		return wallAreaTimeSum > 0 ? impulseSum/wallAreaTimeSum : 0;
+	}
+
+	/**
+	 * Accessor method for the pressure an ideal gas would have at the same particle count, volume and temperature.
+	 *
+	 * @return double - N*T/V.
+	 */
+	public synchronized double getIdealPressure()
+	{
+		return volumeSum > 0 ? countSum*getTemperature()/volumeSum : 0;
+	}
+
+	/**
+	 * Copies the speed distribution into an array, as a probability density over speeds measured in root mean square
+	 * speeds. Bin i covers speeds from i*getBinWidth() to (i+1)*getBinWidth().
+	 *
+	 * @param density - the array to fill, at least GasSample.BINS long.
+	 * @return boolean - false if no histogram has been taken yet, then the array is filled with zeros.
+	 */
+	public synchronized boolean getSpeedDistribution(double[] density)
+	{
+		long total = 0;
+		for(int i = 0; i < GasSample.BINS; i++)
+		{
+			total += histogramSum[i];
+		}
+		for(int i = 0; i < GasSample.BINS; i++)
+		{
+			density[i] = total > 0 ? histogramSum[i]/(total*getBinWidth()) : 0;
+		}
+		return histogramSteps > 0 && total > 0;
+	}
+
+	/**
+	 * Accessor method for the width of a speed bin.
+	 *
+	 * @return double - the width in root mean square speeds.
+	 */
+	public static double getBinWidth()
+	{
+		return GasSample.MAX_SPEED/GasSample.BINS;
+	}
+
+	/**
+	 * The Maxwell-Boltzmann probability density of a speed measured in root mean square speeds,
+	 * sqrt(54/pi)*u^2*e^(-3u^2/2).
+	 *
+	 * @param u - the speed over the root mean square speed.
+	 * @return double - the probability density.
+	 */
+	public static double maxwellBoltzmann(double u)
+	{
+		return Math.sqrt(54/Math.PI)*u*u*Math.exp(-1.5*u*u);
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Adds up what the step sees of the gas while it runs: the sum of the squared speeds and the speed histogram from the
+ * particles it moves, and the impulse the walls give the particles they reflect. Particles all have a mass of one, so
+ * half the sum of the squared speeds is the kinetic energy and the impulse of a wall reflection is twice the speed
+ * into the wall. The sample also holds the simulated time the step covers, one unit unless the step says otherwise.
+ *
+ * Speeds are binned in units of the root mean square speed the sample was reset with, BINS bins from zero up to
+ * MAX_SPEED times it, and faster particles are left out of the histogram. A sample is only ever touched by one thread,
+ * the parallel step keeps one per task and adds them together at the end of the step.
+ *
+ * @author Ben Johnson
+ * @version 6-26-2017
+ *
+ */
+public class GasSample {
+
+	public static final int BINS = 32;
+	public static final double MAX_SPEED = 4;
+
+	private double speedSquared;
+	private double impulse;
+	private double time;
+	private int count;
+	private int[] histogram;
+	private double binScale;
+	private double rmsSpeed;
+
+	/**
+	 * Constructor for the gas sample.
+	 */
+	public GasSample()
+	{
+		histogram = new int[BINS];
+	}
+
+	/**
+	 * Empties the sample.
+	 *
+	 * @param rmsSpeed - the root mean square speed the histogram bins are measured in, zero if it isn't known yet, in
+	 * which case every speed lands in the first bin and the histogram should be ignored.
+	 */
+	public void reset(double rmsSpeed)
+	{
+		speedSquared = impulse = 0;
+		time = 1;
+		count = 0;
+		for(int i = 0; i < BINS; i++)
+		{
+			histogram[i] = 0;
+		}
+		this.rmsSpeed = rmsSpeed;
+		binScale = rmsSpeed > 0 ? BINS/(MAX_SPEED*rmsSpeed) : 0;
+	}
+
+	/**
+	 * Adds the squared speeds of a run of particles.
+	 *
+	 * @param sum - the sum of the squared speeds.
+	 * @param particles - the number of particles.
+	 */
+	public void addSpeeds(double sum, int particles)
+	{
+		speedSquared += sum;
+		count += particles;
+	}
+
+	/**
+	 * Adds wall impulse.
+	 *
+	 * @param wallImpulse - the impulse the walls gave the particles.
+	 */
+	public void addImpulse(double wallImpulse)
+	{
+		impulse += wallImpulse;
+	}
+
+	/**
+	 * Sets the simulated time the step covers, for steps that cover more or less than one unit.
+	 *
+	 * @param stepTime - the time the step covers.
+	 */
+	public void setTime(double stepTime)
+	{
+		time = stepTime;
+	}
+
+	/**
+	 * Adds another sample taken with the same bins into this one.
+	 *
+	 * @param other - the sample to add.
+	 */
+	public void add(GasSample other)
+	{
+		speedSquared += other.speedSquared;
+		impulse += other.impulse;
+		count += other.count;
+		for(int i = 0; i < BINS; i++)
+		{
+			histogram[i] += other.histogram[i];
+		}
+	}
+
+	/**
+	 * Accessor method for the sum of the squared speeds.
+	 *
+	 * @return double - twice the kinetic energy of the particles.
+	 */
+	public double getSpeedSquared()
+	{
+		return speedSquared;
+	}
+
+	/**
+	 * Accessor method for the wall impulse.
+	 *
+	 * @return double - the impulse the walls gave the particles.
+	 */
+	public double getImpulse()
+	{
+		return impulse;
+	}
+
+	/**
+	 * Accessor method for the simulated time the step covers.
+	 *
+	 * @return double - the time the wall impulse was collected over.
+	 */
+	public double getTime()
+	{
+		return time;
+	}
+
+	/**
+	 * Accessor method for the number of particles whose speeds were added.
+	 *
+	 * @return int - the number of particles.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Accessor method for the speed histogram. The kernels add to it directly.
+	 *
+	 * @return int[] - the number of particles in each speed bin.
+	 */
+	public int[] getHistogram()
+	{
+		return histogram;
+	}
+
+	/**
+	 * Accessor method for the speed the histogram bins are measured in.
+	 *
+	 * @return double - the root mean square speed the sample was reset with.
+	 */
+	public double getRmsSpeed()
+	{
+		return rmsSpeed;
+	}
+
+	/**
+	 * Accessor method for the number of histogram bins per unit of speed.
+	 *
+	 * @return double - what a speed is multiplied by to get its bin, zero if the histogram should be ignored.
+	 */
+	public double getBinScale()
+	{
+		return binScale;
+	}
+
+}
@@ -0,0 +1,244 @@
+/**
+ * Moves the velocities of the particles along under the forces between them. The step itself still moves every
+ * particle by its velocity, bounces it off of the walls and fixes collisions, the integrator kicks the velocities
+ * before and after that move. There are three:
+ * euler - explicit Euler, the whole force at the start of the step over the whole step. Cheapest, one force pass per
+ * step, but the energy wanders off.
+ * verlet - velocity Verlet, half of the force before the move and half of the force at the new positions after it.
+ * Also one force pass per step, since the force after one step is the force before the next, and the energy stays
+ * close to where it started for much longer time steps.
+ * respa - multiple time steps, velocity Verlet with the force split by LennardJones.setSplit into a fast part from the
+ * close pairs, worked out every step, and a slow part from the far pairs, worked out every SLOW_EVERY steps and
+ * kicked in over that many steps at once.
+ *
+ * The integrators with state keep it by particle index, so they have to be told with invalidate when particles are
+ * added, removed, reordered or moved in the store directly.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public abstract class Integrator {
+
+	public static final String[] NAMES = {"euler", "verlet", "respa"};
+	public static final int SLOW_EVERY = 4;
+	public static final double SPLIT_INNER = .5;
+	public static final double SPLIT_OUTER = .7;
+
+	/**
+	 * Creates an integrator by name.
+	 *
+	 * @param name - "euler", "verlet" or "respa".
+	 * @return Integrator - a new integrator.
+	 */
+	public static Integrator create(String name)
+	{
+		switch(name.toLowerCase())
+		{
+			case "euler":
+				return new EulerIntegrator();
+			case "verlet":
+				return new VerletIntegrator();
+			case "respa":
+				return new RespaIntegrator(SLOW_EVERY, SPLIT_INNER, SPLIT_OUTER);
+			default:
+				throw new IllegalArgumentException("Unknown integrator " + name);
+		}
+	}
+
+	/**
+	 * Accessor method for the name of the integrator.
+	 *
+	 * @return String - "euler", "verlet" or "respa".
+	 */
+	public abstract String getName();
+
+	/**
+	 * Kicks the velocities before the step moves the particles.
+	 *
+	 * @param store - the particles.
+	 * @param forces - the force field.
+	 * @param box - the side length of the box.
+	 * @param timeStep - the time the step covers.
+	 */
+	public abstract void beforeMove(ParticleStore store, LennardJones forces, double box, double timeStep);
+
+	/**
+	 * Kicks the velocities after the step has moved the particles, bounced them off of the walls and fixed their
+	 * collisions.
+	 *
+	 * @param store - the particles.
+	 * @param forces - the force field.
+	 * @param box - the side length of the box.
+	 * @param timeStep - the time the step covers.
+	 */
+	public abstract void afterMove(ParticleStore store, LennardJones forces, double box, double timeStep);
+
+	/**
+	 * Makes the integrator work out the forces again on the next step instead of using the ones it kept.
+	 */
+	public void invalidate()
+	{
+	}
+
+	/**
+	 * Adds accelerations over a time to the velocity of every particle.
+	 *
+	 * @param store - the particles.
+	 * @param ax - the x acceleration of every particle.
+	 * @param ay - the y acceleration of every particle.
+	 * @param az - the z acceleration of every particle.
+	 * @param time - the time the accelerations act for.
+	 */
+	protected static void kick(ParticleStore store, double[] ax, double[] ay, double[] az, double time)
+	{
+		int count = store.size();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		for(int i = 0; i < count; i++)
+		{
+			vx[i] += ax[i]*time;
+			vy[i] += ay[i]*time;
+			vz[i] += az[i]*time;
+		}
+	}
+
+	/**
+	 * Explicit Euler, the force at the start of the step over the whole step.
+	 */
+	private static class EulerIntegrator extends Integrator
+	{
+		@Override
+		public String getName()
+		{
+			return "euler";
+		}
+
+		@Override
+		public void beforeMove(ParticleStore store, LennardJones forces, double box, double timeStep)
+		{
+			forces.apply(store, box, timeStep);
+		}
+
+		@Override
+		public void afterMove(ParticleStore store, LennardJones forces, double box, double timeStep)
+		{
+		}
+	}
+
+	/**
+	 * Velocity Verlet, keeping the force at the end of one step in the store's accelerations for the start of the next.
+	 */
+	private static class VerletIntegrator extends Integrator
+	{
+		private boolean valid;
+
+		@Override
+		public String getName()
+		{
+			return "verlet";
+		}
+
+		@Override
+		public void beforeMove(ParticleStore store, LennardJones forces, double box, double timeStep)
+		{
+			if(!valid)
+				forces.accelerate(store, box, LennardJones.ALL, store.getAX(), store.getAY(), store.getAZ());
+			kick(store, store.getAX(), store.getAY(), store.getAZ(), timeStep/2);
+		}
+
+		@Override
+		public void afterMove(ParticleStore store, LennardJones forces, double box, double timeStep)
+		{
+			forces.accelerate(store, box, LennardJones.ALL, store.getAX(), store.getAY(), store.getAZ());
+			kick(store, store.getAX(), store.getAY(), store.getAZ(), timeStep/2);
+			valid = true;
+		}
+
+		@Override
+		public void invalidate()
+		{
+			valid = false;
+		}
+	}
+
+	/**
+	 * Multiple time step velocity Verlet. The fast part of the force is kept in the store's accelerations and the slow
+	 * part in arrays of its own, and every slowEvery steps make one outer step with half of the slow kick at each end.
+	 */
+	private static class RespaIntegrator extends Integrator
+	{
+		private int slowEvery;
+		private double inner;
+		private double outer;
+		private double[] slowX, slowY, slowZ;
+		private int phase;
+		private boolean valid;
+
+		private RespaIntegrator(int slowEvery, double inner, double outer)
+		{
+			this.slowEvery = slowEvery;
+			this.inner = inner;
+			this.outer = outer;
+			slowX = slowY = slowZ = new double[0];
+		}
+
+		@Override
+		public String getName()
+		{
+			return "respa";
+		}
+
+		@Override
+		public void beforeMove(ParticleStore store, LennardJones forces, double box, double timeStep)
+		{
+			forces.setSplit(inner*forces.getCutoff(), outer*forces.getCutoff());
+			if(!valid)
+			{
+				if(phase == 0)
+					slowForces(store, forces, box);
+				forces.accelerate(store, box, LennardJones.FAST, store.getAX(), store.getAY(), store.getAZ());
+				valid = true;
+			}
+			if(phase == 0)
+				kick(store, slowX, slowY, slowZ, slowEvery*timeStep/2);
+			kick(store, store.getAX(), store.getAY(), store.getAZ(), timeStep/2);
+		}
+
+		@Override
+		public void afterMove(ParticleStore store, LennardJones forces, double box, double timeStep)
+		{
+			forces.accelerate(store, box, LennardJones.FAST, store.getAX(), store.getAY(), store.getAZ());
+			kick(store, store.getAX(), store.getAY(), store.getAZ(), timeStep/2);
+			phase++;
+			if(phase == slowEvery)
+			{
+				slowForces(store, forces, box);
+				kick(store, slowX, slowY, slowZ, slowEvery*timeStep/2);
+				phase = 0;
+			}
+		}
+
+		/**
+		 * Works out the forces again but stays in the outer step it is in. The opening half of the slow kick has already
+		 * been given, so it isn't given again, and the closing half works out the slow forces at the end of the outer
+		 * step as usual. Only an invalidate between two outer steps works the slow forces out again at once.
+		 */
+		@Override
+		public void invalidate()
+		{
+			valid = false;
+		}
+
+		private void slowForces(ParticleStore store, LennardJones forces, double box)
+		{
+			if(slowX.length < store.size())
+			{
+				slowX = new double[store.size()];
+				slowY = new double[store.size()];
+				slowZ = new double[store.size()];
+			}
+			forces.accelerate(store, box, LennardJones.SLOW, slowX, slowY, slowZ);
+		}
+	}
+
+}
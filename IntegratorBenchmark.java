@@ -0,0 +1,152 @@
+import java.util.Locale;
+
+/**
+ * Benchmarks the integrators against each other on a Lennard-Jones liquid, for how well they hold the total energy
+ * against how fast they run. Every combination of integrator and time step runs the same particles for the same
+ * simulated time with the adaptive step, and the kinetic plus potential energy is sampled every
+ * Integrator.SLOW_EVERY steps, where the multiple time step integrator is between outer steps. A straight line is
+ * fitted through the samples and each row reports:
+ * steps/s - the steps run per second of wall time.
+ * time/s - the simulated time covered per second of wall time, which is what a bigger time step buys.
+ * drift - the slope of the line per particle and unit of simulated time, how fast the energy wanders off.
+ * noise - the spread of the samples around the line per particle, how much the energy jitters from step to step.
+ *
+ * The particles are RADIUS_SIGMAS of sigma in radius, so they would have to get deep into the repulsion of the force to
+ * touch and the collision fix, which doesn't keep energy, hardly ever runs. Temperature and density are about those of
+ * a liquid, a kT of about three quarters of epsilon and half a particle per sigma cubed.
+ *
+ * Each integrator first runs a tenth of the time untimed, so the rows compare compiled code.
+ *
+ * Options are given as name value pairs: -integrators and -timesteps take comma separated lists, -particles the number
+ * of particles, -time the simulated time of each run and -seed the seed to place the particles with.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class IntegratorBenchmark {
+
+	public static final double SIGMA = .03;
+	public static final double EPSILON = 1e-4;
+	public static final double DENSITY = .5;
+	public static final double RADIUS_SIGMAS = .35;
+
+	/**
+	 * Runs the benchmark and prints one row per integrator and time step.
+	 *
+	 * @param args - the command line options.
+	 */
+	public static void main(String[] args)
+	{
+		String[] integrators = Integrator.NAMES;
+		String[] timeSteps = {".015", ".03", ".06"};
+		int particles = 2000;
+		double time = 60;
+		long seed = 1;
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			if(args[i].equals("-integrators"))
+				integrators = args[i+1].split(",");
+			else if(args[i].equals("-timesteps"))
+				timeSteps = args[i+1].split(",");
+			else if(args[i].equals("-particles"))
+				particles = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-time"))
+				time = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-seed"))
+				seed = Long.parseLong(args[i+1]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+
+		System.out.printf("%-10s %10s %10s %12s %12s %14s %14s%n", "integrator", "timestep", "steps", "steps/s", "time/s",
+				"drift", "noise");
+		for(String name : integrators)
+		{
+			run(name, Double.parseDouble(timeSteps[0]), particles, time/10, seed, false);
+		}
+		for(String name : integrators)
+		{
+			for(String timeStep : timeSteps)
+			{
+				run(name, Double.parseDouble(timeStep), particles, time, seed, true);
+			}
+		}
+	}
+
+	/**
+	 * Runs one integrator at one time step and prints its row if asked to.
+	 *
+	 * @param name - the name of the integrator.
+	 * @param timeStep - the time step.
+	 * @param particles - the number of particles.
+	 * @param time - the simulated time to run for.
+	 * @param seed - the seed to place the particles with.
+	 * @param print - whether to print the row.
+	 */
+	private static void run(String name, double timeStep, int particles, double time, long seed, boolean print)
+	{
+		SimulationEngine engine = new SimulationEngine(Math.cbrt(particles*SIGMA*SIGMA*SIGMA/DENSITY));
+		engine.setSeed(seed);
+		engine.setSpeedCap(Math.sqrt(EPSILON*2.25));
+		engine.addParticles(particles, SIGMA*RADIUS_SIGMAS, 0x00FFFF, ParticlePlacer.Strategy.LATTICE);
+		LennardJones forces = new LennardJones(LennardJones.DEFAULT_CUTOFF_SIGMAS*SIGMA,
+				LennardJones.DEFAULT_SKIN_SIGMAS*SIGMA);
+		forces.setSpecies(0, EPSILON, SIGMA);
+		engine.setForces(forces);
+		engine.setIntegrator(Integrator.create(name));
+		engine.setAdaptive(true);
+		engine.setTimeStep(timeStep);
+
+		ParticleStore store = engine.getStore();
+		double[] ax = new double[store.size()], ay = new double[store.size()], az = new double[store.size()];
+		int samples = (int)Math.max(2, time/timeStep/Integrator.SLOW_EVERY);
+		double[] times = new double[samples], energies = new double[samples];
+		long nanos = 0;
+		for(int sample = 0; sample < samples; sample++)
+		{
+			if(sample > 0)
+			{
+				long start = System.nanoTime();
+				engine.run(Integrator.SLOW_EVERY);
+				nanos += System.nanoTime() - start;
+			}
+			double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+			double energy = 0;
+			for(int i = 0; i < store.size(); i++)
+			{
+				energy += (vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i])/2;
+			}
+			forces.accelerate(store, engine.getBoxSize(), LennardJones.ALL, ax, ay, az);
+			energies[sample] = (energy + forces.getPotentialEnergy())/store.size();
+			times[sample] = (double)sample*Integrator.SLOW_EVERY*timeStep;
+		}
+
+		double meanT = 0, meanE = 0;
+		for(int i = 0; i < samples; i++)
+		{
+			meanT += times[i]/samples;
+			meanE += energies[i]/samples;
+		}
+		double covariance = 0, variance = 0;
+		for(int i = 0; i < samples; i++)
+		{
+			covariance += (times[i] - meanT)*(energies[i] - meanE);
+			variance += (times[i] - meanT)*(times[i] - meanT);
+		}
+		double slope = covariance/variance;
+		double residual = 0;
+		for(int i = 0; i < samples; i++)
+		{
+			double off = energies[i] - meanE - slope*(times[i] - meanT);
+			residual += off*off;
+		}
+		if(!print)
+			return;
+		long steps = (long)(samples - 1)*Integrator.SLOW_EVERY;
+		double seconds = nanos/1e9;
+		System.out.printf(Locale.ROOT, "%-10s %10.4f %10d %12.1f %12.2f %14.4e %14.4e%n", name, timeStep, steps,
+				steps/seconds, steps*timeStep/seconds, slope, Math.sqrt(residual/samples));
+	}
+
+}
@@ -0,0 +1,395 @@
+import java.util.Arrays;
+
+/**
+ * A short range Lennard-Jones force between every pair of particles closer than the cutoff, so the box can hold a real
+ * gas or liquid instead of hard spheres that only feel each other when they touch. Each species has its own epsilon,
+ * the depth of the well, and sigma, the distance the potential crosses zero at, and a pair of species uses the mean of
+ * their sigmas and the geometric mean of their epsilons. A species without parameters feels no force. The potential is
+ * shifted to be zero at the cutoff, the force isn't.
+ *
+ * The collision check lets particles overlap by as much as they move in a step before it fixes them, and deep in the
+ * core the force grows so fast that one step there would throw the pair apart at many times the speed of anything
+ * else. So pairs closer than CORE_SIGMAS of their sigma are pushed as if they were that far apart.
+ *
+ * The pairs are found with a Verlet list: every pair closer than the cutoff plus the skin, found once with a grid of
+ * cells that size and then reused step after step. The list is only built again once some particle has moved more than
+ * half of the skin since it was built, since until then no pair outside of the list can have come within the cutoff.
+ * The list holds each pair once, so applying the forces costs about the same as the collision check.
+ *
+ * Particles all have unit mass, so the force on a particle is its acceleration. apply writes it to the acceleration of
+ * the particle in the store and adds it to its velocity, which is all the explicit Euler Integrator does. The other
+ * integrators call accelerate for the accelerations alone.
+ *
+ * For multiple time step integrators the force can be split in two with setSplit. The fast part is the force of the
+ * pairs closer than the inner split distance, fading out smoothly up to the outer split distance, and the slow part is
+ * the rest out to the cutoff. The Verlet list keeps the pairs within the outer split distance plus the skin at the
+ * front of each particle's neighbors, so the fast part only goes over those.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class LennardJones {
+
+	public static final double DEFAULT_CUTOFF_SIGMAS = 2.5;
+	public static final double DEFAULT_SKIN_SIGMAS = .3;
+	public static final double CORE_SIGMAS = .9;
+	public static final int ALL = 0, FAST = 1, SLOW = 2;
+
+	private double cutoff;
+	private double skin;
+	private double splitInner;
+	private double splitOuter;
+	private double[] speciesEpsilon;
+	private double[] speciesSigma;
+	private int pairSpecies;
+	private double[] pairEpsilon;
+	private double[] pairSigmaSquared;
+	private double[] pairCoreSquared;
+	private double[] pairShift;
+	private SpatialGrid grid;
+	private int builtCount;
+	private double[] builtX, builtY, builtZ;
+	private int[] start;
+	private int[] nearEnd;
+	private int[] neighbors;
+	private boolean valid;
+	private double potentialEnergy;
+	private long rebuilds;
+
+	/**
+	 * Constructor for the force field.
+	 *
+	 * @param cutoff - the distance past which pairs feel no force.
+	 * @param skin - how much further than the cutoff the Verlet list reaches.
+	 */
+	public LennardJones(double cutoff, double skin)
+	{
+		this.cutoff = cutoff;
+		this.skin = skin;
+		splitInner = splitOuter = cutoff;
+		speciesEpsilon = new double[0];
+		speciesSigma = new double[0];
+		builtX = builtY = builtZ = new double[0];
+		start = new int[1];
+		nearEnd = new int[0];
+		neighbors = new int[0];
+	}
+
+	/**
+	 * Sets the parameters of one species.
+	 *
+	 * @param species - the species index.
+	 * @param epsilon - the depth of the potential well.
+	 * @param sigma - the distance the potential is zero at.
+	 */
+	public void setSpecies(int species, double epsilon, double sigma)
+	{
+		if(species >= speciesEpsilon.length)
+		{
+			speciesEpsilon = Arrays.copyOf(speciesEpsilon, species + 1);
+			speciesSigma = Arrays.copyOf(speciesSigma, species + 1);
+		}
+		speciesEpsilon[species] = epsilon;
+		speciesSigma[species] = sigma;
+		pairSpecies = 0;
+	}
+
+	/**
+	 * Sets where the force is split into a fast and a slow part. Between the two distances a pair's force moves from
+	 * the fast part to the slow part along a smooth step. Both at the cutoff, the default, leaves all of the force in
+	 * the fast part.
+	 *
+	 * @param inner - the distance the fast part starts fading out at.
+	 * @param outer - the distance past which the force is all slow.
+	 */
+	public void setSplit(double inner, double outer)
+	{
+		if(inner == splitInner && outer == splitOuter)
+			return;
+		splitInner = inner;
+		splitOuter = outer;
+		valid = false;
+	}
+
+	/**
+	 * Makes the Verlet list be built again on the next step. Has to be called after particles are added, removed or
+	 * reordered, or moved in the store directly.
+	 */
+	public void invalidate()
+	{
+		valid = false;
+	}
+
+	/**
+	 * Works out the force on every particle from the pairs within the cutoff, stores it as the acceleration of the
+	 * particle and adds the acceleration over the time step to its velocity.
+	 *
+	 * @param store - the particles to push.
+	 * @param box - the side length of the box.
+	 * @param timeStep - the time the forces act for.
+	 */
+	public void apply(ParticleStore store, double box, double timeStep)
+	{
+		accelerate(store, box, ALL, store.getAX(), store.getAY(), store.getAZ());
+		int count = store.size();
+		double[] ax = store.getAX(), ay = store.getAY(), az = store.getAZ();
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		for(int i = 0; i < count; i++)
+		{
+			vx[i] += ax[i]*timeStep;
+			vy[i] += ay[i]*timeStep;
+			vz[i] += az[i]*timeStep;
+		}
+	}
+
+	/**
+	 * Works out one part of the force on every particle from the pairs within the cutoff and writes it over the given
+	 * accelerations. The Verlet list is built first when a particle has moved too far since the last build.
+	 *
+	 * @param store - the particles to push.
+	 * @param box - the side length of the box.
+	 * @param part - ALL, FAST or SLOW.
+	 * @param ax - the x acceleration of every particle.
+	 * @param ay - the y acceleration of every particle.
+	 * @param az - the z acceleration of every particle.
+	 */
+	public void accelerate(ParticleStore store, double box, int part, double[] ax, double[] ay, double[] az)
+	{
+		int count = store.size();
+		if(pairSpecies != store.getSpeciesCount())
+			mix(store.getSpeciesCount());
+		if(!valid || count != builtCount || movedTooFar(store))
+			build(store, box);
+
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		int[] species = store.getSpecies();
+		Arrays.fill(ax, 0, count, 0);
+		Arrays.fill(ay, 0, count, 0);
+		Arrays.fill(az, 0, count, 0);
+		double cutoffSquared = cutoff*cutoff;
+		double innerSquared = splitInner*splitInner;
+		double outerSquared = splitOuter*splitOuter;
+		double energy = 0;
+		for(int i = 0; i < count; i++)
+		{
+			int row = species[i]*pairSpecies;
+			double xi = x[i], yi = y[i], zi = z[i];
+			double fx = 0, fy = 0, fz = 0;
+			int end = part == FAST ? nearEnd[i] : start[i+1];
+			for(int n = start[i]; n < end; n++)
+			{
+				int j = neighbors[n];
+				double dx = xi - x[j], dy = yi - y[j], dz = zi - z[j];
+				double distanceSquared = dx*dx + dy*dy + dz*dz;
+				int pair = row + species[j];
+				if(distanceSquared >= cutoffSquared || pairEpsilon[pair] == 0)
+					continue;
+				double weight = 1;
+				if(part != ALL)
+				{
+					double fast = 1;
+					if(distanceSquared >= outerSquared)
+						fast = 0;
+					else if(distanceSquared > innerSquared)
+					{
+						double t = (Math.sqrt(distanceSquared) - splitInner)/(splitOuter - splitInner);
+						fast = 1 - t*t*(3 - 2*t);
+					}
+					weight = part == FAST ? fast : 1 - fast;
+					if(weight == 0)
+						continue;
+				}
+				double pushed = Math.max(distanceSquared, pairCoreSquared[pair]);
+				double s2 = pairSigmaSquared[pair]/pushed;
+				double s6 = s2*s2*s2;
+				double force = weight*24*pairEpsilon[pair]*s6*(2*s6 - 1)/Math.sqrt(pushed*distanceSquared);
+				energy += weight*(4*pairEpsilon[pair]*s6*(s6 - 1) - pairShift[pair]);
+				fx += force*dx;
+				fy += force*dy;
+				fz += force*dz;
+				ax[j] -= force*dx;
+				ay[j] -= force*dy;
+				az[j] -= force*dz;
+			}
+			ax[i] += fx;
+			ay[i] += fy;
+			az[i] += fz;
+		}
+		potentialEnergy = energy;
+	}
+
+	/**
+	 * Accessor method for the potential energy of the part of the force worked out last.
+	 *
+	 * @return double - the sum of the shifted potential of every pair within the cutoff, weighted like the force.
+	 */
+	public double getPotentialEnergy()
+	{
+		return potentialEnergy;
+	}
+
+	/**
+	 * Accessor method for the number of times the Verlet list was built.
+	 *
+	 * @return long - the builds of the list.
+	 */
+	public long getRebuilds()
+	{
+		return rebuilds;
+	}
+
+	/**
+	 * Accessor method for the number of pairs in the Verlet list.
+	 *
+	 * @return int - the pairs within the cutoff plus the skin at the last build.
+	 */
+	public int getNeighborPairs()
+	{
+		return start[builtCount];
+	}
+
+	/**
+	 * Accessor method for the cutoff.
+	 *
+	 * @return double - the distance past which pairs feel no force.
+	 */
+	public double getCutoff()
+	{
+		return cutoff;
+	}
+
+	/**
+	 * Accessor method for the skin.
+	 *
+	 * @return double - how much further than the cutoff the Verlet list reaches.
+	 */
+	public double getSkin()
+	{
+		return skin;
+	}
+
+	/**
+	 * Works out the parameters of every pair of species.
+	 *
+	 * @param speciesCount - the number of species in the store.
+	 */
+	private void mix(int speciesCount)
+	{
+		pairSpecies = speciesCount;
+		pairEpsilon = new double[speciesCount*speciesCount];
+		pairSigmaSquared = new double[speciesCount*speciesCount];
+		pairCoreSquared = new double[speciesCount*speciesCount];
+		pairShift = new double[speciesCount*speciesCount];
+		for(int s = 0; s < speciesCount; s++)
+		{
+			for(int t = 0; t < speciesCount; t++)
+			{
+				if(s >= speciesEpsilon.length || t >= speciesEpsilon.length)
+					continue;
+				int pair = s*speciesCount + t;
+				double sigma = (speciesSigma[s] + speciesSigma[t])/2;
+				pairEpsilon[pair] = Math.sqrt(speciesEpsilon[s]*speciesEpsilon[t]);
+				pairSigmaSquared[pair] = sigma*sigma;
+				pairCoreSquared[pair] = sigma*sigma*CORE_SIGMAS*CORE_SIGMAS;
+				double s6 = Math.pow(sigma/cutoff, 6);
+				pairShift[pair] = 4*pairEpsilon[pair]*s6*(s6 - 1);
+			}
+		}
+	}
+
+	/**
+	 * Checks if any particle has moved more than half of the skin since the Verlet list was built. Two particles that
+	 * each moved less than that can't have closed more than the skin between them.
+	 *
+	 * @param store - the particles.
+	 * @return boolean - whether the list has to be built again.
+	 */
+	private boolean movedTooFar(ParticleStore store)
+	{
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double limit = skin*skin/4;
+		for(int i = 0; i < builtCount; i++)
+		{
+			double dx = x[i] - builtX[i], dy = y[i] - builtY[i], dz = z[i] - builtZ[i];
+			if(dx*dx + dy*dy + dz*dz > limit)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds the Verlet list from a grid with cells as big as the cutoff plus the skin, holding each pair once under
+	 * the lower index. The pairs within the outer split distance plus the skin go first in each particle's neighbors.
+	 *
+	 * @param store - the particles.
+	 * @param box - the side length of the box.
+	 */
+	private void build(ParticleStore store, double box)
+	{
+		int count = store.size();
+		double reach = cutoff + skin;
+		if(grid == null)
+			grid = new SpatialGrid(box);
+		grid.setBoxSize(box);
+		grid.rebuild(store, count, reach);
+		int side = grid.getCellsPerSide();
+
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		double reachSquared = reach*reach;
+		double nearSquared = (splitOuter + skin)*(splitOuter + skin);
+		if(start.length < count + 1)
+			start = new int[count + 1];
+		if(nearEnd.length < count)
+			nearEnd = new int[count];
+		int pairs = 0;
+		for(int i = 0; i < count; i++)
+		{
+			start[i] = pairs;
+			int near = pairs;
+			int cx = grid.getCellCoordinate(x[i]), cy = grid.getCellCoordinate(y[i]), cz = grid.getCellCoordinate(z[i]);
+			for(int nx = Math.max(cx-1, 0); nx <= Math.min(cx+1, side-1); nx++)
+			{
+				for(int ny = Math.max(cy-1, 0); ny <= Math.min(cy+1, side-1); ny++)
+				{
+					for(int nz = Math.max(cz-1, 0); nz <= Math.min(cz+1, side-1); nz++)
+					{
+						for(int j = grid.getFirstInCell(nx, ny, nz); j != -1; j = grid.getNextInCell(j))
+						{
+							if(j <= i)
+								continue;
+							double dx = x[i] - x[j], dy = y[i] - y[j], dz = z[i] - z[j];
+							if(dx*dx + dy*dy + dz*dz < reachSquared)
+							{
+								if(pairs == neighbors.length)
+									neighbors = Arrays.copyOf(neighbors, Math.max(16, neighbors.length*2));
+								neighbors[pairs++] = j;
+								if(dx*dx + dy*dy + dz*dz < nearSquared)
+								{
+									neighbors[pairs-1] = neighbors[near];
+									neighbors[near++] = j;
+								}
+							}
+						}
+					}
+				}
+			}
+			nearEnd[i] = near;
+		}
+		start[count] = pairs;
+
+		if(builtX.length < count)
+		{
+			builtX = new double[count];
+			builtY = new double[count];
+			builtZ = new double[count];
+		}
+		System.arraycopy(x, 0, builtX, 0, count);
+		System.arraycopy(y, 0, builtY, 0, count);
+		System.arraycopy(z, 0, builtZ, 0, count);
+		builtCount = count;
+		valid = true;
+		rebuilds++;
+	}
+
+}
@@ -0,0 +1,135 @@
+import java.awt.Color;
+import java.util.ArrayList;
+
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+import com.sun.j3d.utils.geometry.*;
+
+/**
+ * The shared geometry and appearances particles are drawn with at each level of detail. A particle drawn with levels
+ * of detail has a Switch with one Shape3D per level, and every Shape3D of the same species and level points at the
+ * same geometry and appearance, so a particle costs a handful of scene graph nodes no matter how finely the near
+ * spheres are tessellated.
+ *
+ * The level is picked from how many pixels the particle's diameter covers on screen, which falls off with the distance
+ * from the eye:
+ * HIGH - a sphere with HIGH_DIVISIONS divisions, for particles at least HIGH_PIXELS across.
+ * LOW - a sphere with LOW_DIVISIONS divisions, for particles at least LOW_PIXELS across.
+ * POINT - a single antialiased point POINT_SIZE pixels across, for everything smaller.
+ *
+ * @author Ben Johnson
+ * @version 6-29-2017
+ *
+ */
+public class LevelOfDetail {
+
+	public static final int HIGH = 0, LOW = 1, POINT = 2;
+	public static final int HIGH_DIVISIONS = 32;
+	public static final int LOW_DIVISIONS = 8;
+	public static final double HIGH_PIXELS = 24;
+	public static final double LOW_PIXELS = 4;
+	public static final float POINT_SIZE = 3;
+
+	private ArrayList<SpeciesLevels> species;
+
+	/**
+	 * Constructor for the levels of detail. The geometry of a species is made the first time a particle of it asks.
+	 */
+	public LevelOfDetail()
+	{
+		species = new ArrayList<SpeciesLevels>();
+	}
+
+	/**
+	 * Creates the Switch a particle is drawn with, one shared Shape3D per level, showing the high level to start with.
+	 *
+	 * @param rgb - the packed RGB color of the particle.
+	 * @param radius - the radius of the particle.
+	 * @return Switch - the node to add to the particle's transform group.
+	 */
+	public Switch createSwitch(int rgb, double radius)
+	{
+		SpeciesLevels levels = levelsFor(rgb, radius);
+		Switch detail = new Switch(HIGH);
+		detail.setCapability(Switch.ALLOW_SWITCH_WRITE);
+		detail.addChild(new Shape3D(levels.high, levels.sphereAppearance));
+		detail.addChild(new Shape3D(levels.low, levels.sphereAppearance));
+		detail.addChild(new Shape3D(levels.point, levels.pointAppearance));
+		return detail;
+	}
+
+	/**
+	 * Picks the level for a particle from its size on screen.
+	 *
+	 * @param pixels - the number of pixels the particle's diameter covers.
+	 * @return int - HIGH, LOW or POINT.
+	 */
+	public static int levelFor(double pixels)
+	{
+		if(pixels >= HIGH_PIXELS)
+			return HIGH;
+		if(pixels >= LOW_PIXELS)
+			return LOW;
+		return POINT;
+	}
+
+	/**
+	 * Finds the shared geometry of a species, making it if no particle has used the species yet.
+	 *
+	 * @param rgb - the packed RGB color of the species.
+	 * @param radius - the radius of the species.
+	 * @return SpeciesLevels - the geometry and appearances of the species.
+	 */
+	private SpeciesLevels levelsFor(int rgb, double radius)
+	{
+		for(SpeciesLevels levels : species)
+		{
+			if(levels.rgb == rgb && levels.radius == radius)
+				return levels;
+		}
+		SpeciesLevels levels = new SpeciesLevels(rgb, radius);
+		species.add(levels);
+		return levels;
+	}
+
+	/**
+	 * The geometry of each level and the appearances of one species.
+	 */
+	private static class SpeciesLevels
+	{
+		private int rgb;
+		private double radius;
+		private Geometry high;
+		private Geometry low;
+		private PointArray point;
+		private Appearance sphereAppearance;
+		private Appearance pointAppearance;
+
+		/**
+		 * Makes the spheres, the point and the appearances of a species.
+		 *
+		 * @param rgb - the packed RGB color of the species.
+		 * @param radius - the radius of the species.
+		 */
+		private SpeciesLevels(int rgb, double radius)
+		{
+			this.rgb = rgb;
+			this.radius = radius;
+			Color3f color = new Color3f(new Color(rgb));
+			high = new Sphere((float)radius, Primitive.GENERATE_NORMALS, HIGH_DIVISIONS).getShape().getGeometry();
+			low = new Sphere((float)radius, Primitive.GENERATE_NORMALS, LOW_DIVISIONS).getShape().getGeometry();
+			point = new PointArray(1, GeometryArray.COORDINATES);
+			point.setCoordinate(0, new Point3d(0, 0, 0));
+
+			Material material = new Material();
+			material.setDiffuseColor(color);
+			sphereAppearance = new Appearance();
+			sphereAppearance.setMaterial(material);
+			pointAppearance = new Appearance();
+			pointAppearance.setPointAttributes(new PointAttributes(POINT_SIZE, true));
+			pointAppearance.setColoringAttributes(new ColoringAttributes(color, ColoringAttributes.SHADE_FLAT));
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event committed when a paced step finishes after the next step was due. Enabled by default in
+ * every recording since it should be rare.
+ *
+ * @author Ben Johnson
+ * @version 6-25-2017
+ *
+ */
+@Name("fluid.MissedDeadline")
+@Label("Missed Step Deadline")
+@Category("Fluid Simulator")
+@Description("A paced step that finished after the next step was due")
+@StackTrace(false)
+public class MissedDeadlineEvent extends Event {
+
+	@Label("Step")
+	long step;
+
+	@Label("Late By")
+	@Timespan
+	long late;
+
+	@Label("Step Interval")
+	@Timespan
+	long interval;
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Sorts the particles of a store by the Z-order (Morton) key of the grid cell they are in, so particles that are close
+ * together in the box are close together in memory. The key interleaves the bits of the three cell coordinates, which
+ * keeps whole blocks of neighboring cells together at every scale, and the neighbors the step reads for each particle
+ * then come from a few nearby stretches of the arrays instead of from all over them.
+ *
+ * The sort is a stable radix sort of the keys, eight bits per pass and only as many passes as the grid needs. The key
+ * and order arrays are kept between sorts, so sorting doesn't allocate once they are big enough.
+ *
+ * @author Ben Johnson
+ * @version 6-27-2017
+ *
+ */
+public class MortonOrder {
+
+	private static final int BITS_PER_AXIS = 10;
+	private static final int RADIX_BITS = 8;
+
+	private int[] keys;
+	private int[] order;
+	private int[] keyScratch;
+	private int[] orderScratch;
+	private int[] counts;
+
+	/**
+	 * Constructor for the Morton order.
+	 */
+	public MortonOrder()
+	{
+		keys = order = keyScratch = orderScratch = new int[0];
+		counts = new int[1 << RADIX_BITS];
+	}
+
+	/**
+	 * Reorders the store by the Morton key of the cell each particle is in. The grid must have been built for the
+	 * store's box, its cell size is used for the keys. Particles keep their ids.
+	 *
+	 * @param store - the particles to reorder.
+	 * @param grid - the grid whose cells the keys are made from.
+	 */
+	public void apply(ParticleStore store, SpatialGrid grid)
+	{
+		int count = store.size();
+		if(keys.length < count)
+		{
+			keys = new int[count];
+			order = new int[count];
+			keyScratch = new int[count];
+			orderScratch = new int[count];
+		}
+		double[] x = store.getX(), y = store.getY(), z = store.getZ();
+		for(int i = 0; i < count; i++)
+		{
+			keys[i] = key(grid.getCellCoordinate(x[i]), grid.getCellCoordinate(y[i]), grid.getCellCoordinate(z[i]));
+			order[i] = i;
+		}
+
+		int bits = 3*(32 - Integer.numberOfLeadingZeros(Math.max(grid.getCellsPerSide() - 1, 1)));
+		for(int shift = 0; shift < bits; shift += RADIX_BITS)
+		{
+			sortPass(count, shift);
+		}
+		store.reorder(order);
+	}
+
+	/**
+	 * Works out the Morton key of a cell.
+	 *
+	 * @param cx - the x cell coordinate, less than 1024.
+	 * @param cy - the y cell coordinate, less than 1024.
+	 * @param cz - the z cell coordinate, less than 1024.
+	 * @return int - the key, the bits of the coordinates interleaved x first.
+	 */
+	public static int key(int cx, int cy, int cz)
+	{
+		return spread(cx) | spread(cy) << 1 | spread(cz) << 2;
+	}
+
+	/**
+	 * Stable counting sort of the keys and the order by one digit, swapping the scratch arrays in afterwards.
+	 *
+	 * @param count - the number of keys.
+	 * @param shift - the lowest bit of the digit.
+	 */
+	private void sortPass(int count, int shift)
+	{
+		int mask = (1 << RADIX_BITS) - 1;
+		for(int i = 0; i < counts.length; i++)
+		{
+			counts[i] = 0;
+		}
+		for(int i = 0; i < count; i++)
+		{
+			counts[(keys[i] >>> shift) & mask]++;
+		}
+		int total = 0;
+		for(int i = 0; i < counts.length; i++)
+		{
+			int digitCount = counts[i];
+			counts[i] = total;
+			total += digitCount;
+		}
+		for(int i = 0; i < count; i++)
+		{
+			int slot = counts[(keys[i] >>> shift) & mask]++;
+			keyScratch[slot] = keys[i];
+			orderScratch[slot] = order[i];
+		}
+		int[] temp = keys;
+		keys = keyScratch;
+		keyScratch = temp;
+		temp = order;
+		order = orderScratch;
+		orderScratch = temp;
+	}
+
+	/**
+	 * Spreads the low ten bits of a coordinate out so there are two zero bits between each of them.
+	 *
+	 * @param value - the coordinate.
+	 * @return int - the spread bits.
+	 */
+	private static int spread(int value)
+	{
+		value &= (1 << BITS_PER_AXIS) - 1;
+		value = (value | value << 16) & 0x030000FF;
+		value = (value | value << 8) & 0x0300F00F;
+		value = (value | value << 4) & 0x030C30C3;
+		value = (value | value << 2) & 0x09249249;
+		return value;
+	}
+
+}
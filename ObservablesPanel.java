@@ -0,0 +1,126 @@
+import javax.swing.*;
+
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * A small strip under the simulation that shows the GasObservables: the temperature and pressure of the gas next to
+ * the pressure an ideal gas would have, and the speed histogram drawn as bars with the Maxwell-Boltzmann curve for the
+ * same temperature over it. It redraws itself a few times a second while it is showing and only reads the
+ * observables, it never waits for the physics thread.
+ *
+ * @author Ben Johnson
+ * @version 6-26-2017
+ *
+ */
+public class ObservablesPanel extends JPanel {
+
+	private static final long serialVersionUID = 1L;
+	private static final int REFRESH_MILLIS = 250;
+	private static final double MAX_DENSITY = 1.2;
+
+	private GasObservables observables;
+	private double[] density;
+	private Timer refreshTimer;
+
+	/**
+	 * Constructor for the observables panel.
+	 *
+	 * @param observables - the observables to show.
+	 */
+	public ObservablesPanel(GasObservables observables)
+	{
+		this.observables = observables;
+		density = new double[GasSample.BINS];
+		setPreferredSize(new Dimension(700, 110));
+		setBackground(Color.BLACK);
+		refreshTimer = new Timer(REFRESH_MILLIS, new RefreshEvent());
+		setVisible(false);
+	}
+
+	/**
+	 * Shows or hides the panel, redrawing it while it is showing.
+	 *
+	 * @param visible - whether to show the panel.
+	 */
+	@Override
+	public void setVisible(boolean visible)
+	{
+		super.setVisible(visible);
+		if(visible)
+			refreshTimer.start();
+		else
+			refreshTimer.stop();
+	}
+
+	/**
+	 * Draws the numbers on the left and the speed distribution on the right.
+	 *
+	 * @param g - the graphics to draw with.
+	 */
+	@Override
+	protected void paintComponent(Graphics g)
+	{
+		super.paintComponent(g);
+		Graphics2D g2 = (Graphics2D)g;
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		int width = getWidth(), height = getHeight();
+		int line = g2.getFontMetrics().getHeight();
+
+		g2.setColor(Color.WHITE);
+		g2.drawString(String.format("Temperature: %.4g", observables.getTemperature()), 10, line + 4);
+		g2.drawString(String.format("Pressure: %.4g", observables.getPressure()), 10, 2*line + 4);
+		g2.drawString(String.format("Ideal gas: %.4g", observables.getIdealPressure()), 10, 3*line + 4);
+		g2.drawString(String.format("Window: %d of %d steps", observables.getSteps(), observables.getWindow()), 10,
+				4*line + 4);
+
+		int left = 200, top = 8, right = width - 10, bottom = height - line - 4;
+		if(right - left < GasSample.BINS)
+			return;
+		boolean ready = observables.getSpeedDistribution(density);
+		double binWidth = GasObservables.getBinWidth();
+		double plotWidth = right - left, plotHeight = bottom - top;
+		g2.setColor(Color.DARK_GRAY);
+		g2.drawLine(left, bottom, right, bottom);
+		g2.setColor(Color.LIGHT_GRAY);
+		g2.drawString("speed / rms speed", left, height - 4);
+		if(!ready)
+			return;
+
+		g2.setColor(new Color(80, 160, 255));
+		for(int i = 0; i < GasSample.BINS; i++)
+		{
+			int x0 = left + (int)(i*plotWidth/GasSample.BINS);
+			int x1 = left + (int)((i+1)*plotWidth/GasSample.BINS);
+			int barHeight = (int)(Math.min(density[i], MAX_DENSITY)/MAX_DENSITY*plotHeight);
+			g2.fillRect(x0, bottom - barHeight, Math.max(1, x1 - x0 - 1), barHeight);
+		}
+
+		g2.setColor(Color.ORANGE);
+		int previousX = left, previousY = bottom;
+		for(int x = left; x <= right; x += 2)
+		{
+			double u = (x - left)/plotWidth*GasSample.BINS*binWidth;
+			int y = bottom - (int)(Math.min(GasObservables.maxwellBoltzmann(u), MAX_DENSITY)/MAX_DENSITY*plotHeight);
+			g2.drawLine(previousX, previousY, x, y);
+			previousX = x;
+			previousY = y;
+		}
+	}
+
+	/**
+	 * The refresh timer listener, redraws the panel with the latest observables.
+	 *
+	 * @author Ben Johnson
+	 */
+	public class RefreshEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent e)
+		{
+			repaint();
+		}
+	}
+
+}
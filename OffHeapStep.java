@@ -0,0 +1,392 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the simulation step directly on an OffHeapStore. The grid it bins the particles with and its scratch space are
+ * off heap too, so a step of a hundred million particles uses no more heap than a step of a thousand.
+ *
+ * The step follows the ParallelStep and gives exactly the same results as it does on a store in id order:
+ * 1. every particle is moved and bounced off of the walls in one pass over the records,
+ * 2. the grid is rebuilt as linked lists of particle indices,
+ * 3. every particle finds the closest particle it intersects,
+ * 4. particles that picked each other swap their velocities, scaled to the average of their speeds.
+ * Phases 1, 3 and 4 run over an even share of the particle indices per task. Phase 4 is done by the lower index of each
+ * pair for both particles of the pair, so it needs no second copy of the velocities. Moving and bouncing count as
+ * integrate in the metrics, building the grid and finding partners as collision check.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class OffHeapStep {
+
+	private static final int MOVE = 0, FIND_PARTNERS = 1, RESOLVE = 2;
+	private static final int TASKS_PER_THREAD = 4;
+
+	private ForkJoinPool pool;
+	private int parallelism;
+	private PhaseTask phaseTask;
+	private RangeTask[] ranges;
+	private int phase;
+
+	private OffHeapStore store;
+	private double boxSize;
+	private OffHeapStore.IntColumn cellHead;
+	private OffHeapStore.IntColumn next;
+	private OffHeapStore.IntColumn partner;
+	private int cellsPerSide;
+	private double cellSize;
+
+	/**
+	 * Constructor for the off heap step. Creates a pool with the given number of threads.
+	 *
+	 * @param parallelism - the number of threads to use.
+	 */
+	public OffHeapStep(int parallelism)
+	{
+		this.parallelism = parallelism;
+		pool = new ForkJoinPool(parallelism);
+		phaseTask = new PhaseTask();
+		ranges = new RangeTask[parallelism*TASKS_PER_THREAD];
+		for(int i = 0; i < ranges.length; i++)
+		{
+			ranges[i] = new RangeTask();
+		}
+	}
+
+	/**
+	 * Runs one step over every particle in the store and adds the time of each phase and the counts of the step to the
+	 * metrics.
+	 *
+	 * @param offHeapStore - the particles to step.
+	 * @param box - the side length of the box.
+	 * @param metrics - the metrics of the step.
+	 */
+	public void step(OffHeapStore offHeapStore, double box, SimulationMetrics metrics)
+	{
+		store = offHeapStore;
+		boxSize = box;
+		int count = store.size();
+		ensureScratch(count);
+		for(int i = 0; i < ranges.length; i++)
+		{
+			ranges[i].from = (int)((long)i*count/ranges.length);
+			ranges[i].to = (int)((long)(i+1)*count/ranges.length);
+		}
+
+		long start = System.nanoTime();
+		runPhase(MOVE);
+		long moved = System.nanoTime();
+		double maxRadius = 0, maxSpeedSquared = 0;
+		for(RangeTask range : ranges)
+		{
+			maxRadius = Math.max(maxRadius, range.maxRadius);
+			maxSpeedSquared = Math.max(maxSpeedSquared, range.maxSpeedSquared);
+		}
+		rebuildGrid(count, maxRadius*2 + Math.sqrt(maxSpeedSquared)*2);
+		runPhase(FIND_PARTNERS);
+		long checked = System.nanoTime();
+		runPhase(RESOLVE);
+		long fixed = System.nanoTime();
+
+		metrics.addPhase(SimulationMetrics.INTEGRATE, moved - start);
+		metrics.addPhase(SimulationMetrics.COLLISION_CHECK, checked - moved);
+		metrics.addPhase(SimulationMetrics.COLLISION_FIX, fixed - checked);
+		for(RangeTask range : ranges)
+		{
+			metrics.addWallHits(range.wallHits);
+			metrics.addPairs(range.tested, range.intersecting);
+		}
+	}
+
+	/**
+	 * Stops the threads of the pool.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Accessor method for the number of threads.
+	 *
+	 * @return int - the number of threads in the pool.
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Works out how many bytes of direct memory the grid and scratch space of a step take per particle, on top of the
+	 * records of the store.
+	 *
+	 * @return int - the bytes per particle.
+	 */
+	public static int getScratchBytesPerParticle()
+	{
+		return 4*4;
+	}
+
+	/**
+	 * Runs one phase over every range and waits for all of them to finish.
+	 *
+	 * @param nextPhase - the phase to run.
+	 */
+	private void runPhase(int nextPhase)
+	{
+		phase = nextPhase;
+		phaseTask.reinitialize();
+		pool.invoke(phaseTask);
+	}
+
+	/**
+	 * Makes sure the scratch columns can hold the given number of particles and the cells that go with them.
+	 *
+	 * @param count - the number of particles.
+	 */
+	private void ensureScratch(int count)
+	{
+		if(next == null || next.length() < count)
+		{
+			next = partner = null;
+			next = OffHeapStore.allocateInts(Math.max(1, count));
+			partner = OffHeapStore.allocateInts(Math.max(1, count));
+		}
+		long side = (long)Math.cbrt(2.0*count) + 1;
+		if(cellHead == null || cellHead.length() < side*side*side)
+		{
+			cellHead = null;
+			cellHead = OffHeapStore.allocateInts(side*side*side);
+		}
+	}
+
+	/**
+	 * Bins every particle into cells at least the given size, capped at about two cells per particle the same way the
+	 * SpatialGrid is.
+	 *
+	 * @param count - the number of particles.
+	 * @param minCellSize - the smallest allowed cell side length.
+	 */
+	private void rebuildGrid(int count, double minCellSize)
+	{
+		int side = minCellSize > 0 ? (int)(boxSize/minCellSize) : 1;
+		side = Math.max(1, Math.min(side, (int)Math.cbrt(2.0*count) + 1));
+		cellsPerSide = side;
+		cellSize = boxSize/side;
+		cellHead.fill((long)side*side*side, -1);
+		for(int i = 0; i < count; i++)
+		{
+			long cell = cellIndex(cellCoordinate(store.getX(i)), cellCoordinate(store.getY(i)), cellCoordinate(store.getZ(i)));
+			next.set(i, cellHead.get(cell));
+			cellHead.set(cell, i);
+		}
+	}
+
+	/**
+	 * Finds the closest particle in the neighboring cells that intersects the given particle, the same one the
+	 * SpatialGrid would find.
+	 *
+	 * @param index - the index of the particle to check.
+	 * @param range - the range the particle is in, whose pair counts are added to.
+	 * @return int - the index of the closest intersecting particle, or -1 if there is none.
+	 */
+	private int findNearestIntersecting(int index, RangeTask range)
+	{
+		ByteBuffer chunk = store.chunk(index);
+		int offset = store.offset(index);
+		double px = chunk.getDouble(offset + OffHeapStore.X);
+		double py = chunk.getDouble(offset + OffHeapStore.Y);
+		double pz = chunk.getDouble(offset + OffHeapStore.Z);
+		double radius = chunk.getDouble(offset + OffHeapStore.RADIUS);
+		int cx = cellCoordinate(px), cy = cellCoordinate(py), cz = cellCoordinate(pz);
+		int nearest = -1;
+		double nearestDistance = Double.MAX_VALUE;
+		for(int x = Math.max(cx-1, 0); x <= Math.min(cx+1, cellsPerSide-1); x++)
+		{
+			for(int y = Math.max(cy-1, 0); y <= Math.min(cy+1, cellsPerSide-1); y++)
+			{
+				for(int z = Math.max(cz-1, 0); z <= Math.min(cz+1, cellsPerSide-1); z++)
+				{
+					for(int i = cellHead.get(cellIndex(x, y, z)); i != -1; i = next.get(i))
+					{
+						if(i == index)
+							continue;
+						range.tested++;
+						ByteBuffer other = store.chunk(i);
+						int otherOffset = store.offset(i);
+						double dx = px - other.getDouble(otherOffset + OffHeapStore.X);
+						double dy = py - other.getDouble(otherOffset + OffHeapStore.Y);
+						double dz = pz - other.getDouble(otherOffset + OffHeapStore.Z);
+						double distance = dx*dx + dy*dy + dz*dz;
+						double reach = radius + other.getDouble(otherOffset + OffHeapStore.RADIUS);
+						if(distance >= reach*reach)
+							continue;
+						range.intersecting++;
+						if(distance < nearestDistance || (distance == nearestDistance && i < nearest))
+						{
+							nearest = i;
+							nearestDistance = distance;
+						}
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Moves one particle and bounces it off of every wall it touches, the same way ParticleStore.checkBoxIntersection
+	 * does.
+	 *
+	 * @param i - the index of the particle.
+	 * @param range - the range the particle is in, whose wall hits and largest radius and speed are kept up.
+	 */
+	private void move(int i, RangeTask range)
+	{
+		ByteBuffer chunk = store.chunk(i);
+		int offset = store.offset(i);
+		double vx = chunk.getDouble(offset + OffHeapStore.VX);
+		double vy = chunk.getDouble(offset + OffHeapStore.VY);
+		double vz = chunk.getDouble(offset + OffHeapStore.VZ);
+		double r = chunk.getDouble(offset + OffHeapStore.RADIUS);
+		double x = chunk.getDouble(offset + OffHeapStore.X) + vx;
+		double y = chunk.getDouble(offset + OffHeapStore.Y) + vy;
+		double z = chunk.getDouble(offset + OffHeapStore.Z) + vz;
+		double half = boxSize/2;
+		boolean hitX = Math.abs(x)+r >= half;
+		boolean hitY = Math.abs(y)+r >= half;
+		boolean hitZ = Math.abs(z)+r >= half;
+		if(hitX || hitY || hitZ)
+		{
+			x -= vx;
+			y -= vy;
+			z -= vz;
+			if(hitX)
+				chunk.putDouble(offset + OffHeapStore.VX, -vx);
+			if(hitY)
+				chunk.putDouble(offset + OffHeapStore.VY, -vy);
+			if(hitZ)
+				chunk.putDouble(offset + OffHeapStore.VZ, -vz);
+			range.wallHits++;
+		}
+		chunk.putDouble(offset + OffHeapStore.X, x);
+		chunk.putDouble(offset + OffHeapStore.Y, y);
+		chunk.putDouble(offset + OffHeapStore.Z, z);
+		range.maxRadius = Math.max(range.maxRadius, r);
+		range.maxSpeedSquared = Math.max(range.maxSpeedSquared, vx*vx + vy*vy + vz*vz);
+	}
+
+	/**
+	 * Gives both particles of a pair that picked each other the velocity of the other one, scaled to the average of
+	 * their speeds, the same as the ParallelStep does.
+	 *
+	 * @param i - the lower index of the pair.
+	 * @param j - the higher index of the pair.
+	 */
+	private void resolve(int i, int j)
+	{
+		double ix = store.getVX(i), iy = store.getVY(i), iz = store.getVZ(i);
+		double jx = store.getVX(j), jy = store.getVY(j), jz = store.getVZ(j);
+		double myLength = Math.sqrt(ix*ix + iy*iy + iz*iz);
+		double otherLength = Math.sqrt(jx*jx + jy*jy + jz*jz);
+		double scale = (myLength+otherLength)/2/otherLength;
+		double otherScale = (otherLength+myLength)/2/myLength;
+		store.setVelocity(i, jx*scale, jy*scale, jz*scale);
+		store.setVelocity(j, ix*otherScale, iy*otherScale, iz*otherScale);
+	}
+
+	/**
+	 * Converts cell coordinates into an index into the cell column.
+	 *
+	 * @param cx - the x cell coordinate.
+	 * @param cy - the y cell coordinate.
+	 * @param cz - the z cell coordinate.
+	 * @return long - the cell index.
+	 */
+	private long cellIndex(int cx, int cy, int cz)
+	{
+		return ((long)cx*cellsPerSide + cy)*cellsPerSide + cz;
+	}
+
+	/**
+	 * Converts one position component into a cell coordinate.
+	 *
+	 * @param position - the position component.
+	 * @return int - the cell coordinate along that axis, clamped to the grid.
+	 */
+	private int cellCoordinate(double position)
+	{
+		int cell = (int)((position + boxSize/2)/cellSize);
+		if(cell < 0)
+			return 0;
+		if(cell >= cellsPerSide)
+			return cellsPerSide-1;
+		return cell;
+	}
+
+	/**
+	 * The root task of a phase, forks one task per range.
+	 */
+	private class PhaseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute()
+		{
+			for(RangeTask range : ranges)
+			{
+				range.reinitialize();
+			}
+			ForkJoinTask.invokeAll(ranges);
+		}
+	}
+
+	/**
+	 * Processes every particle in a range of indices for the current phase.
+	 */
+	private class RangeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int from, to;
+		private int wallHits;
+		private long tested, intersecting;
+		private double maxRadius, maxSpeedSquared;
+
+		@Override
+		protected void compute()
+		{
+			switch(phase)
+			{
+				case MOVE:
+					wallHits = 0;
+					maxRadius = maxSpeedSquared = 0;
+					for(int i = from; i < to; i++)
+					{
+						move(i, this);
+					}
+					break;
+				case FIND_PARTNERS:
+					tested = intersecting = 0;
+					for(int i = from; i < to; i++)
+					{
+						partner.set(i, findNearestIntersecting(i, this));
+					}
+					break;
+				case RESOLVE:
+					for(int i = from; i < to; i++)
+					{
+						int j = partner.get(i);
+						if(j > i && partner.get(j) == i)
+							resolve(i, j);
+					}
+					break;
+			}
+		}
+	}
+
+}
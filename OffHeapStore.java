@@ -0,0 +1,536 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+/**
+ * Holds the state of particles outside of the Java heap, for runs with tens of millions of particles that would not fit
+ * in a ParticleStore, or would make every garbage collection walk gigabytes of arrays. The particles are fixed size
+ * records in direct byte buffers, or in a file mapped into memory, so the heap used stays the same no matter how many
+ * particles there are.
+ *
+ * Each record is RECORD_BYTES long and laid out as:
+ * 0 x, 8 y, 16 z, 24 vx, 32 vy, 40 vz, 48 radius - doubles,
+ * 56 species - int, 60 - unused.
+ * The first record of the memory is a header holding MAGIC and the number of particles, so a mapped file can be opened
+ * again and stepped on from where the last run left it. Records are little endian whatever machine they were written
+ * on. A buffer can only be indexed with an int, so the memory is split into chunks of CHUNK_BYTES, a whole number of
+ * records each.
+ *
+ * A particle's index is also its id, the off heap store is never reordered.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class OffHeapStore {
+
+	public static final int RECORD_BYTES = 64;
+	public static final int X = 0, Y = 8, Z = 16, VX = 24, VY = 32, VZ = 40, RADIUS = 48, SPECIES = 56;
+	public static final long MAGIC = 0x466c756964536f41L;
+	private static final int CHUNK_SHIFT = 30;
+	private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = (int)(CHUNK_BYTES - 1);
+	private static final int SIZE = 8;
+
+	private ByteBuffer[] chunks;
+	private int capacity;
+	private int size;
+	private FileChannel channel;
+
+	/**
+	 * Constructor for an off heap store in direct memory. Direct memory counts against -XX:MaxDirectMemorySize, which
+	 * is the maximum heap size unless it is set.
+	 *
+	 * @param capacity - the number of particles the store can hold.
+	 */
+	public OffHeapStore(int capacity)
+	{
+		this.capacity = capacity;
+		long bytes = ((long)capacity + 1)*RECORD_BYTES;
+		chunks = new ByteBuffer[(int)((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT)];
+		for(int i = 0; i < chunks.length; i++)
+		{
+			chunks[i] = ByteBuffer.allocateDirect((int)Math.min(CHUNK_BYTES, bytes - i*CHUNK_BYTES))
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		writeHeader();
+	}
+
+	/**
+	 * Constructor for an off heap store mapped from a file.
+	 *
+	 * @param chunks - the mapped chunks of the file.
+	 * @param capacity - the number of particles the file has room for.
+	 * @param channel - the open channel of the file.
+	 */
+	private OffHeapStore(ByteBuffer[] chunks, int capacity, FileChannel channel)
+	{
+		this.chunks = chunks;
+		this.capacity = capacity;
+		this.channel = channel;
+	}
+
+	/**
+	 * Maps a file into memory as an off heap store. A file that already holds a store is opened with the particles in
+	 * it, and grown if it has room for fewer than the given capacity, anything else is overwritten with an empty store.
+	 * Mapped memory is paged in and out by the operating system, so a store can be bigger than the physical memory at
+	 * the cost of speed.
+	 *
+	 * @param file - the file to map.
+	 * @param capacity - the number of particles the store should have room for at least.
+	 * @return OffHeapStore - the mapped store.
+	 * @throws IOException - if the file can't be opened or mapped.
+	 */
+	public static OffHeapStore map(Path file, int capacity) throws IOException
+	{
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try
+		{
+			int existing = 0;
+			if(channel.size() >= RECORD_BYTES)
+			{
+				ByteBuffer header = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(header, 0);
+				if(header.getLong(0) == MAGIC)
+				{
+					existing = header.getInt(SIZE);
+					capacity = Math.max(capacity, (int)Math.min(Integer.MAX_VALUE, channel.size()/RECORD_BYTES - 1));
+				}
+			}
+			long bytes = ((long)capacity + 1)*RECORD_BYTES;
+			ByteBuffer[] chunks = new ByteBuffer[(int)((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT)];
+			for(int i = 0; i < chunks.length; i++)
+			{
+				chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, i*CHUNK_BYTES,
+						Math.min(CHUNK_BYTES, bytes - i*CHUNK_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			OffHeapStore store = new OffHeapStore(chunks, capacity, channel);
+			store.size = Math.min(existing, capacity);
+			store.writeHeader();
+			return store;
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a particle at the given position with the given velocity.
+	 *
+	 * @param px - the x position.
+	 * @param py - the y position.
+	 * @param pz - the z position.
+	 * @param velX - the x velocity.
+	 * @param velY - the y velocity.
+	 * @param velZ - the z velocity.
+	 * @param particleRadius - the radius of the particle.
+	 * @param particleSpecies - the species index of the particle.
+	 * @return int - the index of the new particle.
+	 */
+	public int add(double px, double py, double pz, double velX, double velY, double velZ, double particleRadius,
+			int particleSpecies)
+	{
+		if(size == capacity)
+			throw new IllegalStateException("The off heap store is full at " + capacity + " particles");
+		int index = size++;
+		setPosition(index, px, py, pz);
+		setVelocity(index, velX, velY, velZ);
+		chunk(index).putDouble(offset(index) + RADIUS, particleRadius);
+		chunk(index).putInt(offset(index) + SPECIES, particleSpecies);
+		writeHeader();
+		return index;
+	}
+
+	/**
+	 * Places particles with random velocities on the sites of a cubic lattice spread evenly over the box, jittered by
+	 * as much as the spacing leaves room for. No particle is checked against any other, so this only works on an empty
+	 * store and needs no memory besides the records themselves. The particles are filled in by batches on every
+	 * thread of the common pool, each batch drawing from its own generator.
+	 *
+	 * @param num - the number of particles to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each particle.
+	 * @param boxSize - the side length of the box.
+	 * @param random - the random numbers to draw the jitter and the velocities from.
+	 * @return int - the number of particles that were placed, fewer than asked for if the rest don't fit.
+	 */
+	public int fillLattice(int num, double radius, final int species, double boxSize, RandomStreams random)
+	{
+		double span = boxSize - radius*2;
+		if(num <= 0 || span < 0 || size != 0)
+			return 0;
+		int points = (int)Math.ceil(Math.cbrt(num));
+		while(points > 1 && span/(points - 1) < radius*2)
+		{
+			points--;
+		}
+		long sites = (long)points*points*points;
+		final int count = (int)Math.min(Math.min(num, sites), capacity);
+		final int side = points;
+		final long total = sites;
+		final double spacing = points > 1 ? span/(points - 1) : 0;
+		final double jitter = points > 1 ? Math.min(radius, (spacing - radius*2)/2) : 0;
+		final double limit = span/2, particleRadius = radius;
+		random.forEachBatch(0, count, new RandomStreams.Batch() {
+			public void run(int first, int end, SplittableRandom generator)
+			{
+				for(int n = first; n < end; n++)
+				{
+					long site = n*total/count;
+					double x = (site/side/side)*spacing - limit + (generator.nextDouble()*2 - 1)*jitter;
+					double y = (site/side % side)*spacing - limit + (generator.nextDouble()*2 - 1)*jitter;
+					double z = (site % side)*spacing - limit + (generator.nextDouble()*2 - 1)*jitter;
+					setPosition(n, Math.max(-limit, Math.min(limit, x)), Math.max(-limit, Math.min(limit, y)),
+							Math.max(-limit, Math.min(limit, z)));
+					setVelocity(n, RandomStreams.randomSpeed(generator), RandomStreams.randomSpeed(generator),
+							RandomStreams.randomSpeed(generator));
+					chunk(n).putDouble(offset(n) + RADIUS, particleRadius);
+					chunk(n).putInt(offset(n) + SPECIES, species);
+				}
+			}
+		});
+		size = count;
+		writeHeader();
+		return count;
+	}
+
+	/**
+	 * Copies every particle of a heap store into this one in id order, replacing what was there.
+	 *
+	 * @param store - the particles to copy.
+	 */
+	public void copyFrom(ParticleStore store)
+	{
+		if(store.size() > capacity)
+			throw new IllegalArgumentException("The off heap store only has room for " + capacity + " particles");
+		size = 0;
+		for(int id = 0; id < store.size(); id++)
+		{
+			int i = store.indexOf(id);
+			add(store.getX()[i], store.getY()[i], store.getZ()[i], store.getVX()[i], store.getVY()[i], store.getVZ()[i],
+					store.getRadius()[i], store.getSpecies()[i]);
+		}
+	}
+
+	/**
+	 * Copies the positions and velocities of every particle back into a heap store holding the same particles.
+	 *
+	 * @param store - the store to update, with a particle for every id in this one.
+	 */
+	public void copyTo(ParticleStore store)
+	{
+		for(int id = 0; id < size; id++)
+		{
+			int i = store.indexOf(id);
+			store.setPosition(i, getX(id), getY(id), getZ(id));
+			store.setVelocity(i, getVX(id), getVY(id), getVZ(id));
+		}
+	}
+
+	/**
+	 * Writes the changes to a mapped store out to its file.
+	 */
+	public void force()
+	{
+		if(channel == null)
+			return;
+		for(ByteBuffer chunk : chunks)
+		{
+			((MappedByteBuffer)chunk).force();
+		}
+	}
+
+	/**
+	 * Writes a mapped store out to its file and closes it, the store can't be used afterwards. Direct memory is freed
+	 * when the store is garbage collected.
+	 *
+	 * @throws IOException - if the file can't be closed.
+	 */
+	public void close() throws IOException
+	{
+		force();
+		if(channel != null)
+			channel.close();
+		channel = null;
+	}
+
+	/**
+	 * Mutator method for the position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @param px - the x position.
+	 * @param py - the y position.
+	 * @param pz - the z position.
+	 */
+	public void setPosition(int i, double px, double py, double pz)
+	{
+		ByteBuffer chunk = chunk(i);
+		int offset = offset(i);
+		chunk.putDouble(offset + X, px);
+		chunk.putDouble(offset + Y, py);
+		chunk.putDouble(offset + Z, pz);
+	}
+
+	/**
+	 * Mutator method for the velocity of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @param velX - the x velocity.
+	 * @param velY - the y velocity.
+	 * @param velZ - the z velocity.
+	 */
+	public void setVelocity(int i, double velX, double velY, double velZ)
+	{
+		ByteBuffer chunk = chunk(i);
+		int offset = offset(i);
+		chunk.putDouble(offset + VX, velX);
+		chunk.putDouble(offset + VY, velY);
+		chunk.putDouble(offset + VZ, velZ);
+	}
+
+	/**
+	 * Accessor method for the x position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the x position.
+	 */
+	public double getX(int i)
+	{
+		return chunk(i).getDouble(offset(i) + X);
+	}
+
+	/**
+	 * Accessor method for the y position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the y position.
+	 */
+	public double getY(int i)
+	{
+		return chunk(i).getDouble(offset(i) + Y);
+	}
+
+	/**
+	 * Accessor method for the z position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the z position.
+	 */
+	public double getZ(int i)
+	{
+		return chunk(i).getDouble(offset(i) + Z);
+	}
+
+	/**
+	 * Accessor method for the x velocity of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the x velocity.
+	 */
+	public double getVX(int i)
+	{
+		return chunk(i).getDouble(offset(i) + VX);
+	}
+
+	/**
+	 * Accessor method for the y velocity of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the y velocity.
+	 */
+	public double getVY(int i)
+	{
+		return chunk(i).getDouble(offset(i) + VY);
+	}
+
+	/**
+	 * Accessor method for the z velocity of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the z velocity.
+	 */
+	public double getVZ(int i)
+	{
+		return chunk(i).getDouble(offset(i) + VZ);
+	}
+
+	/**
+	 * Accessor method for the radius of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return double - the radius.
+	 */
+	public double getRadius(int i)
+	{
+		return chunk(i).getDouble(offset(i) + RADIUS);
+	}
+
+	/**
+	 * Accessor method for the species of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @return int - the species index.
+	 */
+	public int getSpecies(int i)
+	{
+		return chunk(i).getInt(offset(i) + SPECIES);
+	}
+
+	/**
+	 * Accessor method for the buffer holding the record of a particle, for loops that read several fields of a record
+	 * at once. The record starts at offset(i).
+	 *
+	 * @param i - the index of the particle.
+	 * @return ByteBuffer - the chunk the record is in.
+	 */
+	public ByteBuffer chunk(int i)
+	{
+		return chunks[(int)((((long)i + 1)*RECORD_BYTES) >>> CHUNK_SHIFT)];
+	}
+
+	/**
+	 * Finds where the record of a particle starts in its chunk.
+	 *
+	 * @param i - the index of the particle.
+	 * @return int - the byte offset of the record in chunk(i).
+	 */
+	public int offset(int i)
+	{
+		return (int)(((long)i + 1)*RECORD_BYTES) & CHUNK_MASK;
+	}
+
+	/**
+	 * Accessor method for the number of particles.
+	 *
+	 * @return int - the number of particles in the store.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Accessor method for the capacity.
+	 *
+	 * @return int - the number of particles the store has room for.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Accessor method for whether the store is mapped from a file.
+	 *
+	 * @return boolean - true for a mapped store, false for one in direct memory.
+	 */
+	public boolean isMapped()
+	{
+		return channel != null;
+	}
+
+	/**
+	 * Allocates a column of ints in direct memory, split into chunks like the records.
+	 *
+	 * @param count - the number of ints.
+	 * @return IntColumn - the column, filled with zeros.
+	 */
+	public static IntColumn allocateInts(long count)
+	{
+		return new IntColumn(count);
+	}
+
+	/**
+	 * Writes the magic number and the particle count into the header record.
+	 */
+	private void writeHeader()
+	{
+		chunks[0].putLong(0, MAGIC);
+		chunks[0].putInt(SIZE, size);
+	}
+
+	/**
+	 * A column of ints in direct memory, used by the off heap step for its grid and scratch space so that the heap
+	 * used by a step doesn't grow with the number of particles either.
+	 */
+	public static class IntColumn
+	{
+		private static final int INT_SHIFT = CHUNK_SHIFT - 2;
+		private static final int INT_MASK = (1 << INT_SHIFT) - 1;
+
+		private IntBuffer[] chunks;
+		private long length;
+
+		/**
+		 * Constructor for the int column.
+		 *
+		 * @param count - the number of ints.
+		 */
+		private IntColumn(long count)
+		{
+			length = count;
+			chunks = new IntBuffer[(int)((count + INT_MASK) >>> INT_SHIFT)];
+			for(int i = 0; i < chunks.length; i++)
+			{
+				long ints = Math.min(1L << INT_SHIFT, count - ((long)i << INT_SHIFT));
+				chunks[i] = ByteBuffer.allocateDirect((int)ints*4).order(ByteOrder.nativeOrder()).asIntBuffer();
+			}
+		}
+
+		/**
+		 * Accessor method for one int.
+		 *
+		 * @param i - the index of the int.
+		 * @return int - the value.
+		 */
+		public int get(long i)
+		{
+			return chunks[(int)(i >>> INT_SHIFT)].get((int)i & INT_MASK);
+		}
+
+		/**
+		 * Mutator method for one int.
+		 *
+		 * @param i - the index of the int.
+		 * @param value - the new value.
+		 */
+		public void set(long i, int value)
+		{
+			chunks[(int)(i >>> INT_SHIFT)].put((int)i & INT_MASK, value);
+		}
+
+		/**
+		 * Sets the first count ints to one value.
+		 *
+		 * @param count - the number of ints to set.
+		 * @param value - the value.
+		 */
+		public void fill(long count, int value)
+		{
+			for(long i = 0; i < count; i++)
+			{
+				set(i, value);
+			}
+		}
+
+		/**
+		 * Accessor method for the length.
+		 *
+		 * @return long - the number of ints in the column.
+		 */
+		public long length()
+		{
+			return length;
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the simulation step on a ForkJoinPool. The phases that only touch one particle at a time run the StepKernels
+ * over an even share of the particle indices per task, the collision phases split the box into slabs of grid cells
+ * along the x axis and process the slabs in parallel.
+ *
+ * The step runs in five phases with a barrier between each one:
+ * 1. every particle is moved,
+ * 2. every particle is bounced off of the walls, then the grid is rebuilt on the calling thread,
+ * 3. every particle finds the closest particle it intersects,
+ * 4. particles that picked each other work out their new velocities from the old ones,
+ * 5. the new velocities are copied back into the store.
+ * In every phase a thread only writes to the particles in its own slab or index range, so a pair that crosses a slab
+ * border is handled by each side updating its own particle and no velocity is ever written by two threads.
+ *
+ * Because a collision is only fixed when both particles pick each other, the result is the same no matter how many
+ * threads are used, but it can differ from the sequential step which fixes collisions one particle at a time.
+ *
+ * @author Ben Johnson
+ * @version 6-26-2017
+ *
+ */
+public class ParallelStep {
+
+	private static final int INTEGRATE = 0, REFLECT = 1, FIND_PARTNERS = 2, RESOLVE = 3, APPLY = 4;
+	private static final int REGIONS_PER_THREAD = 4;
+
+	private ForkJoinPool pool;
+	private int parallelism;
+	private PhaseTask phaseTask;
+	private RegionTask[] regions;
+	private int phase;
+
+	private ParticleStore store;
+	private SpatialGrid grid;
+	private double boxSize;
+	private int[] partner;
+	private double[] newVX, newVY, newVZ;
+	private StepKernels kernels;
+	private GasSample sample;
+
+	/**
+	 * Constructor for the parallel step. Creates a pool with the given number of threads.
+	 *
+	 * @param parallelism - the number of threads to use.
+	 */
+	public ParallelStep(int parallelism)
+	{
+		this.parallelism = parallelism;
+		pool = new ForkJoinPool(parallelism);
+		phaseTask = new PhaseTask();
+		partner = new int[0];
+		newVX = newVY = newVZ = new double[0];
+		kernels = StepKernels.get();
+		regions = new RegionTask[parallelism*REGIONS_PER_THREAD];
+		for(int i = 0; i < regions.length; i++)
+		{
+			regions[i] = new RegionTask();
+		}
+	}
+
+	/**
+	 * Runs one step over every particle in the store and adds the time of each phase and the counts of the step to the
+	 * metrics. Finding partners and rebuilding the grid count as collision check, resolving and applying the new
+	 * velocities as collision fix.
+	 *
+	 * @param particleStore - the particles to step.
+	 * @param spatialGrid - the grid to bin the particles with.
+	 * @param box - the side length of the box.
+	 * @param metrics - the metrics of the step.
+	 * @param gasSample - the sample to add the speeds and wall impulse of the step to, or null.
+	 */
+	public void step(ParticleStore particleStore, SpatialGrid spatialGrid, double box, SimulationMetrics metrics,
+			GasSample gasSample)
+	{
+		store = particleStore;
+		grid = spatialGrid;
+		boxSize = box;
+		sample = gasSample;
+		ensureScratch(store.size());
+		setIndexRanges(store.size());
+		long start = System.nanoTime();
+		runPhase(INTEGRATE);
+		long integrated = System.nanoTime();
+		runPhase(REFLECT);
+		long reflected = System.nanoTime();
+		grid.rebuild(store);
+		setRegions(grid.getCellsPerSide());
+
+		runPhase(FIND_PARTNERS);
+		long checked = System.nanoTime();
+		runPhase(RESOLVE);
+		runPhase(APPLY);
+		long fixed = System.nanoTime();
+
+		metrics.addPhase(SimulationMetrics.INTEGRATE, integrated - start);
+		metrics.addPhase(SimulationMetrics.WALL_CHECK, reflected - integrated);
+		metrics.addPhase(SimulationMetrics.COLLISION_CHECK, checked - reflected);
+		metrics.addPhase(SimulationMetrics.COLLISION_FIX, fixed - checked);
+		for(RegionTask region : regions)
+		{
+			metrics.addWallHits(region.wallHits);
+			metrics.addPairs(region.pairs.getTested(), region.pairs.getIntersecting());
+			if(sample != null)
+				sample.add(region.gas);
+		}
+	}
+
+	/**
+	 * Stops the threads of the pool.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Accessor method for the number of threads.
+	 *
+	 * @return int - the number of threads in the pool.
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Runs one phase over every region and waits for all of them to finish.
+	 *
+	 * @param nextPhase - the phase to run.
+	 */
+	private void runPhase(int nextPhase)
+	{
+		phase = nextPhase;
+		phaseTask.reinitialize();
+		pool.invoke(phaseTask);
+	}
+
+	/**
+	 * Splits the particle indices into an even range per task.
+	 *
+	 * @param count - the number of particles.
+	 */
+	private void setIndexRanges(int count)
+	{
+		for(int i = 0; i < regions.length; i++)
+		{
+			regions[i].fromIndex = (int)((long)i*count/regions.length);
+			regions[i].toIndex = (int)((long)(i+1)*count/regions.length);
+		}
+	}
+
+	/**
+	 * Splits the cells along the x axis into slabs, a few per thread so the work balances when the particles are not
+	 * spread evenly. When there are fewer cells than tasks the extra tasks get empty slabs.
+	 *
+	 * @param cellsPerSide - the number of grid cells per side.
+	 */
+	private void setRegions(int cellsPerSide)
+	{
+		int count = Math.max(1, Math.min(cellsPerSide, regions.length));
+		for(int i = 0; i < regions.length; i++)
+		{
+			regions[i].fromX = i < count ? i*cellsPerSide/count : 0;
+			regions[i].toX = i < count ? (i+1)*cellsPerSide/count : 0;
+			regions[i].cellsPerSide = cellsPerSide;
+		}
+	}
+
+	/**
+	 * Makes sure the scratch arrays can hold the given number of particles.
+	 *
+	 * @param count - the number of particles.
+	 */
+	private void ensureScratch(int count)
+	{
+		if(partner.length < count)
+		{
+			int capacity = Math.max(count, partner.length*2);
+			partner = new int[capacity];
+			newVX = new double[capacity];
+			newVY = new double[capacity];
+			newVZ = new double[capacity];
+		}
+	}
+
+	/**
+	 * Does the work of the current collision phase for one particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @param pairs - the pair count of the region the particle is in.
+	 */
+	private void process(int i, StepKernels.PairCount pairs)
+	{
+		double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+		switch(phase)
+		{
+			case FIND_PARTNERS:
+				partner[i] = grid.findNearestIntersecting(store, i, pairs);
+				break;
+			case RESOLVE:
+				int j = partner[i];
+				if(j != -1 && partner[j] == i)
+				{
+					double myLength = Math.sqrt(vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i]);
+					double otherLength = Math.sqrt(vx[j]*vx[j] + vy[j]*vy[j] + vz[j]*vz[j]);
+					double scale = (myLength+otherLength)/2/otherLength;
+					newVX[i] = vx[j]*scale;
+					newVY[i] = vy[j]*scale;
+					newVZ[i] = vz[j]*scale;
+				}
+				else
+				{
+					newVX[i] = vx[i];
+					newVY[i] = vy[i];
+					newVZ[i] = vz[i];
+				}
+				break;
+		}
+	}
+
+	/**
+	 * The root task of a phase, forks one task per region.
+	 */
+	private class PhaseTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute()
+		{
+			for(RegionTask region : regions)
+			{
+				region.reinitialize();
+			}
+			ForkJoinTask.invokeAll(regions);
+		}
+	}
+
+	/**
+	 * Processes every particle in a slab of grid cells, or in a range of indices for the phases that touch one particle
+	 * at a time.
+	 */
+	private class RegionTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int fromX, toX, cellsPerSide;
+		private int fromIndex, toIndex;
+		private int wallHits;
+		private StepKernels.PairCount pairs = new StepKernels.PairCount();
+		private GasSample gas = new GasSample();
+
+		@Override
+		protected void compute()
+		{
+			if(phase == INTEGRATE)
+			{
+				if(sample == null)
+				{
+					kernels.integrate(store, fromIndex, toIndex);
+					return;
+				}
+				gas.reset(sample.getRmsSpeed());
+				kernels.integrate(store, fromIndex, toIndex, gas);
+				return;
+			}
+			if(phase == REFLECT)
+			{
+				wallHits = kernels.reflectWalls(store, boxSize, fromIndex, toIndex, sample == null ? null : gas);
+				return;
+			}
+			if(phase == APPLY)
+			{
+				System.arraycopy(newVX, fromIndex, store.getVX(), fromIndex, toIndex - fromIndex);
+				System.arraycopy(newVY, fromIndex, store.getVY(), fromIndex, toIndex - fromIndex);
+				System.arraycopy(newVZ, fromIndex, store.getVZ(), fromIndex, toIndex - fromIndex);
+				return;
+			}
+			if(phase == FIND_PARTNERS)
+				pairs.reset();
+			for(int x = fromX; x < toX; x++)
+			{
+				for(int y = 0; y < cellsPerSide; y++)
+				{
+					for(int z = 0; z < cellsPerSide; z++)
+					{
+						for(int i = grid.getFirstInCell(x, y, z); i != -1; i = grid.getNextInCell(i))
+						{
+							process(i, pairs);
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many headless simulations of the air mix with different parameters at once and writes a summary of each one
+ * to a CSV file. The sweep is read from a properties file where every parameter takes a comma separated list of
+ * values, and every combination of the values is run:
+ * particles - the number of particles.
+ * radius - the radius of each particle.
+ * box - the side length of the box, or 0 for the headless default of a hundred particles per unit of volume.
+ * speedCap - the largest speed along each axis particles start with.
+ * steps - the number of steps to run.
+ * seed - the seed to place the particles with, several seeds repeat each combination.
+ * placement - random, lattice or poisson_disk.
+ * A parameter that is left out gets the value in DEFAULTS.
+ *
+ * Each run gets its own engine and random numbers and runs on one thread of a fixed pool, so runs share nothing and
+ * the results don't depend on how many run at once. Runs also hold SimulationEngine.BYTES_PER_PARTICLE per particle
+ * of a memory budget while they run, so big runs wait for room instead of running the heap out. A run that is bigger
+ * than the whole budget is skipped.
+ *
+ * Each finished run is written to the results file as one line straight away. When the results file already exists
+ * the runs it holds are skipped, so a sweep that was stopped part way picks up where it left off when started again.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class ParameterSweep {
+
+	public static final String[] PARAMETERS = {"particles", "radius", "box", "speedCap", "steps", "seed", "placement"};
+	public static final String[] DEFAULTS = {"1000", ".015", "0", String.valueOf(Particle.INTIALSPEEDCAP), "1000", "1",
+			"random"};
+	public static final String[] RESULTS = {"placed", "setupSeconds", "runSeconds", "stepsPerSecond", "pairsTested",
+			"pairsIntersecting", "wallHits", "temperature", "pressure", "idealPressure"};
+
+	private List<String[]> runs;
+	private Path results;
+	private int parallelism;
+	private long budgetBytes;
+	private Semaphore budget;
+	private BufferedWriter out;
+	private AtomicInteger finished;
+	private int total;
+
+	/**
+	 * Constructor for the parameter sweep.
+	 *
+	 * @param spec - the values of each parameter.
+	 * @param results - the CSV file to write the results to.
+	 * @param parallelism - the number of simulations to run at once.
+	 * @param budgetBytes - the memory the runs may hold at once.
+	 */
+	public ParameterSweep(Properties spec, Path results, int parallelism, long budgetBytes)
+	{
+		this.results = results;
+		this.parallelism = parallelism;
+		this.budgetBytes = budgetBytes;
+		for(String name : spec.stringPropertyNames())
+		{
+			if(indexOf(name) == -1)
+				throw new IllegalArgumentException("Unknown sweep parameter " + name);
+		}
+		runs = new ArrayList<String[]>();
+		runs.add(new String[PARAMETERS.length]);
+		for(int p = 0; p < PARAMETERS.length; p++)
+		{
+			List<String[]> expanded = new ArrayList<String[]>();
+			for(String value : spec.getProperty(PARAMETERS[p], DEFAULTS[p]).split(","))
+			{
+				for(String[] run : runs)
+				{
+					String[] copy = run.clone();
+					copy[p] = canonical(p, value.trim());
+					expanded.add(copy);
+				}
+			}
+			runs = expanded;
+		}
+		finished = new AtomicInteger();
+	}
+
+	/**
+	 * Runs every combination that isn't in the results file yet and waits for all of them to finish.
+	 *
+	 * @throws IOException - if the results file can't be read or written.
+	 * @throws InterruptedException - if interrupted while waiting for the runs.
+	 */
+	public void run() throws IOException, InterruptedException
+	{
+		Set<String> done = readFinished();
+		List<String[]> todo = new ArrayList<String[]>();
+		for(String[] run : runs)
+		{
+			if(!done.contains(String.join(",", run)))
+				todo.add(run);
+		}
+		total = todo.size();
+		System.out.printf("%d runs in the sweep, %d already in %s, running %d at a time with a budget of %d MB%n",
+				runs.size(), runs.size() - total, results, parallelism, budgetBytes >> 20);
+
+		budget = new Semaphore((int)Math.min(Integer.MAX_VALUE, budgetBytes >> 20));
+		out = Files.newBufferedWriter(results, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		try
+		{
+			if(Files.size(results) == 0)
+				writeLine(String.join(",", PARAMETERS) + "," + String.join(",", RESULTS));
+			ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+			for(final String[] run : todo)
+			{
+				pool.execute(new Runnable() { public void run() {
+					runOne(run);
+				}});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Runs one simulation once its memory fits in the budget and writes its line of results.
+	 *
+	 * @param run - the value of each parameter.
+	 */
+	private void runOne(String[] run)
+	{
+		String name = String.join(",", run);
+		int particles = Integer.parseInt(run[0]);
+		int megabytes = (int)Math.max(1, ((long)particles*SimulationEngine.BYTES_PER_PARTICLE) >> 20);
+		if(megabytes > budgetBytes >> 20)
+		{
+			System.err.printf("Skipping %s, it needs %d MB and the budget is %d MB%n", name, megabytes, budgetBytes >> 20);
+			return;
+		}
+		try
+		{
+			budget.acquire(megabytes);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return;
+		}
+		try
+		{
+			double radius = Double.parseDouble(run[1]);
+			double box = Double.parseDouble(run[2]);
+			if(box <= 0)
+				box = Math.cbrt(particles/100.0);
+			int steps = Integer.parseInt(run[4]);
+
+			SimulationEngine engine = new SimulationEngine(box);
+			engine.setSeed(Long.parseLong(run[5]));
+			engine.setSpeedCap(Double.parseDouble(run[3]));
+			engine.setPlacement(ParticlePlacer.Strategy.valueOf(run[6].toUpperCase()));
+			engine.setObserving(true);
+			long setupStart = System.nanoTime();
+			int placed = engine.addAir(particles, radius);
+			long start = System.nanoTime();
+			engine.run(steps);
+			long end = System.nanoTime();
+			engine.shutdown();
+
+			SimulationMetrics metrics = engine.getMetrics();
+			GasObservables gas = engine.getObservables();
+			double seconds = (end - start)/1e9;
+			writeLine(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.2f,%d,%d,%d,%.6g,%.6g,%.6g", name, placed,
+					(start - setupStart)/1e9, seconds, steps/seconds, metrics.getPairsTested(),
+					metrics.getPairsIntersecting(), metrics.getWallHits(), gas.getTemperature(), gas.getPressure(),
+					gas.getIdealPressure()));
+			System.out.printf("Finished %d of %d: %s in %.2f s%n", finished.incrementAndGet(), total, name, seconds);
+		}
+		catch(IOException e)
+		{
+			System.err.printf("Could not write the results of %s: %s%n", name, e.getMessage());
+		}
+		catch(RuntimeException e)
+		{
+			System.err.printf("Run %s failed: %s%n", name, e);
+		}
+		finally
+		{
+			budget.release(megabytes);
+		}
+	}
+
+	/**
+	 * Writes one line to the results file and flushes it, so a line is either all there or not there at all.
+	 *
+	 * @param line - the line without the line break.
+	 * @throws IOException - if the file can't be written.
+	 */
+	private synchronized void writeLine(String line) throws IOException
+	{
+		out.write(line);
+		out.newLine();
+		out.flush();
+	}
+
+	/**
+	 * Reads the parameters of the runs already in the results file. A last line cut off part way through, from a sweep
+	 * that was killed while writing, is cut from the file so the run is done again.
+	 *
+	 * @return Set<String> - the comma joined parameters of every finished run.
+	 * @throws IOException - if the file can't be read.
+	 */
+	private Set<String> readFinished() throws IOException
+	{
+		Set<String> done = new HashSet<String>();
+		if(!Files.exists(results) || Files.size(results) == 0)
+			return done;
+		try(RandomAccessFile file = new RandomAccessFile(results.toFile(), "rw"))
+		{
+			long end = file.length();
+			file.seek(end - 1);
+			while(end > 0 && file.read() != '\n')
+			{
+				end--;
+				if(end > 0)
+					file.seek(end - 1);
+			}
+			file.setLength(end);
+		}
+		try(BufferedReader in = Files.newBufferedReader(results, StandardCharsets.UTF_8))
+		{
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				String[] fields = line.split(",");
+				if(fields.length == PARAMETERS.length + RESULTS.length)
+					done.add(String.join(",", Arrays.copyOf(fields, PARAMETERS.length)));
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Parses a parameter value and writes it back out the same way every time, so a resumed sweep recognises its runs
+	 * however the values were typed in the spec.
+	 *
+	 * @param parameter - the index of the parameter in PARAMETERS.
+	 * @param value - the value as written in the spec.
+	 * @return String - the value as written in the results.
+	 */
+	private static String canonical(int parameter, String value)
+	{
+		switch(PARAMETERS[parameter])
+		{
+			case "particles":
+			case "steps":
+				return String.valueOf(Integer.parseInt(value));
+			case "seed":
+				return String.valueOf(Long.parseLong(value));
+			case "placement":
+				return ParticlePlacer.Strategy.valueOf(value.toUpperCase()).name().toLowerCase();
+			default:
+				return String.valueOf(Double.parseDouble(value));
+		}
+	}
+
+	/**
+	 * Finds a parameter by name.
+	 *
+	 * @param name - the name of the parameter.
+	 * @return int - the index of the parameter in PARAMETERS, or -1 if there is none by that name.
+	 */
+	private static int indexOf(String name)
+	{
+		for(int i = 0; i < PARAMETERS.length; i++)
+		{
+			if(PARAMETERS[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Runs a sweep from the command line. Options are given as name value pairs: -spec the properties file of the
+	 * sweep, -results the CSV file, -parallel the number of runs at once, all cores by default, and -memory the budget
+	 * in megabytes, three quarters of the maximum heap by default.
+	 *
+	 * @param args - the command line options.
+	 */
+	public static void main(String[] args)
+	{
+		String spec = null;
+		String results = "sweep.csv";
+		int parallel = Runtime.getRuntime().availableProcessors();
+		long memory = Runtime.getRuntime().maxMemory()/4*3;
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			if(args[i].equals("-spec"))
+				spec = args[i+1];
+			else if(args[i].equals("-results"))
+				results = args[i+1];
+			else if(args[i].equals("-parallel"))
+				parallel = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-memory"))
+				memory = Long.parseLong(args[i+1]) << 20;
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if(spec == null)
+			throw new IllegalArgumentException("A sweep needs a -spec file");
+
+		Properties properties = new Properties();
+		try(BufferedReader in = Files.newBufferedReader(Paths.get(spec), StandardCharsets.UTF_8))
+		{
+			properties.load(in);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("Could not read " + spec, e);
+		}
+		try
+		{
+			new ParameterSweep(properties, Paths.get(results), parallel, memory).run();
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("Could not write " + results, e);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -1,3 +1,6 @@
+import java.awt.Color;
+import java.util.SplittableRandom;
+
 import javax.media.j3d.*;
 import javax.vecmath.*;
 
@@ -31,10 +34,14 @@ import com.sun.j3d.utils.geometry.*;
  * facility. Licensee represents and warrants that it will not use or
  * redistribute the Software for such purposes.
  * 
- * Creates a node tree for the universe in the window class that makes a sphere that is able to move.
+ * Creates a node tree for the universe in the window class that makes a sphere that is able to move. The particle's
+ * position, velocity and acceleration live in a ParticleStore, this class is a view over one particle of that store. It
+ * holds the particle's stable id and looks up its index each time, so it stays attached to the same particle when the
+ * store is reordered. A particle is either drawn as its own sphere or, with a LevelOfDetail, as a Switch between the
+ * shared high and low poly spheres and a point of its species.
  * 
  * @author Ben Johnson
- * @version 5-24-2017
+ * @version 6-30-2017
  *
  */
 public class Particle {
@@ -49,38 +56,68 @@ public class Particle {
 	private TransformGroup particleTransformGroup;
 	private Transform3D particleTransform;
 	private Sphere sphere;
+	private Switch detail;
+	private int level;
 	private Appearance appearance;
 	private Material shader;
 	private Color3f color;
 	
+	private ParticleStore store;
+	private int id;
 	private Vector3d positionVector;
 	private Vector3d velocityVector;
 	private Vector3d accelerationVector;
 	
 	/**
-	 * Constructor for the particle class. Sets all of the properties of the particle and the node tree for the particle.
+	 * Constructor for the particle class. Sets all of the properties of the particle and the node tree for a particle
+	 * that is already in the store.
+	 * 
+	 * @param store - the store that holds the particle's state.
+	 * @param id - the id of the particle in the store.
+	 * @param boxsize - the side length of the box the particle is in.
+	 */
+	public Particle(ParticleStore store, int id, double boxsize)
+	{
+		this(store, id, boxsize, null);
+	}
+	
+	/**
+	 * Constructor for the particle class. Sets all of the properties of the particle and the node tree for a particle
+	 * that is already in the store, drawn with the shared geometry of a level of detail.
 	 * 
-	 * @param radius - the radius of the particle.
-	 * @param colorInput - the color of the particle.
+	 * @param store - the store that holds the particle's state.
+	 * @param id - the id of the particle in the store.
+	 * @param boxsize - the side length of the box the particle is in.
+	 * @param levels - the levels of detail to draw the particle with, or null to give it its own sphere.
 	 */
-	public Particle(float radius, Color3f colorInput, double boxsize)
+	public Particle(ParticleStore store, int id, double boxsize, LevelOfDetail levels)
 	{
-		this.radius = radius;
+		this.store = store;
+		this.id = id;
+		int index = store.indexOf(id);
+		radius = store.getRadius()[index];
 		diameter = radius * 2;
 		boxSize = boxsize;
-		color = colorInput;
-		sphere = new Sphere(radius);
-		appearance = new Appearance();
-		shader = new Material();
+		color = new Color3f(new Color(store.getSpeciesColor(store.getSpecies()[index])));
+		positionVector = new Vector3d();
+		velocityVector = new Vector3d();
+		accelerationVector = new Vector3d();
 		particleTransform = new Transform3D();
+		if(levels != null)
+		{
+			detail = levels.createSwitch(store.getSpeciesColor(store.getSpecies()[index]), radius);
+		}
+		else
+		{
+			sphere = new Sphere((float)radius);
+			appearance = new Appearance();
+			shader = new Material();
+			shader.setDiffuseColor(color);
+			appearance.setMaterial(shader);
+			sphere.setAppearance(appearance);
+		}
 		
-		shader.setDiffuseColor(color);
-		appearance.setMaterial(shader);
-		sphere.setAppearance(appearance);
-		
-		setRandomLocation();
-		setRandomVelocity();
-		setInitialAccelerationVector();
+		particleTransform.setTranslation(getPositionVector());
 		setNodeGroup();
 	}
 	
@@ -97,7 +134,7 @@ public class Particle {
 		particleTransformGroup.setCapability(TransformGroup.ALLOW_TRANSFORM_WRITE);
 		particleTransformGroup.setTransform(particleTransform);
 		
-		particleTransformGroup.addChild(sphere);
+		particleTransformGroup.addChild(detail != null ? detail : sphere);
 		particleBranchGroup.addChild(particleTransformGroup);
 	}
 	
@@ -106,26 +143,7 @@ public class Particle {
 	 */
 	public void checkBoxIntersection()
 	{
-		double[] positionComponents = new double[3];
-		double[] velocityComponents = new double[3];
-		positionVector.get(positionComponents);
-		velocityVector.get(velocityComponents);
-		
-		if(Math.abs(positionComponents[X])+radius >= boxSize/2)
-		{
-			positionVector = new Vector3d(positionComponents[X]-velocityComponents[X], positionComponents[Y]-velocityComponents[Y], positionComponents[Z]-velocityComponents[Z]);
-			velocityVector = new Vector3d(velocityComponents[X]*-1, velocityComponents[Y], velocityComponents[Z]);
-		}
-		if(Math.abs(positionComponents[Y])+radius >= boxSize/2)
-		{
-			positionVector = new Vector3d(positionComponents[X]-velocityComponents[X], positionComponents[Y]-velocityComponents[Y], positionComponents[Z]-velocityComponents[Z]);
-			velocityVector = new Vector3d(velocityComponents[X], velocityComponents[Y]*-1, velocityComponents[Z]);
-		}
-		if(Math.abs(positionComponents[Z])+radius >= boxSize/2)
-		{
-			positionVector = new Vector3d(positionComponents[X]-velocityComponents[X], positionComponents[Y]-velocityComponents[Y], positionComponents[Z]-velocityComponents[Z]);
-			velocityVector = new Vector3d(velocityComponents[X], velocityComponents[Y], velocityComponents[Z]*-1);
-		}
+		store.checkBoxIntersection(getIndex(), boxSize);
 	}
 	
 	/**
@@ -135,17 +153,7 @@ public class Particle {
 	 */
 	public void collisionFix(Particle other)
 	{
-		Vector3d myVelocity = new Vector3d();
-		Vector3d otherVelocity = new Vector3d();
-		myVelocity.set(velocityVector);
-		otherVelocity.set(other.getVelocityVector());
-		double myLength = myVelocity.length();
-		double otherLength = otherVelocity.length();
-		double avgLength = (myLength+otherLength)/2;
-		otherVelocity.scale(avgLength/otherLength);
-		myVelocity.scale(avgLength/myLength);
-		velocityVector = otherVelocity;
-		other.setVelocityVector(myVelocity);
+		store.collisionFix(getIndex(), other.getIndex());
 	}
 	
 	/**
@@ -156,41 +164,36 @@ public class Particle {
 	 */
 	public boolean intersectOtherParticle(Particle other)
 	{
-		Vector3d myPosition = new Vector3d();
-		Vector3d otherPosition = new Vector3d();
-		myPosition.set(positionVector);
-		otherPosition.set(other.getPositionVector());
-		Vector3d length = new Vector3d();
-		length.sub(myPosition, otherPosition);
-		double distance = length.length();
-		if(distance < radius + other.getRadius())
-			return true;
-		return false;
+		return store.intersects(getIndex(), other.getIndex());
 	}
 	
 	/**
 	 * Assigns a random position vector to the particle to be placed in the universe.
+	 * 
+	 * @param random - the generator to draw from.
 	 */
-	public void setRandomLocation()
+	public void setRandomLocation(SplittableRandom random)
 	{
-		double x = Math.random()*(boxSize-diameter) - (boxSize-diameter)/2;
-		double y = Math.random()*(boxSize-diameter) - (boxSize-diameter)/2;
-		double z = Math.random()*(boxSize-diameter) - (boxSize-diameter)/2;
+		double x = random.nextDouble()*(boxSize-diameter) - (boxSize-diameter)/2;
+		double y = random.nextDouble()*(boxSize-diameter) - (boxSize-diameter)/2;
+		double z = random.nextDouble()*(boxSize-diameter) - (boxSize-diameter)/2;
 		
-		positionVector = new Vector3d(x,y,z);
-		particleTransform.setTranslation(positionVector);
+		store.setPosition(getIndex(), x, y, z);
+		particleTransform.setTranslation(getPositionVector());
 	}
 	
 	/**
 	 * Assigns a random velocity vector for the particle.
+	 * 
+	 * @param random - the generator to draw from.
 	 */
-	public void setRandomVelocity()
+	public void setRandomVelocity(SplittableRandom random)
 	{
-		double x = Math.random()*(INTIALSPEEDCAP)*randomSign();
-		double y = Math.random()*(INTIALSPEEDCAP)*randomSign();
-		double z = Math.random()*(INTIALSPEEDCAP)*randomSign();
+		double x = random.nextDouble()*(INTIALSPEEDCAP)*randomSign(random);
+		double y = random.nextDouble()*(INTIALSPEEDCAP)*randomSign(random);
+		double z = random.nextDouble()*(INTIALSPEEDCAP)*randomSign(random);
 		
-		velocityVector = new Vector3d(x,y,z);
+		store.setVelocity(getIndex(), x, y, z);
 	}
 	
 	/**
@@ -198,6 +201,20 @@ public class Particle {
 	 */
 	public void updatePosition()
 	{
+		particleTransform.setTranslation(getPositionVector());
+		particleTransformGroup.setTransform(particleTransform);
+	}
+	
+	/**
+	 * Moves the particle to the given position without reading the store, used by the render loop to draw a snapshot.
+	 * 
+	 * @param x - the x position.
+	 * @param y - the y position.
+	 * @param z - the z position.
+	 */
+	public void updatePosition(double x, double y, double z)
+	{
+		positionVector.set(x, y, z);
 		particleTransform.setTranslation(positionVector);
 		particleTransformGroup.setTransform(particleTransform);
 	}
@@ -207,7 +224,7 @@ public class Particle {
 	 */
 	public void setInitialAccelerationVector()
 	{
-		accelerationVector = new Vector3d(0,0,0);
+		store.setAcceleration(getIndex(), 0, 0, 0);
 	}
 	
 	/**
@@ -215,7 +232,7 @@ public class Particle {
 	 */
 	public void addVelocity()
 	{
-		positionVector.add(velocityVector);
+		store.addVelocity(getIndex());
 	}
 	
 	/**
@@ -223,7 +240,7 @@ public class Particle {
 	 */
 	public void subtractVelocity()
 	{
-		positionVector.sub(velocityVector);
+		store.subtractVelocity(getIndex());
 	}
 	
 	/**
@@ -231,17 +248,18 @@ public class Particle {
 	 */
 	public void addAcceleration()
 	{
-		velocityVector.add(accelerationVector);
+		store.addAcceleration(getIndex());
 	}
 	
 	/**
 	 * Generates a random sign, positive or negative. There is a 50% chance for both signs.
 	 * 
+	 * @param random - the generator to draw from.
 	 * @return int - either a positive 1 or a negative 1;
 	 */
-	public int randomSign()
+	public int randomSign(SplittableRandom random)
 	{
-		double num = Math.random();
+		double num = random.nextDouble();
 		if(Math.round(num) == 1)
 		{
 			return -1;
@@ -263,22 +281,28 @@ public class Particle {
 	}
 	
 	/**
-	 * Accessor method for the position vector of the particle.
+	 * Accessor method for the position vector of the particle. The returned vector is reused by this particle and
+	 * is only a copy of the stored position at the time of the call.
 	 * 
 	 * @return Vector3d - the position vector of the particle.
 	 */
 	public Vector3d getPositionVector()
 	{
+		int index = getIndex();
+		positionVector.set(store.getX()[index], store.getY()[index], store.getZ()[index]);
 		return positionVector;
 	}
 	
 	/**
-	 * Accessor method for the velocity vector of the particle.
+	 * Accessor method for the velocity vector of the particle. The returned vector is reused by this particle and
+	 * is only a copy of the stored velocity at the time of the call.
 	 * 
 	 * @return Vector3d - the velocity vector of the particle.
 	 */
 	public Vector3d getVelocityVector()
 	{
+		int index = getIndex();
+		velocityVector.set(store.getVX()[index], store.getVY()[index], store.getVZ()[index]);
 		return velocityVector;
 	}
 	
@@ -289,7 +313,63 @@ public class Particle {
 	 */
 	public void setVelocityVector(Vector3d vec)
 	{
-		velocityVector = vec;
+		store.setVelocity(getIndex(), vec.x, vec.y, vec.z);
+	}
+	
+	/**
+	 * Accessor method for the acceleration vector of the particle. The returned vector is reused by this particle and
+	 * is only a copy of the stored acceleration at the time of the call.
+	 * 
+	 * @return Vector3d - the acceleration vector of the particle.
+	 */
+	public Vector3d getAccelerationVector()
+	{
+		int index = getIndex();
+		accelerationVector.set(store.getAX()[index], store.getAY()[index], store.getAZ()[index]);
+		return accelerationVector;
+	}
+	
+	/**
+	 * Accessor method for the index of the particle in its store. The index changes when the store is reordered.
+	 * 
+	 * @return int - the particle's index.
+	 */
+	public int getIndex()
+	{
+		return store.indexOf(id);
+	}
+	
+	/**
+	 * Accessor method for the stable id of the particle.
+	 * 
+	 * @return int - the particle's id.
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * Shows the given level of detail, if the particle is drawn with levels of detail.
+	 * 
+	 * @param newLevel - LevelOfDetail.HIGH, LOW or POINT.
+	 */
+	public void setLevel(int newLevel)
+	{
+		if(detail == null || newLevel == level)
+			return;
+		level = newLevel;
+		detail.setWhichChild(newLevel);
+	}
+	
+	/**
+	 * Accessor method for the level of detail shown.
+	 * 
+	 * @return int - LevelOfDetail.HIGH, LOW or POINT, HIGH if the particle has its own sphere.
+	 */
+	public int getLevel()
+	{
+		return level;
 	}
 	
 	/**
@@ -315,7 +395,7 @@ public class Particle {
 	/**
 	 * Accessor method for the actual sphere 3D shape of the particle.
 	 * 
-	 * @return Sphere - the 3D shape of the particle.
+	 * @return Sphere - the 3D shape of the particle, null if it is drawn with levels of detail.
 	 */
 	public Sphere getSphere()
 	{
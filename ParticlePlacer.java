@@ -0,0 +1,430 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Places new particles in the box of a simulation engine without overlapping any particle already there. Every
+ * strategy checks for overlaps with a spatial grid that new particles are inserted into as they are placed, so placing
+ * N particles takes close to linear time instead of scanning every particle for every try.
+ *
+ * The strategies are:
+ * RANDOM - each particle is thrown at a random spot up to SimulationEngine.PLACEMENT_TRIES times. Gets slow and gives
+ * up well below the densities the other strategies reach.
+ * LATTICE - particles are put on the sites of a face centered cubic lattice, the densest packing of spheres, spaced as
+ * widely as the box allows and then jittered by as much as the spacing leaves room for, up to one radius. Reaches the
+ * highest densities.
+ * POISSON_DISK - particles are grown outward from random seeds, each new particle tried a short distance from one that
+ * was already placed (Bridson's algorithm). Gives an even random spread up to a little over a quarter of the box
+ * volume.
+ *
+ * Placement stops when no more particles fit, the methods return how many particles were actually placed. A placement
+ * can be given a Progress that hears how far it has got every PROGRESS_INTERVAL particles and can cancel it, in which
+ * case the particles it placed are removed again.
+ *
+ * Each placement draws its positions from one generator split off of the engine's RandomStreams, and the velocities
+ * are handed out afterwards in parallel batches, so a seeded engine always places the same particles. The random and
+ * Poisson disk strategies have to place one particle after the other since every try depends on the particles before
+ * it, the lattice strategy checks its sites for room on every thread of the common pool.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class ParticlePlacer {
+
+	/**
+	 * The ways particles can be placed.
+	 */
+	public enum Strategy { RANDOM, LATTICE, POISSON_DISK }
+
+	/**
+	 * Hears how far a placement has got.
+	 */
+	public interface Progress
+	{
+		/**
+		 * Called every PROGRESS_INTERVAL particles placed, on the thread doing the placement.
+		 *
+		 * @param placed - the number of particles placed so far.
+		 * @param total - the number of particles asked for.
+		 * @return boolean - true to go on, false to cancel the placement.
+		 */
+		boolean placed(int placed, int total);
+	}
+
+	public static final int CANDIDATES = 30;
+	public static final int SEED_TRIES = 1000;
+	public static final int PROGRESS_INTERVAL = 4096;
+
+	private SimulationEngine engine;
+	private ParticleStore store;
+	private SpatialGrid grid;
+	private Progress progress;
+	private SplittableRandom random;
+	private int progressPlaced;
+	private int progressTotal;
+	private boolean cancelled;
+
+	/**
+	 * Constructor for the particle placer.
+	 *
+	 * @param engine - the engine to add particles to.
+	 */
+	public ParticlePlacer(SimulationEngine engine)
+	{
+		this.engine = engine;
+		store = engine.getStore();
+		grid = new SpatialGrid(engine.getBoxSize());
+	}
+
+	/**
+	 * Places the given number of particles of one species with random velocities.
+	 *
+	 * @param num - the number of particles to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each particle.
+	 * @param strategy - how to choose the positions.
+	 * @return int - the number of particles that were placed.
+	 */
+	public int place(int num, double radius, int species, Strategy strategy)
+	{
+		return place(new int[] {num}, radius, new int[] {species}, strategy, null);
+	}
+
+	/**
+	 * Places the given number of particles of one species with random velocities, reporting the progress.
+	 *
+	 * @param num - the number of particles to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each particle.
+	 * @param strategy - how to choose the positions.
+	 * @param listener - hears the progress and can cancel the placement, or null.
+	 * @return int - the number of particles that were placed, zero if the placement was cancelled.
+	 */
+	public int place(int num, double radius, int species, Strategy strategy, Progress listener)
+	{
+		return place(new int[] {num}, radius, new int[] {species}, strategy, listener);
+	}
+
+	/**
+	 * Places a mix of species with the same radius with random velocities.
+	 *
+	 * @param counts - the number of particles of each species to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each entry in counts.
+	 * @param strategy - how to choose the positions.
+	 * @return int - the number of particles that were placed.
+	 */
+	public int place(int[] counts, double radius, int[] species, Strategy strategy)
+	{
+		return place(counts, radius, species, strategy, null);
+	}
+
+	/**
+	 * Places a mix of species with the same radius with random velocities. The lattice strategy spreads the whole mix
+	 * over one lattice, placing the species one after the other would fill the lattice with the first species and
+	 * leave no sites for the rest. If the progress listener cancels the placement every particle it placed is removed.
+	 *
+	 * @param counts - the number of particles of each species to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each entry in counts.
+	 * @param strategy - how to choose the positions.
+	 * @param listener - hears the progress and can cancel the placement, or null.
+	 * @return int - the number of particles that were placed, zero if the placement was cancelled.
+	 */
+	public int place(int[] counts, double radius, int[] species, Strategy strategy, Progress listener)
+	{
+		int num = 0;
+		for(int count : counts)
+		{
+			num += count;
+		}
+		double span = engine.getBoxSize() - radius*2;
+		if(num <= 0 || span < 0)
+			return 0;
+		store.ensureCapacity(store.size() + num);
+		double maxRadius = radius;
+		double[] radii = store.getRadius();
+		for(int i = 0; i < store.size(); i++)
+		{
+			maxRadius = Math.max(maxRadius, radii[i]);
+		}
+		grid.setBoxSize(engine.getBoxSize());
+		grid.rebuild(store, store.size() + num, maxRadius*2 + radius);
+		int before = store.size();
+		progress = listener;
+		progressPlaced = 0;
+		progressTotal = num;
+		cancelled = false;
+		random = engine.getRandom().split();
+
+		int placed = 0;
+		if(strategy == Strategy.LATTICE)
+			placed = placeLattice(counts, num, radius, species, span);
+		for(int i = 0; i < counts.length && strategy != Strategy.LATTICE && !cancelled; i++)
+		{
+			if(strategy == Strategy.POISSON_DISK)
+				placed += placePoissonDisk(counts[i], radius, species[i], span);
+			else
+				placed += placeRandom(counts[i], radius, species[i], span);
+		}
+		progress = null;
+		if(!cancelled)
+		{
+			engine.setRandomVelocities(before, store.size());
+			return placed;
+		}
+		store.truncate(before);
+		return 0;
+	}
+
+	/**
+	 * Throws each particle at random spots until one is free.
+	 *
+	 * @param num - the number of particles to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each particle.
+	 * @param span - the side length of the region particle centers can be in.
+	 * @return int - the number of particles that were placed.
+	 */
+	private int placeRandom(int num, double radius, int species, double span)
+	{
+		for(int placed = 0; placed < num; placed++)
+		{
+			if(cancelled)
+				return placed;
+			boolean found = false;
+			for(int count = 0; count < SimulationEngine.PLACEMENT_TRIES && !found; count++)
+			{
+				double x = random.nextDouble()*span - span/2;
+				double y = random.nextDouble()*span - span/2;
+				double z = random.nextDouble()*span - span/2;
+				if(grid.findIntersecting(store, x, y, z, radius, -1) == -1)
+				{
+					add(x, y, z, radius, species);
+					found = true;
+				}
+			}
+			if(!found)
+				return placed;
+		}
+		return num;
+	}
+
+	/**
+	 * Puts the particles on a jittered face centered cubic lattice. The lattice sites are the points of a cubic grid
+	 * with spacing h whose coordinates add up to an even number, so each site's nearest neighbors are h*sqrt(2) away.
+	 * The grid starts as coarse as can still hold every particle and is refined until enough sites are free of the
+	 * particles already in the box. A random subset of the free sites is used so a partly filled lattice is spread
+	 * through the whole box. When there aren't enough free sites every species is cut back by the same fraction.
+	 *
+	 * @param counts - the number of particles of each species to place.
+	 * @param num - the total number of particles to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each entry in counts.
+	 * @param span - the side length of the region particle centers can be in.
+	 * @return int - the number of particles that were placed.
+	 */
+	private int placeLattice(int[] counts, int num, double radius, int[] species, double span)
+	{
+		int maxPoints = span > 0 ? (int)Math.floor(span/(radius*Math.sqrt(2))) + 1 : 1;
+		int points = Math.min(maxPoints, Math.max(1, (int)Math.ceil(Math.cbrt(2.0*num))));
+		int[] sites = new int[0];
+		int free = 0;
+		double spacing = 0, jitter = 0;
+		for(; points <= maxPoints; points++)
+		{
+			spacing = points > 1 ? span/(points-1) : 0;
+			jitter = points > 1 ? Math.max(0, Math.min(radius, (spacing*Math.sqrt(2) - radius*2)/2)) : 0;
+			long total = (long)points*points*points;
+			if(total > Integer.MAX_VALUE)
+				break;
+			if(sites.length < (total+1)/2)
+				sites = new int[(int)((total+1)/2)];
+			free = findFreeSites(sites, points, spacing, radius + jitter, span);
+			if(free >= num || points == maxPoints)
+				break;
+		}
+
+		int placed = Math.min(num, free);
+		double offset = jitter/Math.sqrt(3);
+		int entry = 0, entryEnd = counts[0];
+		for(int n = 0; n < placed && !cancelled; n++)
+		{
+			long slot = (long)n*num/placed;
+			while(slot >= entryEnd)
+				entryEnd += counts[++entry];
+			int pick = n + (int)(random.nextDouble()*(free - n));
+			int site = sites[pick];
+			sites[pick] = sites[n];
+			double x = clamp((site/points/points)*spacing - span/2 + (random.nextDouble()*2-1)*offset, span/2);
+			double y = clamp((site/points % points)*spacing - span/2 + (random.nextDouble()*2-1)*offset, span/2);
+			double z = clamp((site % points)*spacing - span/2 + (random.nextDouble()*2-1)*offset, span/2);
+			add(x, y, z, radius, species[entry]);
+		}
+		return placed;
+	}
+
+	/**
+	 * Finds the sites of a face centered cubic lattice that are free of the particles already in the box. Each plane
+	 * of sites along x is checked as its own task on the common pool, the free sites are then copied out plane after
+	 * plane so they come out in the same order as on one thread.
+	 *
+	 * @param sites - the array to put the free sites in, with room for every site of the lattice.
+	 * @param points - the number of sites along each side of the cubic grid.
+	 * @param spacing - the distance between neighboring points of the grid.
+	 * @param reach - the distance a site has to be from every particle, its radius plus jitter.
+	 * @param span - the side length of the region particle centers can be in.
+	 * @return int - the number of free sites.
+	 */
+	private int findFreeSites(int[] sites, final int points, final double spacing, final double reach, final double span)
+	{
+		List<Callable<int[]>> planes = new ArrayList<Callable<int[]>>();
+		for(int plane = 0; plane < points; plane++)
+		{
+			final int i = plane;
+			planes.add(new Callable<int[]>() { public int[] call() {
+				int[] free = new int[(points*points + 1)/2 + 1];
+				int count = 0;
+				for(int j = 0; j < points; j++)
+				{
+					for(int k = (i+j) % 2; k < points; k += 2)
+					{
+						double x = i*spacing - span/2, y = j*spacing - span/2, z = k*spacing - span/2;
+						if(grid.findIntersecting(store, x, y, z, reach, -1) == -1)
+							free[++count] = (i*points + j)*points + k;
+					}
+				}
+				free[0] = count;
+				return free;
+			}});
+		}
+		int free = 0;
+		for(Future<int[]> plane : ForkJoinPool.commonPool().invokeAll(planes))
+		{
+			try
+			{
+				int[] planeSites = plane.get();
+				System.arraycopy(planeSites, 1, sites, free, planeSites[0]);
+				free += planeSites[0];
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while looking for free lattice sites", e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new RuntimeException("Could not look for free lattice sites", e.getCause());
+			}
+		}
+		return free;
+	}
+
+	/**
+	 * Grows the particles out from random seeds. Each new particle is tried at up to CANDIDATES random spots between one
+	 * and two diameters from a particle on the active list, a particle with no free spot around it is taken off the
+	 * list. When the list runs out a new seed is thrown at random, when no seed fits the box is full.
+	 *
+	 * @param num - the number of particles to place.
+	 * @param radius - the radius of each particle.
+	 * @param species - the species index of each particle.
+	 * @param span - the side length of the region particle centers can be in.
+	 * @return int - the number of particles that were placed.
+	 */
+	private int placePoissonDisk(int num, double radius, int species, double span)
+	{
+		int[] active = new int[Math.min(num, 1024)];
+		int activeCount = 0;
+		int placed = 0;
+		double[] px = store.getX(), py = store.getY(), pz = store.getZ();
+		while(placed < num && !cancelled)
+		{
+			if(activeCount == 0)
+			{
+				int seed = -1;
+				for(int t = 0; t < SEED_TRIES && seed == -1; t++)
+				{
+					double x = random.nextDouble()*span - span/2;
+					double y = random.nextDouble()*span - span/2;
+					double z = random.nextDouble()*span - span/2;
+					if(grid.findIntersecting(store, x, y, z, radius, -1) == -1)
+						seed = add(x, y, z, radius, species);
+				}
+				if(seed == -1)
+					break;
+				active[activeCount++] = seed;
+				placed++;
+				continue;
+			}
+
+			int slot = (int)(random.nextDouble()*activeCount);
+			int center = active[slot];
+			int child = -1;
+			for(int k = 0; k < CANDIDATES && child == -1; k++)
+			{
+				double cosine = random.nextDouble()*2 - 1;
+				double sine = Math.sqrt(1 - cosine*cosine);
+				double angle = random.nextDouble()*2*Math.PI;
+				double distance = radius*2*(1 + random.nextDouble());
+				double x = px[center] + distance*sine*Math.cos(angle);
+				double y = py[center] + distance*sine*Math.sin(angle);
+				double z = pz[center] + distance*cosine;
+				if(Math.abs(x) > span/2 || Math.abs(y) > span/2 || Math.abs(z) > span/2)
+					continue;
+				if(grid.findIntersecting(store, x, y, z, radius, -1) == -1)
+					child = add(x, y, z, radius, species);
+			}
+			if(child == -1)
+			{
+				active[slot] = active[--activeCount];
+				continue;
+			}
+			if(activeCount == active.length)
+				active = Arrays.copyOf(active, activeCount*2);
+			active[activeCount++] = child;
+			placed++;
+		}
+		return placed;
+	}
+
+	/**
+	 * Adds a particle at the given position and inserts it into the grid, telling the progress listener every
+	 * PROGRESS_INTERVAL particles. The velocity is given once the whole placement is done.
+	 *
+	 * @param x - the x position.
+	 * @param y - the y position.
+	 * @param z - the z position.
+	 * @param radius - the radius of the particle.
+	 * @param species - the species index of the particle.
+	 * @return int - the index of the new particle.
+	 */
+	private int add(double x, double y, double z, double radius, int species)
+	{
+		int index = store.add(radius, species);
+		store.setPosition(index, x, y, z);
+		grid.insert(store, index);
+		progressPlaced++;
+		if(progress != null && progressPlaced % PROGRESS_INTERVAL == 0 && !progress.placed(progressPlaced, progressTotal))
+			cancelled = true;
+		return index;
+	}
+
+	/**
+	 * Keeps a coordinate inside the region particle centers can be in.
+	 *
+	 * @param value - the coordinate.
+	 * @param limit - half the side length of the region.
+	 * @return double - the clamped coordinate.
+	 */
+	private static double clamp(double value, double limit)
+	{
+		return Math.max(-limit, Math.min(limit, value));
+	}
+
+}
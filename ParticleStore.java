@@ -0,0 +1,663 @@
+import java.util.Arrays;
+
+/**
+ * Holds the state of every particle in the simulation as parallel primitive arrays, one array per component, so the
+ * simulation step can run over contiguous memory without creating any objects. Particle objects are views over one
+ * index of this store.
+ *
+ * The arrays returned by the accessor methods are replaced when the store grows or is reordered, so they should be
+ * fetched again after particles are added and after reorder.
+ *
+ * Every particle also has a stable id that doesn't change when reorder moves it to another index. Ids are handed out
+ * in the order particles are added and always run from 0 to size()-1, so anything that keeps one entry per particle,
+ * like the spheres in the window or the frames of a recording, can be kept in id order with copyById.
+ *
+ * @author Ben Johnson
+ * @version 6-27-2017
+ *
+ */
+public class ParticleStore {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int size;
+	private double[] x, y, z;
+	private double[] vx, vy, vz;
+	private double[] ax, ay, az;
+	private double[] radius;
+	private int[] species;
+	private int[] id;
+	private int[] indexOf;
+	private boolean idOrder;
+	private double[] doubleScratch;
+	private int[] intScratch;
+	private int speciesCount;
+	private int[] speciesColor;
+	private double[] speciesRadius;
+
+	/**
+	 * Constructor for the particle store. Creates empty arrays with a small initial capacity.
+	 */
+	public ParticleStore()
+	{
+		allocate(INITIAL_CAPACITY);
+		idOrder = true;
+		speciesColor = new int[4];
+		speciesRadius = new double[4];
+	}
+
+	/**
+	 * Appends a particle at the origin with no velocity or acceleration.
+	 *
+	 * @param particleRadius - the radius of the particle.
+	 * @param particleSpecies - the species index of the particle.
+	 * @return int - the index of the new particle.
+	 */
+	public int add(double particleRadius, int particleSpecies)
+	{
+		ensureCapacity(size + 1);
+		int index = size++;
+		x[index] = y[index] = z[index] = 0;
+		vx[index] = vy[index] = vz[index] = 0;
+		ax[index] = ay[index] = az[index] = 0;
+		radius[index] = particleRadius;
+		species[index] = particleSpecies;
+		id[index] = index;
+		indexOf[index] = index;
+		return index;
+	}
+
+	/**
+	 * Finds the species with the given color and radius, registering a new species if no particle has used them yet.
+	 *
+	 * @param rgb - the packed RGB color of the species.
+	 * @param particleRadius - the radius of the species.
+	 * @return int - the species index.
+	 */
+	public int speciesFor(int rgb, double particleRadius)
+	{
+		for(int i = 0; i < speciesCount; i++)
+		{
+			if(speciesColor[i] == rgb && speciesRadius[i] == particleRadius)
+				return i;
+		}
+		if(speciesCount == speciesColor.length)
+		{
+			speciesColor = Arrays.copyOf(speciesColor, speciesCount*2);
+			speciesRadius = Arrays.copyOf(speciesRadius, speciesCount*2);
+		}
+		speciesColor[speciesCount] = rgb;
+		speciesRadius[speciesCount] = particleRadius;
+		return speciesCount++;
+	}
+
+	/**
+	 * Drops every particle with an id at or after the given id, the ones added last. If the store was reordered the
+	 * particles that are kept are moved down to fill the indices before newSize.
+	 *
+	 * @param newSize - the number of particles to keep.
+	 */
+	public void truncate(int newSize)
+	{
+		newSize = Math.max(newSize, 0);
+		if(newSize >= size)
+			return;
+		if(!idOrder)
+		{
+			int j = newSize;
+			for(int i = 0; i < newSize; i++)
+			{
+				if(id[i] < newSize)
+					continue;
+				while(id[j] >= newSize)
+				{
+					j++;
+				}
+				swap(i, j);
+			}
+		}
+		size = newSize;
+	}
+
+	/**
+	 * Sets the number of particles, growing the arrays if needed. Particles past the old size keep whatever values are
+	 * left in the arrays, so this is meant for filling the arrays directly in id order, like when a checkpoint is
+	 * loaded. Every particle's id is set back to its index.
+	 *
+	 * @param newSize - the new number of particles.
+	 */
+	public void setSize(int newSize)
+	{
+		ensureCapacity(newSize);
+		size = newSize;
+		for(int i = 0; i < size; i++)
+		{
+			id[i] = indexOf[i] = i;
+		}
+		idOrder = true;
+	}
+
+	/**
+	 * Removes every particle from the store. The arrays and the registered species are kept for reuse.
+	 */
+	public void clear()
+	{
+		size = 0;
+		idOrder = true;
+	}
+
+	/**
+	 * Moves the particles to new indices. Their ids stay the same.
+	 *
+	 * @param order - for each new index, the current index of the particle to move there. Must hold every index from
+	 * 0 to size()-1 once.
+	 */
+	public void reorder(int[] order)
+	{
+		x = permute(x, order);
+		y = permute(y, order);
+		z = permute(z, order);
+		vx = permute(vx, order);
+		vy = permute(vy, order);
+		vz = permute(vz, order);
+		ax = permute(ax, order);
+		ay = permute(ay, order);
+		az = permute(az, order);
+		radius = permute(radius, order);
+		species = permute(species, order);
+		id = permute(id, order);
+		idOrder = true;
+		for(int i = 0; i < size; i++)
+		{
+			indexOf[id[i]] = i;
+			if(id[i] != i)
+				idOrder = false;
+		}
+	}
+
+	/**
+	 * Copies a column of the store into an array in id order, so the entry for a particle is at its id.
+	 *
+	 * @param column - an array of the store, like getX().
+	 * @param target - the array to fill, at least size() long.
+	 */
+	public void copyById(double[] column, double[] target)
+	{
+		if(idOrder)
+		{
+			System.arraycopy(column, 0, target, 0, size);
+			return;
+		}
+		for(int i = 0; i < size; i++)
+		{
+			target[id[i]] = column[i];
+		}
+	}
+
+	/**
+	 * Copies a column of the store into an array in id order, so the entry for a particle is at its id.
+	 *
+	 * @param column - an array of the store, like getSpecies().
+	 * @param target - the array to fill, at least size() long.
+	 */
+	public void copyById(int[] column, int[] target)
+	{
+		if(idOrder)
+		{
+			System.arraycopy(column, 0, target, 0, size);
+			return;
+		}
+		for(int i = 0; i < size; i++)
+		{
+			target[id[i]] = column[i];
+		}
+	}
+
+	/**
+	 * Accessor method for the index a particle is at now.
+	 *
+	 * @param particleId - the id of the particle.
+	 * @return int - the index of the particle.
+	 */
+	public int indexOf(int particleId)
+	{
+		return indexOf[particleId];
+	}
+
+	/**
+	 * Accessor method for the ids.
+	 *
+	 * @return int[] - the id of the particle at every index.
+	 */
+	public int[] getIds()
+	{
+		return id;
+	}
+
+	/**
+	 * Accessor method for whether every particle's index is its id, which is the case until the store is reordered.
+	 *
+	 * @return boolean - whether the particles are in id order.
+	 */
+	public boolean isIdOrder()
+	{
+		return idOrder;
+	}
+
+	/**
+	 * Adds the velocity to the position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 */
+	public void addVelocity(int i)
+	{
+		x[i] += vx[i];
+		y[i] += vy[i];
+		z[i] += vz[i];
+	}
+
+	/**
+	 * Subtracts the velocity from the position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 */
+	public void subtractVelocity(int i)
+	{
+		x[i] -= vx[i];
+		y[i] -= vy[i];
+		z[i] -= vz[i];
+	}
+
+	/**
+	 * Adds the acceleration to the velocity of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 */
+	public void addAcceleration(int i)
+	{
+		vx[i] += ax[i];
+		vy[i] += ay[i];
+		vz[i] += az[i];
+	}
+
+	/**
+	 * Checks to see if the particle is at the edge of the boundary and if it is, the last move is undone and the
+	 * velocity is reflected off of every wall the particle touches.
+	 *
+	 * @param i - the index of the particle.
+	 * @param boxSize - the side length of the box.
+	 * @return boolean - whether the particle hit a wall.
+	 */
+	public boolean checkBoxIntersection(int i, double boxSize)
+	{
+		double half = boxSize/2;
+		double r = radius[i];
+		boolean hitX = Math.abs(x[i])+r >= half;
+		boolean hitY = Math.abs(y[i])+r >= half;
+		boolean hitZ = Math.abs(z[i])+r >= half;
+		if(!(hitX || hitY || hitZ))
+			return false;
+
+		subtractVelocity(i);
+		if(hitX)
+			vx[i] = -vx[i];
+		if(hitY)
+			vy[i] = -vy[i];
+		if(hitZ)
+			vz[i] = -vz[i];
+		return true;
+	}
+
+	/**
+	 * Checks if 2 particles are intersecting.
+	 *
+	 * @param i - the index of the first particle.
+	 * @param j - the index of the second particle.
+	 * @return boolean - whether or not the particles are intersecting.
+	 */
+	public boolean intersects(int i, int j)
+	{
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		double dz = z[i] - z[j];
+		double reach = radius[i] + radius[j];
+		return dx*dx + dy*dy + dz*dz < reach*reach;
+	}
+
+	/**
+	 * Corrects the velocities of 2 intersecting particles. Each particle takes the direction of the other particle's
+	 * velocity with the average speed of the two.
+	 *
+	 * @param i - the index of the first particle.
+	 * @param j - the index of the second particle.
+	 */
+	public void collisionFix(int i, int j)
+	{
+		double myLength = Math.sqrt(vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i]);
+		double otherLength = Math.sqrt(vx[j]*vx[j] + vy[j]*vy[j] + vz[j]*vz[j]);
+		double avgLength = (myLength+otherLength)/2;
+		double myScale = avgLength/myLength;
+		double otherScale = avgLength/otherLength;
+
+		double mx = vx[i], my = vy[i], mz = vz[i];
+		vx[i] = vx[j]*otherScale;
+		vy[i] = vy[j]*otherScale;
+		vz[i] = vz[j]*otherScale;
+		vx[j] = mx*myScale;
+		vy[j] = my*myScale;
+		vz[j] = mz*myScale;
+	}
+
+	/**
+	 * Sets the position of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @param px - the x component.
+	 * @param py - the y component.
+	 * @param pz - the z component.
+	 */
+	public void setPosition(int i, double px, double py, double pz)
+	{
+		x[i] = px;
+		y[i] = py;
+		z[i] = pz;
+	}
+
+	/**
+	 * Sets the velocity of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @param velX - the x component.
+	 * @param velY - the y component.
+	 * @param velZ - the z component.
+	 */
+	public void setVelocity(int i, double velX, double velY, double velZ)
+	{
+		vx[i] = velX;
+		vy[i] = velY;
+		vz[i] = velZ;
+	}
+
+	/**
+	 * Sets the acceleration of a particle.
+	 *
+	 * @param i - the index of the particle.
+	 * @param accX - the x component.
+	 * @param accY - the y component.
+	 * @param accZ - the z component.
+	 */
+	public void setAcceleration(int i, double accX, double accY, double accZ)
+	{
+		ax[i] = accX;
+		ay[i] = accY;
+		az[i] = accZ;
+	}
+
+	/**
+	 * Makes sure the arrays can hold at least the given number of particles.
+	 *
+	 * @param capacity - the number of particles needed.
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if(capacity > x.length)
+			allocate(Math.max(capacity, x.length*2));
+	}
+
+	/**
+	 * Accessor method for the number of particles.
+	 *
+	 * @return int - the number of particles in the store.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Accessor method for the x positions.
+	 *
+	 * @return double[] - the x position of every particle.
+	 */
+	public double[] getX()
+	{
+		return x;
+	}
+
+	/**
+	 * Accessor method for the y positions.
+	 *
+	 * @return double[] - the y position of every particle.
+	 */
+	public double[] getY()
+	{
+		return y;
+	}
+
+	/**
+	 * Accessor method for the z positions.
+	 *
+	 * @return double[] - the z position of every particle.
+	 */
+	public double[] getZ()
+	{
+		return z;
+	}
+
+	/**
+	 * Accessor method for the x velocities.
+	 *
+	 * @return double[] - the x velocity of every particle.
+	 */
+	public double[] getVX()
+	{
+		return vx;
+	}
+
+	/**
+	 * Accessor method for the y velocities.
+	 *
+	 * @return double[] - the y velocity of every particle.
+	 */
+	public double[] getVY()
+	{
+		return vy;
+	}
+
+	/**
+	 * Accessor method for the z velocities.
+	 *
+	 * @return double[] - the z velocity of every particle.
+	 */
+	public double[] getVZ()
+	{
+		return vz;
+	}
+
+	/**
+	 * Accessor method for the x accelerations.
+	 *
+	 * @return double[] - the x acceleration of every particle.
+	 */
+	public double[] getAX()
+	{
+		return ax;
+	}
+
+	/**
+	 * Accessor method for the y accelerations.
+	 *
+	 * @return double[] - the y acceleration of every particle.
+	 */
+	public double[] getAY()
+	{
+		return ay;
+	}
+
+	/**
+	 * Accessor method for the z accelerations.
+	 *
+	 * @return double[] - the z acceleration of every particle.
+	 */
+	public double[] getAZ()
+	{
+		return az;
+	}
+
+	/**
+	 * Accessor method for the radii.
+	 *
+	 * @return double[] - the radius of every particle.
+	 */
+	public double[] getRadius()
+	{
+		return radius;
+	}
+
+	/**
+	 * Accessor method for the species indices.
+	 *
+	 * @return int[] - the species index of every particle.
+	 */
+	public int[] getSpecies()
+	{
+		return species;
+	}
+
+	/**
+	 * Accessor method for the number of registered species.
+	 *
+	 * @return int - the number of species.
+	 */
+	public int getSpeciesCount()
+	{
+		return speciesCount;
+	}
+
+	/**
+	 * Accessor method for the color of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return int - the packed RGB color of the species.
+	 */
+	public int getSpeciesColor(int speciesIndex)
+	{
+		return speciesColor[speciesIndex];
+	}
+
+	/**
+	 * Accessor method for the radius of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return double - the radius of the species' particles.
+	 */
+	public double getSpeciesRadius(int speciesIndex)
+	{
+		return speciesRadius[speciesIndex];
+	}
+
+	/**
+	 * Swaps two particles, keeping their ids.
+	 *
+	 * @param i - the index of one particle.
+	 * @param j - the index of the other particle.
+	 */
+	private void swap(int i, int j)
+	{
+		double[][] columns = {x, y, z, vx, vy, vz, ax, ay, az, radius};
+		for(double[] column : columns)
+		{
+			double temp = column[i];
+			column[i] = column[j];
+			column[j] = temp;
+		}
+		int temp = species[i];
+		species[i] = species[j];
+		species[j] = temp;
+		temp = id[i];
+		id[i] = id[j];
+		id[j] = temp;
+		indexOf[id[i]] = i;
+		indexOf[id[j]] = j;
+	}
+
+	/**
+	 * Gathers a column into the scratch array in the given order. The scratch array becomes the column and the old
+	 * column becomes the scratch array, so reordering doesn't allocate once the scratch arrays exist.
+	 *
+	 * @param column - the column to reorder.
+	 * @param order - for each new index, the current index of the value to move there.
+	 * @return double[] - the reordered column.
+	 */
+	private double[] permute(double[] column, int[] order)
+	{
+		double[] target = doubleScratch != null && doubleScratch.length == column.length ? doubleScratch
+				: new double[column.length];
+		for(int i = 0; i < size; i++)
+		{
+			target[i] = column[order[i]];
+		}
+		doubleScratch = column;
+		return target;
+	}
+
+	/**
+	 * Gathers an int column into the scratch array in the given order, like permute for doubles.
+	 *
+	 * @param column - the column to reorder.
+	 * @param order - for each new index, the current index of the value to move there.
+	 * @return int[] - the reordered column.
+	 */
+	private int[] permute(int[] column, int[] order)
+	{
+		int[] target = intScratch != null && intScratch.length == column.length ? intScratch : new int[column.length];
+		for(int i = 0; i < size; i++)
+		{
+			target[i] = column[order[i]];
+		}
+		intScratch = column;
+		return target;
+	}
+
+	/**
+	 * Replaces every array with one of the given capacity, keeping the current particles.
+	 *
+	 * @param capacity - the new capacity.
+	 */
+	private void allocate(int capacity)
+	{
+		if(x == null)
+		{
+			x = new double[capacity];
+			y = new double[capacity];
+			z = new double[capacity];
+			vx = new double[capacity];
+			vy = new double[capacity];
+			vz = new double[capacity];
+			ax = new double[capacity];
+			ay = new double[capacity];
+			az = new double[capacity];
+			radius = new double[capacity];
+			species = new int[capacity];
+			id = new int[capacity];
+			indexOf = new int[capacity];
+			return;
+		}
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		z = Arrays.copyOf(z, capacity);
+		vx = Arrays.copyOf(vx, capacity);
+		vy = Arrays.copyOf(vy, capacity);
+		vz = Arrays.copyOf(vz, capacity);
+		ax = Arrays.copyOf(ax, capacity);
+		ay = Arrays.copyOf(ay, capacity);
+		az = Arrays.copyOf(az, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		species = Arrays.copyOf(species, capacity);
+		id = Arrays.copyOf(id, capacity);
+		indexOf = Arrays.copyOf(indexOf, capacity);
+		doubleScratch = null;
+		intScratch = null;
+	}
+
+}
@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The random numbers of a simulation, all drawn from one seed. Every user of random numbers splits its own
+ * SplittableRandom off of the root, so nothing contends on a shared generator, and work that is spread over threads
+ * is split into fixed batches of BATCH_SIZE that each get their own generator. The generators are split off in the
+ * same order whatever thread ends up running them, so a seed always gives the same particles no matter how many
+ * threads place them.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class RandomStreams {
+
+	/**
+	 * Fills in one batch of a range with its own generator.
+	 */
+	public interface Batch
+	{
+		/**
+		 * Called once per batch, on any thread of the pool.
+		 *
+		 * @param from - the first index of the batch.
+		 * @param to - one past the last index of the batch.
+		 * @param random - the generator of the batch.
+		 */
+		void run(int from, int to, SplittableRandom random);
+	}
+
+	public static final int BATCH_SIZE = 16384;
+
+	private long seed;
+	private SplittableRandom root;
+
+	/**
+	 * Constructor for random streams with a seed of their own, different every run.
+	 */
+	public RandomStreams()
+	{
+		this(ThreadLocalRandom.current().nextLong());
+	}
+
+	/**
+	 * Constructor for random streams from the given seed.
+	 *
+	 * @param seed - the seed every generator is split from.
+	 */
+	public RandomStreams(long seed)
+	{
+		this.seed = seed;
+		root = new SplittableRandom(seed);
+	}
+
+	/**
+	 * Splits off a generator for one user of random numbers. Generators are split in call order, so the same calls from
+	 * the same seed get the same generators.
+	 *
+	 * @return SplittableRandom - the new generator, only to be used from one thread.
+	 */
+	public synchronized SplittableRandom split()
+	{
+		return root.split();
+	}
+
+	/**
+	 * Runs a batch for every BATCH_SIZE indices of the range on the common ForkJoinPool and waits for all of them. Each
+	 * batch gets its own generator, split off before any batch runs.
+	 *
+	 * @param from - the first index of the range.
+	 * @param to - one past the last index of the range.
+	 * @param batch - what to do with each batch.
+	 */
+	public void forEachBatch(int from, int to, final Batch batch)
+	{
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int start = from; start < to; start += BATCH_SIZE)
+		{
+			final int batchFrom = start, batchTo = (int)Math.min(to, (long)start + BATCH_SIZE);
+			final SplittableRandom random = split();
+			tasks.add(new Callable<Void>() { public Void call() {
+				batch.run(batchFrom, batchTo, random);
+				return null;
+			}});
+		}
+		if(tasks.size() == 1)
+		{
+			try
+			{
+				tasks.get(0).call();
+			}
+			catch(Exception e)
+			{
+				throw new RuntimeException("A batch failed", e);
+			}
+			return;
+		}
+		for(Future<Void> done : ForkJoinPool.commonPool().invokeAll(tasks))
+		{
+			try
+			{
+				done.get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for a batch", e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new RuntimeException("A batch failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Generates a random sign, positive or negative. There is a 50% chance for both signs.
+	 *
+	 * @param random - the generator to draw from.
+	 * @return int - either a positive 1 or a negative 1.
+	 */
+	public static int randomSign(SplittableRandom random)
+	{
+		return random.nextDouble() < .5 ? 1 : -1;
+	}
+
+	/**
+	 * Picks a random speed for one component of the velocity of a new particle, below Particle.INTIALSPEEDCAP.
+	 *
+	 * @param random - the generator to draw from.
+	 * @return double - the speed.
+	 */
+	public static double randomSpeed(SplittableRandom random)
+	{
+		return randomSpeed(random, Particle.INTIALSPEEDCAP);
+	}
+
+	/**
+	 * Picks a random speed for one component of the velocity of a new particle, below the given cap.
+	 *
+	 * @param random - the generator to draw from.
+	 * @param cap - the largest speed.
+	 * @return double - the speed.
+	 */
+	public static double randomSpeed(SplittableRandom random, double cap)
+	{
+		return random.nextDouble()*cap*randomSign(random);
+	}
+
+	/**
+	 * Accessor method for the seed.
+	 *
+	 * @return long - the seed every generator is split from.
+	 */
+	public long getSeed()
+	{
+		return seed;
+	}
+
+}
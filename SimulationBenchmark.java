@@ -0,0 +1,422 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Benchmarks for the hot paths of the simulation. Every benchmark is run for each combination of particle count and
+ * density (the fraction of the box volume taken up by particles). Each run does warmup iterations that are thrown away
+ * and then measurement iterations, and reports the time per operation along with the bytes allocated per operation and
+ * the number of garbage collections, so changes to the step can be judged by both speed and garbage.
+ *
+ * The benchmarks are:
+ * step - one SimulationEngine.step(), what Window.update() runs.
+ * eventStep - one SimulationEngine.step() with the event driven step, the same unit of simulated time.
+ * checkCollisions - SimulationEngine.checkCollisions for every particle against a prebuilt grid.
+ * intersect - ParticleStore.intersects for N pairs, what Particle.intersectOtherParticle runs.
+ * collisionFix - ParticleStore.collisionFix for N pairs, what Particle.collisionFix runs.
+ * checkBoxIntersection - ParticleStore.checkBoxIntersection for every particle.
+ * integrate, reflectWalls - the StepKernels integration and wall reflection over every particle. Run with
+ * -Dfluid.kernels=scalar or array to compare the kernels, the other benchmarks use the same kernels.
+ * pairTest - the StepKernels nearest intersecting test of every particle against its grid neighbors.
+ * mortonOrder - shuffling the particles in memory and one MortonOrder sort of them back into order.
+ * placement - SimulationEngine.addAir into an empty box with random placement, the rejection sampling loop.
+ * placementLattice, placementPoisson - the same with the lattice and Poisson disk placement strategies.
+ *
+ * Options are given as name value pairs: -benchmarks, -sizes and -densities take comma separated lists, -warmup and
+ * -iterations the number of iterations, -time the milliseconds per iteration and -maxPlacement the largest particle
+ * count the random placement benchmark is run for, since rejection sampling gets very slow for dense boxes. -reorder
+ * sets the engine's Morton reorder interval for the step benchmarks, and -shuffle true shuffles the particles in
+ * memory before the benchmark, like a long run leaves them, so the two can be compared.
+ *
+ * Particles are placed and shuffled from the fixed SEED, so every run of a benchmark works on the same particles.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class SimulationBenchmark {
+
+	public static final double RADIUS = .015;
+	public static final long SEED = 42;
+
+	private static final String[] ALL = {"step", "eventStep", "checkCollisions", "intersect", "collisionFix",
+			"checkBoxIntersection", "integrate", "reflectWalls", "pairTest", "mortonOrder", "placement", "placementLattice",
+			"placementPoisson"};
+
+	private int warmup = 3;
+	private int iterations = 5;
+	private long iterationNanos = 1000000000L;
+	private int maxPlacement = 10000;
+	private int reorderInterval;
+	private boolean shuffle;
+	private volatile long sink;
+
+	/**
+	 * Runs the benchmarks and prints one row per benchmark, size and density.
+	 *
+	 * @param args - the command line options.
+	 */
+	public static void main(String[] args)
+	{
+		List<String> benchmarks = Arrays.asList(ALL);
+		int[] sizes = {1000, 10000, 100000, 1000000};
+		double[] densities = {.01, .05, .2};
+		SimulationBenchmark benchmark = new SimulationBenchmark();
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			String value = args[i+1];
+			if(args[i].equals("-benchmarks"))
+				benchmarks = Arrays.asList(value.split(","));
+			else if(args[i].equals("-sizes"))
+				sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+			else if(args[i].equals("-densities"))
+				densities = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+			else if(args[i].equals("-warmup"))
+				benchmark.warmup = Integer.parseInt(value);
+			else if(args[i].equals("-iterations"))
+				benchmark.iterations = Integer.parseInt(value);
+			else if(args[i].equals("-time"))
+				benchmark.iterationNanos = Long.parseLong(value)*1000000L;
+			else if(args[i].equals("-maxPlacement"))
+				benchmark.maxPlacement = Integer.parseInt(value);
+			else if(args[i].equals("-reorder"))
+				benchmark.reorderInterval = Integer.parseInt(value);
+			else if(args[i].equals("-shuffle"))
+				benchmark.shuffle = Boolean.parseBoolean(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+
+		System.out.printf("%-22s %10s %8s %14s %12s %12s %12s %6s%n", "benchmark", "particles", "density", "ns/op",
+				"+/-", "ns/particle", "B/op", "gcs");
+		for(String name : benchmarks)
+		{
+			for(int size : sizes)
+			{
+				for(double density : densities)
+				{
+					benchmark.run(name, size, density);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets up and runs one benchmark at one size and density.
+	 *
+	 * @param name - the benchmark name.
+	 * @param size - the number of particles.
+	 * @param density - the fraction of the box volume taken up by particles.
+	 */
+	public void run(String name, int size, double density)
+	{
+		double box = boxSizeFor(size, density);
+		if(name.equals("placement"))
+		{
+			if(size > maxPlacement)
+			{
+				System.out.printf("%-22s %10d %8.3f %14s%n", name, size, density, "skipped");
+				return;
+			}
+			report(name, size, density, measure(() -> placeAir(size, box, ParticlePlacer.Strategy.RANDOM), 1));
+			return;
+		}
+		if(name.equals("placementLattice"))
+		{
+			report(name, size, density, measure(() -> placeAir(size, box, ParticlePlacer.Strategy.LATTICE), 1));
+			return;
+		}
+		if(name.equals("placementPoisson"))
+		{
+			report(name, size, density, measure(() -> placeAir(size, box, ParticlePlacer.Strategy.POISSON_DISK), 1));
+			return;
+		}
+
+		SimulationEngine engine = populate(size, box);
+		ParticleStore store = engine.getStore();
+		engine.setReorderInterval(reorderInterval);
+		if(shuffle)
+			shuffle(store);
+		Runnable operation;
+		if(name.equals("step"))
+		{
+			operation = engine::step;
+		}
+		else if(name.equals("eventStep"))
+		{
+			engine.setEventDriven(true);
+			engine.step();
+			operation = engine::step;
+		}
+		else if(name.equals("checkCollisions"))
+		{
+			engine.step();
+			operation = () -> {
+				for(int i = 0; i < store.size(); i++)
+					engine.checkCollisions(i);
+			};
+		}
+		else if(name.equals("intersect"))
+		{
+			operation = () -> {
+				int count = store.size();
+				int hits = 0;
+				for(int i = 0; i < count; i++)
+				{
+					if(store.intersects(i, (i+1) % count))
+						hits++;
+				}
+				sink += hits;
+			};
+		}
+		else if(name.equals("collisionFix"))
+		{
+			operation = () -> {
+				int count = store.size();
+				for(int i = 0; i < count; i++)
+					store.collisionFix(i, (i+1) % count);
+			};
+		}
+		else if(name.equals("checkBoxIntersection"))
+		{
+			operation = () -> {
+				int count = store.size();
+				for(int i = 0; i < count; i++)
+					store.checkBoxIntersection(i, box);
+			};
+		}
+		else if(name.equals("integrate"))
+		{
+			StepKernels kernels = StepKernels.get();
+			operation = () -> kernels.integrate(store, 0, store.size());
+		}
+		else if(name.equals("reflectWalls"))
+		{
+			StepKernels kernels = StepKernels.get();
+			operation = () -> sink += kernels.reflectWalls(store, box, 0, store.size());
+		}
+		else if(name.equals("mortonOrder"))
+		{
+			MortonOrder order = new MortonOrder();
+			SpatialGrid grid = new SpatialGrid(box);
+			grid.rebuild(store);
+			operation = () -> {
+				shuffle(store);
+				order.apply(store, grid);
+			};
+		}
+		else if(name.equals("pairTest"))
+		{
+			SpatialGrid grid = new SpatialGrid(box);
+			grid.rebuild(store);
+			operation = () -> {
+				int hits = 0;
+				for(int i = 0; i < store.size(); i++)
+				{
+					if(grid.findNearestIntersecting(store, i) != -1)
+						hits++;
+				}
+				sink += hits;
+			};
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown benchmark " + name);
+		}
+		report(name, size, density, measure(operation, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Runs warmup iterations and then measurement iterations of an operation.
+	 *
+	 * @param operation - the operation to time.
+	 * @param maxOpsPerIteration - the most operations to run in one iteration.
+	 * @return Result - the measured time, allocation and garbage collections.
+	 */
+	private Result measure(Runnable operation, int maxOpsPerIteration)
+	{
+		for(int i = 0; i < warmup; i++)
+		{
+			iterate(operation, maxOpsPerIteration, null);
+		}
+		Result result = new Result();
+		long gcsBefore = gcCount();
+		for(int i = 0; i < iterations; i++)
+		{
+			iterate(operation, maxOpsPerIteration, result);
+		}
+		result.gcs = gcCount() - gcsBefore;
+		return result;
+	}
+
+	/**
+	 * Runs the operation until the iteration time is used up or the operation limit is reached.
+	 *
+	 * @param operation - the operation to time.
+	 * @param maxOps - the most operations to run.
+	 * @param result - the result to add the iteration to, or null for a warmup iteration.
+	 */
+	private void iterate(Runnable operation, int maxOps, Result result)
+	{
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed = 0;
+		int ops = 0;
+		while(ops < maxOps && elapsed < iterationNanos)
+		{
+			operation.run();
+			ops++;
+			elapsed = System.nanoTime() - start;
+		}
+		if(result != null)
+			result.add((double)elapsed/ops, (double)(allocatedBytes() - allocatedBefore)/ops);
+	}
+
+	/**
+	 * Prints one result row.
+	 *
+	 * @param name - the benchmark name.
+	 * @param size - the number of particles.
+	 * @param density - the fraction of the box taken up by particles.
+	 * @param result - the measured result.
+	 */
+	private void report(String name, int size, double density, Result result)
+	{
+		System.out.printf(Locale.ROOT, "%-22s %10d %8.3f %14.1f %12.1f %12.2f %12.1f %6d%n", name, size, density,
+				result.mean(), result.deviation(), result.mean()/size, result.meanBytes(), result.gcs);
+	}
+
+	/**
+	 * Creates an engine with the given number of particles spread through the box without overlaps. The particles are
+	 * put on a jittered lattice so that setting up a million particles doesn't take longer than the benchmark itself.
+	 *
+	 * @param size - the number of particles.
+	 * @param box - the side length of the box.
+	 * @return SimulationEngine - the populated engine.
+	 */
+	public static SimulationEngine populate(int size, double box)
+	{
+		SimulationEngine engine = new SimulationEngine(box);
+		engine.setSeed(SEED);
+		engine.addParticles(size, RADIUS, 0x00FFFF, ParticlePlacer.Strategy.LATTICE);
+		return engine;
+	}
+
+	/**
+	 * Moves the particles to random indices with a fixed seed, so neighbors in the box are scattered through memory.
+	 *
+	 * @param store - the particles to shuffle.
+	 */
+	public static void shuffle(ParticleStore store)
+	{
+		int[] order = new int[store.size()];
+		for(int i = 0; i < order.length; i++)
+		{
+			order[i] = i;
+		}
+		SplittableRandom random = new SplittableRandom(SEED);
+		for(int i = order.length - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		store.reorder(order);
+	}
+
+	/**
+	 * Fills an empty box with the air mix using the given placement strategy, and reports if not every particle fit.
+	 *
+	 * @param size - the number of particles.
+	 * @param box - the side length of the box.
+	 * @param strategy - the placement strategy.
+	 */
+	private static void placeAir(int size, double box, ParticlePlacer.Strategy strategy)
+	{
+		SimulationEngine engine = new SimulationEngine(box);
+		engine.setPlacement(strategy);
+		engine.setSeed(SEED);
+		int placed = engine.addAir(size, RADIUS);
+		if(placed < size)
+			System.out.printf("  %s placed %d of %d particles%n", strategy, placed, size);
+	}
+
+	/**
+	 * Works out the box size that gives the requested density of particles of radius RADIUS.
+	 *
+	 * @param size - the number of particles.
+	 * @param density - the fraction of the box volume taken up by particles.
+	 * @return double - the side length of the box.
+	 */
+	public static double boxSizeFor(int size, double density)
+	{
+		double particleVolume = 4.0/3.0*Math.PI*RADIUS*RADIUS*RADIUS;
+		return Math.cbrt(size*particleVolume/density);
+	}
+
+	/**
+	 * Accessor method for the bytes allocated by the current thread so far.
+	 *
+	 * @return long - the allocated bytes, or 0 if the JVM can't report them.
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Accessor method for the number of garbage collections run so far.
+	 *
+	 * @return long - the total collection count of every collector.
+	 */
+	private static long gcCount()
+	{
+		long count = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count += Math.max(0, collector.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * The time and allocation of every measurement iteration of one benchmark.
+	 */
+	private static class Result
+	{
+		private ArrayList<Double> nanos = new ArrayList<Double>();
+		private ArrayList<Double> bytes = new ArrayList<Double>();
+		private long gcs;
+
+		private void add(double nanosPerOp, double bytesPerOp)
+		{
+			nanos.add(nanosPerOp);
+			bytes.add(bytesPerOp);
+		}
+
+		private double mean()
+		{
+			return nanos.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+		}
+
+		private double deviation()
+		{
+			double mean = mean();
+			return Math.sqrt(nanos.stream().mapToDouble(n -> (n-mean)*(n-mean)).average().orElse(0));
+		}
+
+		private double meanBytes()
+		{
+			return bytes.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+		}
+	}
+
+}
@@ -0,0 +1,1258 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.JMException;
+
+/**
+ * The simulation core. Owns the particle state and the step that moves the particles, bounces them off the walls of
+ * the box and fixes particle collisions. Nothing in this class depends on Java3D or Swing so the simulation can run on
+ * machines without a display, rendering subscribes to the engine through a SimulationListener.
+ *
+ * Every random number the engine draws comes from its RandomStreams, so an engine given a seed with setSeed places
+ * the same particles with the same velocities every run.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class SimulationEngine {
+
+	public static final int PLACEMENT_TRIES = 10000;
+	public static final int RECORDING_POOL = 8;
+	public static final double RECORDING_RESOLUTION = 1.0/(1 << 20);
+	public static final int BYTES_PER_PARTICLE = 400;
+
+	private ParticleStore store;
+	private SpatialGrid grid;
+	private ParallelStep parallelStep;
+	private EventDrivenStep eventStep;
+	private AdaptiveStep adaptiveStep;
+	private double timeStep;
+	private LennardJones forces;
+	private Integrator integrator;
+	private DomainCoordinator distributed;
+	private long gatheredStep;
+	private StepKernels kernels;
+	private ParticlePlacer placer;
+	private ParticlePlacer.Strategy placement;
+	private RandomStreams random;
+	private double speedCap;
+	private CopyOnWriteArrayList<SimulationListener> listeners;
+	private TrajectoryRecorder recorder;
+	private StreamServer stream;
+	private SimulationMetrics metrics;
+	private GasObservables observables;
+	private boolean observing;
+	private MortonOrder mortonOrder;
+	private int reorderInterval;
+	private StepKernels.PairCount pairCount;
+	private double boxSize;
+	private long stepCount;
+
+	/**
+	 * Constructor for the simulation engine. Creates an empty box.
+	 *
+	 * @param boxSize - the side length of the box.
+	 */
+	public SimulationEngine(double boxSize)
+	{
+		this.boxSize = boxSize;
+		store = new ParticleStore();
+		grid = new SpatialGrid(boxSize);
+		placer = new ParticlePlacer(this);
+		placement = ParticlePlacer.Strategy.RANDOM;
+		random = new RandomStreams();
+		speedCap = Particle.INTIALSPEEDCAP;
+		timeStep = 1;
+		integrator = Integrator.create("euler");
+		listeners = new CopyOnWriteArrayList<SimulationListener>();
+		kernels = StepKernels.get();
+		metrics = new SimulationMetrics();
+		observables = new GasObservables(GasObservables.DEFAULT_WINDOW);
+		mortonOrder = new MortonOrder();
+		pairCount = new StepKernels.PairCount();
+	}
+
+	/**
+	 * Adds the specified number of particles with the given size and color at non-intersecting locations with random
+	 * velocities, using the engine's placement strategy. Placement stops when no more particles fit.
+	 *
+	 * @param num - number of particles to create.
+	 * @param radius - radius of each particle.
+	 * @param rgb - packed RGB color of each particle.
+	 * @return int - the number of particles that were added.
+	 */
+	public int addParticles(int num, double radius, int rgb)
+	{
+		return addParticles(num, radius, rgb, placement);
+	}
+
+	/**
+	 * Adds the specified number of particles with the given size and color at non-intersecting locations with random
+	 * velocities. Placement stops when no more particles fit.
+	 *
+	 * @param num - number of particles to create.
+	 * @param radius - radius of each particle.
+	 * @param rgb - packed RGB color of each particle.
+	 * @param strategy - how to choose the locations.
+	 * @return int - the number of particles that were added.
+	 */
+	public int addParticles(int num, double radius, int rgb, ParticlePlacer.Strategy strategy)
+	{
+		return addParticles(num, radius, rgb, strategy, null);
+	}
+
+	/**
+	 * Adds the specified number of particles with the given size and color at non-intersecting locations with random
+	 * velocities, telling a progress listener how far it has got. Placement stops when no more particles fit, and if
+	 * the listener cancels it no particles are added at all.
+	 *
+	 * @param num - number of particles to create.
+	 * @param radius - radius of each particle.
+	 * @param rgb - packed RGB color of each particle.
+	 * @param strategy - how to choose the locations.
+	 * @param progress - hears the progress and can cancel the placement, or null.
+	 * @return int - the number of particles that were added.
+	 */
+	public int addParticles(int num, double radius, int rgb, ParticlePlacer.Strategy strategy,
+			ParticlePlacer.Progress progress)
+	{
+		resetEvents();
+		return placer.place(num, radius, store.speciesFor(rgb, radius), strategy, progress);
+	}
+
+	/**
+	 * Works out how many more particles there is room for in the heap right now, from the memory the JVM can still
+	 * take and BYTES_PER_PARTICLE. A particle's columns in the store, the grid, the step's scratch arrays and the
+	 * snapshots published to the window measure about 250 bytes, the rest is room for the arrays to double.
+	 *
+	 * @return long - the number of particles that can still be added.
+	 */
+	public long getParticleCapacity()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return Math.max(0, runtime.maxMemory() - used)/BYTES_PER_PARTICLE;
+	}
+
+	/**
+	 * Removes every particle from the box.
+	 */
+	public void clear()
+	{
+		store.clear();
+		resetEvents();
+	}
+
+	/**
+	 * Runs one iteration of the simulation. Every particle is moved by its velocity and bounced off of the walls by the
+	 * StepKernels, then binned into the grid and checked against the particles in the neighboring cells. The step does
+	 * not create any objects unless Flight Recorder is recording its step events. When more than one thread is set the
+	 * step is run by the ParallelStep instead, and when the engine is event driven the EventDrivenStep runs it on one
+	 * thread, all of its time counting as collision check. An adaptive engine runs the AdaptiveStep on one thread, which
+	 * covers the time step in substeps and sweeps the particles that are too fast for them.
+	 *
+	 * With a LennardJones force field set, the Integrator kicks the velocities with the forces before and after the
+	 * particles are moved, which counts as integrate. The event driven and distributed steps ignore the force field.
+	 *
+	 * The time of each phase and the counts of the step go to the SimulationMetrics, with the time spent in the
+	 * listeners counted as render sync. When the engine is observing, the moves and wall reflections of the step also
+	 * fill a GasSample for the GasObservables, the particles are not gone over again for it.
+	 *
+	 * Every reorder interval steps the store is sorted into Morton order afterwards, which counts as collision check.
+	 *
+	 * While the engine is distributed the DomainCoordinator runs the step on its workers instead, and the store is only
+	 * brought up to date before the listeners are called, which counts as render sync.
+	 */
+	public void step()
+	{
+		int count = store.size();
+		GasSample sample = observing ? observables.begin() : null;
+		boolean forced = forces != null && eventStep == null && distributed == null;
+		double forceStep = adaptiveStep != null ? timeStep : 1;
+		if(forced)
+		{
+			long start = System.nanoTime();
+			integrator.beforeMove(store, forces, boxSize, forceStep);
+			metrics.addPhase(SimulationMetrics.INTEGRATE, System.nanoTime() - start);
+		}
+		if(eventStep != null)
+		{
+			long pairs = eventStep.getPairsTested(), collisions = eventStep.getParticleCollisions();
+			long walls = eventStep.getWallCollisions();
+			long start = System.nanoTime();
+			eventStep.step(store, boxSize, sample);
+			metrics.addPhase(SimulationMetrics.COLLISION_CHECK, System.nanoTime() - start);
+			metrics.addPairs(eventStep.getPairsTested() - pairs, eventStep.getParticleCollisions() - collisions);
+			metrics.addWallHits(eventStep.getWallCollisions() - walls);
+		}
+		else if(distributed != null)
+		{
+			try
+			{
+				distributed.step(metrics);
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("The distributed step failed", e);
+			}
+		}
+		else if(adaptiveStep != null)
+		{
+			adaptiveStep.step(store, grid, boxSize, timeStep, metrics, sample);
+		}
+		else if(parallelStep != null)
+		{
+			parallelStep.step(store, grid, boxSize, metrics, sample);
+		}
+		else
+		{
+			long start = System.nanoTime();
+			if(sample == null)
+				kernels.integrate(store, 0, count);
+			else
+				kernels.integrate(store, 0, count, sample);
+			long integrated = System.nanoTime();
+			metrics.addWallHits(kernels.reflectWalls(store, boxSize, 0, count, sample));
+			long reflected = System.nanoTime();
+			grid.rebuild(store);
+			pairCount.reset();
+			long fixNanos = 0;
+			for(int i = 0; i < count; i++)
+			{
+				int other = grid.findIntersecting(store, i, pairCount);
+				if(other != -1)
+				{
+					long fixStart = System.nanoTime();
+					store.collisionFix(i, other);
+					fixNanos += System.nanoTime() - fixStart;
+				}
+			}
+			long checked = System.nanoTime();
+			metrics.addPhase(SimulationMetrics.INTEGRATE, integrated - start);
+			metrics.addPhase(SimulationMetrics.WALL_CHECK, reflected - integrated);
+			metrics.addPhase(SimulationMetrics.COLLISION_CHECK, checked - reflected - fixNanos);
+			metrics.addPhase(SimulationMetrics.COLLISION_FIX, fixNanos);
+			metrics.addPairs(pairCount.getTested(), pairCount.getIntersecting());
+		}
+		if(forced)
+		{
+			long start = System.nanoTime();
+			integrator.afterMove(store, forces, boxSize, forceStep);
+			metrics.addPhase(SimulationMetrics.INTEGRATE, System.nanoTime() - start);
+		}
+		if(sample != null)
+			observables.end(sample, boxSize);
+		stepCount++;
+		if(reorderInterval > 0 && eventStep == null && distributed == null && stepCount % reorderInterval == 0)
+		{
+			long start = System.nanoTime();
+			mortonOrder.apply(store, grid);
+			grid.rebuild(store);
+			if(forces != null)
+				forces.invalidate();
+			integrator.invalidate();
+			metrics.addPhase(SimulationMetrics.COLLISION_CHECK, System.nanoTime() - start);
+		}
+		long syncStart = System.nanoTime();
+		if(!listeners.isEmpty())
+			gather();
+		for(int i = 0; i < listeners.size(); i++)
+		{
+			listeners.get(i).stepCompleted(this);
+		}
+		metrics.addPhase(SimulationMetrics.RENDER_SYNC, System.nanoTime() - syncStart);
+		metrics.endStep(stepCount, count);
+	}
+
+	/**
+	 * Runs the given number of steps.
+	 *
+	 * @param steps - the number of steps to run.
+	 */
+	public void run(int steps)
+	{
+		for(int i = 0; i < steps; i++)
+		{
+			step();
+		}
+	}
+
+	/**
+	 * Checks to see if a particle intersects a particle in a neighboring grid cell, if it does the collision is fixed.
+	 *
+	 * @param index - the index of the particle.
+	 */
+	public void checkCollisions(int index)
+	{
+		int other = grid.findIntersecting(store, index);
+		if(other != -1)
+			store.collisionFix(index, other);
+	}
+
+	/**
+	 * Checks if a particle intersects with any other particle.
+	 *
+	 * @param index - the index of the particle to compare.
+	 * @return boolean - whether the particle intersects with any other particle or not.
+	 */
+	public boolean intersectsAny(int index)
+	{
+		int count = store.size();
+		for(int i = 0; i < count; i++)
+		{
+			if(i != index && store.intersects(index, i))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a copy of the current particle state.
+	 *
+	 * @return SimulationSnapshot - the new snapshot.
+	 */
+	public SimulationSnapshot snapshot()
+	{
+		return snapshot(new SimulationSnapshot());
+	}
+
+	/**
+	 * Copies the current particle state into an existing snapshot.
+	 *
+	 * @param snapshot - the snapshot to fill.
+	 * @return SimulationSnapshot - the filled snapshot.
+	 */
+	public SimulationSnapshot snapshot(SimulationSnapshot snapshot)
+	{
+		gather();
+		snapshot.copyFrom(store, stepCount, boxSize);
+		return snapshot;
+	}
+
+	/**
+	 * Saves the whole particle state, box size and step counter to a checkpoint file.
+	 *
+	 * @param path - the file to write.
+	 * @throws IOException - if the file can't be written.
+	 */
+	public void saveCheckpoint(Path path) throws IOException
+	{
+		Checkpoint.write(snapshot(), path);
+	}
+
+	/**
+	 * Replaces the particle state, box size and step counter with the ones saved in a checkpoint file.
+	 *
+	 * @param path - the file to read.
+	 * @throws IOException - if the file can't be read.
+	 */
+	public void loadCheckpoint(Path path) throws IOException
+	{
+		Checkpoint.read(path, this);
+		resetEvents();
+	}
+
+	/**
+	 * Switches between the time stepped collision check and the EventDrivenStep, which predicts exact collision
+	 * times and jumps from one collision to the next. The event driven step ignores the thread count. The velocities
+	 * change without the forces while the engine is event driven, so switching either way makes the force field and
+	 * integrator start over with resetEvents.
+	 *
+	 * @param eventDriven - whether to use the event driven step.
+	 */
+	public void setEventDriven(boolean eventDriven)
+	{
+		if(eventDriven == (eventStep != null))
+			return;
+		eventStep = eventDriven ? new EventDrivenStep() : null;
+		resetEvents();
+	}
+
+	/**
+	 * Accessor method for whether the event driven step is used.
+	 *
+	 * @return boolean - true if the engine is event driven.
+	 */
+	public boolean isEventDriven()
+	{
+		return eventStep != null;
+	}
+
+	/**
+	 * Makes the event driven step predict its events again and the force field build its Verlet list again on the next
+	 * step. Has to be called after changing particle positions or velocities in the store directly.
+	 */
+	public void resetEvents()
+	{
+		if(eventStep != null)
+			eventStep.reset();
+		if(forces != null)
+			forces.invalidate();
+		integrator.invalidate();
+	}
+
+	/**
+	 * Mutator method for the force field between the particles.
+	 *
+	 * @param field - the Lennard-Jones force field, or null for hard spheres only.
+	 */
+	public void setForces(LennardJones field)
+	{
+		forces = field;
+		if(forces != null)
+			forces.invalidate();
+		integrator.invalidate();
+	}
+
+	/**
+	 * Accessor method for the force field between the particles.
+	 *
+	 * @return LennardJones - the force field, or null if the particles only collide.
+	 */
+	public LennardJones getForces()
+	{
+		return forces;
+	}
+
+	/**
+	 * Mutator method for the integrator that kicks the velocities with the forces.
+	 *
+	 * @param newIntegrator - the integrator, explicit Euler by default.
+	 */
+	public void setIntegrator(Integrator newIntegrator)
+	{
+		integrator = newIntegrator;
+		integrator.invalidate();
+	}
+
+	/**
+	 * Accessor method for the integrator.
+	 *
+	 * @return Integrator - the integrator that kicks the velocities with the forces.
+	 */
+	public Integrator getIntegrator()
+	{
+		return integrator;
+	}
+
+	/**
+	 * Hands the particles to the workers of a coordinator, which run every step from then on until stopDistributed is
+	 * called. The particles must not be added to, removed or changed in the meantime. The event driven step, the
+	 * thread count, the Morton reorder and the gas observables are ignored while distributed.
+	 *
+	 * @param coordinator - the coordinator of the workers, shut down if they can't be started.
+	 * @throws IOException - if the workers can't be reached.
+	 */
+	public void startDistributed(DomainCoordinator coordinator) throws IOException
+	{
+		stopDistributed();
+		try
+		{
+			coordinator.start(store, boxSize);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			coordinator.shutdown();
+			throw e;
+		}
+		distributed = coordinator;
+		gatheredStep = stepCount;
+	}
+
+	/**
+	 * Collects the particles back from the workers and shuts them down, if the engine is distributed.
+	 *
+	 * @throws IOException - if the workers can't be reached.
+	 */
+	public void stopDistributed() throws IOException
+	{
+		DomainCoordinator stopped = distributed;
+		if(stopped == null)
+			return;
+		try
+		{
+			gather();
+		}
+		finally
+		{
+			distributed = null;
+			stopped.shutdown();
+		}
+	}
+
+	/**
+	 * Accessor method for the coordinator running the step.
+	 *
+	 * @return DomainCoordinator - the coordinator, or null if the engine isn't distributed.
+	 */
+	public DomainCoordinator getDistributed()
+	{
+		return distributed;
+	}
+
+	/**
+	 * Brings the store up to date with the workers if the engine is distributed and it hasn't been since the last
+	 * step.
+	 */
+	private void gather()
+	{
+		if(distributed == null || gatheredStep == stepCount)
+			return;
+		try
+		{
+			distributed.gather(store);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("Could not gather the particles from the workers", e);
+		}
+		gatheredStep = stepCount;
+	}
+
+	/**
+	 * Starts recording the positions of every interval-th step to a trajectory file, stopping any recording already
+	 * running. Positions are kept to RECORDING_RESOLUTION of the box size and up to RECORDING_POOL frames can wait for
+	 * the writer before frames are dropped.
+	 *
+	 * @param path - the trajectory file to write.
+	 * @param interval - record every interval-th step.
+	 * @return TrajectoryRecorder - the recorder, for its frame counters.
+	 * @throws IOException - if the file can't be created.
+	 */
+	public TrajectoryRecorder startRecording(Path path, int interval) throws IOException
+	{
+		stopRecording();
+		TrajectoryRecorder started = new TrajectoryRecorder(path, interval, RECORDING_POOL, boxSize*RECORDING_RESOLUTION);
+		started.start(this);
+		recorder = started;
+		return started;
+	}
+
+	/**
+	 * Stops the trajectory recording if one is running, waiting for the recorded frames to be written.
+	 *
+	 * @throws IOException - if writing the file failed.
+	 */
+	public void stopRecording() throws IOException
+	{
+		TrajectoryRecorder stopped = recorder;
+		recorder = null;
+		if(stopped != null)
+			stopped.stop();
+	}
+
+	/**
+	 * Starts streaming the particle positions to remote viewers over TCP, stopping any stream already running. A
+	 * viewer that can't keep up gets fewer frames, the steps never wait for it.
+	 *
+	 * @param port - the TCP port to listen on, 0 for any free port.
+	 * @param framesPerSecond - the most frames to send each second.
+	 * @return StreamServer - the server, for its port and frame counters.
+	 * @throws IOException - if the port can't be listened on.
+	 */
+	public StreamServer startStreaming(int port, double framesPerSecond) throws IOException
+	{
+		stopStreaming();
+		StreamServer started = new StreamServer(port, framesPerSecond);
+		started.start(this);
+		stream = started;
+		return started;
+	}
+
+	/**
+	 * Stops streaming if a stream is running and disconnects its viewers.
+	 */
+	public void stopStreaming()
+	{
+		StreamServer stopped = stream;
+		stream = null;
+		if(stopped != null)
+			stopped.stop();
+	}
+
+	/**
+	 * Accessor method for the running stream.
+	 *
+	 * @return StreamServer - the server, or null if nothing is being streamed.
+	 */
+	public StreamServer getStream()
+	{
+		return stream;
+	}
+
+	/**
+	 * Sets how often the particles are sorted into Morton order of their grid cells so neighbors sit close together in
+	 * memory. Particles keep their ids, so the window, snapshots and recordings don't see the sort. The event driven
+	 * step keeps its own cells and is never reordered.
+	 *
+	 * @param steps - sort after every this many steps, zero or less to never sort.
+	 */
+	public void setReorderInterval(int steps)
+	{
+		reorderInterval = Math.max(0, steps);
+	}
+
+	/**
+	 * Accessor method for how often the particles are sorted into Morton order.
+	 *
+	 * @return int - the steps between sorts, zero if they are never sorted.
+	 */
+	public int getReorderInterval()
+	{
+		return reorderInterval;
+	}
+
+	/**
+	 * Turns the gas observables on or off. While on, the step adds its speeds and wall impulse to the observables'
+	 * window. Turning them on empties the window.
+	 *
+	 * @param observe - whether to collect the observables.
+	 */
+	public void setObserving(boolean observe)
+	{
+		if(observe && !observing)
+			observables.clear();
+		observing = observe;
+	}
+
+	/**
+	 * Accessor method for whether the gas observables are being collected.
+	 *
+	 * @return boolean - whether the engine is observing.
+	 */
+	public boolean isObserving()
+	{
+		return observing;
+	}
+
+	/**
+	 * Accessor method for the pressure, temperature and speed distribution of the gas.
+	 *
+	 * @return GasObservables - the observables, only filled while the engine is observing.
+	 */
+	public GasObservables getObservables()
+	{
+		return observables;
+	}
+
+	/**
+	 * Accessor method for the metrics of the step.
+	 *
+	 * @return SimulationMetrics - the metrics, registered with JMX by calling register.
+	 */
+	public SimulationMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Accessor method for the running trajectory recording.
+	 *
+	 * @return TrajectoryRecorder - the recorder, or null if nothing is being recorded.
+	 */
+	public TrajectoryRecorder getRecorder()
+	{
+		return recorder;
+	}
+
+	/**
+	 * Sets the number of threads the step runs on. With one thread the sequential step is used, with more the box is
+	 * split into regions that are processed on a ForkJoinPool.
+	 *
+	 * @param threads - the number of threads to use.
+	 */
+	public void setThreads(int threads)
+	{
+		if(parallelStep != null)
+		{
+			if(parallelStep.getParallelism() == threads)
+				return;
+			parallelStep.shutdown();
+			parallelStep = null;
+		}
+		if(threads > 1)
+			parallelStep = new ParallelStep(threads);
+	}
+
+	/**
+	 * Accessor method for the number of threads the step runs on.
+	 *
+	 * @return int - the number of threads.
+	 */
+	public int getThreads()
+	{
+		return parallelStep == null ? 1 : parallelStep.getParallelism();
+	}
+
+	/**
+	 * Stops any threads the engine started.
+	 */
+	public void shutdown()
+	{
+		setThreads(1);
+	}
+
+	/**
+	 * Seeds the random numbers of the engine. Particles added after this are placed the same way every time the same
+	 * seed is set, whatever the number of threads.
+	 *
+	 * @param seed - the seed.
+	 */
+	public void setSeed(long seed)
+	{
+		random = new RandomStreams(seed);
+	}
+
+	/**
+	 * Accessor method for the random numbers of the engine.
+	 *
+	 * @return RandomStreams - the streams every random number of the engine is drawn from.
+	 */
+	public RandomStreams getRandom()
+	{
+		return random;
+	}
+
+	/**
+	 * Turns the adaptive step on or off. While on, the step covers the time step in as many substeps as the fastest
+	 * particle needs and sweeps the particles that would still pass through something, on one thread. An event driven
+	 * or distributed engine ignores it.
+	 *
+	 * @param adaptive - whether to use the adaptive step.
+	 */
+	public void setAdaptive(boolean adaptive)
+	{
+		if(adaptive && adaptiveStep == null)
+			adaptiveStep = new AdaptiveStep();
+		else if(!adaptive)
+			adaptiveStep = null;
+	}
+
+	/**
+	 * Accessor method for the adaptive step.
+	 *
+	 * @return AdaptiveStep - the adaptive step, or null if the engine isn't adaptive.
+	 */
+	public AdaptiveStep getAdaptiveStep()
+	{
+		return adaptiveStep;
+	}
+
+	/**
+	 * Mutator method for the simulated time one step covers. Only the adaptive step covers anything other than one
+	 * unit of time, the other steps always move each particle by its whole velocity.
+	 *
+	 * @param step - the new time step.
+	 */
+	public void setTimeStep(double step)
+	{
+		timeStep = step;
+	}
+
+	/**
+	 * Accessor method for the time step.
+	 *
+	 * @return double - the simulated time one adaptive step covers.
+	 */
+	public double getTimeStep()
+	{
+		return timeStep;
+	}
+
+	/**
+	 * Mutator method for the largest speed along each axis new particles are given, Particle.INTIALSPEEDCAP unless set.
+	 *
+	 * @param cap - the new speed cap.
+	 */
+	public void setSpeedCap(double cap)
+	{
+		speedCap = cap;
+	}
+
+	/**
+	 * Accessor method for the speed cap.
+	 *
+	 * @return double - the largest speed along each axis new particles are given.
+	 */
+	public double getSpeedCap()
+	{
+		return speedCap;
+	}
+
+	/**
+	 * Mutator method for the placement strategy used when none is given.
+	 *
+	 * @param strategy - the new default placement strategy.
+	 */
+	public void setPlacement(ParticlePlacer.Strategy strategy)
+	{
+		placement = strategy;
+	}
+
+	/**
+	 * Accessor method for the placement strategy used when none is given.
+	 *
+	 * @return ParticlePlacer.Strategy - the default placement strategy.
+	 */
+	public ParticlePlacer.Strategy getPlacement()
+	{
+		return placement;
+	}
+
+	/**
+	 * Subscribes a listener to the end of every step.
+	 *
+	 * @param listener - the listener to add.
+	 */
+	public void addListener(SimulationListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	/**
+	 * Unsubscribes a listener.
+	 *
+	 * @param listener - the listener to remove.
+	 */
+	public void removeListener(SimulationListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Assigns a random position inside the box to a particle.
+	 *
+	 * @param index - the index of the particle.
+	 * @param generator - the generator to draw from.
+	 */
+	public void setRandomLocation(int index, SplittableRandom generator)
+	{
+		double span = boxSize - store.getRadius()[index]*2;
+		double x = generator.nextDouble()*span - span/2;
+		double y = generator.nextDouble()*span - span/2;
+		double z = generator.nextDouble()*span - span/2;
+		store.setPosition(index, x, y, z);
+	}
+
+	/**
+	 * Assigns a random velocity to a particle with each component below the speed cap.
+	 *
+	 * @param index - the index of the particle.
+	 * @param generator - the generator to draw from.
+	 */
+	public void setRandomVelocity(int index, SplittableRandom generator)
+	{
+		double x = RandomStreams.randomSpeed(generator, speedCap);
+		double y = RandomStreams.randomSpeed(generator, speedCap);
+		double z = RandomStreams.randomSpeed(generator, speedCap);
+		store.setVelocity(index, x, y, z);
+	}
+
+	/**
+	 * Assigns random velocities to a range of particles, spread over the threads of the common pool in batches that
+	 * each draw from their own generator.
+	 *
+	 * @param from - the index of the first particle.
+	 * @param to - one past the index of the last particle.
+	 */
+	public void setRandomVelocities(int from, int to)
+	{
+		random.forEachBatch(from, to, new RandomStreams.Batch() {
+			public void run(int first, int end, SplittableRandom generator)
+			{
+				for(int i = first; i < end; i++)
+				{
+					setRandomVelocity(i, generator);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Accessor method for the particle store.
+	 *
+	 * @return ParticleStore - the store holding every particle's state.
+	 */
+	public ParticleStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Accessor method for the box size.
+	 *
+	 * @return double - the side length of the box.
+	 */
+	public double getBoxSize()
+	{
+		return boxSize;
+	}
+
+	/**
+	 * Mutator method for the box size. Particles outside the new box are not moved.
+	 *
+	 * @param boxSize - the new side length of the box.
+	 */
+	public void setBoxSize(double boxSize)
+	{
+		this.boxSize = boxSize;
+		grid.setBoxSize(boxSize);
+	}
+
+	/**
+	 * Mutator method for the step counter, used when restoring a saved state.
+	 *
+	 * @param step - the new step count.
+	 */
+	public void setStepCount(long step)
+	{
+		stepCount = step;
+	}
+
+	/**
+	 * Accessor method for the number of steps run so far.
+	 *
+	 * @return long - the step counter.
+	 */
+	public long getStepCount()
+	{
+		return stepCount;
+	}
+
+	/**
+	 * Fills the box with the atomic makeup of air, 78% nitrogen, 21% oxygen, 1% argon, the same mix the window starts
+	 * with.
+	 *
+	 * @param num - the total number of particles.
+	 * @param radius - the radius of each particle.
+	 * @return int - the number of particles that were added.
+	 */
+	public int addAir(int num, double radius)
+	{
+		int nitrogen = (int)Math.round(num*.78);
+		int oxygen = (int)Math.round(num*.21);
+		int argon = num - nitrogen - oxygen;
+		int[] counts = {nitrogen, oxygen, argon};
+		int[] species = {store.speciesFor(Color.CYAN.getRGB(), radius), store.speciesFor(Color.RED.getRGB(), radius),
+				store.speciesFor(Color.YELLOW.getRGB(), radius)};
+		resetEvents();
+		return placer.place(counts, radius, species, placement);
+	}
+
+	/**
+	 * Runs the headless simulation on an OffHeapStore instead of the engine, for particle counts the heap can't hold.
+	 * The particles are placed on a lattice, and a mapped file that already holds particles is stepped on from where
+	 * it was left without placing any.
+	 *
+	 * @param offHeap - "direct" for direct memory, or the file to map.
+	 * @param particles - the number of particles to place.
+	 * @param steps - the number of steps to run.
+	 * @param radius - the radius of each particle.
+	 * @param box - the side length of the box.
+	 * @param threads - the number of threads to step with.
+	 * @param random - the random numbers to place the particles with.
+	 */
+	private static void runOffHeap(String offHeap, int particles, int steps, double radius, double box, int threads,
+			RandomStreams random)
+	{
+		OffHeapStore store;
+		try
+		{
+			store = offHeap.equals("direct") ? new OffHeapStore(particles) : OffHeapStore.map(Paths.get(offHeap), particles);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("Could not map " + offHeap, e);
+		}
+		long setupStart = System.nanoTime();
+		if(store.size() == 0)
+			store.fillLattice(particles, radius, 0, box, random);
+		double setupSeconds = (System.nanoTime() - setupStart)/1e9;
+		System.out.printf("Holding %d particles off heap (%s) in a box of size %.3f, placed in %.2f s with seed %d%n",
+				store.size(), store.isMapped() ? offHeap : "direct", box, setupSeconds, random.getSeed());
+
+		OffHeapStep step = new OffHeapStep(threads);
+		SimulationMetrics metrics = new SimulationMetrics();
+		Runtime runtime = Runtime.getRuntime();
+		long maxHeapUsed = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < steps; i++)
+		{
+			step.step(store, box, metrics);
+			metrics.endStep(i + 1, store.size());
+			maxHeapUsed = Math.max(maxHeapUsed, runtime.totalMemory() - runtime.freeMemory());
+		}
+		double seconds = (System.nanoTime() - start)/1e9;
+		step.shutdown();
+		try
+		{
+			store.close();
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("Could not write " + offHeap, e);
+		}
+		String mode = "on " + threads + (threads == 1 ? " thread" : " threads");
+		System.out.printf("Ran %d steps %s in %.2f s: %.1f steps/s, %.3g particle-steps/s%n", steps, mode, seconds,
+				steps/seconds, (double)steps*store.size()/seconds);
+		System.out.printf("Per step: integrate %.3f ms, collision check %.3f ms, collision fix %.3f ms%n",
+				metrics.getTotalMillis(SimulationMetrics.INTEGRATE)/steps,
+				metrics.getTotalMillis(SimulationMetrics.COLLISION_CHECK)/steps,
+				metrics.getTotalMillis(SimulationMetrics.COLLISION_FIX)/steps);
+		System.out.printf("Pairs tested %d, intersecting %d, wall hits %d%n", metrics.getPairsTested(),
+				metrics.getPairsIntersecting(), metrics.getWallHits());
+		System.out.printf("Off heap %d MB, most heap in use %d MB%n",
+				((long)store.getCapacity()*(OffHeapStore.RECORD_BYTES + OffHeapStep.getScratchBytesPerParticle())) >> 20,
+				maxHeapUsed >> 20);
+	}
+
+	/**
+	 * Runs the air scenario without a display and prints the throughput. The options are given as name value pairs:
+	 * -particles (default 1000), -steps (default 1000), -radius (default .015), -threads (default 1), -placement
+	 * (random, lattice or poisson_disk, default random), -box, -record (a trajectory file, default none), -recordEvery
+	 * (default 10), -engine (stepped or events, default stepped) and -workers (a number of worker processes to start on
+	 * this machine, or a comma separated list of host:port addresses of running DomainWorkers, default none). -epsilon
+	 * turns on a Lennard-Jones force between every species with that well depth, with -sigma (default the particle
+	 * diameter), -cutoff and -skin given in sigmas (default 2.5 and .3) and -integrator (euler, verlet or respa,
+	 * default euler, only allowed with -epsilon). -stream streams the positions to StreamViewers on that port, at most
+	 * -streamRate frames a second (default 30). When no box size is given the box is sized to keep the same number of
+	 * particles per unit volume as the window's initial 100 particles in a box of size 1.
+	 *
+	 * @param args - the command line options.
+	 */
+	public static void main(String[] args)
+	{
+		int particles = 1000;
+		int steps = 1000;
+		double radius = .015;
+		double box = -1;
+		int threads = 1;
+		String record = null;
+		int recordEvery = 10;
+		boolean events = false;
+		boolean observe = false;
+		int reorder = 0;
+		String workers = null;
+		String offHeap = null;
+		Long seed = null;
+		boolean adaptive = false;
+		double timeStep = 1;
+		double epsilon = 0;
+		double sigma = -1;
+		double cutoff = LennardJones.DEFAULT_CUTOFF_SIGMAS;
+		double skin = LennardJones.DEFAULT_SKIN_SIGMAS;
+		String integrator = null;
+		int streamPort = -1;
+		double streamRate = StreamServer.DEFAULT_RATE;
+		ParticlePlacer.Strategy placement = ParticlePlacer.Strategy.RANDOM;
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			if(args[i].equals("-particles"))
+				particles = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-steps"))
+				steps = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-radius"))
+				radius = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-threads"))
+				threads = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-placement"))
+				placement = ParticlePlacer.Strategy.valueOf(args[i+1].toUpperCase());
+			else if(args[i].equals("-box"))
+				box = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-record"))
+				record = args[i+1];
+			else if(args[i].equals("-recordEvery"))
+				recordEvery = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-engine"))
+				events = args[i+1].equalsIgnoreCase("events");
+			else if(args[i].equals("-observe"))
+				observe = Boolean.parseBoolean(args[i+1]);
+			else if(args[i].equals("-reorder"))
+				reorder = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-workers"))
+				workers = args[i+1];
+			else if(args[i].equals("-offheap"))
+				offHeap = args[i+1];
+			else if(args[i].equals("-seed"))
+				seed = Long.parseLong(args[i+1]);
+			else if(args[i].equals("-adaptive"))
+				adaptive = Boolean.parseBoolean(args[i+1]);
+			else if(args[i].equals("-timestep"))
+				timeStep = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-epsilon"))
+				epsilon = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-sigma"))
+				sigma = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-cutoff"))
+				cutoff = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-skin"))
+				skin = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-integrator"))
+				integrator = args[i+1];
+			else if(args[i].equals("-stream"))
+				streamPort = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-streamRate"))
+				streamRate = Double.parseDouble(args[i+1]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		if(integrator != null && epsilon <= 0)
+			throw new IllegalArgumentException("-integrator only moves the Lennard-Jones forces, give -epsilon as well");
+		if(box <= 0)
+			box = Math.cbrt(particles/100.0);
+		if(offHeap != null)
+		{
+			runOffHeap(offHeap, particles, steps, radius, box, threads, seed == null ? new RandomStreams() :
+					new RandomStreams(seed));
+			return;
+		}
+
+		SimulationEngine engine = new SimulationEngine(box);
+		engine.setPlacement(placement);
+		if(seed != null)
+			engine.setSeed(seed);
+		long setupStart = System.nanoTime();
+		int added = engine.addAir(particles, radius);
+		double setupSeconds = (System.nanoTime() - setupStart)/1e9;
+		System.out.printf("Placed %d of %d particles in a box of size %.3f in %.2f s with seed %d%n", added, particles, box,
+				setupSeconds, engine.getRandom().getSeed());
+
+		engine.setThreads(threads);
+		engine.setEventDriven(events);
+		engine.setObserving(observe);
+		engine.setReorderInterval(reorder);
+		engine.setAdaptive(adaptive);
+		engine.setTimeStep(timeStep);
+		if(epsilon > 0)
+		{
+			if(sigma <= 0)
+				sigma = radius*2;
+			LennardJones field = new LennardJones(cutoff*sigma, skin*sigma);
+			for(int s = 0; s < engine.getStore().getSpeciesCount(); s++)
+			{
+				field.setSpecies(s, epsilon, sigma);
+			}
+			engine.setForces(field);
+			engine.setIntegrator(Integrator.create(integrator == null ? "euler" : integrator));
+		}
+		if(workers != null)
+		{
+			try
+			{
+				DomainCoordinator coordinator = workers.contains(":") ?
+						new DomainCoordinator(DomainCoordinator.parseAddresses(workers)) :
+						DomainCoordinator.launchLocal(Integer.parseInt(workers));
+				engine.startDistributed(coordinator);
+				System.out.printf("Distributed over %d workers%n", coordinator.getWorkers());
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("Could not start the workers", e);
+			}
+		}
+		TrajectoryRecorder recording = null;
+		if(record != null)
+		{
+			try
+			{
+				recording = engine.startRecording(Paths.get(record), recordEvery);
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("Could not record to " + record, e);
+			}
+		}
+		StreamServer streaming = null;
+		if(streamPort >= 0)
+		{
+			try
+			{
+				streaming = engine.startStreaming(streamPort, streamRate);
+				System.out.printf("Streaming on port %d at up to %.1f frames/s%n", streaming.getPort(), streamRate);
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("Could not stream on port " + streamPort, e);
+			}
+		}
+		try
+		{
+			engine.getMetrics().register("Headless");
+		}
+		catch(JMException e)
+		{
+			System.err.println("Could not register the simulation metrics: " + e.getMessage());
+		}
+		long start = System.nanoTime();
+		engine.run(steps);
+		double seconds = (System.nanoTime() - start)/1e9;
+		engine.shutdown();
+		try
+		{
+			engine.stopDistributed();
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("Could not stop the workers", e);
+		}
+		String mode = adaptive ? "with the adaptive step on 1 thread"
+				: "on " + threads + (threads == 1 ? " thread" : " threads");
+		System.out.printf("Ran %d steps %s in %.2f s: %.1f steps/s, %.3g particle-steps/s%n", steps, mode, seconds,
+				steps/seconds, (double)steps*added/seconds);
+		SimulationMetrics metrics = engine.getMetrics();
+		System.out.printf("Per step: integrate %.3f ms, wall check %.3f ms, collision check %.3f ms, collision fix %.3f ms, "
+				+ "render sync %.3f ms%n", metrics.getTotalMillis(SimulationMetrics.INTEGRATE)/steps,
+				metrics.getTotalMillis(SimulationMetrics.WALL_CHECK)/steps,
+				metrics.getTotalMillis(SimulationMetrics.COLLISION_CHECK)/steps,
+				metrics.getTotalMillis(SimulationMetrics.COLLISION_FIX)/steps,
+				metrics.getTotalMillis(SimulationMetrics.RENDER_SYNC)/steps);
+		System.out.printf("Pairs tested %d, intersecting %d, wall hits %d%n", metrics.getPairsTested(),
+				metrics.getPairsIntersecting(), metrics.getWallHits());
+		if(adaptive)
+		{
+			AdaptiveStep adaptiveStep = engine.getAdaptiveStep();
+			System.out.printf("Time step %.3g in %.2f substeps per step, %d particles swept (%.2f%% of moves), %d swept hits%n",
+					timeStep, (double)adaptiveStep.getSubsteps()/steps, adaptiveStep.getSweptMoves(),
+					adaptiveStep.getSweptFraction()*100, adaptiveStep.getSweptHits());
+		}
+		if(epsilon > 0)
+		{
+			LennardJones field = engine.getForces();
+			System.out.printf("Lennard-Jones cutoff %.3g with the %s integrator, %d neighbor pairs, list built %d times, "
+					+ "potential energy %.4g%n", field.getCutoff(), engine.getIntegrator().getName(), field.getNeighborPairs(),
+					field.getRebuilds(), field.getPotentialEnergy());
+		}
+		if(observe)
+		{
+			GasObservables gas = engine.getObservables();
+			System.out.printf("Over the last %d steps: temperature %.4g, pressure %.4g (ideal gas %.4g)%n", gas.getSteps(),
+					gas.getTemperature(), gas.getPressure(), gas.getIdealPressure());
+		}
+		if(recording != null)
+		{
+			try
+			{
+				engine.stopRecording();
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("Could not record to " + record, e);
+			}
+			System.out.printf("Recorded %d frames (%d dropped) in %d bytes%n", recording.getFramesRecorded(),
+					recording.getFramesDropped(), recording.getBytesWritten());
+		}
+		if(streaming != null)
+		{
+			engine.stopStreaming();
+			System.out.printf("Streamed %d frames (%d skipped, %d dropped by slow viewers) in %d bytes%n",
+					streaming.getFramesPublished(), streaming.getFramesSkipped(), streaming.getFramesDropped(),
+					streaming.getBytesSent());
+		}
+	}
+
+}
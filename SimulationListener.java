@@ -0,0 +1,18 @@
+/**
+ * Listener that is told every time the simulation engine finishes a step. Rendering subscribes to the engine through
+ * this interface instead of driving the simulation itself.
+ *
+ * @author Ben Johnson
+ * @version 6-7-2017
+ *
+ */
+public interface SimulationListener {
+
+	/**
+	 * Called on the thread that ran the step, after the step has finished.
+	 *
+	 * @param engine - the engine that finished the step.
+	 */
+	void stepCompleted(SimulationEngine engine);
+
+}
@@ -0,0 +1,293 @@
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.EventType;
+
+/**
+ * Collects where the time of each step goes. The step adds the nanoseconds of each phase and its counts while it
+ * runs and calls endStep when it is done, which adds them to the totals, commits a SimulationStepEvent if Flight
+ * Recorder has it enabled and, once every WINDOW_NANOS, publishes the average time per step of each phase and the
+ * step rate over that window.
+ *
+ * Everything but the accessors is called from the thread running the engine. The accessors can be read from any
+ * thread, and registering the metrics makes them readable over JMX as the SimulationMetricsMBean attributes.
+ *
+ * @author Ben Johnson
+ * @version 6-25-2017
+ *
+ */
+public class SimulationMetrics implements SimulationMetricsMBean {
+
+	public static final int INTEGRATE = 0, WALL_CHECK = 1, COLLISION_CHECK = 2, COLLISION_FIX = 3, RENDER_SYNC = 4;
+	public static final int PHASES = 5;
+	public static final long WINDOW_NANOS = 1000000000L;
+
+	private static final EventType STEP_EVENT = EventType.getEventType(SimulationStepEvent.class);
+
+	private long[] stepNanos;
+	private long stepPairsTested;
+	private long stepPairsIntersecting;
+	private long stepWallHits;
+
+	private long[] totalNanos;
+	private long[] windowNanos;
+	private long windowSteps;
+	private long windowStart;
+
+	private volatile long steps;
+	private volatile int particles;
+	private volatile long pairsTested;
+	private volatile long pairsIntersecting;
+	private volatile long wallHits;
+	private volatile long missedDeadlines;
+	private volatile double stepsPerSecond;
+	private volatile double[] phaseMillis;
+
+	private ObjectName name;
+
+	/**
+	 * Constructor for the simulation metrics.
+	 */
+	public SimulationMetrics()
+	{
+		stepNanos = new long[PHASES];
+		totalNanos = new long[PHASES];
+		windowNanos = new long[PHASES];
+		phaseMillis = new double[PHASES];
+		windowStart = System.nanoTime();
+	}
+
+	/**
+	 * Adds time to a phase of the current step.
+	 *
+	 * @param phase - the phase, INTEGRATE, WALL_CHECK, COLLISION_CHECK, COLLISION_FIX or RENDER_SYNC.
+	 * @param nanos - the nanoseconds spent in the phase.
+	 */
+	public void addPhase(int phase, long nanos)
+	{
+		stepNanos[phase] += nanos;
+	}
+
+	/**
+	 * Adds pair tests to the current step.
+	 *
+	 * @param tested - the number of pairs tested.
+	 * @param intersecting - the number of those pairs that intersected.
+	 */
+	public void addPairs(long tested, long intersecting)
+	{
+		stepPairsTested += tested;
+		stepPairsIntersecting += intersecting;
+	}
+
+	/**
+	 * Adds wall hits to the current step.
+	 *
+	 * @param hits - the number of particles that hit a wall.
+	 */
+	public void addWallHits(long hits)
+	{
+		stepWallHits += hits;
+	}
+
+	/**
+	 * Finishes the current step. Adds it to the totals and the window, commits the step event and publishes the window
+	 * when it is full. The event is only created when a recording has it enabled.
+	 *
+	 * @param step - the number of the step that finished.
+	 * @param particleCount - the number of particles in the step.
+	 */
+	public void endStep(long step, int particleCount)
+	{
+		if(STEP_EVENT.isEnabled())
+		{
+			SimulationStepEvent event = new SimulationStepEvent();
+			event.step = step;
+			event.particles = particleCount;
+			event.integrate = stepNanos[INTEGRATE];
+			event.wallCheck = stepNanos[WALL_CHECK];
+			event.collisionCheck = stepNanos[COLLISION_CHECK];
+			event.collisionFix = stepNanos[COLLISION_FIX];
+			event.renderSync = stepNanos[RENDER_SYNC];
+			event.pairsTested = stepPairsTested;
+			event.pairsIntersecting = stepPairsIntersecting;
+			event.wallHits = stepWallHits;
+			event.commit();
+		}
+
+		steps++;
+		particles = particleCount;
+		pairsTested += stepPairsTested;
+		pairsIntersecting += stepPairsIntersecting;
+		wallHits += stepWallHits;
+		stepPairsTested = stepPairsIntersecting = stepWallHits = 0;
+		for(int i = 0; i < PHASES; i++)
+		{
+			totalNanos[i] += stepNanos[i];
+			windowNanos[i] += stepNanos[i];
+			stepNanos[i] = 0;
+		}
+		windowSteps++;
+
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+		if(elapsed >= WINDOW_NANOS)
+		{
+			double[] millis = new double[PHASES];
+			for(int i = 0; i < PHASES; i++)
+			{
+				millis[i] = windowNanos[i]/1e6/windowSteps;
+				windowNanos[i] = 0;
+			}
+			phaseMillis = millis;
+			stepsPerSecond = windowSteps*1e9/elapsed;
+			windowSteps = 0;
+			windowStart = now;
+		}
+	}
+
+	/**
+	 * Counts a paced step that finished after the next step was due and commits a MissedDeadlineEvent.
+	 *
+	 * @param late - how many nanoseconds after the deadline the step finished.
+	 * @param interval - the nanoseconds between paced steps.
+	 */
+	public void recordMissedDeadline(long late, long interval)
+	{
+		missedDeadlines++;
+		MissedDeadlineEvent event = new MissedDeadlineEvent();
+		if(event.shouldCommit())
+		{
+			event.step = steps;
+			event.late = late;
+			event.interval = interval;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server under FluidSimulator:type=SimulationMetrics,name=name.
+	 *
+	 * @param instance - the name that tells this engine apart from others in the same JVM.
+	 * @throws JMException - if the name is taken or the metrics can't be registered.
+	 */
+	public void register(String instance) throws JMException
+	{
+		unregister();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("FluidSimulator:type=SimulationMetrics,name=" + ObjectName.quote(instance));
+		server.registerMBean(this, objectName);
+		name = objectName;
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server if they were registered.
+	 *
+	 * @throws JMException - if the metrics can't be unregistered.
+	 */
+	public void unregister() throws JMException
+	{
+		if(name == null)
+			return;
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		name = null;
+	}
+
+	/**
+	 * Accessor method for the average time per step of a phase over the last window.
+	 *
+	 * @param phase - the phase, INTEGRATE, WALL_CHECK, COLLISION_CHECK, COLLISION_FIX or RENDER_SYNC.
+	 * @return double - the milliseconds per step.
+	 */
+	public double getPhaseMillis(int phase)
+	{
+		return phaseMillis[phase];
+	}
+
+	/**
+	 * Accessor method for the total time spent in a phase. Only read this from the thread running the engine.
+	 *
+	 * @param phase - the phase, INTEGRATE, WALL_CHECK, COLLISION_CHECK, COLLISION_FIX or RENDER_SYNC.
+	 * @return double - the milliseconds spent in the phase since the engine was created.
+	 */
+	public double getTotalMillis(int phase)
+	{
+		return totalNanos[phase]/1e6;
+	}
+
+	@Override
+	public long getSteps()
+	{
+		return steps;
+	}
+
+	@Override
+	public int getParticles()
+	{
+		return particles;
+	}
+
+	@Override
+	public double getStepsPerSecond()
+	{
+		return stepsPerSecond;
+	}
+
+	@Override
+	public double getIntegrateMillis()
+	{
+		return getPhaseMillis(INTEGRATE);
+	}
+
+	@Override
+	public double getWallCheckMillis()
+	{
+		return getPhaseMillis(WALL_CHECK);
+	}
+
+	@Override
+	public double getCollisionCheckMillis()
+	{
+		return getPhaseMillis(COLLISION_CHECK);
+	}
+
+	@Override
+	public double getCollisionFixMillis()
+	{
+		return getPhaseMillis(COLLISION_FIX);
+	}
+
+	@Override
+	public double getRenderSyncMillis()
+	{
+		return getPhaseMillis(RENDER_SYNC);
+	}
+
+	@Override
+	public long getPairsTested()
+	{
+		return pairsTested;
+	}
+
+	@Override
+	public long getPairsIntersecting()
+	{
+		return pairsIntersecting;
+	}
+
+	@Override
+	public long getWallHits()
+	{
+		return wallHits;
+	}
+
+	@Override
+	public long getMissedDeadlines()
+	{
+		return missedDeadlines;
+	}
+
+}
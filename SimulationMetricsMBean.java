@@ -0,0 +1,97 @@
+/**
+ * The management interface of SimulationMetrics, the attributes a JMX client like JConsole sees. Counts are totals
+ * since the engine was created, so a scraper can turn them into rates. Times and the step rate are averages over the
+ * last full window of SimulationMetrics.WINDOW_NANOS.
+ *
+ * @author Ben Johnson
+ * @version 6-25-2017
+ *
+ */
+public interface SimulationMetricsMBean {
+
+	/**
+	 * Accessor method for the number of steps run.
+	 *
+	 * @return long - the total number of steps.
+	 */
+	public long getSteps();
+
+	/**
+	 * Accessor method for the number of particles in the last step.
+	 *
+	 * @return int - the particle count.
+	 */
+	public int getParticles();
+
+	/**
+	 * Accessor method for the step rate.
+	 *
+	 * @return double - the steps per second over the last window.
+	 */
+	public double getStepsPerSecond();
+
+	/**
+	 * Accessor method for the time spent moving the particles.
+	 *
+	 * @return double - the average milliseconds per step over the last window.
+	 */
+	public double getIntegrateMillis();
+
+	/**
+	 * Accessor method for the time spent bouncing particles off of the walls.
+	 *
+	 * @return double - the average milliseconds per step over the last window.
+	 */
+	public double getWallCheckMillis();
+
+	/**
+	 * Accessor method for the time spent binning particles and looking for intersecting pairs.
+	 *
+	 * @return double - the average milliseconds per step over the last window.
+	 */
+	public double getCollisionCheckMillis();
+
+	/**
+	 * Accessor method for the time spent changing the velocities of colliding particles.
+	 *
+	 * @return double - the average milliseconds per step over the last window.
+	 */
+	public double getCollisionFixMillis();
+
+	/**
+	 * Accessor method for the time spent handing the step to the listeners, mostly copying the snapshot the renderer
+	 * draws.
+	 *
+	 * @return double - the average milliseconds per step over the last window.
+	 */
+	public double getRenderSyncMillis();
+
+	/**
+	 * Accessor method for the number of particle pairs tested for an intersection.
+	 *
+	 * @return long - the total pairs tested.
+	 */
+	public long getPairsTested();
+
+	/**
+	 * Accessor method for the number of tested pairs that intersected.
+	 *
+	 * @return long - the total intersecting pairs.
+	 */
+	public long getPairsIntersecting();
+
+	/**
+	 * Accessor method for the number of times a particle hit a wall.
+	 *
+	 * @return long - the total wall hits.
+	 */
+	public long getWallHits();
+
+	/**
+	 * Accessor method for the number of steps that finished after the next one was due when the step rate is paced.
+	 *
+	 * @return long - the total missed deadlines.
+	 */
+	public long getMissedDeadlines();
+
+}
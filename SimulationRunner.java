@@ -0,0 +1,173 @@
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a simulation engine on its own physics thread. Every step advances the simulation by the same fixed amount, the
+ * loop runs steps back to back or paced to a set number of steps per second, so how fast the physics runs doesn't
+ * depend on how fast the frames are drawn.
+ *
+ * Anything else that changes the engine, like adding or deleting particles from the window, goes through execute so it
+ * runs between two steps. The renderer never touches the engine, it reads the snapshots the physics thread publishes
+ * to a SnapshotBuffer.
+ *
+ * @author Ben Johnson
+ * @version 6-25-2017
+ *
+ */
+public class SimulationRunner {
+
+	private SimulationEngine engine;
+	private ReentrantLock stepLock;
+	private Thread thread;
+	private volatile boolean running;
+	private volatile long stepNanos;
+
+	/**
+	 * Constructor for the simulation runner. The physics thread isn't started until start is called.
+	 *
+	 * @param engine - the engine to run.
+	 */
+	public SimulationRunner(SimulationEngine engine)
+	{
+		this.engine = engine;
+		stepLock = new ReentrantLock(true);
+	}
+
+	/**
+	 * Starts the physics thread if it isn't already running.
+	 */
+	public synchronized void start()
+	{
+		if(running)
+			return;
+		running = true;
+		thread = new Thread(new Runnable() { public void run() { loop(); } }, "Physics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the physics thread and waits for the step it is on to finish.
+	 */
+	public synchronized void stop()
+	{
+		if(!running)
+			return;
+		running = false;
+		LockSupport.unpark(thread);
+		if(Thread.currentThread() != thread)
+		{
+			try
+			{
+				thread.join();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		thread = null;
+	}
+
+	/**
+	 * Runs a single step, waiting for the physics thread to finish its current step first if it is running.
+	 */
+	public void step()
+	{
+		execute(new Runnable() { public void run() { engine.step(); } });
+	}
+
+	/**
+	 * Runs a change to the engine between two steps. The calling thread waits until the physics thread finishes the
+	 * step it is on, at most one step.
+	 *
+	 * @param change - the code that changes the engine.
+	 */
+	public void execute(Runnable change)
+	{
+		stepLock.lock();
+		try
+		{
+			change.run();
+		}
+		finally
+		{
+			stepLock.unlock();
+		}
+	}
+
+	/**
+	 * Sets how many steps the physics thread runs per second. Zero or less runs the steps back to back as fast as the
+	 * machine allows.
+	 *
+	 * @param stepsPerSecond - the target step rate.
+	 */
+	public void setStepsPerSecond(double stepsPerSecond)
+	{
+		stepNanos = stepsPerSecond > 0 ? (long)(1e9/stepsPerSecond) : 0;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Accessor method for whether the physics thread is running.
+	 *
+	 * @return boolean - whether the simulation is running.
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Accessor method for the engine.
+	 *
+	 * @return SimulationEngine - the engine being run.
+	 */
+	public SimulationEngine getEngine()
+	{
+		return engine;
+	}
+
+	/**
+	 * The physics loop. When a step rate is set each step is scheduled a fixed time after the last one, if the steps
+	 * fall more than one step behind the schedule is reset instead of running a burst of steps to catch up. Every step
+	 * that finishes after the next one was due is counted in the engine's metrics as a missed deadline.
+	 */
+	private void loop()
+	{
+		long next = System.nanoTime();
+		while(running)
+		{
+			stepLock.lock();
+			try
+			{
+				engine.step();
+			}
+			finally
+			{
+				stepLock.unlock();
+			}
+
+			long interval = stepNanos;
+			if(interval > 0)
+			{
+				next += interval;
+				long wait = next - System.nanoTime();
+				if(wait < 0)
+					engine.getMetrics().recordMissedDeadline(-wait, interval);
+				if(wait < -interval)
+					next = System.nanoTime();
+				while(running && wait > 0)
+				{
+					LockSupport.parkNanos(wait);
+					wait = next - System.nanoTime();
+				}
+			}
+			else
+			{
+				next = System.nanoTime();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+/**
+ * A copy of the particle state of a simulation engine at the end of one step. A snapshot can be refilled by the engine
+ * so the same arrays are reused from step to step. The particles are in id order, so a particle keeps its place in
+ * the snapshot when the store is reordered.
+ *
+ * @author Ben Johnson
+ * @version 6-27-2017
+ *
+ */
+public class SimulationSnapshot {
+
+	private long step;
+	private int count;
+	private double boxSize;
+	private double[] x, y, z;
+	private double[] vx, vy, vz;
+	private double[] radius;
+	private int[] species;
+	private int speciesCount;
+	private int[] speciesColor;
+	private double[] speciesRadius;
+
+	/**
+	 * Constructor for an empty snapshot.
+	 */
+	public SimulationSnapshot()
+	{
+		x = y = z = vx = vy = vz = radius = new double[0];
+		species = new int[0];
+		speciesColor = new int[0];
+		speciesRadius = new double[0];
+	}
+
+	/**
+	 * Copies the current state of the store into this snapshot in id order, growing the arrays if they are too small.
+	 *
+	 * @param store - the store to copy.
+	 * @param stepNumber - the step number the state belongs to.
+	 * @param box - the side length of the box.
+	 */
+	public void copyFrom(ParticleStore store, long stepNumber, double box)
+	{
+		count = store.size();
+		step = stepNumber;
+		boxSize = box;
+		if(x.length < count)
+		{
+			x = new double[count];
+			y = new double[count];
+			z = new double[count];
+			vx = new double[count];
+			vy = new double[count];
+			vz = new double[count];
+			radius = new double[count];
+			species = new int[count];
+		}
+		store.copyById(store.getX(), x);
+		store.copyById(store.getY(), y);
+		store.copyById(store.getZ(), z);
+		store.copyById(store.getVX(), vx);
+		store.copyById(store.getVY(), vy);
+		store.copyById(store.getVZ(), vz);
+		store.copyById(store.getRadius(), radius);
+		store.copyById(store.getSpecies(), species);
+
+		speciesCount = store.getSpeciesCount();
+		if(speciesColor.length < speciesCount)
+		{
+			speciesColor = new int[speciesCount];
+			speciesRadius = new double[speciesCount];
+		}
+		for(int i = 0; i < speciesCount; i++)
+		{
+			speciesColor[i] = store.getSpeciesColor(i);
+			speciesRadius[i] = store.getSpeciesRadius(i);
+		}
+	}
+
+	/**
+	 * Accessor method for the step number.
+	 *
+	 * @return long - the step the snapshot was taken after.
+	 */
+	public long getStep()
+	{
+		return step;
+	}
+
+	/**
+	 * Accessor method for the number of particles.
+	 *
+	 * @return int - the number of particles in the snapshot.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Accessor method for the box size.
+	 *
+	 * @return double - the side length of the box.
+	 */
+	public double getBoxSize()
+	{
+		return boxSize;
+	}
+
+	/**
+	 * Accessor method for the x positions. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the x positions.
+	 */
+	public double[] getX()
+	{
+		return x;
+	}
+
+	/**
+	 * Accessor method for the y positions. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the y positions.
+	 */
+	public double[] getY()
+	{
+		return y;
+	}
+
+	/**
+	 * Accessor method for the z positions. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the z positions.
+	 */
+	public double[] getZ()
+	{
+		return z;
+	}
+
+	/**
+	 * Accessor method for the x velocities. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the x velocities.
+	 */
+	public double[] getVX()
+	{
+		return vx;
+	}
+
+	/**
+	 * Accessor method for the y velocities. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the y velocities.
+	 */
+	public double[] getVY()
+	{
+		return vy;
+	}
+
+	/**
+	 * Accessor method for the z velocities. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the z velocities.
+	 */
+	public double[] getVZ()
+	{
+		return vz;
+	}
+
+	/**
+	 * Accessor method for the radii. Only the first getCount() entries are valid.
+	 *
+	 * @return double[] - the radii.
+	 */
+	public double[] getRadius()
+	{
+		return radius;
+	}
+
+	/**
+	 * Accessor method for the species indices. Only the first getCount() entries are valid.
+	 *
+	 * @return int[] - the species indices.
+	 */
+	public int[] getSpecies()
+	{
+		return species;
+	}
+
+	/**
+	 * Accessor method for the number of species.
+	 *
+	 * @return int - the number of species registered when the snapshot was taken.
+	 */
+	public int getSpeciesCount()
+	{
+		return speciesCount;
+	}
+
+	/**
+	 * Accessor method for the color of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return int - the packed RGB color of the species.
+	 */
+	public int getSpeciesColor(int speciesIndex)
+	{
+		return speciesColor[speciesIndex];
+	}
+
+	/**
+	 * Accessor method for the radius of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return double - the radius of the species' particles.
+	 */
+	public double getSpeciesRadius(int speciesIndex)
+	{
+		return speciesRadius[speciesIndex];
+	}
+
+}
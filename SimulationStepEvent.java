@@ -0,0 +1,62 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event committed at the end of every step with the time spent in each phase and the counts of the
+ * step. It is disabled unless a recording turns it on, for example with
+ * -XX:StartFlightRecording:fluid.SimulationStep#enabled=true.
+ *
+ * @author Ben Johnson
+ * @version 6-25-2017
+ *
+ */
+@Name("fluid.SimulationStep")
+@Label("Simulation Step")
+@Category("Fluid Simulator")
+@Description("One step of the simulation")
+@Enabled(false)
+@StackTrace(false)
+public class SimulationStepEvent extends Event {
+
+	@Label("Step")
+	long step;
+
+	@Label("Particles")
+	int particles;
+
+	@Label("Integrate")
+	@Timespan
+	long integrate;
+
+	@Label("Wall Check")
+	@Timespan
+	long wallCheck;
+
+	@Label("Collision Check")
+	@Timespan
+	long collisionCheck;
+
+	@Label("Collision Fix")
+	@Timespan
+	long collisionFix;
+
+	@Label("Render Sync")
+	@Timespan
+	long renderSync;
+
+	@Label("Pairs Tested")
+	long pairsTested;
+
+	@Label("Pairs Intersecting")
+	long pairsIntersecting;
+
+	@Label("Wall Hits")
+	long wallHits;
+
+}
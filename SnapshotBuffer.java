@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the particle positions from the physics thread to the render loop without either side waiting on the
+ * other. The physics thread fills a back buffer and swaps it with the ready buffer, and the renderer swaps the ready
+ * buffer with the front buffer it draws from. A third snapshot rotates between the two so the renderer's front buffer
+ * is never written while it is drawn.
+ *
+ * The physics thread only copies a new snapshot once the renderer has taken the last one, so publishing costs one copy
+ * per rendered frame no matter how many steps run in between.
+ *
+ * @author Ben Johnson
+ * @version 6-14-2017
+ *
+ */
+public class SnapshotBuffer implements SimulationListener {
+
+	private SimulationSnapshot back;
+	private SimulationSnapshot front;
+	private AtomicReference<SimulationSnapshot> ready;
+	private volatile boolean fresh;
+
+	/**
+	 * Constructor for the snapshot buffer. Starts with three empty snapshots.
+	 */
+	public SnapshotBuffer()
+	{
+		back = new SimulationSnapshot();
+		front = new SimulationSnapshot();
+		ready = new AtomicReference<SimulationSnapshot>(new SimulationSnapshot());
+	}
+
+	/**
+	 * Copies the engine's state into the back buffer and publishes it, unless the renderer hasn't taken the last
+	 * published snapshot yet.
+	 *
+	 * @param engine - the engine that finished the step.
+	 */
+	@Override
+	public void stepCompleted(SimulationEngine engine)
+	{
+		if(fresh)
+			return;
+		publish(engine);
+	}
+
+	/**
+	 * Copies the engine's state into the back buffer and publishes it, whether or not the renderer took the last one.
+	 * This is used when particles are added or removed so the renderer sees the change right away.
+	 *
+	 * @param engine - the engine to copy.
+	 */
+	public void publish(SimulationEngine engine)
+	{
+		engine.snapshot(back);
+		back = ready.getAndSet(back);
+		fresh = true;
+	}
+
+	/**
+	 * Takes the most recently published snapshot. The returned snapshot stays untouched until the next call.
+	 *
+	 * @return SimulationSnapshot - the latest snapshot.
+	 */
+	public SimulationSnapshot latest()
+	{
+		if(fresh)
+		{
+			front = ready.getAndSet(front);
+			fresh = false;
+		}
+		return front;
+	}
+
+}
@@ -0,0 +1,483 @@
+import java.util.Arrays;
+
+/**
+ * A uniform grid of cubic cells covering the box. Each particle is binned into the cell that holds its center so that
+ * the collision check for a particle only has to look at the particles in its own cell and the 26 cells around it.
+ * The cells are stored as linked lists in two int arrays so rebuilding the grid every step does not allocate.
+ *
+ * A full rebuild also copies the particles in cell order into sorted arrays of positions and radii. Cells next to
+ * each other along z are next to each other in those arrays, so the neighbors of a particle are nine contiguous runs
+ * of three cells each, which is what the StepKernels pair tests run over. The sorted arrays are copies, so particles
+ * must not move between a rebuild and the searches that use it. Inserting a particle leaves the sorted
+ * arrays out of date and the searches fall back to walking the linked lists until the next full rebuild.
+ *
+ * @author Ben Johnson
+ * @version 6-28-2017
+ *
+ */
+public class SpatialGrid {
+
+	private double boxSize;
+	private double cellSize;
+	private int cellsPerSide;
+	private int[] cellHead;
+	private int[] next;
+	private int[] cellStart;
+	private int[] sortedIndex;
+	private int[] sortedSlot;
+	private double[] sortedX, sortedY, sortedZ, sortedRadius;
+	private boolean sorted;
+	private int cellBudget;
+	private StepKernels kernels;
+
+	/**
+	 * Constructor for the spatial grid.
+	 *
+	 * @param boxSize - the side length of the box the particles are in.
+	 */
+	public SpatialGrid(double boxSize)
+	{
+		this.boxSize = boxSize;
+		cellsPerSide = 1;
+		cellSize = boxSize;
+		cellHead = new int[1];
+		next = new int[0];
+		cellStart = new int[2];
+		sortedIndex = sortedSlot = new int[0];
+		sortedX = sortedY = sortedZ = sortedRadius = new double[0];
+		kernels = StepKernels.get();
+	}
+
+	/**
+	 * Bins every particle into the grid and sorts it. The step rebuilds the grid after the particles have moved, so the
+	 * cells only need to be as big as the largest particle diameter for touching particles to be in neighboring cells.
+	 *
+	 * @param store - the particles to bin.
+	 */
+	public void rebuild(ParticleStore store)
+	{
+		int count = store.size();
+		double[] radius = store.getRadius();
+		double maxRadius = 0;
+		for(int i = 0; i < count; i++)
+		{
+			maxRadius = Math.max(maxRadius, radius[i]);
+		}
+		rebuild(store, count, maxRadius*2);
+		sort(store);
+	}
+
+	/**
+	 * Bins every particle into a grid with cells at least the given size, with room for more particles to be inserted
+	 * later. Used while placing particles, where the grid is filled one particle at a time.
+	 *
+	 * @param store - the particles to bin.
+	 * @param capacity - the number of particles the grid should have room for.
+	 * @param minCellSize - the smallest allowed cell side length.
+	 */
+	public void rebuild(ParticleStore store, int capacity, double minCellSize)
+	{
+		sorted = false;
+		resize(Math.max(capacity, store.size()), minCellSize);
+		for(int i = 0; i < store.size(); i++)
+		{
+			insert(store, i);
+		}
+	}
+
+	/**
+	 * Adds one particle to the grid.
+	 *
+	 * @param store - the store holding the particle.
+	 * @param index - the index of the particle.
+	 */
+	public void insert(ParticleStore store, int index)
+	{
+		if(index >= next.length)
+			next = Arrays.copyOf(next, Math.max(index+1, next.length*2));
+		int cell = cellIndex(cellCoordinate(store.getX()[index]), cellCoordinate(store.getY()[index]),
+				cellCoordinate(store.getZ()[index]));
+		next[index] = cellHead[cell];
+		cellHead[cell] = index;
+		sorted = false;
+	}
+
+	/**
+	 * Finds the first particle in the neighboring cells that intersects the given particle.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param index - the index of the particle to check.
+	 * @return int - the index of the intersecting particle, or -1 if there is none.
+	 */
+	public int findIntersecting(ParticleStore store, int index)
+	{
+		return findIntersecting(store, index, null);
+	}
+
+	/**
+	 * Finds the first particle in the neighboring cells that intersects the given particle and counts the pairs it
+	 * tested. Pairs are only counted when the grid was fully rebuilt.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param index - the index of the particle to check.
+	 * @param count - counts the pairs tested and the pairs that intersect, or null.
+	 * @return int - the index of the intersecting particle, or -1 if there is none.
+	 */
+	public int findIntersecting(ParticleStore store, int index, StepKernels.PairCount count)
+	{
+		if(sorted)
+			return kernels.firstIntersecting(store, this, index, count);
+		return findIntersecting(store, store.getX()[index], store.getY()[index], store.getZ()[index],
+				store.getRadius()[index], index);
+	}
+
+	/**
+	 * Finds the first particle in the neighboring cells that intersects a sphere at the given position. The sphere's
+	 * radius plus the radius of any particle in the grid must not be more than the cell size.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param px - the x position of the sphere.
+	 * @param py - the y position of the sphere.
+	 * @param pz - the z position of the sphere.
+	 * @param r - the radius of the sphere.
+	 * @param skip - the index of a particle to ignore, or -1.
+	 * @return int - the index of the intersecting particle, or -1 if there is none.
+	 */
+	public int findIntersecting(ParticleStore store, double px, double py, double pz, double r, int skip)
+	{
+		double[] sx = store.getX(), sy = store.getY(), sz = store.getZ();
+		double[] radius = store.getRadius();
+		int cx = cellCoordinate(px);
+		int cy = cellCoordinate(py);
+		int cz = cellCoordinate(pz);
+		for(int x = Math.max(cx-1, 0); x <= Math.min(cx+1, cellsPerSide-1); x++)
+		{
+			for(int y = Math.max(cy-1, 0); y <= Math.min(cy+1, cellsPerSide-1); y++)
+			{
+				for(int z = Math.max(cz-1, 0); z <= Math.min(cz+1, cellsPerSide-1); z++)
+				{
+					for(int i = cellHead[cellIndex(x, y, z)]; i != -1; i = next[i])
+					{
+						double dx = px - sx[i];
+						double dy = py - sy[i];
+						double dz = pz - sz[i];
+						double reach = r + radius[i];
+						if(i != skip && dx*dx + dy*dy + dz*dz < reach*reach)
+							return i;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the closest particle in the neighboring cells that intersects the given particle. Ties are broken by the
+	 * lower index so the result does not depend on the order particles were binned in. This only reads the grid and
+	 * the store, so it can be called from several threads at once.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param index - the index of the particle to check.
+	 * @return int - the index of the closest intersecting particle, or -1 if there is none.
+	 */
+	public int findNearestIntersecting(ParticleStore store, int index)
+	{
+		return findNearestIntersecting(store, index, null);
+	}
+
+	/**
+	 * Finds the closest particle in the neighboring cells that intersects the given particle and counts the pairs it
+	 * tested. Pairs are only counted when the grid was fully rebuilt. Threads calling this at the same time must each
+	 * pass their own count.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param index - the index of the particle to check.
+	 * @param count - counts the pairs tested and the pairs that intersect, or null.
+	 * @return int - the index of the closest intersecting particle, or -1 if there is none.
+	 */
+	public int findNearestIntersecting(ParticleStore store, int index, StepKernels.PairCount count)
+	{
+		if(sorted)
+			return kernels.nearestIntersecting(store, this, index, count);
+		double[] px = store.getX(), py = store.getY(), pz = store.getZ();
+		double[] radius = store.getRadius();
+		int cx = cellCoordinate(px[index]);
+		int cy = cellCoordinate(py[index]);
+		int cz = cellCoordinate(pz[index]);
+		int nearest = -1;
+		double nearestDistance = Double.MAX_VALUE;
+		for(int x = Math.max(cx-1, 0); x <= Math.min(cx+1, cellsPerSide-1); x++)
+		{
+			for(int y = Math.max(cy-1, 0); y <= Math.min(cy+1, cellsPerSide-1); y++)
+			{
+				for(int z = Math.max(cz-1, 0); z <= Math.min(cz+1, cellsPerSide-1); z++)
+				{
+					for(int i = cellHead[cellIndex(x, y, z)]; i != -1; i = next[i])
+					{
+						if(i == index)
+							continue;
+						double dx = px[index] - px[i];
+						double dy = py[index] - py[i];
+						double dz = pz[index] - pz[i];
+						double distance = dx*dx + dy*dy + dz*dz;
+						double reach = radius[index] + radius[i];
+						if(distance < reach*reach && (distance < nearestDistance || (distance == nearestDistance && i < nearest)))
+						{
+							nearest = i;
+							nearestDistance = distance;
+						}
+					}
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Accessor method for the first particle in a cell. The rest of the cell is walked with getNextInCell.
+	 *
+	 * @param cx - the x cell coordinate.
+	 * @param cy - the y cell coordinate.
+	 * @param cz - the z cell coordinate.
+	 * @return int - the index of the first particle in the cell, or -1 if the cell is empty.
+	 */
+	public int getFirstInCell(int cx, int cy, int cz)
+	{
+		return cellHead[cellIndex(cx, cy, cz)];
+	}
+
+	/**
+	 * Accessor method for the particle after the given one in the same cell.
+	 *
+	 * @param index - the index of a particle.
+	 * @return int - the index of the next particle in the cell, or -1 if it was the last one.
+	 */
+	public int getNextInCell(int index)
+	{
+		return next[index];
+	}
+
+	/**
+	 * Finds the cell coordinate of a position along one axis.
+	 *
+	 * @param position - the position along the axis.
+	 * @return int - the cell coordinate, clamped to the grid.
+	 */
+	public int getCellCoordinate(double position)
+	{
+		return cellCoordinate(position);
+	}
+
+	/**
+	 * Accessor method for where a run of neighbor cells starts in the sorted arrays. The run is the given cell and the
+	 * cells on either side of it along z.
+	 *
+	 * @param cx - the x cell coordinate.
+	 * @param cy - the y cell coordinate.
+	 * @param cz - the z cell coordinate of the middle cell.
+	 * @return int - the first sorted slot of the run.
+	 */
+	public int getRunStart(int cx, int cy, int cz)
+	{
+		return cellStart[cellIndex(cx, cy, Math.max(cz-1, 0))];
+	}
+
+	/**
+	 * Accessor method for where a run of neighbor cells ends in the sorted arrays.
+	 *
+	 * @param cx - the x cell coordinate.
+	 * @param cy - the y cell coordinate.
+	 * @param cz - the z cell coordinate of the middle cell.
+	 * @return int - one past the last sorted slot of the run.
+	 */
+	public int getRunEnd(int cx, int cy, int cz)
+	{
+		return cellStart[cellIndex(cx, cy, Math.min(cz+1, cellsPerSide-1)) + 1];
+	}
+
+	/**
+	 * Accessor method for the particle index in each sorted slot.
+	 *
+	 * @return int[] - the particle indices in cell order.
+	 */
+	public int[] getSortedIndex()
+	{
+		return sortedIndex;
+	}
+
+	/**
+	 * Accessor method for the sorted slot of each particle.
+	 *
+	 * @return int[] - the slot of every particle index.
+	 */
+	public int[] getSortedSlot()
+	{
+		return sortedSlot;
+	}
+
+	/**
+	 * Accessor method for the x positions in cell order.
+	 *
+	 * @return double[] - the sorted x positions.
+	 */
+	public double[] getSortedX()
+	{
+		return sortedX;
+	}
+
+	/**
+	 * Accessor method for the y positions in cell order.
+	 *
+	 * @return double[] - the sorted y positions.
+	 */
+	public double[] getSortedY()
+	{
+		return sortedY;
+	}
+
+	/**
+	 * Accessor method for the z positions in cell order.
+	 *
+	 * @return double[] - the sorted z positions.
+	 */
+	public double[] getSortedZ()
+	{
+		return sortedZ;
+	}
+
+	/**
+	 * Accessor method for the radii in cell order.
+	 *
+	 * @return double[] - the sorted radii.
+	 */
+	public double[] getSortedRadius()
+	{
+		return sortedRadius;
+	}
+
+	/**
+	 * Mutator method for the box size.
+	 *
+	 * @param boxSize - the new side length of the box.
+	 */
+	public void setBoxSize(double boxSize)
+	{
+		this.boxSize = boxSize;
+	}
+
+	/**
+	 * Sets the particle count the number of cells is capped by when the store holds fewer particles than that. A store
+	 * that only covers part of the box, like the slab of a DomainWorker, sets it to the count the whole box would hold so
+	 * its cells are as small as they would be for the whole box.
+	 *
+	 * @param particles - the particle count to size the cells for at least, zero to size them from the store alone.
+	 */
+	public void setCellBudget(int particles)
+	{
+		cellBudget = particles;
+	}
+
+	/**
+	 * Accessor method for the number of cells along each side of the box.
+	 *
+	 * @return int - the number of cells per side.
+	 */
+	public int getCellsPerSide()
+	{
+		return cellsPerSide;
+	}
+
+	/**
+	 * Resizes the cell arrays for the given particle count and minimum cell size and empties every cell. The number of
+	 * cells is capped at about two per particle, or per particle of the cell budget if that is more, so sparse boxes of
+	 * tiny particles don't allocate a huge grid.
+	 *
+	 * @param count - the number of particles to bin.
+	 * @param minCellSize - the smallest allowed cell side length.
+	 */
+	private void resize(int count, double minCellSize)
+	{
+		int side = minCellSize > 0 ? (int)(boxSize/minCellSize) : 1;
+		side = Math.max(1, Math.min(side, (int)Math.cbrt(2.0*Math.max(count, cellBudget)) + 1));
+		cellsPerSide = side;
+		cellSize = boxSize/side;
+
+		int cells = side*side*side;
+		if(cellHead.length < cells)
+			cellHead = new int[Math.max(cells, cellHead.length*2)];
+		if(next.length < count)
+			next = new int[Math.max(count, next.length*2)];
+		Arrays.fill(cellHead, 0, cells, -1);
+	}
+
+	/**
+	 * Copies the particles into the sorted arrays in the order the cell lists are walked.
+	 *
+	 * @param store - the particles the grid was built from.
+	 */
+	private void sort(ParticleStore store)
+	{
+		int count = store.size();
+		int cells = cellsPerSide*cellsPerSide*cellsPerSide;
+		if(cellStart.length < cells + 1)
+			cellStart = new int[Math.max(cells + 1, cellStart.length*2)];
+		if(sortedIndex.length < count)
+		{
+			int capacity = Math.max(count, sortedIndex.length*2);
+			sortedIndex = new int[capacity];
+			sortedSlot = new int[capacity];
+			sortedX = new double[capacity];
+			sortedY = new double[capacity];
+			sortedZ = new double[capacity];
+			sortedRadius = new double[capacity];
+		}
+		double[] x = store.getX(), y = store.getY(), z = store.getZ(), radius = store.getRadius();
+		int slot = 0;
+		for(int cell = 0; cell < cells; cell++)
+		{
+			cellStart[cell] = slot;
+			for(int i = cellHead[cell]; i != -1; i = next[i])
+			{
+				sortedIndex[slot] = i;
+				sortedSlot[i] = slot;
+				sortedX[slot] = x[i];
+				sortedY[slot] = y[i];
+				sortedZ[slot] = z[i];
+				sortedRadius[slot] = radius[i];
+				slot++;
+			}
+		}
+		cellStart[cells] = slot;
+		sorted = true;
+	}
+
+	/**
+	 * Converts cell coordinates into an index into the cell arrays.
+	 *
+	 * @param cx - the x cell coordinate.
+	 * @param cy - the y cell coordinate.
+	 * @param cz - the z cell coordinate.
+	 * @return int - the cell index.
+	 */
+	private int cellIndex(int cx, int cy, int cz)
+	{
+		return (cx*cellsPerSide + cy)*cellsPerSide + cz;
+	}
+
+	/**
+	 * Converts one position component into a cell coordinate.
+	 *
+	 * @param position - the position component.
+	 * @return int - the cell coordinate along that axis.
+	 */
+	private int cellCoordinate(double position)
+	{
+		int cell = (int)((position + boxSize/2)/cellSize);
+		if(cell < 0)
+			return 0;
+		if(cell >= cellsPerSide)
+			return cellsPerSide-1;
+		return cell;
+	}
+
+}
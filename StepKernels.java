@@ -0,0 +1,569 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The inner loops of the step, run over ranges of the primitive arrays in a ParticleStore. There are two
+ * implementations that give exactly the same results:
+ * SCALAR - one particle at a time through the ParticleStore methods the Particle class uses.
+ * ARRAY - counted loops over the raw arrays with the array loads hoisted out, the shape the JIT compiler turns into
+ * SIMD instructions for the integration. The pair tests read the grid's sorted copies of the positions, so the
+ * neighbors of a particle are read from nine contiguous runs instead of being looked up one index at a time.
+ *
+ * The kernels used by the step are chosen once at startup from the fluid.kernels system property ("scalar" or
+ * "array", default array). Setting fluid.kernels.verify to true runs both implementations on the same random particles
+ * before the first step and stops with an IllegalStateException if they don't agree.
+ *
+ * @author Ben Johnson
+ * @version 6-26-2017
+ *
+ */
+public abstract class StepKernels {
+
+	public static final StepKernels SCALAR = new ScalarKernels();
+	public static final StepKernels ARRAY = new ArrayKernels();
+
+	private static final StepKernels SELECTED = select();
+
+	/**
+	 * Accessor method for the kernels chosen at startup.
+	 *
+	 * @return StepKernels - the kernels the step uses.
+	 */
+	public static StepKernels get()
+	{
+		return SELECTED;
+	}
+
+	/**
+	 * Accessor method for the name of the kernels.
+	 *
+	 * @return String - "scalar" or "array".
+	 */
+	public abstract String getName();
+
+	/**
+	 * Adds the velocity to the position of every particle in a range.
+	 *
+	 * @param store - the particles.
+	 * @param from - the first index.
+	 * @param to - one past the last index.
+	 */
+	public abstract void integrate(ParticleStore store, int from, int to);
+
+	/**
+	 * Adds the velocity to the position of every particle in a range and adds the squared speeds and the speed histogram
+	 * of the range to a gas sample.
+	 *
+	 * @param store - the particles.
+	 * @param from - the first index.
+	 * @param to - one past the last index.
+	 * @param sample - the sample to add to.
+	 */
+	public abstract void integrate(ParticleStore store, int from, int to, GasSample sample);
+
+	/**
+	 * Undoes the move of every particle in a range that reached a wall and reflects its velocity off of every wall it
+	 * touches, like ParticleStore.checkBoxIntersection.
+	 *
+	 * @param store - the particles.
+	 * @param boxSize - the side length of the box.
+	 * @param from - the first index.
+	 * @param to - one past the last index.
+	 * @return int - the number of particles that hit a wall.
+	 */
+	public int reflectWalls(ParticleStore store, double boxSize, int from, int to)
+	{
+		return reflectWalls(store, boxSize, from, to, null);
+	}
+
+	/**
+	 * Undoes the move of every particle in a range that reached a wall and reflects its velocity off of every wall it
+	 * touches, adding the impulse of the reflections to a gas sample.
+	 *
+	 * @param store - the particles.
+	 * @param boxSize - the side length of the box.
+	 * @param from - the first index.
+	 * @param to - one past the last index.
+	 * @param sample - the sample to add the wall impulse to, or null.
+	 * @return int - the number of particles that hit a wall.
+	 */
+	public abstract int reflectWalls(ParticleStore store, double boxSize, int from, int to, GasSample sample);
+
+	/**
+	 * Finds the first particle in the neighboring cells of a fully rebuilt grid that intersects the given particle,
+	 * in the order the grid's cell lists are walked.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param grid - the grid, with its sorted arrays up to date.
+	 * @param index - the index of the particle to check.
+	 * @param count - counts the pairs tested and the pairs that intersect, or null.
+	 * @return int - the index of the intersecting particle, or -1 if there is none.
+	 */
+	public abstract int firstIntersecting(ParticleStore store, SpatialGrid grid, int index, PairCount count);
+
+	/**
+	 * Finds the closest particle in the neighboring cells of a fully rebuilt grid that intersects the given particle,
+	 * ties going to the lower index.
+	 *
+	 * @param store - the particles the grid was built from.
+	 * @param grid - the grid, with its sorted arrays up to date.
+	 * @param index - the index of the particle to check.
+	 * @param count - counts the pairs tested and the pairs that intersect, or null.
+	 * @return int - the index of the closest intersecting particle, or -1 if there is none.
+	 */
+	public abstract int nearestIntersecting(ParticleStore store, SpatialGrid grid, int index, PairCount count);
+
+	/**
+	 * Runs the scalar and array kernels on two copies of the same random particles, some of them pushed into the walls
+	 * and into each other, and checks that every result and every array agrees.
+	 *
+	 * @param count - the number of particles.
+	 * @param seed - the seed for the random particles.
+	 * @throws IllegalStateException - if the kernels disagree.
+	 */
+	public static void verify(int count, long seed)
+	{
+		double box = 1;
+		ParticleStore scalar = randomStore(count, box, seed);
+		ParticleStore array = randomStore(count, box, seed);
+		GasSample scalarSample = new GasSample(), arraySample = new GasSample();
+		for(int round = 0; round < 4; round++)
+		{
+			scalarSample.reset(.01);
+			arraySample.reset(.01);
+			SCALAR.integrate(scalar, 0, count, scalarSample);
+			ARRAY.integrate(array, 0, count, arraySample);
+			int scalarHits = SCALAR.reflectWalls(scalar, box, 0, count, scalarSample);
+			int arrayHits = ARRAY.reflectWalls(array, box, 0, count, arraySample);
+			if(scalarHits != arrayHits)
+				throw new IllegalStateException("Wall hits differ: " + scalarHits + " and " + arrayHits);
+			if(scalarSample.getSpeedSquared() != arraySample.getSpeedSquared()
+					|| scalarSample.getImpulse() != arraySample.getImpulse()
+					|| !Arrays.equals(scalarSample.getHistogram(), arraySample.getHistogram()))
+				throw new IllegalStateException("Gas samples differ");
+			check("x", scalar.getX(), array.getX(), count);
+			check("y", scalar.getY(), array.getY(), count);
+			check("z", scalar.getZ(), array.getZ(), count);
+			check("vx", scalar.getVX(), array.getVX(), count);
+			check("vy", scalar.getVY(), array.getVY(), count);
+			check("vz", scalar.getVZ(), array.getVZ(), count);
+		}
+
+		SpatialGrid grid = new SpatialGrid(box);
+		grid.rebuild(scalar);
+		PairCount scalarCount = new PairCount(), arrayCount = new PairCount();
+		for(int i = 0; i < count; i++)
+		{
+			if(SCALAR.firstIntersecting(scalar, grid, i, scalarCount) != ARRAY.firstIntersecting(scalar, grid, i, arrayCount)
+					|| SCALAR.nearestIntersecting(scalar, grid, i, scalarCount)
+					!= ARRAY.nearestIntersecting(scalar, grid, i, arrayCount))
+				throw new IllegalStateException("Pair tests differ for particle " + i);
+		}
+		if(scalarCount.getTested() != arrayCount.getTested() || scalarCount.getIntersecting() != arrayCount.getIntersecting())
+			throw new IllegalStateException("Pair counts differ");
+	}
+
+	/**
+	 * Picks the kernels named by the fluid.kernels system property and verifies them if fluid.kernels.verify is set.
+	 *
+	 * @return StepKernels - the chosen kernels.
+	 */
+	private static StepKernels select()
+	{
+		String name = System.getProperty("fluid.kernels", "array");
+		if(Boolean.getBoolean("fluid.kernels.verify"))
+			verify(4096, 1);
+		if(name.equalsIgnoreCase("scalar"))
+			return SCALAR;
+		if(name.equalsIgnoreCase("array"))
+			return ARRAY;
+		throw new IllegalArgumentException("Unknown kernels " + name + ", expected scalar or array");
+	}
+
+	/**
+	 * Fills a store with particles at random positions, some past the walls, and random velocities.
+	 *
+	 * @param count - the number of particles.
+	 * @param box - the side length of the box.
+	 * @param seed - the random seed.
+	 * @return ParticleStore - the new store.
+	 */
+	private static ParticleStore randomStore(int count, double box, long seed)
+	{
+		SplittableRandom random = new SplittableRandom(seed);
+		ParticleStore store = new ParticleStore();
+		for(int i = 0; i < count; i++)
+		{
+			int index = store.add(.01 + random.nextDouble()*.02, 0);
+			store.setPosition(index, (random.nextDouble() - .5)*box*1.05, (random.nextDouble() - .5)*box*1.05,
+					(random.nextDouble() - .5)*box*1.05);
+			store.setVelocity(index, (random.nextDouble() - .5)*.1, (random.nextDouble() - .5)*.1,
+					(random.nextDouble() - .5)*.1);
+		}
+		return store;
+	}
+
+	/**
+	 * Checks that two arrays hold the same values.
+	 *
+	 * @param name - the name of the array, for the error message.
+	 * @param expected - the scalar results.
+	 * @param actual - the array results.
+	 * @param count - the number of values to compare.
+	 * @throws IllegalStateException - if a value differs.
+	 */
+	private static void check(String name, double[] expected, double[] actual, int count)
+	{
+		for(int i = 0; i < count; i++)
+		{
+			if(expected[i] != actual[i])
+				throw new IllegalStateException(name + "[" + i + "] differs: " + expected[i] + " and " + actual[i]);
+		}
+	}
+
+	/**
+	 * Counts the pair tests done by the kernels and how many of them found an intersection. A count is only ever
+	 * touched by one thread, every thread that runs the pair kernels keeps its own.
+	 */
+	public static class PairCount
+	{
+		private long tested;
+		private long intersecting;
+
+		/**
+		 * Adds the pairs tested for one particle.
+		 *
+		 * @param pairs - the number of pairs tested.
+		 * @param hits - the number of those pairs that intersect.
+		 */
+		public void add(long pairs, long hits)
+		{
+			tested += pairs;
+			intersecting += hits;
+		}
+
+		/**
+		 * Sets both counts back to zero.
+		 */
+		public void reset()
+		{
+			tested = intersecting = 0;
+		}
+
+		/**
+		 * Accessor method for the number of pairs tested.
+		 *
+		 * @return long - the pairs tested since the last reset.
+		 */
+		public long getTested()
+		{
+			return tested;
+		}
+
+		/**
+		 * Accessor method for the number of pairs that intersect.
+		 *
+		 * @return long - the intersecting pairs found since the last reset.
+		 */
+		public long getIntersecting()
+		{
+			return intersecting;
+		}
+	}
+
+	/**
+	 * The kernels that go through the ParticleStore methods one particle at a time.
+	 */
+	private static class ScalarKernels extends StepKernels
+	{
+		@Override
+		public String getName()
+		{
+			return "scalar";
+		}
+
+		@Override
+		public void integrate(ParticleStore store, int from, int to)
+		{
+			for(int i = from; i < to; i++)
+			{
+				store.addVelocity(i);
+			}
+		}
+
+		@Override
+		public void integrate(ParticleStore store, int from, int to, GasSample sample)
+		{
+			double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+			int[] histogram = sample.getHistogram();
+			double scale = sample.getBinScale();
+			double sum = 0;
+			for(int i = from; i < to; i++)
+			{
+				store.addVelocity(i);
+				double speedSquared = vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i];
+				sum += speedSquared;
+				int bin = (int)(Math.sqrt(speedSquared)*scale);
+				if(bin < GasSample.BINS)
+					histogram[bin]++;
+			}
+			sample.addSpeeds(sum, to - from);
+		}
+
+		@Override
+		public int reflectWalls(ParticleStore store, double boxSize, int from, int to, GasSample sample)
+		{
+			double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+			int hits = 0;
+			double impulse = 0;
+			for(int i = from; i < to; i++)
+			{
+				double oldX = vx[i], oldY = vy[i], oldZ = vz[i];
+				if(store.checkBoxIntersection(i, boxSize))
+				{
+					hits++;
+					impulse += Math.abs(oldX - vx[i]) + Math.abs(oldY - vy[i]) + Math.abs(oldZ - vz[i]);
+				}
+			}
+			if(sample != null)
+				sample.addImpulse(impulse);
+			return hits;
+		}
+
+		@Override
+		public int firstIntersecting(ParticleStore store, SpatialGrid grid, int index, PairCount count)
+		{
+			int[] sortedIndex = grid.getSortedIndex();
+			int cells = grid.getCellsPerSide();
+			int cx = grid.getCellCoordinate(store.getX()[index]);
+			int cy = grid.getCellCoordinate(store.getY()[index]);
+			int cz = grid.getCellCoordinate(store.getZ()[index]);
+			int tested = 0;
+			for(int x = Math.max(cx-1, 0); x <= Math.min(cx+1, cells-1); x++)
+			{
+				for(int y = Math.max(cy-1, 0); y <= Math.min(cy+1, cells-1); y++)
+				{
+					int end = grid.getRunEnd(x, y, cz);
+					for(int k = grid.getRunStart(x, y, cz); k < end; k++)
+					{
+						int i = sortedIndex[k];
+						if(i == index)
+							continue;
+						tested++;
+						if(store.intersects(index, i))
+						{
+							if(count != null)
+								count.add(tested, 1);
+							return i;
+						}
+					}
+				}
+			}
+			if(count != null)
+				count.add(tested, 0);
+			return -1;
+		}
+
+		@Override
+		public int nearestIntersecting(ParticleStore store, SpatialGrid grid, int index, PairCount count)
+		{
+			int[] sortedIndex = grid.getSortedIndex();
+			int cells = grid.getCellsPerSide();
+			int cx = grid.getCellCoordinate(store.getX()[index]);
+			int cy = grid.getCellCoordinate(store.getY()[index]);
+			int cz = grid.getCellCoordinate(store.getZ()[index]);
+			int nearest = -1;
+			double nearestDistance = Double.MAX_VALUE;
+			int tested = 0, intersecting = 0;
+			for(int x = Math.max(cx-1, 0); x <= Math.min(cx+1, cells-1); x++)
+			{
+				for(int y = Math.max(cy-1, 0); y <= Math.min(cy+1, cells-1); y++)
+				{
+					int end = grid.getRunEnd(x, y, cz);
+					tested += end - grid.getRunStart(x, y, cz);
+					for(int k = grid.getRunStart(x, y, cz); k < end; k++)
+					{
+						int i = sortedIndex[k];
+						if(i == index || !store.intersects(index, i))
+							continue;
+						intersecting++;
+						double dx = store.getX()[index] - store.getX()[i];
+						double dy = store.getY()[index] - store.getY()[i];
+						double dz = store.getZ()[index] - store.getZ()[i];
+						double distance = dx*dx + dy*dy + dz*dz;
+						if(distance < nearestDistance || (distance == nearestDistance && i < nearest))
+						{
+							nearest = i;
+							nearestDistance = distance;
+						}
+					}
+				}
+			}
+			if(count != null)
+				count.add(tested - 1, intersecting);
+			return nearest;
+		}
+	}
+
+	/**
+	 * The kernels that loop over the raw arrays.
+	 */
+	private static class ArrayKernels extends StepKernels
+	{
+		@Override
+		public String getName()
+		{
+			return "array";
+		}
+
+		@Override
+		public void integrate(ParticleStore store, int from, int to)
+		{
+			double[] x = store.getX(), y = store.getY(), z = store.getZ();
+			double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+			for(int i = from; i < to; i++)
+			{
+				x[i] += vx[i];
+				y[i] += vy[i];
+				z[i] += vz[i];
+			}
+		}
+
+		@Override
+		public void integrate(ParticleStore store, int from, int to, GasSample sample)
+		{
+			double[] x = store.getX(), y = store.getY(), z = store.getZ();
+			double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+			int[] histogram = sample.getHistogram();
+			double scale = sample.getBinScale();
+			double sum = 0;
+			for(int i = from; i < to; i++)
+			{
+				double velocityX = vx[i], velocityY = vy[i], velocityZ = vz[i];
+				x[i] += velocityX;
+				y[i] += velocityY;
+				z[i] += velocityZ;
+				double speedSquared = velocityX*velocityX + velocityY*velocityY + velocityZ*velocityZ;
+				sum += speedSquared;
+				int bin = (int)(Math.sqrt(speedSquared)*scale);
+				if(bin < GasSample.BINS)
+					histogram[bin]++;
+			}
+			sample.addSpeeds(sum, to - from);
+		}
+
+		@Override
+		public int reflectWalls(ParticleStore store, double boxSize, int from, int to, GasSample sample)
+		{
+			double[] x = store.getX(), y = store.getY(), z = store.getZ();
+			double[] vx = store.getVX(), vy = store.getVY(), vz = store.getVZ();
+			double[] radius = store.getRadius();
+			double half = boxSize/2;
+			int hits = 0;
+			double impulse = 0;
+			for(int i = from; i < to; i++)
+			{
+				double r = radius[i];
+				boolean hitX = Math.abs(x[i])+r >= half;
+				boolean hitY = Math.abs(y[i])+r >= half;
+				boolean hitZ = Math.abs(z[i])+r >= half;
+				if(!(hitX || hitY || hitZ))
+					continue;
+				x[i] -= vx[i];
+				y[i] -= vy[i];
+				z[i] -= vz[i];
+				double oldX = vx[i], oldY = vy[i], oldZ = vz[i];
+				if(hitX)
+					vx[i] = -vx[i];
+				if(hitY)
+					vy[i] = -vy[i];
+				if(hitZ)
+					vz[i] = -vz[i];
+				impulse += Math.abs(oldX - vx[i]) + Math.abs(oldY - vy[i]) + Math.abs(oldZ - vz[i]);
+				hits++;
+			}
+			if(sample != null)
+				sample.addImpulse(impulse);
+			return hits;
+		}
+
+		@Override
+		public int firstIntersecting(ParticleStore store, SpatialGrid grid, int index, PairCount count)
+		{
+			double[] x = grid.getSortedX(), y = grid.getSortedY(), z = grid.getSortedZ(), radius = grid.getSortedRadius();
+			int[] sortedIndex = grid.getSortedIndex();
+			int self = grid.getSortedSlot()[index];
+			double px = x[self], py = y[self], pz = z[self], r = radius[self];
+			int cells = grid.getCellsPerSide();
+			int cx = grid.getCellCoordinate(px), cy = grid.getCellCoordinate(py), cz = grid.getCellCoordinate(pz);
+			int tested = 0;
+			for(int gx = Math.max(cx-1, 0); gx <= Math.min(cx+1, cells-1); gx++)
+			{
+				for(int gy = Math.max(cy-1, 0); gy <= Math.min(cy+1, cells-1); gy++)
+				{
+					int start = grid.getRunStart(gx, gy, cz), end = grid.getRunEnd(gx, gy, cz);
+					for(int k = start; k < end; k++)
+					{
+						double dx = px - x[k];
+						double dy = py - y[k];
+						double dz = pz - z[k];
+						double reach = r + radius[k];
+						if(k != self && dx*dx + dy*dy + dz*dz < reach*reach)
+						{
+							if(count != null)
+								count.add(tested + k - start - (self >= start && self < k ? 1 : 0) + 1, 1);
+							return sortedIndex[k];
+						}
+					}
+					tested += end - start - (self >= start && self < end ? 1 : 0);
+				}
+			}
+			if(count != null)
+				count.add(tested, 0);
+			return -1;
+		}
+
+		@Override
+		public int nearestIntersecting(ParticleStore store, SpatialGrid grid, int index, PairCount count)
+		{
+			double[] x = grid.getSortedX(), y = grid.getSortedY(), z = grid.getSortedZ(), radius = grid.getSortedRadius();
+			int[] sortedIndex = grid.getSortedIndex();
+			int self = grid.getSortedSlot()[index];
+			double px = x[self], py = y[self], pz = z[self], r = radius[self];
+			int cells = grid.getCellsPerSide();
+			int cx = grid.getCellCoordinate(px), cy = grid.getCellCoordinate(py), cz = grid.getCellCoordinate(pz);
+			int nearest = -1;
+			double nearestDistance = Double.MAX_VALUE;
+			int tested = 0, intersecting = 0;
+			for(int gx = Math.max(cx-1, 0); gx <= Math.min(cx+1, cells-1); gx++)
+			{
+				for(int gy = Math.max(cy-1, 0); gy <= Math.min(cy+1, cells-1); gy++)
+				{
+					int start = grid.getRunStart(gx, gy, cz), end = grid.getRunEnd(gx, gy, cz);
+					tested += end - start;
+					for(int k = start; k < end; k++)
+					{
+						double dx = px - x[k];
+						double dy = py - y[k];
+						double dz = pz - z[k];
+						double distance = dx*dx + dy*dy + dz*dz;
+						double reach = r + radius[k];
+						if(k == self || distance >= reach*reach)
+							continue;
+						intersecting++;
+						int i = sortedIndex[k];
+						if(distance < nearestDistance || (distance == nearestDistance && i < nearest))
+						{
+							nearest = i;
+							nearestDistance = distance;
+						}
+					}
+				}
+			}
+			if(count != null)
+				count.add(tested - 1, intersecting);
+			return nearest;
+		}
+	}
+
+}
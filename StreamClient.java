@@ -0,0 +1,384 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the frames a StreamServer sends one at a time. Each frame is decompressed as it is read and its positions are
+ * rebuilt by adding its differences to the last frame, or to zero for a key frame. The server drops frames for a viewer
+ * that reads too slowly, so the step numbers of the frames read can jump.
+ *
+ * The arrays returned by the accessor methods are reused for every frame.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class StreamClient implements Closeable {
+
+	private Socket socket;
+	private DataInputStream in;
+	private Inflater inflater;
+	private int levels;
+	private byte[] compressed;
+	private byte[] encoded;
+	private int position;
+	private int encodedLength;
+	private boolean keyed;
+	private long step;
+	private double boxSize;
+	private int count;
+	private long[] quantized;
+	private double[] x, y, z;
+	private int[] species;
+	private int speciesCount;
+	private int[] speciesColor;
+	private double[] speciesRadius;
+	private long frames;
+	private long keyFrames;
+	private long bytesRead;
+
+	/**
+	 * Constructor for the stream client. Connects to the server and reads its header.
+	 *
+	 * @param host - the host the simulation runs on.
+	 * @param port - the port the stream server listens on.
+	 * @throws IOException - if the server can't be reached or doesn't send a stream of a known version.
+	 */
+	public StreamClient(String host, int port) throws IOException
+	{
+		socket = new Socket();
+		socket.setReceiveBufferSize(StreamServer.SOCKET_BUFFER);
+		socket.connect(new InetSocketAddress(host, port));
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		if(in.readInt() != StreamServer.MAGIC)
+		{
+			socket.close();
+			throw new IOException(host + ":" + port + " is not a simulation stream");
+		}
+		int version = in.readInt();
+		if(version != StreamServer.VERSION)
+		{
+			socket.close();
+			throw new IOException("Unsupported stream version " + version);
+		}
+		levels = (1 << in.readInt()) - 1;
+		bytesRead = 12;
+		inflater = new Inflater();
+		compressed = new byte[0];
+		encoded = new byte[0];
+		quantized = new long[0];
+		x = y = z = new double[0];
+		species = new int[0];
+		speciesColor = new int[0];
+		speciesRadius = new double[0];
+	}
+
+	/**
+	 * Waits for and reads the next frame.
+	 *
+	 * @return boolean - false if the server closed the stream.
+	 * @throws IOException - if the stream is corrupt or can't be read.
+	 */
+	public boolean next() throws IOException
+	{
+		byte kind;
+		try
+		{
+			kind = in.readByte();
+		}
+		catch(EOFException e)
+		{
+			return false;
+		}
+		if(kind != StreamServer.KEY && kind != StreamServer.DELTA)
+			throw new IOException("Corrupt stream frame");
+		step = in.readLong();
+		boxSize = in.readDouble();
+		int frameCount = in.readInt();
+		encodedLength = in.readInt();
+		int compressedLength = in.readInt();
+		if(frameCount < 0 || encodedLength < 0 || compressedLength < 0 || !(boxSize > 0))
+			throw new IOException("Corrupt stream frame header");
+		if(kind == StreamServer.DELTA && (!keyed || frameCount != count))
+			throw new IOException("Stream difference without a key frame");
+		if(compressed.length < compressedLength)
+			compressed = new byte[compressedLength];
+		if(encoded.length < encodedLength)
+			encoded = new byte[encodedLength];
+		in.readFully(compressed, 0, compressedLength);
+		bytesRead += 29 + compressedLength;
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedLength);
+		try
+		{
+			int length = 0;
+			while(length < encodedLength && !inflater.finished())
+			{
+				int inflated = inflater.inflate(encoded, length, encodedLength - length);
+				if(inflated == 0 && inflater.needsInput())
+					break;
+				length += inflated;
+			}
+			if(length != encodedLength)
+				throw new IOException("Truncated stream frame");
+		}
+		catch(DataFormatException e)
+		{
+			throw new IOException("Corrupt stream frame", e);
+		}
+		position = 0;
+
+		count = frameCount;
+		if(kind == StreamServer.KEY)
+			readKey();
+		double scale = boxSize/levels, half = boxSize/2;
+		for(int i = 0; i < count; i++)
+		{
+			x[i] = decode(i*3)*scale - half;
+			y[i] = decode(i*3 + 1)*scale - half;
+			z[i] = decode(i*3 + 2)*scale - half;
+		}
+		frames++;
+		return true;
+	}
+
+	/**
+	 * Disconnects from the server.
+	 *
+	 * @throws IOException - if the connection can't be closed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		inflater.end();
+		socket.close();
+	}
+
+	/**
+	 * Accessor method for the step of the current frame.
+	 *
+	 * @return long - the step the frame was sent at.
+	 */
+	public long getStep()
+	{
+		return step;
+	}
+
+	/**
+	 * Accessor method for the box size of the current frame.
+	 *
+	 * @return double - the side length of the box.
+	 */
+	public double getBoxSize()
+	{
+		return boxSize;
+	}
+
+	/**
+	 * Accessor method for the number of particles in the current frame.
+	 *
+	 * @return int - the number of particles.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Accessor method for the x positions of the current frame.
+	 *
+	 * @return double[] - the x position of every particle.
+	 */
+	public double[] getX()
+	{
+		return x;
+	}
+
+	/**
+	 * Accessor method for the y positions of the current frame.
+	 *
+	 * @return double[] - the y position of every particle.
+	 */
+	public double[] getY()
+	{
+		return y;
+	}
+
+	/**
+	 * Accessor method for the z positions of the current frame.
+	 *
+	 * @return double[] - the z position of every particle.
+	 */
+	public double[] getZ()
+	{
+		return z;
+	}
+
+	/**
+	 * Accessor method for the species indices of the current frame.
+	 *
+	 * @return int[] - the species index of every particle.
+	 */
+	public int[] getSpecies()
+	{
+		return species;
+	}
+
+	/**
+	 * Accessor method for the number of species in the current frame.
+	 *
+	 * @return int - the number of species.
+	 */
+	public int getSpeciesCount()
+	{
+		return speciesCount;
+	}
+
+	/**
+	 * Accessor method for the color of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return int - the packed RGB color of the species.
+	 */
+	public int getSpeciesColor(int speciesIndex)
+	{
+		return speciesColor[speciesIndex];
+	}
+
+	/**
+	 * Accessor method for the radius of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return double - the radius of the species' particles.
+	 */
+	public double getSpeciesRadius(int speciesIndex)
+	{
+		return speciesRadius[speciesIndex];
+	}
+
+	/**
+	 * Accessor method for the number of frames read.
+	 *
+	 * @return long - the frames read.
+	 */
+	public long getFrames()
+	{
+		return frames;
+	}
+
+	/**
+	 * Accessor method for the number of key frames read.
+	 *
+	 * @return long - the key frames read.
+	 */
+	public long getKeyFrames()
+	{
+		return keyFrames;
+	}
+
+	/**
+	 * Accessor method for the number of bytes read from the server.
+	 *
+	 * @return long - the bytes read, headers included.
+	 */
+	public long getBytesRead()
+	{
+		return bytesRead;
+	}
+
+	/**
+	 * Reads the species table and particle species of a key frame and starts the positions from zero.
+	 *
+	 * @throws IOException - if the frame ends too soon.
+	 */
+	private void readKey() throws IOException
+	{
+		speciesCount = (int)readVarLong();
+		if(speciesColor.length < speciesCount)
+		{
+			speciesColor = new int[speciesCount];
+			speciesRadius = new double[speciesCount];
+		}
+		for(int i = 0; i < speciesCount; i++)
+		{
+			speciesColor[i] = (int)readVarLong();
+			speciesRadius[i] = Double.longBitsToDouble(readLong());
+		}
+		if(x.length < count)
+		{
+			x = new double[count];
+			y = new double[count];
+			z = new double[count];
+			species = new int[count];
+			quantized = new long[count*3];
+		}
+		for(int i = 0; i < count; i++)
+		{
+			species[i] = (int)readVarLong();
+			quantized[i*3] = quantized[i*3 + 1] = quantized[i*3 + 2] = 0;
+		}
+		keyed = true;
+		keyFrames++;
+	}
+
+	/**
+	 * Reads a zig-zag difference and adds it to a quantized coordinate.
+	 *
+	 * @param slot - the index of the coordinate.
+	 * @return long - the new quantized coordinate.
+	 * @throws IOException - if the frame ends too soon.
+	 */
+	private long decode(int slot) throws IOException
+	{
+		long zigzag = readVarLong();
+		quantized[slot] += (zigzag >>> 1) ^ -(zigzag & 1);
+		return quantized[slot];
+	}
+
+	/**
+	 * Reads a variable length long from the decompressed frame.
+	 *
+	 * @return long - the value.
+	 * @throws IOException - if the frame ends too soon.
+	 */
+	private long readVarLong() throws IOException
+	{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			if(position >= encodedLength)
+				throw new IOException("Truncated stream frame");
+			byte b = encoded[position++];
+			value |= (long)(b & 0x7F) << shift;
+			if(b >= 0)
+				return value;
+		}
+		throw new IOException("Corrupt stream frame");
+	}
+
+	/**
+	 * Reads a big endian long from the decompressed frame.
+	 *
+	 * @return long - the value.
+	 * @throws IOException - if the frame ends too soon.
+	 */
+	private long readLong() throws IOException
+	{
+		if(position + 8 > encodedLength)
+			throw new IOException("Truncated stream frame");
+		long value = 0;
+		for(int i = 0; i < 8; i++)
+		{
+			value = (value << 8) | (encoded[position++] & 0xFF);
+		}
+		return value;
+	}
+
+}
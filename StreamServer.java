@@ -0,0 +1,529 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+/**
+ * Streams the particle positions of a running simulation over TCP to any number of remote viewers, StreamClient reads
+ * the stream and StreamViewer draws it. Frames are sent at most framesPerSecond times a second.
+ *
+ * On the physics thread the positions are quantized once into a frame taken from a fixed pool and the frame is handed
+ * to every client, so publishing costs one pass over the particles however many viewers there are. Each client has a
+ * sender thread and a mailbox that holds one frame. When a new frame arrives before the sender has taken the last one,
+ * the old frame is dropped for that client only. A slow viewer gets fewer frames, it never slows the simulation or the
+ * other viewers. A frame goes back to the pool once every client it was handed to is done with it, and if the pool is
+ * empty the frame is skipped.
+ *
+ * Positions are quantized to QUANTIZATION_BITS per axis across the box. Each client's first frame is a key frame that
+ * carries the species table and the positions themselves. Later frames carry only the difference from the last frame
+ * that client was sent, as zig-zag variable length integers compressed with Deflater. A new key frame is sent when the
+ * number of particles, the species table, the species of any particle or the box size change. The species are
+ * compared by a checksum, so clearing the box and adding as many particles of other species starts a key frame too.
+ *
+ * The stream layout (big endian) is:
+ * header - int magic ("FSTR"), int version, int quantization bits.
+ * frame - byte kind (KEY or DELTA), long step, double box size, int particle count, int encoded length, int compressed
+ * length, then the compressed bytes. The encoded bytes of a key frame start with the species table (the number of
+ * species, then the color and the raw bits of the radius of each) and the species of every particle. Every frame then
+ * holds the x, y and z difference of every particle, from zero in a key frame.
+ *
+ * The socket buffers are kept to SOCKET_BUFFER bytes so a viewer falling behind blocks its sender after a frame or two
+ * and starts dropping frames, instead of the operating system queueing seconds of old frames for it.
+ *
+ * Particles are sent in id order, so a particle keeps its place from frame to frame when the store is reordered.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class StreamServer implements SimulationListener {
+
+	public static final int MAGIC = 0x46535452;
+	public static final int VERSION = 1;
+	public static final int QUANTIZATION_BITS = 16;
+	public static final byte KEY = 0, DELTA = 1;
+	public static final int POOL_SIZE = 4;
+	public static final int DEFAULT_PORT = 7200;
+	public static final double DEFAULT_RATE = 30;
+	public static final int SOCKET_BUFFER = 1 << 16;
+
+	private ServerSocket server;
+	private long frameNanos;
+	private long lastFrame;
+	private ArrayBlockingQueue<Frame> free;
+	private CopyOnWriteArrayList<Client> clients;
+	private Thread acceptor;
+	private SimulationEngine engine;
+	private AtomicLong published;
+	private AtomicLong skipped;
+	private AtomicLong dropped;
+	private AtomicLong bytesSent;
+
+	/**
+	 * Constructor for the stream server. Listens on the port straight away but only accepts viewers once started.
+	 *
+	 * @param port - the TCP port to listen on, 0 for any free port.
+	 * @param framesPerSecond - the most frames to send each second.
+	 * @throws IOException - if the port can't be listened on.
+	 */
+	public StreamServer(int port, double framesPerSecond) throws IOException
+	{
+		server = new ServerSocket(port);
+		frameNanos = (long)(1e9/framesPerSecond);
+		free = new ArrayBlockingQueue<Frame>(POOL_SIZE);
+		for(int i = 0; i < POOL_SIZE; i++)
+		{
+			free.add(new Frame());
+		}
+		clients = new CopyOnWriteArrayList<Client>();
+		published = new AtomicLong();
+		skipped = new AtomicLong();
+		dropped = new AtomicLong();
+		bytesSent = new AtomicLong();
+	}
+
+	/**
+	 * Starts accepting viewers and subscribes to the engine.
+	 *
+	 * @param simulation - the engine to stream.
+	 */
+	public void start(SimulationEngine simulation)
+	{
+		acceptor = new Thread(new Runnable() { public void run() { accept(); } }, "Stream Acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		engine = simulation;
+		engine.addListener(this);
+	}
+
+	/**
+	 * Unsubscribes from the engine, stops accepting viewers and disconnects every viewer.
+	 */
+	public void stop()
+	{
+		if(engine != null)
+			engine.removeListener(this);
+		engine = null;
+		try
+		{
+			server.close();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not close the stream server: " + e.getMessage());
+		}
+		for(Client client : clients)
+		{
+			client.close();
+		}
+	}
+
+	/**
+	 * Quantizes the positions into a free frame and hands it to every viewer, if there are viewers and the last frame
+	 * was sent long enough ago. Counts a skipped frame if none is free.
+	 *
+	 * @param simulation - the engine that finished the step.
+	 */
+	@Override
+	public void stepCompleted(SimulationEngine simulation)
+	{
+		long now = System.nanoTime();
+		if(clients.isEmpty() || now - lastFrame < frameNanos)
+			return;
+		lastFrame = now;
+		Frame frame = free.poll();
+		if(frame == null)
+		{
+			skipped.incrementAndGet();
+			return;
+		}
+		frame.copyFrom(simulation);
+		frame.references.set(1);
+		for(Client client : clients)
+		{
+			client.offer(frame);
+		}
+		frame.release();
+		published.incrementAndGet();
+	}
+
+	/**
+	 * Accessor method for the port the server listens on.
+	 *
+	 * @return int - the TCP port.
+	 */
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accessor method for the number of viewers connected.
+	 *
+	 * @return int - the connected viewers.
+	 */
+	public int getClients()
+	{
+		return clients.size();
+	}
+
+	/**
+	 * Accessor method for the number of frames handed to the viewers.
+	 *
+	 * @return long - the published frames.
+	 */
+	public long getFramesPublished()
+	{
+		return published.get();
+	}
+
+	/**
+	 * Accessor method for the number of frames skipped because every frame in the pool was still being sent.
+	 *
+	 * @return long - the skipped frames.
+	 */
+	public long getFramesSkipped()
+	{
+		return skipped.get();
+	}
+
+	/**
+	 * Accessor method for the number of frames viewers missed because they were still sending the frame before.
+	 *
+	 * @return long - the frames dropped over every viewer.
+	 */
+	public long getFramesDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Accessor method for the number of bytes sent to every viewer.
+	 *
+	 * @return long - the bytes sent, headers included.
+	 */
+	public long getBytesSent()
+	{
+		return bytesSent.get();
+	}
+
+	/**
+	 * The acceptor thread. Starts a client for every viewer that connects until the server is closed.
+	 */
+	private void accept()
+	{
+		while(!server.isClosed())
+		{
+			try
+			{
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				socket.setSendBufferSize(SOCKET_BUFFER);
+				Client client = new Client(socket);
+				clients.add(client);
+				client.sender.start();
+			}
+			catch(SocketException e)
+			{
+				return;
+			}
+			catch(IOException e)
+			{
+				System.err.println("Could not accept a viewer: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * One viewer, with its own sender thread, mailbox and last sent positions.
+	 */
+	private class Client
+	{
+		private Socket socket;
+		private DataOutputStream out;
+		private Thread sender;
+		private AtomicReference<Frame> mailbox;
+		private volatile boolean closed;
+		private Deflater deflater;
+		private byte[] encoded;
+		private int length;
+		private byte[] compressed;
+		private int[] previous;
+		private int previousCount;
+		private int previousSpecies;
+		private long previousChecksum;
+		private double previousBox;
+
+		private Client(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			mailbox = new AtomicReference<Frame>();
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			encoded = new byte[1 << 16];
+			compressed = new byte[1 << 16];
+			previous = new int[0];
+			previousCount = -1;
+			sender = new Thread(new Runnable() { public void run() { send(); } }, "Stream Sender " + socket.getRemoteSocketAddress());
+			sender.setDaemon(true);
+		}
+
+		/**
+		 * Takes a reference to a frame and puts it in the mailbox, dropping the one that was waiting there. Nothing is
+		 * handed to a viewer that has closed, and if the viewer closes while the frame goes in, the frame is taken back
+		 * out so that close() can't miss it. Called on the physics thread.
+		 *
+		 * @param frame - the new frame.
+		 */
+		private void offer(Frame frame)
+		{
+			if(closed)
+				return;
+			frame.references.incrementAndGet();
+			Frame old = mailbox.getAndSet(frame);
+			if(old != null)
+			{
+				old.release();
+				dropped.incrementAndGet();
+			}
+			else
+				LockSupport.unpark(sender);
+			if(closed)
+			{
+				Frame back = mailbox.getAndSet(null);
+				if(back != null)
+					back.release();
+			}
+		}
+
+		/**
+		 * The sender thread. Writes the header, then waits for frames and sends each one until the viewer goes away.
+		 */
+		private void send()
+		{
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(QUANTIZATION_BITS);
+				out.flush();
+				bytesSent.addAndGet(12);
+				while(!closed)
+				{
+					Frame frame = mailbox.getAndSet(null);
+					if(frame == null)
+					{
+						LockSupport.park(this);
+						continue;
+					}
+					try
+					{
+						write(frame);
+					}
+					finally
+					{
+						frame.release();
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				if(!closed)
+					System.err.println("Viewer " + socket.getRemoteSocketAddress() + " went away: " + e.getMessage());
+			}
+			finally
+			{
+				close();
+			}
+		}
+
+		/**
+		 * Encodes a frame as a key frame or as the difference from the last frame sent, compresses it and writes it.
+		 *
+		 * @param frame - the frame to send.
+		 * @throws IOException - if the viewer can't be written to.
+		 */
+		private void write(Frame frame) throws IOException
+		{
+			boolean key = frame.count != previousCount || frame.speciesCount != previousSpecies
+					|| frame.speciesChecksum != previousChecksum || frame.boxSize != previousBox;
+			length = 0;
+			if(key)
+			{
+				writeVarLong(frame.speciesCount);
+				for(int i = 0; i < frame.speciesCount; i++)
+				{
+					writeVarLong(frame.speciesColor[i]);
+					writeLong(Double.doubleToLongBits(frame.speciesRadius[i]));
+				}
+				for(int i = 0; i < frame.count; i++)
+				{
+					writeVarLong(frame.species[i]);
+				}
+				if(previous.length < frame.count*3)
+					previous = new int[frame.count*3];
+				Arrays.fill(previous, 0, frame.count*3, 0);
+			}
+			for(int i = 0; i < frame.count*3; i++)
+			{
+				long delta = frame.quantized[i] - previous[i];
+				previous[i] = frame.quantized[i];
+				writeVarLong((delta << 1) ^ (delta >> 63));
+			}
+			previousCount = frame.count;
+			previousSpecies = frame.speciesCount;
+			previousChecksum = frame.speciesChecksum;
+			previousBox = frame.boxSize;
+
+			deflater.reset();
+			deflater.setInput(encoded, 0, length);
+			deflater.finish();
+			int compressedLength = 0;
+			while(!deflater.finished())
+			{
+				if(compressedLength == compressed.length)
+					compressed = Arrays.copyOf(compressed, compressed.length*2);
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+			out.writeByte(key ? KEY : DELTA);
+			out.writeLong(frame.step);
+			out.writeDouble(frame.boxSize);
+			out.writeInt(frame.count);
+			out.writeInt(length);
+			out.writeInt(compressedLength);
+			out.write(compressed, 0, compressedLength);
+			out.flush();
+			bytesSent.addAndGet(29 + compressedLength);
+		}
+
+		private void writeVarLong(long value)
+		{
+			if(length + 10 > encoded.length)
+				encoded = Arrays.copyOf(encoded, encoded.length*2);
+			while((value & ~0x7FL) != 0)
+			{
+				encoded[length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			encoded[length++] = (byte)value;
+		}
+
+		private void writeLong(long value)
+		{
+			if(length + 8 > encoded.length)
+				encoded = Arrays.copyOf(encoded, encoded.length*2);
+			for(int shift = 56; shift >= 0; shift -= 8)
+			{
+				encoded[length++] = (byte)(value >>> shift);
+			}
+		}
+
+		/**
+		 * Disconnects the viewer and stops handing it frames.
+		 */
+		private void close()
+		{
+			if(closed && !clients.contains(this))
+				return;
+			closed = true;
+			clients.remove(this);
+			LockSupport.unpark(sender);
+			Frame frame = mailbox.getAndSet(null);
+			if(frame != null)
+				frame.release();
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{
+				System.err.println("Could not close the viewer: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The quantized positions of one step, shared by every client it was handed to. Frames are reused, the arrays only
+	 * grow.
+	 */
+	private class Frame
+	{
+		private AtomicInteger references = new AtomicInteger();
+		private long step;
+		private double boxSize;
+		private int count;
+		private double[] x = new double[0], y = new double[0], z = new double[0];
+		private int[] quantized = new int[0];
+		private int[] species = new int[0];
+		private int speciesCount;
+		private int[] speciesColor = new int[0];
+		private double[] speciesRadius = new double[0];
+		private long speciesChecksum;
+
+		private void copyFrom(SimulationEngine engine)
+		{
+			ParticleStore store = engine.getStore();
+			step = engine.getStepCount();
+			boxSize = engine.getBoxSize();
+			count = store.size();
+			if(x.length < count)
+			{
+				x = new double[count];
+				y = new double[count];
+				z = new double[count];
+				species = new int[count];
+				quantized = new int[count*3];
+			}
+			store.copyById(store.getX(), x);
+			store.copyById(store.getY(), y);
+			store.copyById(store.getZ(), z);
+			store.copyById(store.getSpecies(), species);
+			int levels = (1 << QUANTIZATION_BITS) - 1;
+			double scale = levels/boxSize, half = boxSize/2;
+			for(int i = 0; i < count; i++)
+			{
+				quantized[i*3] = (int)Math.max(0, Math.min(levels, Math.round((x[i] + half)*scale)));
+				quantized[i*3 + 1] = (int)Math.max(0, Math.min(levels, Math.round((y[i] + half)*scale)));
+				quantized[i*3 + 2] = (int)Math.max(0, Math.min(levels, Math.round((z[i] + half)*scale)));
+			}
+			speciesCount = store.getSpeciesCount();
+			if(speciesColor.length < speciesCount)
+			{
+				speciesColor = new int[speciesCount];
+				speciesRadius = new double[speciesCount];
+			}
+			for(int i = 0; i < speciesCount; i++)
+			{
+				speciesColor[i] = store.getSpeciesColor(i);
+				speciesRadius[i] = store.getSpeciesRadius(i);
+			}
+			speciesChecksum = speciesCount;
+			for(int i = 0; i < speciesCount; i++)
+			{
+				speciesChecksum = speciesChecksum*31 + speciesColor[i];
+				speciesChecksum = speciesChecksum*31 + Double.doubleToLongBits(speciesRadius[i]);
+			}
+			for(int i = 0; i < count; i++)
+			{
+				speciesChecksum = speciesChecksum*31 + species[i];
+			}
+		}
+
+		private void release()
+		{
+			if(references.decrementAndGet() == 0)
+				free.add(this);
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+import javax.swing.*;
+
+import com.sun.j3d.utils.universe.*;
+import com.sun.j3d.utils.geometry.Box;
+import com.sun.j3d.utils.behaviors.vp.OrbitBehavior;
+
+import javax.media.j3d.*;
+import javax.vecmath.*;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.io.IOException;
+
+/**
+ * A thin viewer that attaches to a simulation streaming with StreamServer, on this machine or another, and draws its
+ * particles with the BatchedRenderer. A reader thread reads the frames from a StreamClient into an engine of its own
+ * that is never stepped, and publishes them through a SnapshotBuffer to the render loop, the same way the Window draws
+ * a local simulation. The view can be turned with the mouse but the simulation can't be changed from here.
+ *
+ * Options are given as name value pairs: -host (default localhost) and -port (default StreamServer.DEFAULT_PORT) of
+ * the simulation. With -frames the viewer opens no window, reads that many frames and prints what it got, and -delay
+ * makes it wait that many milliseconds after every frame to act as a slow viewer.
+ *
+ * @author Ben Johnson
+ * @version 6-30-2017
+ *
+ */
+public class StreamViewer {
+
+	private JFrame frame;
+	private Canvas3D viewPort;
+	private SimpleUniverse world;
+	private TransformGroup transformGroupBox;
+	private BatchedRenderer batchedRenderer;
+	private SimulationEngine mirror;
+	private SnapshotBuffer snapshots;
+	private StreamClient client;
+	private Timer renderTimer;
+	private int framesPerSecond = 60;
+
+	/**
+	 * Constructor for the stream viewer. Opens the window and starts reading frames from the client.
+	 *
+	 * @param client - the connected stream client.
+	 */
+	public StreamViewer(StreamClient client)
+	{
+		this.client = client;
+		mirror = new SimulationEngine(1);
+		snapshots = new SnapshotBuffer();
+		batchedRenderer = new BatchedRenderer();
+
+		frame = new JFrame();
+		viewPort = new Canvas3D(SimpleUniverse.getPreferredConfiguration());
+		world = new SimpleUniverse(viewPort);
+		world.getViewingPlatform().setNominalViewingTransform();
+		frame.add(viewPort);
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.setSize(700, 700);
+		frame.setTitle("Fluid Simulation Viewer");
+		frame.setVisible(true);
+		frame.setLocationRelativeTo(null);
+
+		OrbitBehavior orbit = new OrbitBehavior(viewPort, OrbitBehavior.STOP_ZOOM);
+		orbit.setSchedulingBounds(new BoundingSphere());
+		orbit.setViewingPlatform(world.getViewingPlatform());
+		world.getViewingPlatform().setViewPlatformBehavior(orbit);
+		orbit.setReverseRotate(true);
+		orbit.setMinRadius(.5);
+		orbit.setRotFactors(.45, .45);
+
+		BranchGroup group = new BranchGroup();
+		transformGroupBox = new TransformGroup();
+		transformGroupBox.setCapability(TransformGroup.ALLOW_TRANSFORM_WRITE);
+		Appearance boxAppearance = new Appearance();
+		boxAppearance.setPolygonAttributes(new PolygonAttributes(PolygonAttributes.POLYGON_LINE, PolygonAttributes.CULL_NONE, 0));
+		transformGroupBox.addChild(new Box(.5f, .5f, .5f, boxAppearance));
+		group.addChild(transformGroupBox);
+		group.addChild(batchedRenderer.getRoot());
+		world.addBranchGraph(group);
+
+		Thread reader = new Thread(new Runnable() { public void run() { read(); } }, "Stream Reader");
+		reader.setDaemon(true);
+		reader.start();
+		renderTimer = new Timer(1000/framesPerSecond, new RenderEvent());
+		renderTimer.setCoalesce(true);
+		renderTimer.start();
+	}
+
+	/**
+	 * The reader thread. Copies every frame into the mirror engine and publishes it until the stream ends.
+	 */
+	private void read()
+	{
+		try
+		{
+			while(client.next())
+			{
+				copy(client, mirror);
+				snapshots.publish(mirror);
+			}
+			System.err.println("The simulation closed the stream");
+		}
+		catch(IOException e)
+		{
+			System.err.println("Could not read the stream: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Copies the current frame of a stream client into an engine's store, adding the particles again when the frame
+	 * changed their number or species.
+	 *
+	 * @param client - the client holding the frame.
+	 * @param engine - the engine to copy into.
+	 */
+	public static void copy(StreamClient client, SimulationEngine engine)
+	{
+		ParticleStore store = engine.getStore();
+		int count = client.getCount();
+		int[] species = client.getSpecies();
+		boolean same = store.size() == count;
+		int[] stored = store.getSpecies();
+		for(int i = 0; same && i < count; i++)
+		{
+			int s = species[i];
+			same = store.getSpeciesColor(stored[i]) == client.getSpeciesColor(s)
+					&& store.getSpeciesRadius(stored[i]) == client.getSpeciesRadius(s);
+		}
+		if(!same)
+		{
+			store.clear();
+			for(int i = 0; i < count; i++)
+			{
+				int s = species[i];
+				store.add(client.getSpeciesRadius(s), store.speciesFor(client.getSpeciesColor(s), client.getSpeciesRadius(s)));
+			}
+		}
+		double[] x = client.getX(), y = client.getY(), z = client.getZ();
+		for(int i = 0; i < count; i++)
+		{
+			store.setPosition(i, x[i], y[i], z[i]);
+		}
+		engine.setBoxSize(client.getBoxSize());
+		engine.setStepCount(client.getStep());
+	}
+
+	/**
+	 * The render loop listener. Draws the latest frame and scales the box outline to its size.
+	 *
+	 * @author Ben Johnson
+	 */
+	public class RenderEvent implements ActionListener
+	{
+		private double boxSize;
+
+		@Override
+		public void actionPerformed(ActionEvent e)
+		{
+			SimulationSnapshot snapshot = snapshots.latest();
+			if(snapshot.getBoxSize() > 0 && snapshot.getBoxSize() != boxSize)
+			{
+				boxSize = snapshot.getBoxSize();
+				Transform3D scale = new Transform3D();
+				scale.setScale(boxSize);
+				transformGroupBox.setTransform(scale);
+			}
+			batchedRenderer.update(snapshot, viewPort.getHeight()/2.0);
+		}
+	}
+
+	/**
+	 * Connects to a streaming simulation and opens the viewer, or reads a number of frames without a window.
+	 *
+	 * @param args - the command line options.
+	 * @throws IOException - if the simulation can't be reached or the stream can't be read.
+	 * @throws InterruptedException - if interrupted while acting slow.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		String host = "localhost";
+		int port = StreamServer.DEFAULT_PORT;
+		int frames = 0;
+		long delay = 0;
+		for(int i = 0; i + 1 < args.length; i += 2)
+		{
+			if(args[i].equals("-host"))
+				host = args[i+1];
+			else if(args[i].equals("-port"))
+				port = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-frames"))
+				frames = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-delay"))
+				delay = Long.parseLong(args[i+1]);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+
+		StreamClient client = new StreamClient(host, port);
+		if(frames <= 0)
+		{
+			System.setProperty("sun.awt.noerasebackground", "true");
+			new StreamViewer(client);
+			return;
+		}
+
+		SimulationEngine engine = new SimulationEngine(1);
+		long start = System.nanoTime(), firstStep = -1;
+		int read = 0;
+		while(read < frames && client.next())
+		{
+			copy(client, engine);
+			if(firstStep < 0)
+				firstStep = client.getStep();
+			read++;
+			if(delay > 0)
+				Thread.sleep(delay);
+		}
+		double seconds = (System.nanoTime() - start)/1e9;
+		client.close();
+		System.out.printf("Read %d frames (%d key frames) of %d particles in %.2f s: %.1f frames/s, steps %d to %d%n", read,
+				client.getKeyFrames(), client.getCount(), seconds, read/seconds, firstStep, client.getStep());
+		System.out.printf("Received %d bytes, %.1f bytes per particle per frame%n", client.getBytesRead(),
+				(double)client.getBytesRead()/Math.max(1, read)/Math.max(1, client.getCount()));
+	}
+
+}
@@ -0,0 +1,340 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the frames of a trajectory file written by TrajectoryRecorder back one at a time, for offline analysis. A whole
+ * chunk is decompressed when its first frame is read and the positions of each frame are rebuilt by adding its
+ * differences to the frame before it.
+ *
+ * The arrays returned by the accessor methods are reused for every frame.
+ *
+ * @author Ben Johnson
+ * @version 6-22-2017
+ *
+ */
+public class TrajectoryReader implements Closeable {
+
+	private DataInputStream in;
+	private Inflater inflater;
+	private double resolution;
+	private byte[] compressed;
+	private byte[] encoded;
+	private int position;
+	private int encodedLength;
+	private int framesLeft;
+	private long step;
+	private double boxSize;
+	private int count;
+	private long[] quantized;
+	private double[] x, y, z;
+	private int[] species;
+	private int speciesCount;
+	private int[] speciesColor;
+	private double[] speciesRadius;
+
+	/**
+	 * Constructor for the trajectory reader. Opens the file and reads its header.
+	 *
+	 * @param path - the trajectory file.
+	 * @throws IOException - if the file can't be read or isn't a trajectory of a known version.
+	 */
+	public TrajectoryReader(Path path) throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+		if(in.readInt() != TrajectoryRecorder.MAGIC)
+		{
+			in.close();
+			throw new IOException(path + " is not a trajectory file");
+		}
+		int version = in.readInt();
+		if(version != TrajectoryRecorder.VERSION)
+		{
+			in.close();
+			throw new IOException("Unsupported trajectory version " + version);
+		}
+		resolution = in.readDouble();
+		inflater = new Inflater();
+		compressed = new byte[0];
+		encoded = new byte[0];
+		quantized = new long[0];
+		x = y = z = new double[0];
+		species = new int[0];
+		speciesColor = new int[0];
+		speciesRadius = new double[0];
+	}
+
+	/**
+	 * Reads the next frame.
+	 *
+	 * @return boolean - false if there are no more frames.
+	 * @throws IOException - if the file is corrupt or can't be read.
+	 */
+	public boolean next() throws IOException
+	{
+		if(framesLeft == 0 && !readChunk())
+			return false;
+		step = readVarLong();
+		boxSize = Double.longBitsToDouble(readLong());
+		for(int i = 0; i < count; i++)
+		{
+			x[i] = decode(i*3)*resolution;
+			y[i] = decode(i*3 + 1)*resolution;
+			z[i] = decode(i*3 + 2)*resolution;
+		}
+		framesLeft--;
+		return true;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException - if the file can't be closed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		inflater.end();
+		in.close();
+	}
+
+	/**
+	 * Accessor method for the step of the current frame.
+	 *
+	 * @return long - the step the frame was recorded at.
+	 */
+	public long getStep()
+	{
+		return step;
+	}
+
+	/**
+	 * Accessor method for the box size of the current frame.
+	 *
+	 * @return double - the side length of the box.
+	 */
+	public double getBoxSize()
+	{
+		return boxSize;
+	}
+
+	/**
+	 * Accessor method for the number of particles in the current frame.
+	 *
+	 * @return int - the number of particles.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Accessor method for the x positions of the current frame.
+	 *
+	 * @return double[] - the x position of every particle.
+	 */
+	public double[] getX()
+	{
+		return x;
+	}
+
+	/**
+	 * Accessor method for the y positions of the current frame.
+	 *
+	 * @return double[] - the y position of every particle.
+	 */
+	public double[] getY()
+	{
+		return y;
+	}
+
+	/**
+	 * Accessor method for the z positions of the current frame.
+	 *
+	 * @return double[] - the z position of every particle.
+	 */
+	public double[] getZ()
+	{
+		return z;
+	}
+
+	/**
+	 * Accessor method for the species indices of the current frame.
+	 *
+	 * @return int[] - the species index of every particle.
+	 */
+	public int[] getSpecies()
+	{
+		return species;
+	}
+
+	/**
+	 * Accessor method for the number of species in the current frame.
+	 *
+	 * @return int - the number of species.
+	 */
+	public int getSpeciesCount()
+	{
+		return speciesCount;
+	}
+
+	/**
+	 * Accessor method for the color of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return int - the packed RGB color of the species.
+	 */
+	public int getSpeciesColor(int speciesIndex)
+	{
+		return speciesColor[speciesIndex];
+	}
+
+	/**
+	 * Accessor method for the radius of a species.
+	 *
+	 * @param speciesIndex - the species index.
+	 * @return double - the radius of the species' particles.
+	 */
+	public double getSpeciesRadius(int speciesIndex)
+	{
+		return speciesRadius[speciesIndex];
+	}
+
+	/**
+	 * Reads and decompresses the next chunk, then reads its species table and particle species.
+	 *
+	 * @return boolean - false if the file has no more chunks.
+	 * @throws IOException - if the chunk is corrupt or can't be read.
+	 */
+	private boolean readChunk() throws IOException
+	{
+		int magic;
+		try
+		{
+			magic = in.readInt();
+		}
+		catch(EOFException e)
+		{
+			return false;
+		}
+		if(magic != TrajectoryRecorder.CHUNK_MAGIC)
+			throw new IOException("Corrupt trajectory chunk");
+		framesLeft = in.readInt();
+		count = in.readInt();
+		encodedLength = in.readInt();
+		int compressedLength = in.readInt();
+		if(framesLeft <= 0 || count < 0 || encodedLength < 0 || compressedLength < 0)
+			throw new IOException("Corrupt trajectory chunk header");
+		if(compressed.length < compressedLength)
+			compressed = new byte[compressedLength];
+		if(encoded.length < encodedLength)
+			encoded = new byte[encodedLength];
+		in.readFully(compressed, 0, compressedLength);
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedLength);
+		try
+		{
+			int length = 0;
+			while(length < encodedLength && !inflater.finished())
+			{
+				int inflated = inflater.inflate(encoded, length, encodedLength - length);
+				if(inflated == 0 && inflater.needsInput())
+					break;
+				length += inflated;
+			}
+			if(length != encodedLength)
+				throw new IOException("Truncated trajectory chunk");
+		}
+		catch(DataFormatException e)
+		{
+			throw new IOException("Corrupt trajectory chunk", e);
+		}
+		position = 0;
+
+		speciesCount = (int)readVarLong();
+		if(speciesColor.length < speciesCount)
+		{
+			speciesColor = new int[speciesCount];
+			speciesRadius = new double[speciesCount];
+		}
+		for(int i = 0; i < speciesCount; i++)
+		{
+			speciesColor[i] = (int)readVarLong();
+			speciesRadius[i] = Double.longBitsToDouble(readLong());
+		}
+		if(x.length < count)
+		{
+			x = new double[count];
+			y = new double[count];
+			z = new double[count];
+			species = new int[count];
+			quantized = new long[count*3];
+		}
+		for(int i = 0; i < count; i++)
+		{
+			species[i] = (int)readVarLong();
+			quantized[i*3] = quantized[i*3 + 1] = quantized[i*3 + 2] = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a zig-zag difference and adds it to a quantized coordinate.
+	 *
+	 * @param slot - the index of the coordinate.
+	 * @return long - the new quantized coordinate.
+	 * @throws IOException - if the chunk ends too soon.
+	 */
+	private long decode(int slot) throws IOException
+	{
+		long zigzag = readVarLong();
+		quantized[slot] += (zigzag >>> 1) ^ -(zigzag & 1);
+		return quantized[slot];
+	}
+
+	/**
+	 * Reads a variable length long from the decompressed chunk.
+	 *
+	 * @return long - the value.
+	 * @throws IOException - if the chunk ends too soon.
+	 */
+	private long readVarLong() throws IOException
+	{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			if(position >= encodedLength)
+				throw new IOException("Truncated trajectory chunk");
+			byte b = encoded[position++];
+			value |= (long)(b & 0x7F) << shift;
+			if(b >= 0)
+				return value;
+		}
+		throw new IOException("Corrupt trajectory chunk");
+	}
+
+	/**
+	 * Reads a big endian long from the decompressed chunk.
+	 *
+	 * @return long - the value.
+	 * @throws IOException - if the chunk ends too soon.
+	 */
+	private long readLong() throws IOException
+	{
+		if(position + 8 > encodedLength)
+			throw new IOException("Truncated trajectory chunk");
+		long value = 0;
+		for(int i = 0; i < 8; i++)
+		{
+			value = (value << 8) | (encoded[position++] & 0xFF);
+		}
+		return value;
+	}
+
+}
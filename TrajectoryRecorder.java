@@ -0,0 +1,413 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Records the particle positions of every N-th step to a trajectory file without slowing the simulation down. On the
+ * physics thread the positions are copied into a frame taken from a fixed pool, and a background writer thread encodes
+ * and compresses the frames and writes them to disk. If the writer falls behind and the pool is empty the frame is
+ * dropped and counted instead of waiting.
+ *
+ * The file is made of chunks of up to FRAMES_PER_CHUNK frames that can each be decoded on their own. Positions are
+ * stored as whole multiples of the resolution, each frame as the difference from the frame before it in the same chunk,
+ * written as zig-zag variable length integers and compressed with Deflater. The first frame of a chunk is stored as
+ * the difference from zero. A chunk ends early when the number of particles, the species table or the species of any
+ * particle changes. The species are compared by a checksum, so clearing the box and adding as many particles of other
+ * species starts a new chunk too.
+ *
+ * The file layout (big endian) is:
+ * header - int magic ("FTRJ"), int version, double resolution.
+ * chunk - int magic ("CHNK"), int frame count, int particle count, int encoded length, int compressed length, then the
+ * compressed bytes. The encoded bytes hold the species table (the number of species, then the color and the raw bits
+ * of the radius of each), the species of every particle, then for each frame the step and the raw bits of the box size
+ * followed by the x, y and z difference of every particle.
+ *
+ * Particles are written in id order, so a particle keeps its place from frame to frame when the store is reordered.
+ *
+ * TrajectoryReader reads the files back.
+ *
+ * @author Ben Johnson
+ * @version 6-27-2017
+ *
+ */
+public class TrajectoryRecorder implements SimulationListener {
+
+	public static final int MAGIC = 0x4654524A;
+	public static final int CHUNK_MAGIC = 0x43484E4B;
+	public static final int VERSION = 1;
+	public static final int FRAMES_PER_CHUNK = 16;
+
+	private Path path;
+	private int interval;
+	private double resolution;
+	private ArrayBlockingQueue<Frame> free;
+	private ArrayBlockingQueue<Frame> pending;
+	private Frame stopFrame;
+	private Thread writer;
+	private SimulationEngine engine;
+	private volatile IOException failure;
+	private AtomicLong recorded;
+	private AtomicLong dropped;
+	private AtomicLong bytesWritten;
+
+	/**
+	 * Constructor for the trajectory recorder.
+	 *
+	 * @param path - the file to write.
+	 * @param interval - record every interval-th step.
+	 * @param poolSize - the number of frames that can wait for the writer before frames are dropped.
+	 * @param resolution - the smallest position difference that is kept.
+	 */
+	public TrajectoryRecorder(Path path, int interval, int poolSize, double resolution)
+	{
+		this.path = path;
+		this.interval = Math.max(1, interval);
+		this.resolution = resolution;
+		free = new ArrayBlockingQueue<Frame>(poolSize);
+		pending = new ArrayBlockingQueue<Frame>(poolSize + 1);
+		for(int i = 0; i < poolSize; i++)
+		{
+			free.add(new Frame());
+		}
+		stopFrame = new Frame();
+		recorded = new AtomicLong();
+		dropped = new AtomicLong();
+		bytesWritten = new AtomicLong();
+	}
+
+	/**
+	 * Opens the file, starts the writer thread and subscribes to the engine.
+	 *
+	 * @param simulation - the engine to record.
+	 * @throws IOException - if the file can't be created.
+	 */
+	public void start(SimulationEngine simulation) throws IOException
+	{
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeDouble(resolution);
+		writer = new Thread(new Runnable() { public void run() { write(out); } }, "Trajectory Writer");
+		writer.setDaemon(true);
+		writer.start();
+		engine = simulation;
+		engine.addListener(this);
+	}
+
+	/**
+	 * Unsubscribes from the engine, waits for the writer to write every frame that was recorded and closes the file.
+	 *
+	 * @throws IOException - if writing the file failed.
+	 */
+	public void stop() throws IOException
+	{
+		if(engine == null)
+			return;
+		engine.removeListener(this);
+		engine = null;
+		pending.add(stopFrame);
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if(failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Copies the positions into a free frame every interval-th step, or counts a dropped frame if none is free.
+	 *
+	 * @param simulation - the engine that finished the step.
+	 */
+	@Override
+	public void stepCompleted(SimulationEngine simulation)
+	{
+		if(simulation.getStepCount() % interval != 0)
+			return;
+		Frame frame = free.poll();
+		if(frame == null)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		frame.copyFrom(simulation);
+		pending.add(frame);
+		recorded.incrementAndGet();
+	}
+
+	/**
+	 * Accessor method for the number of frames recorded.
+	 *
+	 * @return long - the frames handed to the writer.
+	 */
+	public long getFramesRecorded()
+	{
+		return recorded.get();
+	}
+
+	/**
+	 * Accessor method for the number of frames dropped because the writer fell behind.
+	 *
+	 * @return long - the dropped frames.
+	 */
+	public long getFramesDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Accessor method for the number of compressed bytes written.
+	 *
+	 * @return long - the bytes written to the file after the header.
+	 */
+	public long getBytesWritten()
+	{
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Accessor method for the file being written.
+	 *
+	 * @return Path - the trajectory file.
+	 */
+	public Path getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * The writer thread. Encodes frames into the current chunk and writes the chunk out when it is full, when the
+	 * particle count or species change or when recording stops.
+	 *
+	 * @param out - the file stream, already holding the header.
+	 */
+	private void write(DataOutputStream out)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteBuilder encoded = new ByteBuilder();
+		byte[] compressed = new byte[1 << 16];
+		long[] previous = new long[0];
+		int chunkFrames = 0;
+		int chunkCount = 0;
+		int chunkSpecies = 0;
+		long chunkChecksum = 0;
+		try
+		{
+			while(true)
+			{
+				Frame frame = pending.take();
+				boolean stopping = frame == stopFrame;
+				if(chunkFrames > 0 && (stopping || chunkFrames == FRAMES_PER_CHUNK || frame.count != chunkCount
+							|| frame.speciesCount != chunkSpecies || frame.speciesChecksum != chunkChecksum))
+				{
+					compressed = writeChunk(out, deflater, encoded, compressed, chunkFrames, chunkCount);
+					chunkFrames = 0;
+				}
+				if(stopping)
+					break;
+
+				if(chunkFrames == 0)
+				{
+					chunkCount = frame.count;
+					chunkSpecies = frame.speciesCount;
+					chunkChecksum = frame.speciesChecksum;
+					encoded.clear();
+					if(previous.length < chunkCount*3)
+						previous = new long[chunkCount*3];
+					for(int i = 0; i < chunkCount*3; i++)
+					{
+						previous[i] = 0;
+					}
+					encoded.writeVarLong(frame.speciesCount);
+					for(int i = 0; i < frame.speciesCount; i++)
+					{
+						encoded.writeVarLong(frame.speciesColor[i]);
+						encoded.writeLong(Double.doubleToLongBits(frame.speciesRadius[i]));
+					}
+					for(int i = 0; i < chunkCount; i++)
+					{
+						encoded.writeVarLong(frame.species[i]);
+					}
+				}
+				encoded.writeVarLong(frame.step);
+				encoded.writeLong(Double.doubleToLongBits(frame.boxSize));
+				double[][] axes = {frame.x, frame.y, frame.z};
+				for(int i = 0; i < chunkCount; i++)
+				{
+					for(int axis = 0; axis < 3; axis++)
+					{
+						long quantized = Math.round(axes[axis][i]/resolution);
+						long delta = quantized - previous[i*3 + axis];
+						previous[i*3 + axis] = quantized;
+						encoded.writeVarLong((delta << 1) ^ (delta >> 63));
+					}
+				}
+				chunkFrames++;
+				free.add(frame);
+			}
+		}
+		catch(IOException e)
+		{
+			failure = e;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			deflater.end();
+			try
+			{
+				out.close();
+			}
+			catch(IOException e)
+			{
+				if(failure == null)
+					failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Compresses the encoded chunk and writes it with its chunk header.
+	 *
+	 * @param out - the file stream.
+	 * @param deflater - the compressor.
+	 * @param encoded - the encoded chunk.
+	 * @param compressed - a buffer for the compressed bytes.
+	 * @param frames - the number of frames in the chunk.
+	 * @param count - the number of particles in each frame.
+	 * @return byte[] - the compressed buffer, grown if it was too small.
+	 * @throws IOException - if the file can't be written.
+	 */
+	private byte[] writeChunk(DataOutputStream out, Deflater deflater, ByteBuilder encoded, byte[] compressed, int frames,
+			int count) throws IOException
+	{
+		deflater.reset();
+		deflater.setInput(encoded.bytes, 0, encoded.length);
+		deflater.finish();
+		int length = 0;
+		while(!deflater.finished())
+		{
+			if(length == compressed.length)
+				compressed = Arrays.copyOf(compressed, compressed.length*2);
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+		out.writeInt(CHUNK_MAGIC);
+		out.writeInt(frames);
+		out.writeInt(count);
+		out.writeInt(encoded.length);
+		out.writeInt(length);
+		out.write(compressed, 0, length);
+		bytesWritten.addAndGet(20 + length);
+		return compressed;
+	}
+
+	/**
+	 * The positions of one recorded step. Frames are reused, the arrays only grow.
+	 */
+	private static class Frame
+	{
+		private long step;
+		private double boxSize;
+		private int count;
+		private double[] x = new double[0], y = new double[0], z = new double[0];
+		private int[] species = new int[0];
+		private int speciesCount;
+		private int[] speciesColor = new int[0];
+		private double[] speciesRadius = new double[0];
+		private long speciesChecksum;
+
+		private void copyFrom(SimulationEngine engine)
+		{
+			ParticleStore store = engine.getStore();
+			step = engine.getStepCount();
+			boxSize = engine.getBoxSize();
+			count = store.size();
+			if(x.length < count)
+			{
+				x = new double[count];
+				y = new double[count];
+				z = new double[count];
+				species = new int[count];
+			}
+			store.copyById(store.getX(), x);
+			store.copyById(store.getY(), y);
+			store.copyById(store.getZ(), z);
+			store.copyById(store.getSpecies(), species);
+			speciesCount = store.getSpeciesCount();
+			if(speciesColor.length < speciesCount)
+			{
+				speciesColor = new int[speciesCount];
+				speciesRadius = new double[speciesCount];
+			}
+			for(int i = 0; i < speciesCount; i++)
+			{
+				speciesColor[i] = store.getSpeciesColor(i);
+				speciesRadius[i] = store.getSpeciesRadius(i);
+			}
+			speciesChecksum = speciesCount;
+			for(int i = 0; i < speciesCount; i++)
+			{
+				speciesChecksum = speciesChecksum*31 + speciesColor[i];
+				speciesChecksum = speciesChecksum*31 + Double.doubleToLongBits(speciesRadius[i]);
+			}
+			for(int i = 0; i < count; i++)
+			{
+				speciesChecksum = speciesChecksum*31 + species[i];
+			}
+		}
+	}
+
+	/**
+	 * A growable byte array the writer encodes a chunk into.
+	 */
+	private static class ByteBuilder
+	{
+		private byte[] bytes = new byte[1 << 16];
+		private int length;
+
+		private void clear()
+		{
+			length = 0;
+		}
+
+		private void ensure(int extra)
+		{
+			if(length + extra > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, length + extra));
+		}
+
+		private void writeVarLong(long value)
+		{
+			ensure(10);
+			while((value & ~0x7FL) != 0)
+			{
+				bytes[length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte)value;
+		}
+
+		private void writeLong(long value)
+		{
+			ensure(8);
+			for(int shift = 56; shift >= 0; shift -= 8)
+			{
+				bytes[length++] = (byte)(value >>> shift);
+			}
+		}
+	}
+
+}
@@ -9,9 +9,13 @@ import javax.vecmath.*;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+
+import javax.management.JMException;
 
 /**
  * portions Copyright (c) 1996-2000 Sun Microsystems, Inc. All Rights Reserved.
@@ -57,17 +61,28 @@ public class Window {
 	private JMenu file;
 	private JMenu runStop;
 	private JMenu particle;
+	private JMenu view;
 	private JMenu help;
+	private JMenuItem save;
+	private JMenuItem load;
 	private JMenuItem exit;
 	private JMenuItem run;
 	private JMenuItem stop;
 	private JMenuItem step;
+	private JMenuItem startRecording;
+	private JMenuItem stopRecording;
+	private JCheckBoxMenuItem eventDriven;
 	private JMenuItem addParticle;
 	private JMenuItem deleteParticles;
 	private JMenuItem documentation;
+	private JRadioButtonMenuItem sphereView;
+	private JRadioButtonMenuItem batchedView;
+	private JCheckBoxMenuItem observablesView;
+	private JCheckBoxMenuItem detailView;
 	private JTextField numField;
 	private JTextField sizeField;
 	private JComboBox<String> colorField;
+	private JComboBox<String> placementField;
 	private JButton ok;
 	private JButton cancel;
 	
@@ -84,12 +99,27 @@ public class Window {
 	private PointLight light3;
 	private QuadArray box;
 	private ArrayList<Particle> particles;
+	private ArrayList<BranchGroup> viewBatches;
+	private SimulationEngine engine;
 	
-	private Timer timer;
-	private TimerTask task;
+	private SimulationRunner runner;
+	private BatchedRenderer batchedRenderer;
+	private boolean batched = false;
+	private SnapshotBuffer snapshots;
+	private Timer renderTimer;
+	private ObservablesPanel observablesPanel;
+	private LevelOfDetail levels;
+	private boolean levelOfDetail = false;
+	private Transform3D eyeTransform = new Transform3D();
+	private Vector3d eye = new Vector3d();
 	
 	private double boxSize = 1;
-	private boolean timerRunning = false;
+	private double boxGeometrySize;
+	private double stepsPerSecond = 40;
+	private int framesPerSecond = 60;
+	private int recordEvery = 4;
+	private int viewBatchSize = 1024;
+	private int bytesPerSphere = 16384;
 	
 	/**
 	 * Constructor for the window class. Creates the JFrame window for the program and sets all of the initial parameters.
@@ -110,8 +140,10 @@ public class Window {
 		setNavigation();
 		addBox();
 		initializeParticle();
+		panel.add(observablesPanel, BorderLayout.SOUTH);
 		addDirectionalLights();
 		addPointLights();
+		startRendering();
 		timerSet();	
 	}
 	
@@ -121,17 +153,35 @@ public class Window {
 	public void setMenuComponents()
 	{
 		//file tab
+		file.add(save);
+		file.add(load);
+		file.addSeparator();
 		file.add(exit);
 		menuBar.add(file);
 		//run/stop tab
 		runStop.add(run);
 		runStop.add(stop);
 		runStop.add(step);
+		runStop.addSeparator();
+		runStop.add(eventDriven);
+		runStop.addSeparator();
+		runStop.add(startRecording);
+		runStop.add(stopRecording);
 		menuBar.add(runStop);
 		//particle tab
 		particle.add(addParticle);
 		particle.add(deleteParticles);
 		menuBar.add(particle);
+		//view tab
+		ButtonGroup viewModes = new ButtonGroup();
+		viewModes.add(sphereView);
+		viewModes.add(batchedView);
+		view.add(sphereView);
+		view.add(batchedView);
+		view.add(detailView);
+		view.addSeparator();
+		view.add(observablesView);
+		menuBar.add(view);
 		//help tab
 		help.add(documentation);
 		menuBar.add(help);
@@ -162,16 +212,28 @@ public class Window {
 		menuBar = new JMenuBar();
 		//file menu tab
 		file = new JMenu("File");
+		save = new JMenuItem("Save...");
+		load = new JMenuItem("Load...");
 		exit = new JMenuItem("Exit");
 		//run/stop menu tab
 		runStop = new JMenu("Run/Stop");
 		run = new JMenuItem("Run");
 		stop = new JMenuItem("Stop");
 		step = new JMenuItem("Step");	
+		eventDriven = new JCheckBoxMenuItem("Event Driven");
+		startRecording = new JMenuItem("Start Recording...");
+		stopRecording = new JMenuItem("Stop Recording");
+		stopRecording.setEnabled(false);
 		//particle tab
 		particle = new JMenu("Particle");
 		addParticle = new JMenuItem("Add Particles");
 		deleteParticles = new JMenuItem("Delete Particles");
+		//view tab
+		view = new JMenu("View");
+		sphereView = new JRadioButtonMenuItem("Spheres", true);
+		batchedView = new JRadioButtonMenuItem("Batched Points");
+		observablesView = new JCheckBoxMenuItem("Gas Observables");
+		detailView = new JCheckBoxMenuItem("Level of Detail");
 		//help tab
 		help = new JMenu("Help");
 		documentation = new JMenuItem("Documentation");
@@ -186,6 +248,12 @@ public class Window {
 	 */
 	public void setMenuEvents()
 	{
+		SaveEvent saveEvent = new SaveEvent();
+		save.addActionListener(saveEvent);
+		
+		LoadEvent loadEvent = new LoadEvent();
+		load.addActionListener(loadEvent);
+		
 		ExitEvent exitEvent = new ExitEvent();
 		exit.addActionListener(exitEvent);
 		
@@ -198,12 +266,33 @@ public class Window {
 		StepEvent stepEvent = new StepEvent();
 		step.addActionListener(stepEvent);
 		
+		EventDrivenEvent eventDrivenEvent = new EventDrivenEvent();
+		eventDriven.addActionListener(eventDrivenEvent);
+		
+		StartRecordingEvent startRecordingEvent = new StartRecordingEvent();
+		startRecording.addActionListener(startRecordingEvent);
+		
+		StopRecordingEvent stopRecordingEvent = new StopRecordingEvent();
+		stopRecording.addActionListener(stopRecordingEvent);
+		
 		AddParticleEvent addParticleEvent = new AddParticleEvent();
 		addParticle.addActionListener(addParticleEvent);
 		
 		DeleteParticleEvent deleteParticleEvent = new DeleteParticleEvent();
 		deleteParticles.addActionListener(deleteParticleEvent);
 		
+		SphereViewEvent sphereViewEvent = new SphereViewEvent();
+		sphereView.addActionListener(sphereViewEvent);
+		
+		BatchedViewEvent batchedViewEvent = new BatchedViewEvent();
+		batchedView.addActionListener(batchedViewEvent);
+		
+		DetailViewEvent detailViewEvent = new DetailViewEvent();
+		detailView.addActionListener(detailViewEvent);
+		
+		ObservablesViewEvent observablesViewEvent = new ObservablesViewEvent();
+		observablesView.addActionListener(observablesViewEvent);
+		
 		DocumentationEvent documentationEvent = new DocumentationEvent();
 		documentation.addActionListener(documentationEvent);
 	}
@@ -231,6 +320,21 @@ public class Window {
 	public void initializeParticle()
 	{
 		particles = new ArrayList<Particle>();
+		viewBatches = new ArrayList<BranchGroup>();
+		engine = new SimulationEngine(boxSize);
+		snapshots = new SnapshotBuffer();
+		engine.addListener(snapshots);
+		runner = new SimulationRunner(engine);
+		runner.setStepsPerSecond(stepsPerSecond);
+		observablesPanel = new ObservablesPanel(engine.getObservables());
+		try
+		{
+			engine.getMetrics().register("Window");
+		}
+		catch(JMException e)
+		{
+			System.err.println("Could not register the simulation metrics: " + e.getMessage());
+		}
 		particlesGroup = new BranchGroup();
 		particlesGroup.setCapability(Group.ALLOW_CHILDREN_EXTEND);
 		particlesGroup.setCapability(Group.ALLOW_CHILDREN_WRITE);
@@ -242,72 +346,145 @@ public class Window {
 	}
 	
 	/**
-	 * adds the specified number of particles to the universe with the given color and size.
+	 * adds the specified number of particles to the universe with the given color and size. The particles are added
+	 * between two steps of the physics thread.
 	 * 
 	 * @param num - number of particles to create
 	 * @param size - size of each particle
 	 * @param color - color of each particle
+	 * @return int - the number of particles that fit in the box
+	 */
+	public int addParticle(final int num, final float size, final Color3f color)
+	{
+		final int[] placed = new int[1];
+		runner.execute(new Runnable() { public void run() {
+			placed[0] = engine.addParticles(num, size, color.get().getRGB());
+			if(!batched)
+				attachParticleViews();
+			snapshots.publish(engine);
+		}});
+		return placed[0];
+	}
+	
+	/**
+	 * Creates the sphere node trees for every particle in the engine that doesn't have one yet and adds them to the
+	 * universe. The spheres are gathered into groups of viewBatchSize that are each added with one addChild, so the
+	 * live scene only changes once per group. With level of detail on, the particles share the geometry of their
+	 * species instead of having their own sphere. Has to be run between two steps.
 	 */
-	public void addParticle(int num, float size, Color3f color)
+	public void attachParticleViews()
 	{
-		for(int i = 0; i < num; i++)
+		ParticleStore store = engine.getStore();
+		BranchGroup batch = null;
+		for(int i = particles.size(); i < store.size(); i++)
 		{
-			Particle particle = new Particle(size, color, boxSize);
-			int count = 0;
-			while(count < 10000)
+			if(batch == null)
 			{
-				if(!intersectOtherParticle(particle))
-					break;
-				else
-				{
-					particle.setRandomLocation();
-					count++;
-				}
+				batch = new BranchGroup();
+				batch.setCapability(BranchGroup.ALLOW_DETACH);
 			}
-			if(count == 10000)
+			Particle particle = new Particle(store, i, boxSize, levelOfDetail ? levels : null);
+			particles.add(particle);
+			batch.addChild(particle.getParticleBranchGroup());
+			if(batch.numChildren() == viewBatchSize || i == store.size() - 1)
 			{
-				removeLastParticlesFromArrayList(i);
-				return;
+				particlesGroup.addChild(batch);
+				viewBatches.add(batch);
+				batch = null;
 			}
-			particles.add(particle);
 		}
-		
-		for(int i = particles.size()-num; i < particles.size(); i++)
+	}
+	
+	/**
+	 * Removes the sphere node trees of every particle from the universe.
+	 */
+	public void detachParticleViews()
+	{
+		for(BranchGroup batch : viewBatches)
 		{
-			particlesGroup.addChild(particles.get(i).getParticleBranchGroup());
+			batch.detach();
 		}
+		viewBatches.clear();
+		particles.clear();
 	}
 	
 	/**
-	 * Removes the last number num particles in the arrayList particles.
+	 * Works out whether spheres could be made for the given number of particles with the memory left in the heap, each
+	 * sphere's node tree and geometry taking about bytesPerSphere.
 	 * 
-	 * @param num - the number of particles to be removed.
+	 * @param count - the number of particles that would need a sphere.
+	 * @return boolean - whether the spheres fit.
 	 */
-	public void removeLastParticlesFromArrayList(int num)
+	public boolean spheresFit(long count)
 	{
-		int end = particles.size() - num + 1;
-		while(particles.size() > end)
-		{
-			particles.remove(particles.size()-1);
-		}
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		return (count - particles.size())*bytesPerSphere <= free/2;
 	}
 	
 	/**
-	 * Checks if particle intersects with any other particles.
+	 * Shows or hides the gas observables under the simulation. The engine only collects them while they are shown.
 	 * 
-	 * @param particle - the particle to compare.
-	 * @return boolean - whether particle intersects with any other particle or not.
+	 * @param shown - whether to show the observables.
 	 */
-	public boolean intersectOtherParticle(Particle particle)
+	public void setObservablesShown(final boolean shown)
 	{
-		for(Particle other : particles)
-		{
-			if(particle.intersectOtherParticle(other))
+		runner.execute(new Runnable() { public void run() {
+			engine.setObserving(shown);
+		}});
+		observablesPanel.setVisible(shown);
+		panel.revalidate();
+	}
+	
+	/**
+	 * Switches between drawing every particle as its own sphere and drawing it at the level of detail its size on screen
+	 * calls for. The sphere views are rebuilt if they are shown.
+	 * 
+	 * @param detailMode - whether to use levels of detail.
+	 */
+	public void setLevelOfDetail(final boolean detailMode)
+	{
+		if(levelOfDetail == detailMode)
+			return;
+		runner.execute(new Runnable() { public void run() {
+			levelOfDetail = detailMode;
+			if(levelOfDetail && levels == null)
+				levels = new LevelOfDetail();
+			if(!batched)
 			{
-				return true;
+				detachParticleViews();
+				attachParticleViews();
 			}
-		}
-		return false;
+			snapshots.publish(engine);
+		}});
+	}
+	
+	/**
+	 * Switches between drawing every particle as its own sphere and drawing each species as one batch of points. The
+	 * spheres are thrown away in batched mode and rebuilt when switching back.
+	 * 
+	 * @param batchedMode - whether to use the batched renderer.
+	 */
+	public void setBatchedRendering(final boolean batchedMode)
+	{
+		if(batched == batchedMode)
+			return;
+		runner.execute(new Runnable() { public void run() {
+			batched = batchedMode;
+			if(batched)
+			{
+				detachParticleViews();
+				if(batchedRenderer == null)
+					batchedRenderer = new BatchedRenderer();
+				particlesGroup.addChild(batchedRenderer.getRoot());
+			}
+			else
+			{
+				batchedRenderer.getRoot().detach();
+				attachParticleViews();
+			}
+			snapshots.publish(engine);
+		}});
 	}
 	
 	/**
@@ -315,11 +492,11 @@ public class Window {
 	 */
 	public void deleteParticles()
 	{
-		for(Particle particle : particles)
-		{
-			particle.getParticleBranchGroup().detach();
-		}
-		particles.removeAll(particles);
+		runner.execute(new Runnable() { public void run() {
+			detachParticleViews();
+			engine.clear();
+			snapshots.publish(engine);
+		}});
 	}
 	
 	/**
@@ -365,6 +542,7 @@ public class Window {
 		Appearance boxAppearance = new Appearance();
 		boxAppearance.setPolygonAttributes(new PolygonAttributes(PolygonAttributes.POLYGON_LINE, PolygonAttributes.CULL_NONE, 0));
 		Shape3D boxFinal = new Shape3D(createBox(),boxAppearance);
+		boxGeometrySize = boxSize;
 		
 		group = new BranchGroup();
 		objRoot = new BranchGroup();
@@ -377,6 +555,116 @@ public class Window {
 		world.addBranchGraph(group);
 	}
 	
+	/**
+	 * Resizes the bounding box outline by scaling it from the size it was built at.
+	 * 
+	 * @param size - the new side length of the box.
+	 */
+	public void setBoxSize(double size)
+	{
+		boxSize = size;
+		Transform3D scale = new Transform3D();
+		scale.setScale(boxSize/boxGeometrySize);
+		transformGroupBox.setTransform(scale);
+	}
+	
+	/**
+	 * Saves the simulation to a checkpoint file. The state is copied between two steps and written while the
+	 * simulation keeps running.
+	 * 
+	 * @param path - the file to write.
+	 * @throws IOException - if the file can't be written.
+	 */
+	public void saveSimulation(File path) throws IOException
+	{
+		final SimulationSnapshot snapshot = new SimulationSnapshot();
+		runner.execute(new Runnable() { public void run() {
+			engine.snapshot(snapshot);
+		}});
+		Checkpoint.write(snapshot, path.toPath());
+	}
+	
+	/**
+	 * Replaces the simulation with the one saved in a checkpoint file and rebuilds the particle views.
+	 * 
+	 * @param path - the file to read.
+	 * @throws IOException - if the file can't be read.
+	 */
+	public void loadSimulation(final File path) throws IOException
+	{
+		final IOException[] error = new IOException[1];
+		runner.execute(new Runnable() { public void run() {
+			detachParticleViews();
+			try
+			{
+				engine.loadCheckpoint(path.toPath());
+			}
+			catch(IOException e)
+			{
+				error[0] = e;
+			}
+			finally
+			{
+				setBoxSize(engine.getBoxSize());
+				if(!batched)
+					attachParticleViews();
+				snapshots.publish(engine);
+			}
+		}});
+		if(error[0] != null)
+			throw error[0];
+	}
+	
+	/**
+	 * Starts recording the particle positions of every recordEvery-th step to a trajectory file. The frames are written
+	 * on a background thread, so recording doesn't slow the simulation down.
+	 * 
+	 * @param path - the trajectory file to write.
+	 * @throws IOException - if the file can't be created.
+	 */
+	public void startRecording(final File path) throws IOException
+	{
+		final IOException[] error = new IOException[1];
+		runner.execute(new Runnable() { public void run() {
+			try
+			{
+				engine.startRecording(path.toPath(), recordEvery);
+			}
+			catch(IOException e)
+			{
+				error[0] = e;
+			}
+		}});
+		if(error[0] != null)
+			throw error[0];
+	}
+	
+	/**
+	 * Stops the trajectory recording between two steps, waiting for the recorded frames to be written.
+	 * 
+	 * @return TrajectoryRecorder - the stopped recorder, or null if nothing was being recorded.
+	 * @throws IOException - if writing the file failed.
+	 */
+	public TrajectoryRecorder stopRecording() throws IOException
+	{
+		final TrajectoryRecorder[] stopped = new TrajectoryRecorder[1];
+		final IOException[] error = new IOException[1];
+		runner.execute(new Runnable() { public void run() {
+			stopped[0] = engine.getRecorder();
+			try
+			{
+				engine.stopRecording();
+			}
+			catch(IOException e)
+			{
+				error[0] = e;
+			}
+		}});
+		if(error[0] != null)
+			throw error[0];
+		return stopped[0];
+	}
+	
 	/**
 	 * Specifics and orders all of the points for a cube with side dimensions of boxSize.
 	 * 
@@ -443,8 +731,8 @@ public class Window {
 	{
 		setParticleWindowFrame();
 		JLabel message = new JLabel("Specify parameters of new particles.");
-		JLabel limits = new JLabel("(number of particles between 0 and 100, size between 0 and .5)");
-		JLabel limits2 = new JLabel("           *limit 1000 total particles at once*           ");
+		JLabel limits = new JLabel("(size between 0 and " + boxSize/2 + ")");
+		JLabel limits2 = new JLabel("Memory left for " + engine.getParticleCapacity() + " more particles");
 		JLabel numParticles = new JLabel("Number of new particles:");
 		numField = new JTextField("0",15);
 		JLabel sizeParticles = new JLabel("Size of new particles:");
@@ -452,6 +740,10 @@ public class Window {
 		JLabel colorParticles = new JLabel("Color of new particles:");
 		String[] colors = {"CYAN", "RED", "YELLOW", "GREEN"};
 		colorField = new JComboBox<String>(colors);
+		JLabel placementParticles = new JLabel("Placement of new particles:");
+		String[] placements = {"RANDOM", "LATTICE", "POISSON_DISK"};
+		placementField = new JComboBox<String>(placements);
+		placementField.setSelectedItem(engine.getPlacement().name());
 		ok = new JButton("OK");
 		cancel = new JButton("Cancel");
 		JPanel particlePanel = new JPanel();
@@ -464,6 +756,8 @@ public class Window {
 		particlePanel.add(sizeField);
 		particlePanel.add(colorParticles);
 		particlePanel.add(colorField);
+		particlePanel.add(placementParticles);
+		particlePanel.add(placementField);
 		particlePanel.add(ok);
 		particlePanel.add(cancel);
 		particleWindow.add(particlePanel);
@@ -477,7 +771,7 @@ public class Window {
 	{
 		particleWindow = new JFrame();
 		particleWindow.setVisible(true);
-		particleWindow.setSize(400, 200);
+		particleWindow.setSize(400, 230);
 		particleWindow.setLocationRelativeTo(null);
 		particleWindow.setResizable(false);
 		particleWindow.setTitle("Add Particles");
@@ -531,16 +825,25 @@ public class Window {
 	}
 	
 	/**
-	 * Creates new particles with the specified parameters.
+	 * Creates new particles with the specified parameters on a background thread, with a progress dialog that can
+	 * cancel them. The only limits are the memory left in the heap and how many particles fit in the box.
 	 */
 	public void addNewParticles()
 	{
 		int num = (int)Double.parseDouble(numField.getText());
 		float size = Float.parseFloat(sizeField.getText());
 		Color3f color = new Color3f(getColorFromBox());
-		if(num <= 0 || size <= 0 || num > 100 || size > .5 || particles.size() + num > 1000)
+		if(num <= 0 || size <= 0 || size > boxSize/2)
+			return;
+		long capacity = engine.getParticleCapacity();
+		if(num > capacity)
+		{
+			JOptionPane.showMessageDialog(frame, "There is only memory left for " + capacity + " more particles.");
 			return;
-		addParticle(num, size, color);
+		}
+		ParticlePlacer.Strategy strategy = ParticlePlacer.Strategy.valueOf((String)placementField.getSelectedItem());
+		engine.setPlacement(strategy);
+		new PopulateTask(num, size, color, strategy).execute();
 	}
 	
 	/**
@@ -561,50 +864,211 @@ public class Window {
 	}
 	
 	/**
-	 * Checks to see if two particles are intersecting, if they are fix them.
+	 * Checks to see if two particles are intersecting, if they are fix them. Only the particles in the neighboring
+	 * cells of the spatial grid are checked.
 	 */
 	public void checkCollisions(Particle particle)
 	{
-		if(intersectOtherParticle(particle))
+		engine.checkCollisions(particle.getIndex());
+	}
+	
+	/**
+	 * Starts the physics thread to iterate through the simulation.
+	 */
+	public void timerSet()
+	{
+		runner.start();
+	}
+	
+	/**
+	 * Stops the physics thread, waiting for the step it is on to finish.
+	 */
+	public void timerStop()
+	{
+		runner.stop();
+	}
+	
+	/**
+	 * Starts the render loop. It runs on the Swing event thread at framesPerSecond and draws the latest snapshot the
+	 * physics thread published, it never waits for a step.
+	 */
+	public void startRendering()
+	{
+		renderTimer = new Timer(1000/framesPerSecond, new RenderEvent());
+		renderTimer.setCoalesce(true);
+		renderTimer.start();
+	}
+	
+	/**
+	 * The code that is run every time an iteration of the simulation is calculated. The step runs between the steps of
+	 * the physics thread if it is running.
+	 */
+	public void update()
+	{
+		runner.step();
+	}
+	
+	/**
+	 * The render loop listener. Moves the particle transforms to the positions in the latest published snapshot. With
+	 * level of detail on, each particle also gets the level for the number of pixels its diameter covers from where the
+	 * eye is, which is its diameter over its distance times the pixels a unit covers at unit distance.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class RenderEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent e)
+		{
+			SimulationSnapshot snapshot = snapshots.latest();
+			if(batched)
+			{
+				batchedRenderer.update(snapshot, viewPort.getHeight()/2.0);
+				return;
+			}
+			double[] x = snapshot.getX(), y = snapshot.getY(), z = snapshot.getZ();
+			int count = Math.min(snapshot.getCount(), particles.size());
+			for(int i = 0; i < count; i++)
+			{
+				particles.get(i).updatePosition(x[i], y[i], z[i]);
+			}
+			if(!levelOfDetail)
+				return;
+			world.getViewingPlatform().getViewPlatformTransform().getTransform(eyeTransform);
+			eyeTransform.get(eye);
+			double pixelsAtUnitDistance = viewPort.getWidth()/(2*Math.tan(viewPort.getView().getFieldOfView()/2));
+			for(int i = 0; i < count; i++)
+			{
+				Particle particle = particles.get(i);
+				double dx = x[i] - eye.x, dy = y[i] - eye.y, dz = z[i] - eye.z;
+				double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
+				particle.setLevel(LevelOfDetail.levelFor(particle.getSize()*2*pixelsAtUnitDistance/distance));
+			}
+		}
+	}
+		
+	/**
+	 * The listener for the file/save button press, asks for a file and saves the simulation to it.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class SaveEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0)
 		{
-			int i;
-			for(i = 0; i < particles.size(); i++)
+			JFileChooser chooser = new JFileChooser();
+			if(chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+				return;
+			try
 			{
-				if(particle.intersectOtherParticle(particles.get(i)))
-					break;
+				saveSimulation(chooser.getSelectedFile());
+			}
+			catch(IOException e)
+			{
+				JOptionPane.showMessageDialog(frame, "Could not save: " + e.getMessage(), "Save",
+						JOptionPane.ERROR_MESSAGE);
 			}
-				particle.collisionFix(particles.get(i));
 		}
 	}
 	
 	/**
-	 * Creates a timer to iterate through the simulation.
+	 * The listener for the file/load button press, asks for a file and loads the simulation saved in it.
+	 * 
+	 * @author Ben Johnson
 	 */
-	public void timerSet()
+	public class LoadEvent implements ActionListener
 	{
-		if(!timerRunning)
+		@Override
+		public void actionPerformed(ActionEvent arg0)
 		{
-			timer = new Timer();
-			task = new TimerTask() { public void run() { update(); } };
-			timer.scheduleAtFixedRate(task, 10, 25);
-			timerRunning = true;
+			JFileChooser chooser = new JFileChooser();
+			if(chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION)
+				return;
+			try
+			{
+				loadSimulation(chooser.getSelectedFile());
+			}
+			catch(IOException e)
+			{
+				JOptionPane.showMessageDialog(frame, "Could not load: " + e.getMessage(), "Load",
+						JOptionPane.ERROR_MESSAGE);
+			}
 		}
 	}
 	
 	/**
-	 * The code that is run every time an iteration of the simulation is calculated.
+	 * The listener for the run/stop/event driven button press, switches the engine between the time stepped and the
+	 * event driven collision handling between two steps.
+	 * 
+	 * @author Ben Johnson
 	 */
-	public void update()
+	public class EventDrivenEvent implements ActionListener
 	{
-		for(Particle p : particles)
+		@Override
+		public void actionPerformed(ActionEvent arg0)
 		{
-			p.addVelocity();
-			p.checkBoxIntersection();
-			checkCollisions(p);
-			p.updatePosition();
+			final boolean selected = eventDriven.isSelected();
+			runner.execute(new Runnable() { public void run() {
+				engine.setEventDriven(selected);
+			}});
 		}
 	}
-		
+	
+	/**
+	 * The listener for the run/stop/start recording button press, asks for a file and starts recording to it.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class StartRecordingEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0)
+		{
+			JFileChooser chooser = new JFileChooser();
+			if(chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION)
+				return;
+			try
+			{
+				startRecording(chooser.getSelectedFile());
+				stopRecording.setEnabled(true);
+			}
+			catch(IOException e)
+			{
+				JOptionPane.showMessageDialog(frame, "Could not record: " + e.getMessage(), "Recording",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
+	/**
+	 * The listener for the run/stop/stop recording button press, stops the recording and reports how many frames were
+	 * written.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class StopRecordingEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0)
+		{
+			stopRecording.setEnabled(false);
+			try
+			{
+				TrajectoryRecorder recorder = stopRecording();
+				if(recorder != null)
+					JOptionPane.showMessageDialog(frame, "Recorded " + recorder.getFramesRecorded() + " frames to "
+							+ recorder.getPath().getFileName() + ", " + recorder.getFramesDropped() + " dropped.",
+							"Recording", JOptionPane.INFORMATION_MESSAGE);
+			}
+			catch(IOException e)
+			{
+				JOptionPane.showMessageDialog(frame, "Could not record: " + e.getMessage(), "Recording",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
 	/**
 	 * The listener for the file/exit button press, closes the program.
 	 * 
@@ -628,7 +1092,7 @@ public class Window {
 	{
 		@Override
 		public void actionPerformed(ActionEvent arg0) {
-			if(timerRunning)
+			if(runner.isRunning())
 				return;
 			else
 				timerSet();
@@ -644,11 +1108,10 @@ public class Window {
 	{
 		@Override
 		public void actionPerformed(ActionEvent arg0) {
-			if(!timerRunning)
+			if(!runner.isRunning())
 				return;
 			else
-				timer.cancel();
-				timerRunning = false;
+				timerStop();
 		}
 	}
 	
@@ -661,13 +1124,67 @@ public class Window {
 	{
 		@Override
 		public void actionPerformed(ActionEvent arg0) {
-			if(timerRunning)
+			if(runner.isRunning())
 				return;
 			else
 				update();
 		}
 	}
 	
+	/**
+	 * The listener for the view/spheres button press, draws every particle as its own sphere.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class SphereViewEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			setBatchedRendering(false);
+		}
+	}
+	
+	/**
+	 * The listener for the view/batched points button press, draws each species as one batch of points.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class BatchedViewEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			setBatchedRendering(true);
+		}
+	}
+	
+	/**
+	 * The listener for the view/level of detail button press, draws near particles as fine spheres, farther ones as
+	 * coarse spheres and the farthest as points.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class DetailViewEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			setLevelOfDetail(detailView.isSelected());
+		}
+	}
+	
+	/**
+	 * The listener for the view/gas observables button press, collects the pressure, temperature and speed
+	 * distribution while the strip under the simulation shows them.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class ObservablesViewEvent implements ActionListener
+	{
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			setObservablesShown(observablesView.isSelected());
+		}
+	}
+	
 	/**
 	 * The listener for the help/documentation button press, opens external documentation window.
 	 * 
@@ -678,8 +1195,7 @@ public class Window {
 		@Override
 		public void actionPerformed(ActionEvent arg0) 
 		{
-			timer.cancel();
-			timerRunning = false;
+			timerStop();
 			makeDocumentationWindow();
 		}
 	} 
@@ -694,8 +1210,7 @@ public class Window {
 		@Override
 		public void actionPerformed(ActionEvent arg0) 
 		{
-			timer.cancel();
-			timerRunning = false;
+			timerStop();
 			makeAddParticleWindow();
 		}
 	} 
@@ -710,8 +1225,7 @@ public class Window {
 		@Override
 		public void actionPerformed(ActionEvent arg0) 
 		{
-			timer.cancel();
-			timerRunning = false;
+			timerStop();
 			deleteParticles();
 		}
 	} 
@@ -744,6 +1258,99 @@ public class Window {
 		}
 	}
 	
+	/**
+	 * Adds particles on a background thread so the window keeps drawing while they are placed. The placement runs
+	 * between two steps of the physics thread and reports its progress to a progress dialog, cancelling the dialog
+	 * cancels the placement and no particles are added. When there is no room in the heap for a sphere per particle the
+	 * view is switched to batched points. Only the placement runs on the background thread, the views are attached on
+	 * the event thread once it is done, since the render loop reads them there.
+	 * 
+	 * @author Ben Johnson
+	 */
+	public class PopulateTask extends SwingWorker<Integer, Void> implements ParticlePlacer.Progress
+	{
+		private int num;
+		private float size;
+		private Color3f color;
+		private ParticlePlacer.Strategy strategy;
+		private ProgressMonitor monitor;
+		private boolean switchToBatched;
+		
+		/**
+		 * Constructor for the populate task. Shows the progress dialog.
+		 * 
+		 * @param num - number of particles to create.
+		 * @param size - size of each particle.
+		 * @param color - color of each particle.
+		 * @param strategy - how to place the particles.
+		 */
+		public PopulateTask(int num, float size, Color3f color, ParticlePlacer.Strategy strategy)
+		{
+			this.num = num;
+			this.size = size;
+			this.color = color;
+			this.strategy = strategy;
+			monitor = new ProgressMonitor(frame, "Adding " + num + " particles", null, 0, 100);
+			monitor.setMillisToDecideToPopup(200);
+			addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent e)
+				{
+					if(e.getPropertyName().equals("progress"))
+						monitor.setProgress(getProgress());
+					if(monitor.isCanceled())
+						cancel(false);
+				}
+			});
+		}
+		
+		@Override
+		protected Integer doInBackground()
+		{
+			final int[] placed = new int[1];
+			runner.execute(new Runnable() { public void run() {
+				placed[0] = engine.addParticles(num, size, color.get().getRGB(), strategy, PopulateTask.this);
+			}});
+			return placed[0];
+		}
+		
+		@Override
+		public boolean placed(int placed, int total)
+		{
+			setProgress((int)(100L*placed/total));
+			return !isCancelled();
+		}
+		
+		@Override
+		protected void done()
+		{
+			monitor.close();
+			runner.execute(new Runnable() { public void run() {
+				switchToBatched = !batched && !spheresFit(engine.getStore().size());
+				if(!batched && !switchToBatched)
+					attachParticleViews();
+				snapshots.publish(engine);
+			}});
+			if(switchToBatched)
+			{
+				setBatchedRendering(true);
+				batchedView.setSelected(true);
+			}
+			if(isCancelled())
+				return;
+			try
+			{
+				int placed = get();
+				if(placed < num)
+					JOptionPane.showMessageDialog(frame, "Only " + placed + " of " + num + " particles fit in the box.");
+			}
+			catch(Exception e)
+			{
+				JOptionPane.showMessageDialog(frame, "Could not add the particles: " + e.getMessage(), "Add Particles",
+						JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+	
 	/**
 	 * Listener for the add particle window ok button. Closes add particle window and creates new particle.
 	 * 